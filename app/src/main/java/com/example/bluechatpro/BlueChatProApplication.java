@@ -1,18 +1,143 @@
 package com.example.bluechatpro;
 
+import android.app.Activity;
 import android.app.Application;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
+import android.bluetooth.BluetoothAdapter;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import com.example.bluechatpro.adapters.BubbleTextCache;
+import com.example.bluechatpro.media.ThumbnailLoader;
+import com.example.bluechatpro.storage.ChatHistory;
+import com.example.bluechatpro.storage.ImageStore;
+import com.example.bluechatpro.storage.Outbox;
+import com.example.bluechatpro.storage.RetentionPolicy;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class BlueChatProApplication extends Application {
 
     public static final String CHANNEL_ID = "bluetooth_chat_channel";
 
+    // Per conversation unless the user sets otherwise; messages never expire by age
+    private static final RetentionPolicy DEFAULT_RETENTION = new RetentionPolicy(0, 50_000, 32L * 1024 * 1024);
+
+    private ChatHistory history;
+    private ImageStore imageStore;
+    private ThumbnailLoader thumbnailLoader;
+    private BubbleTextCache bubbleTextCache;
+    private Outbox outbox;
+    private boolean outboxOpened;
+    private BluetoothAdapter bluetoothAdapter;
+    private boolean adapterLookedUp;
+    private StartupOrchestrator startup;
+    private final ExecutorService startupWorker = Executors.newSingleThreadExecutor();
+
     @Override
     public void onCreate() {
         super.onCreate();
-        createNotificationChannel();
+        Handler mainHandler = new Handler(Looper.getMainLooper());
+        startup = new StartupOrchestrator(mainHandler::post, startupWorker, new StartupOrchestrator.Tracer() {
+            @Override
+            public void beginSection(String name) {
+                Trace.beginSection(name);
+            }
+
+            @Override
+            public void endSection() {
+                Trace.endSection();
+            }
+        }, SystemClock::elapsedRealtimeNanos);
+
+        // Both are cheap to construct; the message log is opened and indexed on
+        // history's own worker
+        startup.runNow("history", () -> {
+            history = new ChatHistory(getFilesDir(), mainHandler::post);
+            history.setDefaultRetention(DEFAULT_RETENTION);
+        });
+        startup.runNow("imageStore", () -> imageStore = new ImageStore(new File(getFilesDir(), "images")));
+
+        startup.runInBackground("outbox", this::getOutbox);
+        startup.runInBackground("bluetoothAdapter", this::getBluetoothAdapter);
+
+        // Only needed once something is posted
+        startup.runAfterFirstFrame("notificationChannel", this::createNotificationChannel);
+        startup.runAfterFirstFrame("startupReport", () -> Log.i("Startup", startup.describe()));
+        registerActivityLifecycleCallbacks(new FirstFrameWatcher());
+    }
+
+    public StartupOrchestrator getStartup() {
+        return startup;
+    }
+
+    // Looked up once, normally by the startup worker before any screen asks;
+    // null if the device has no Bluetooth
+    public synchronized BluetoothAdapter getBluetoothAdapter() {
+        if (!adapterLookedUp) {
+            adapterLookedUp = true;
+            bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        }
+        return bluetoothAdapter;
+    }
+
+    public ChatHistory getHistory() {
+        return history;
+    }
+
+    public ImageStore getImageStore() {
+        return imageStore;
+    }
+
+    // Opened on first use, which should be off the main thread; null if it cannot be read
+    public synchronized Outbox getOutbox() {
+        if (!outboxOpened) {
+            outboxOpened = true;
+            try {
+                outbox = new Outbox(new File(getFilesDir(), "outbox.log"));
+            } catch (IOException e) {
+                Log.e("BlueChatProApplication", "Cannot open outbox", e);
+            }
+        }
+        return outbox;
+    }
+
+    // Created on first use; main thread only
+    public ThumbnailLoader getThumbnailLoader() {
+        if (thumbnailLoader == null) {
+            thumbnailLoader = new ThumbnailLoader();
+        }
+        return thumbnailLoader;
+    }
+
+    // Created on first use; main thread only
+    public BubbleTextCache getBubbleTextCache() {
+        if (bubbleTextCache == null) {
+            bubbleTextCache = new BubbleTextCache();
+        }
+        return bubbleTextCache;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (thumbnailLoader != null) {
+            thumbnailLoader.trimMemory(level);
+        }
+        if (bubbleTextCache != null) {
+            bubbleTextCache.trimMemory(level);
+        }
     }
 
     private void createNotificationChannel() {
@@ -28,4 +153,47 @@ public class BlueChatProApplication extends Application {
             manager.createNotificationChannel(channel);
         }
     }
-}
\ No newline at end of file
+
+    // Tells the orchestrator when the first activity, whichever it is, has drawn
+    private class FirstFrameWatcher implements ActivityLifecycleCallbacks {
+
+        @Override
+        public void onActivityResumed(Activity activity) {
+            unregisterActivityLifecycleCallbacks(this);
+            View decor = activity.getWindow().getDecorView();
+            decor.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+                @Override
+                public boolean onPreDraw() {
+                    decor.getViewTreeObserver().removeOnPreDrawListener(this);
+                    // Runs once this traversal, and so the draw, has finished
+                    decor.post(startup::onFirstFrame);
+                    return true;
+                }
+            });
+        }
+
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+        }
+
+        @Override
+        public void onActivityStarted(Activity activity) {
+        }
+
+        @Override
+        public void onActivityPaused(Activity activity) {
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+        }
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {
+        }
+    }
+}
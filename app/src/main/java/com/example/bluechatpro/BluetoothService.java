@@ -11,15 +11,54 @@ import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 import androidx.core.app.ActivityCompat;
+import com.example.bluechatpro.media.VoicePlayer;
+import com.example.bluechatpro.models.ChatMessage;
+import com.example.bluechatpro.models.Peer;
+import com.example.bluechatpro.protocol.BufferPool;
+import com.example.bluechatpro.protocol.ChatMessageCodec;
+import com.example.bluechatpro.protocol.CreditGate;
+import com.example.bluechatpro.protocol.Frame;
+import com.example.bluechatpro.protocol.FrameChannel;
+import com.example.bluechatpro.protocol.Handshake;
+import com.example.bluechatpro.protocol.Hello;
+import com.example.bluechatpro.protocol.InboundQueue;
+import com.example.bluechatpro.protocol.SessionCipher;
+import com.example.bluechatpro.protocol.LatencyProbe;
+import com.example.bluechatpro.protocol.LinkMetrics;
+import com.example.bluechatpro.protocol.PresenceSender;
+import com.example.bluechatpro.protocol.Utf8Codec;
+import com.example.bluechatpro.storage.ChatHistory;
+import com.example.bluechatpro.storage.ImageStore;
+import com.example.bluechatpro.storage.Outbox;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 public class BluetoothService {
     private static final String TAG = "BluetoothService";
     private static final String APP_NAME = "BlueChatPro";
-    private static final UUID MY_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    // App-specific service record, so we never pair up with unrelated SPP services
+    private static final UUID MY_UUID = UUID.fromString("3bbd3823-8819-46be-94fa-71d3a6a860c2");
 
     // Message types sent from BluetoothService Handler
     public static final int MESSAGE_STATE_CHANGE = 1;
@@ -30,6 +69,9 @@ public class BluetoothService {
     public static final int MESSAGE_CONNECTION_FAILED = 6;
     public static final int MESSAGE_CONNECTION_LOST = 7;
     public static final int MESSAGE_DEVICE_CONNECTED = 8;
+    public static final int MESSAGE_DELIVERED = 9;
+    public static final int MESSAGE_SYNCED = 10;
+    public static final int MESSAGE_PRESENCE = 11;
 
     // Constants that indicate the current connection state
     public static final int STATE_NONE = 0;       // we're doing nothing
@@ -37,6 +79,11 @@ public class BluetoothService {
     public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
     public static final int STATE_CONNECTED = 3;  // now connected to a remote device
 
+    private static final long MIN_RECONNECT_DELAY_MS = 1000;
+    private static final long MAX_RECONNECT_DELAY_MS = 10000;
+    private static final long HANDSHAKE_TIMEOUT_MS = 10000;
+    private static final int RECEIVED_IDS_KEPT = 2048;
+
     private final BluetoothAdapter bluetoothAdapter;
     private final Handler handler;
     private final Context context;
@@ -44,10 +91,33 @@ public class BluetoothService {
     private ConnectThread connectThread;
     private ConnectedThread connectedThread;
     private int state;
+    private final LinkMetrics linkMetrics = new LinkMetrics();
+    private final LatencyProbe latencyProbe = new LatencyProbe(linkMetrics);
+    private final ImageStore imageStore;
+    private final ChatHistory history;
+    private Peer localPeer;
+    // Streams image files one at a time, off the caller's thread
+    private final ExecutorService fileSender = Executors.newSingleThreadExecutor();
+    // Outbox updates and chat writes, in the order they were requested
+    private final ExecutorService outboxWorker = Executors.newSingleThreadExecutor();
+    private volatile String peerAddress;
+    // Whether our chat with the peer is on screen, kept across reconnects
+    private volatile boolean presenceActive;
+
+    // Ids of recently received messages, so copies resent after a reconnect are dropped
+    private final Set<String> receivedIds = Collections.newSetFromMap(
+            new LinkedHashMap<String, Boolean>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > RECEIVED_IDS_KEPT;
+                }
+            });
 
     public BluetoothService(Context context, Handler handler) {
         this.context = context;
         this.handler = handler;
+        this.imageStore = ((BlueChatProApplication) context.getApplicationContext()).getImageStore();
+        this.history = ((BlueChatProApplication) context.getApplicationContext()).getHistory();
         bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
         state = STATE_NONE;
 
@@ -68,6 +138,17 @@ public class BluetoothService {
         return state;
     }
 
+    // Live link statistics (RTT, clock offset, traffic)
+    public LinkMetrics getLinkMetrics() {
+        return linkMetrics;
+    }
+
+    // Delay before retrying a failed or lost connection, scaled by the measured RTT
+    public long getReconnectDelayMillis() {
+        long delay = 2 * latencyProbe.getTimeoutMillis();
+        return Math.max(MIN_RECONNECT_DELAY_MS, Math.min(MAX_RECONNECT_DELAY_MS, delay));
+    }
+
     // Start the chat service
     public synchronized void start() {
         Log.d(TAG, "start");
@@ -118,6 +199,9 @@ public class BluetoothService {
         }
 
         // Start the thread to connect with the given device
+        if (device != null) {
+            peerAddress = device.getAddress();
+        }
         connectThread = new ConnectThread(device);
         connectThread.start();
         setState(STATE_CONNECTING);
@@ -145,9 +229,21 @@ public class BluetoothService {
             acceptThread = null;
         }
 
-        // Start the thread to manage the connection and perform transmissions
-        connectedThread = new ConnectedThread(socket);
+        // Start the thread to manage the connection and perform transmissions.
+        // We report the connection once the key exchange has finished.
+        if (device != null) {
+            peerAddress = device.getAddress();
+        }
+        connectedThread = new ConnectedThread(socket, device);
         connectedThread.start();
+        setState(STATE_CONNECTING);
+    }
+
+    // Called by ConnectedThread once the handshake with the peer is done
+    private synchronized void sessionEstablished(ConnectedThread thread, BluetoothDevice device) {
+        if (connectedThread != thread) {
+            return;
+        }
 
         // Send the name of the connected device back to the UI Activity
         Message msg = handler.obtainMessage(MESSAGE_DEVICE_NAME);
@@ -161,6 +257,65 @@ public class BluetoothService {
         Message connectedMsg = handler.obtainMessage(MESSAGE_DEVICE_CONNECTED);
         connectedMsg.obj = device;
         handler.sendMessage(connectedMsg);
+
+        // Resend whatever the peer has not acknowledged yet, oldest first
+        String address = device != null ? device.getAddress() : null;
+        outboxWorker.execute(() -> {
+            Outbox outbox = getOutbox();
+            if (outbox == null || address == null) {
+                return;
+            }
+            List<ChatMessage> pending = outbox.pending(address);
+            if (!pending.isEmpty()) {
+                Log.d(TAG, "Resending " + pending.size() + " queued messages");
+                thread.write(pending);
+            }
+        });
+    }
+
+    // Name this device advertises, sent along with every message
+    public String getLocalName() {
+        try {
+            if (bluetoothAdapter != null && ActivityCompat.checkSelfPermission(context,
+                    Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED) {
+                String name = bluetoothAdapter.getName();
+                if (name != null) {
+                    return name;
+                }
+            }
+        } catch (SecurityException e) {
+            Log.e(TAG, "SecurityException when getting local name", e);
+        }
+        return "You";
+    }
+
+    // This device as the sender of our messages, one Peer for all of them. A new
+    // adapter name renames it, stored messages included.
+    public synchronized Peer getLocalPeer() {
+        String name = getLocalName();
+        String address = getLocalAddress();
+        if (localPeer == null || !Objects.equals(localPeer.getAddress(), address)) {
+            localPeer = address != null ? history.getPeers().intern(address, name) : new Peer(null, name);
+        }
+        if (!name.equals(localPeer.getName())) {
+            localPeer.setName(name);
+            if (address != null) {
+                history.renamePeer(address, name);
+            }
+        }
+        return localPeer;
+    }
+
+    public String getLocalAddress() {
+        try {
+            if (bluetoothAdapter != null && ActivityCompat.checkSelfPermission(context,
+                    Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED) {
+                return bluetoothAdapter.getAddress();
+            }
+        } catch (SecurityException e) {
+            Log.e(TAG, "SecurityException when getting local address", e);
+        }
+        return null;
     }
 
     // Safe method to get device name with permission check
@@ -197,8 +352,97 @@ public class BluetoothService {
         setState(STATE_NONE);
     }
 
-    // Write to the ConnectedThread
-    public void write(byte[] out) {
+    // Send a chat message. Text messages go through the outbox: they are kept until
+    // the peer acknowledges them and wait there while we are disconnected. Image and
+    // voice messages belong to a live transfer and are written in order with it.
+    public void write(ChatMessage out) {
+        write(out, null);
+    }
+
+    // As write(ChatMessage); for an image or voice message, onWritten then runs
+    // on the sending thread once the message is out. It does not run when there
+    // is no connection.
+    public void write(ChatMessage out, Runnable onWritten) {
+        if (out.getType() != null && out.getType() != ChatMessage.MessageType.TEXT) {
+            ConnectedThread r;
+            synchronized (this) {
+                if (state != STATE_CONNECTED) {
+                    sendToastMessage("Not connected to any device");
+                    return;
+                }
+                r = connectedThread;
+            }
+            if (r != null) {
+                // Off the caller's thread: it may wait for credit, or for the
+                // write lock behind a file chunk
+                fileSender.execute(() -> {
+                    r.write(Collections.singletonList(out));
+                    if (onWritten != null) {
+                        onWritten.run();
+                    }
+                });
+            }
+            return;
+        }
+
+        if (getState() != STATE_CONNECTED) {
+            sendToastMessage("Not connected. The message will be sent on reconnect");
+        }
+        String peer = peerAddress;
+        outboxWorker.execute(() -> {
+            Outbox outbox = getOutbox();
+            if (outbox != null && peer != null) {
+                try {
+                    outbox.add(peer, out);
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot queue message", e);
+                }
+            }
+
+            ConnectedThread r;
+            synchronized (this) {
+                r = state == STATE_CONNECTED ? connectedThread : null;
+            }
+            if (r != null) {
+                r.write(Collections.singletonList(out));
+            }
+        });
+    }
+
+    // Typing and presence for the peer's screen. Cheap enough to call on every
+    // keystroke: PresenceSender merges changes and limits how often they are sent.
+    public void onTyping() {
+        PresenceSender presence = getPresence();
+        if (presence != null) {
+            presence.keystroke();
+        }
+    }
+
+    public void stopTyping() {
+        PresenceSender presence = getPresence();
+        if (presence != null) {
+            presence.stopTyping();
+        }
+    }
+
+    public void setActive(boolean active) {
+        presenceActive = active;
+        PresenceSender presence = getPresence();
+        if (presence != null) {
+            presence.setActive(active);
+        }
+    }
+
+    private synchronized PresenceSender getPresence() {
+        return connectedThread != null ? connectedThread.presence : null;
+    }
+
+    private Outbox getOutbox() {
+        return ((BlueChatProApplication) context.getApplicationContext()).getOutbox();
+    }
+
+    // Send an image file, then the IMAGE message that refers to it
+    public void writeImage(ChatMessage out, File file) {
         ConnectedThread r;
         synchronized (this) {
             if (state != STATE_CONNECTED) {
@@ -209,7 +453,22 @@ public class BluetoothService {
         }
 
         if (r != null) {
-            r.write(out);
+            fileSender.execute(() -> r.writeImage(out, file));
+        }
+    }
+
+    // Send one packet of a voice stream; called on the recording thread every 20 ms
+    public void writeVoice(byte[] packet, int length, boolean last) {
+        ConnectedThread r;
+        synchronized (this) {
+            if (state != STATE_CONNECTED) {
+                return;
+            }
+            r = connectedThread;
+        }
+
+        if (r != null) {
+            r.writeVoice(packet, length, last);
         }
     }
 
@@ -447,14 +706,40 @@ public class BluetoothService {
     }
 
     // This thread runs during a connection with a remote device
-    private class ConnectedThread extends Thread {
+    private class ConnectedThread extends Thread implements FrameChannel.Listener {
         private final BluetoothSocket socket;
-        private final InputStream inputStream;
-        private final OutputStream outputStream;
-
-        public ConnectedThread(BluetoothSocket socket) {
+        private final BluetoothDevice device;
+        private final FrameChannel channel;
+        private final Handshake handshake = new Handshake();
+
+        // Outgoing messages are only encoded under this thread's write lock,
+        // incoming ones only on this thread
+        private final ChatMessageCodec outgoingCodec = new ChatMessageCodec(true, BufferPool.SHARED);
+        private final ChatMessageCodec incomingCodec = new ChatMessageCodec(true, BufferPool.SHARED, history.getPeers());
+        private final Utf8Codec incomingText = new Utf8Codec();
+        private final StringBuilder incomingContent = new StringBuilder();
+        private ChatMessage incomingMessage;
+        private ImageStore.Receiver incomingImage;
+        private boolean skippingImage;
+        private VoicePlayer incomingVoice;
+        private ImageStore.Receiver incomingClip;
+        private final ScheduledExecutorService pingScheduler = Executors.newSingleThreadScheduledExecutor();
+
+        // Flow control: we may send as many chat messages as the peer has granted,
+        // and grant it more as the UI takes received ones off the inbound queue
+        private final CreditGate credits = new CreditGate();
+        private final InboundQueue inbound = new InboundQueue(Frame.CREDIT_WINDOW, this::sendCredit);
+        private volatile boolean flowControl;
+
+        // Reconciles chat history with the peer; null unless both ends support it
+        private volatile ChatHistory.PeerSync historySync;
+        // Null unless the peer shows typing and presence
+        private volatile PresenceSender presence;
+
+        public ConnectedThread(BluetoothSocket socket, BluetoothDevice device) {
             Log.d(TAG, "create ConnectedThread");
             this.socket = socket;
+            this.device = device;
             InputStream tmpIn = null;
             OutputStream tmpOut = null;
 
@@ -466,44 +751,414 @@ public class BluetoothService {
                 Log.e(TAG, "temp sockets not created", e);
             }
 
-            inputStream = tmpIn;
-            outputStream = tmpOut;
+            channel = new FrameChannel(tmpIn, tmpOut, linkMetrics);
         }
 
         public void run() {
             Log.i(TAG, "BEGIN ConnectedThread");
-            byte[] buffer = new byte[1024];
-            int bytes;
 
-            // Keep listening to the InputStream while connected
-            while (true) {
+            // Announce our protocol version, capabilities and key before anything else
+            try {
+                channel.writeFrame(Frame.TYPE_HELLO, handshake.createHello().encode());
+            } catch (IOException e) {
+                Log.e(TAG, "Exception sending hello", e);
+            }
+
+            // Give up on peers that never answer with a hello
+            pingScheduler.schedule(() -> {
+                if (!handshake.isComplete()) {
+                    Log.w(TAG, "Handshake timed out");
+                    cancel();
+                }
+            }, HANDSHAKE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+            // Keep reading frames while connected
+            try {
+                channel.readLoop(this);
+            } catch (IOException e) {
+                Log.e(TAG, "disconnected", e);
+                connectionLost();
+            } finally {
+                pingScheduler.shutdownNow();
+                credits.close();
+                inbound.close();
+                channel.release();
+                if (incomingImage != null) {
+                    incomingImage.abort();
+                    incomingImage = null;
+                }
+                endIncomingVoice(false);
+            }
+        }
+
+        @Override
+        public void onFrame(byte type, byte flags, byte[] payload, int offset, int length) throws IOException {
+            long receivedAt = System.currentTimeMillis();
+
+            // Nothing counts until both sides agree how the link is secured
+            if (type != Frame.TYPE_HELLO && !handshake.isComplete()) {
+                Log.w(TAG, "Dropping frame type " + type + " before handshake");
+                return;
+            }
+
+            switch (type) {
+                case Frame.TYPE_CHAT:
+                    onChatFragment(flags, payload, offset, length);
+                    break;
+
+                case Frame.TYPE_FILE_CHUNK:
+                    onFileChunk(flags, payload, offset, length);
+                    break;
+
+                case Frame.TYPE_VOICE:
+                    onVoice(flags, payload, offset, length);
+                    break;
+
+                case Frame.TYPE_ACK:
+                    onAck(new String(payload, offset, length, StandardCharsets.UTF_8));
+                    break;
+
+                case Frame.TYPE_CREDIT:
+                    if (length < 4) {
+                        throw new IOException("Malformed credit frame");
+                    }
+                    credits.grant(Frame.readInt(payload, offset));
+                    break;
+
+                case Frame.TYPE_HELLO:
+                    onHello(Hello.decode(payload, offset, length));
+                    break;
+
+                case Frame.TYPE_PRESENCE:
+                    if (length < 1) {
+                        throw new IOException("Malformed presence frame");
+                    }
+                    handler.obtainMessage(MESSAGE_PRESENCE, payload[offset] & 0xFF, 0).sendToTarget();
+                    break;
+
+                case Frame.TYPE_HISTORY_SYNC:
+                    // Handled on the history worker, so it gets its own copy
+                    if (historySync != null) {
+                        historySync.onFrame(Arrays.copyOfRange(payload, offset, offset + length));
+                    }
+                    break;
+
+                case Frame.TYPE_PING:
+                    // Answered from the scheduler, which also stamps the reply time
+                    byte[] ping = Arrays.copyOfRange(payload, offset, offset + length);
+                    sendLater(Frame.TYPE_PONG, () -> latencyProbe.createPong(ping, ping.length, receivedAt));
+                    break;
+
+                case Frame.TYPE_PONG:
+                    latencyProbe.onPong(payload, offset, length, receivedAt);
+                    break;
+
+                default:
+                    Log.w(TAG, "Ignoring unknown frame type " + type);
+            }
+        }
+
+        // A message may span several frames. The first carries the whole record
+        // header; content characters split between frames are stitched back
+        // together by the streaming decoder.
+        private void onChatFragment(byte flags, byte[] payload, int offset, int length) throws IOException {
+            int contentStart = offset;
+            if (incomingMessage == null) {
+                incomingMessage = new ChatMessage();
+                contentStart = incomingCodec.decodeHeader(payload, offset, length, incomingMessage);
+            }
+
+            incomingText.decode(payload, contentStart, offset + length - contentStart, incomingContent);
+            if (incomingContent.length() > Frame.MAX_PAYLOAD_SIZE) {
+                throw new IOException("Chat message too long");
+            }
+            if ((flags & Frame.FLAG_MORE) != 0) {
+                return;
+            }
+
+            incomingText.finish(incomingContent);
+            ChatMessage message = incomingMessage;
+            message.setContent(incomingContent.toString());
+            incomingContent.setLength(0);
+            incomingMessage = null;
+
+            // From our side this is a received message, timed in our clock
+            message.setSent(false);
+            message.setStatus(ChatMessage.MessageStatus.DELIVERED);
+            message.setTimestamp(latencyProbe.toLocalTime(message.getTimestamp()));
+            if (device != null) {
+                message.setSender(history.getPeers().intern(device.getAddress(), message.getSenderName()));
+            }
+
+            // Acknowledge every copy, but pass each message on only once
+            String id = message.getMessageId();
+            if (id != null) {
+                byte[] ack = id.getBytes(StandardCharsets.UTF_8);
+                sendLater(Frame.TYPE_ACK, () -> ack);
+                synchronized (receivedIds) {
+                    if (!receivedIds.add(id)) {
+                        Log.d(TAG, "Dropping duplicate message " + id);
+                        inbound.discard();
+                        return;
+                    }
+                }
+            }
+
+            if (message.getType() == ChatMessage.MessageType.VOICE) {
+                startIncomingVoice(message.getContent());
+            }
+
+            // Never waits: the peer is held back by the credit we withhold. The UI
+            // is only woken when it is not already draining.
+            if (inbound.put(message)) {
+                handler.obtainMessage(MESSAGE_READ, inbound).sendToTarget();
+            }
+        }
+
+        // Called by the UI as it takes messages; the frame is written off its thread
+        private void sendCredit(int count) {
+            if (!flowControl) {
+                return;
+            }
+            byte[] payload = new byte[4];
+            Frame.writeInt(payload, 0, count);
+            sendLater(Frame.TYPE_CREDIT, () -> payload);
+        }
+
+        // Write a frame on the ping scheduler. Control frames go this way from the
+        // reader and the UI, which must not wait on a send buffer the peer is
+        // slow to empty. payload is built on the scheduler, just before sending.
+        private void sendLater(byte type, Supplier<byte[]> payload) {
+            try {
+                pingScheduler.execute(() -> {
+                    byte[] bytes = payload.get();
+                    if (bytes == null) {
+                        return;
+                    }
+                    try {
+                        channel.writeFrame(type, bytes);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Exception sending frame type " + type, e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Connection closed
+            }
+        }
+
+        // An image arrives as a run of chunks; the first starts with the file name.
+        // It is written straight to disk and only becomes visible once complete.
+        // One whose name is already stored, such as a resend, is skipped.
+        private void onFileChunk(byte flags, byte[] payload, int offset, int length) throws IOException {
+            if (skippingImage) {
+                skippingImage = (flags & Frame.FLAG_MORE) != 0;
+                return;
+            }
+            int dataStart = offset;
+            if (incomingImage == null) {
+                int nameLength = length > 0 ? payload[offset] & 0xFF : 0;
+                if (nameLength == 0 || 1 + nameLength > length) {
+                    throw new IOException("Malformed file chunk");
+                }
+                String name = new String(payload, offset + 1, nameLength, StandardCharsets.US_ASCII);
+                try {
+                    incomingImage = imageStore.beginReceive(name);
+                } catch (FileAlreadyExistsException e) {
+                    Log.w(TAG, "Already have " + name);
+                    skippingImage = (flags & Frame.FLAG_MORE) != 0;
+                    return;
+                }
+                dataStart = offset + 1 + nameLength;
+            }
+
+            try {
+                incomingImage.write(payload, dataStart, offset + length - dataStart);
+                if ((flags & Frame.FLAG_MORE) == 0) {
+                    incomingImage.finish();
+                    incomingImage = null;
+                }
+            } catch (IOException e) {
+                incomingImage.abort();
+                incomingImage = null;
+                throw e;
+            }
+        }
+
+        private void onAck(String messageId) {
+            outboxWorker.execute(() -> {
+                Outbox outbox = getOutbox();
                 try {
-                    // Read from the InputStream
-                    bytes = inputStream.read(buffer);
-
-                    if (bytes > 0) {
-                        // Send the obtained bytes to the UI activity
-                        byte[] messageBytes = new byte[bytes];
-                        System.arraycopy(buffer, 0, messageBytes, 0, bytes);
-                        handler.obtainMessage(MESSAGE_READ, bytes, -1, messageBytes)
-                                .sendToTarget();
+                    if (outbox != null) {
+                        outbox.remove(messageId);
                     }
                 } catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
-                    connectionLost();
-                    break;
+                    Log.e(TAG, "Cannot update outbox", e);
+                }
+            });
+            handler.obtainMessage(MESSAGE_DELIVERED, messageId).sendToTarget();
+        }
+
+        // A voice message is announced by its chat record, then streamed as VOICE
+        // frames while the peer is still talking. Playback starts right away; the
+        // clip is saved as it arrives so it can be replayed later.
+        private void startIncomingVoice(String name) {
+            endIncomingVoice(false);
+            incomingVoice = new VoicePlayer();
+            incomingVoice.start();
+            try {
+                incomingClip = imageStore.beginReceive(name);
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot store voice message", e);
+            }
+        }
+
+        private void onVoice(byte flags, byte[] payload, int offset, int length) throws IOException {
+            if (incomingVoice == null) {
+                return;
+            }
+            incomingVoice.offer(payload, offset, length);
+            if (incomingClip != null) {
+                try {
+                    VoicePlayer.appendToClip(incomingClip, payload, offset, length);
+                } catch (IOException e) {
+                    Log.e(TAG, "Dropping stored voice message", e);
+                    incomingClip.abort();
+                    incomingClip = null;
+                }
+            }
+            if ((flags & Frame.FLAG_MORE) == 0) {
+                endIncomingVoice(true);
+            }
+        }
+
+        private void endIncomingVoice(boolean complete) {
+            if (incomingVoice != null) {
+                if (complete) {
+                    incomingVoice.end();
+                } else {
+                    incomingVoice.stop();
+                }
+                incomingVoice = null;
+            }
+            if (incomingClip != null) {
+                if (complete) {
+                    try {
+                        incomingClip.finish();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Cannot store voice message", e);
+                    }
+                } else {
+                    incomingClip.abort();
+                }
+                incomingClip = null;
+            }
+        }
+
+        private void onHello(Hello peer) throws IOException {
+            if (handshake.isComplete()) {
+                return;
+            }
+
+            int agreed;
+            try {
+                agreed = handshake.complete(peer, channel);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Key exchange failed", e);
+            }
+            Log.d(TAG, "Peer protocol v" + peer.getVersion() + ", capabilities " + agreed);
+
+            SessionCipher cipher = handshake.getSessionCipher();
+            linkMetrics.onSessionEstablished(cipher != null ? SessionCipher.SUITE : "none",
+                    cipher != null ? cipher.getVerificationCode() : null);
+
+            // Open the window before anything is sent either way
+            if ((agreed & Hello.CAP_FLOW_CONTROL) != 0) {
+                credits.enable();
+                inbound.enforceCredits();
+                flowControl = true;
+                sendCredit(Frame.CREDIT_WINDOW);
+            }
+
+            // Probe the link periodically to keep RTT and clock offset fresh
+            latencyProbe.reset();
+            pingScheduler.scheduleAtFixedRate(this::sendPing, 0,
+                    LatencyProbe.PING_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+            if ((agreed & Hello.CAP_PRESENCE) != 0) {
+                PresenceSender sender = new PresenceSender(this::schedulePresence, this::sendPresence);
+                sender.setActive(presenceActive);
+                presence = sender;
+            }
+
+            // Fill in each side's history with what it missed while apart
+            if ((agreed & Hello.CAP_HISTORY_SYNC) != 0 && device != null) {
+                historySync = history.startSync(device.getAddress(), this::sendHistorySync, this::onHistorySynced);
+            }
+
+            sessionEstablished(this, device);
+        }
+
+        private void schedulePresence(Runnable task, long delayMillis) {
+            try {
+                pingScheduler.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Connection closed
+            }
+        }
+
+        // Called on the ping scheduler
+        private void sendPresence(int state) {
+            try {
+                channel.writeFrame(Frame.TYPE_PRESENCE, new byte[] {(byte) state});
+            } catch (IOException e) {
+                Log.e(TAG, "Exception sending presence", e);
+            }
+        }
+
+        // Called on the history worker; the frame is written off its thread
+        private void sendHistorySync(byte[] payload) {
+            sendLater(Frame.TYPE_HISTORY_SYNC, () -> payload);
+        }
+
+        // Messages the peer had and we lacked, already stored
+        private void onHistorySynced(List<ChatMessage> received) {
+            // A copy still on its way live is now a duplicate
+            synchronized (receivedIds) {
+                for (ChatMessage message : received) {
+                    receivedIds.add(message.getMessageId());
                 }
             }
+            Log.d(TAG, "History sync brought " + received.size() + " messages");
+            handler.obtainMessage(MESSAGE_SYNCED, received).sendToTarget();
         }
 
-        // Write to the connected OutStream
-        public void write(byte[] buffer) {
+        private void sendPing() {
+            if (latencyProbe.isPeerSilent()) {
+                Log.w(TAG, "No pong within " + latencyProbe.getLivenessTimeoutMillis() + " ms, dropping link");
+                cancel();
+                return;
+            }
+
             try {
-                outputStream.write(buffer);
+                channel.writeFrame(Frame.TYPE_PING, latencyProbe.createPing());
+            } catch (IOException e) {
+                Log.e(TAG, "Exception during ping", e);
+            }
+        }
 
-                // Share the sent message back to the UI Activity
-                handler.obtainMessage(MESSAGE_WRITE, -1, -1, buffer)
-                        .sendToTarget();
+        // Write to the connected OutStream. Long messages are split into fragments
+        // so pings and other frames can still get through while they transmit;
+        // several short messages are coalesced into one socket write. Each message,
+        // announces of images and voice included, waits for a credit from the
+        // peer, outside the write lock so acks and credits keep flowing meanwhile.
+        public void write(List<ChatMessage> messages) {
+            try {
+                int next = 0;
+                while (next < messages.size()) {
+                    int n = credits.acquire(messages.size() - next);
+                    writeBatch(messages.subList(next, next + n));
+                    next += n;
+                }
             } catch (IOException e) {
                 Log.e(TAG, "Exception during write", e);
                 sendToastMessage("Failed to send message");
@@ -513,7 +1168,94 @@ public class BluetoothService {
             }
         }
 
+        private synchronized void writeBatch(List<ChatMessage> messages) throws IOException {
+            channel.beginBatch();
+            try {
+                for (ChatMessage message : messages) {
+                    writeMessage(message);
+                }
+            } finally {
+                channel.endBatch();
+            }
+
+            // Share the sent messages back to the UI Activity
+            for (ChatMessage message : messages) {
+                handler.obtainMessage(MESSAGE_WRITE, -1, -1, message)
+                        .sendToTarget();
+            }
+        }
+
+        // Called inside a batch. A message too long for one frame is written outside
+        // it, so pings and voice can slip in between its fragments.
+        private void writeMessage(ChatMessage message) throws IOException {
+            byte[] encoded = outgoingCodec.encode(message);
+            int total = outgoingCodec.getEncodedLength();
+            boolean fragmented = total > Frame.MAX_CHAT_FRAGMENT;
+            if (fragmented) {
+                channel.endBatch();
+            }
+            try {
+                // The peer decodes the header from the first fragment alone
+                int n = Math.max(Frame.MAX_CHAT_FRAGMENT, outgoingCodec.getEncodedHeaderLength());
+                int sent = 0;
+                do {
+                    n = Math.min(total - sent, n);
+                    byte flags = sent + n < total ? Frame.FLAG_MORE : 0;
+                    channel.writeFrame(Frame.TYPE_CHAT, flags, encoded, sent, n);
+                    sent += n;
+                    n = Frame.MAX_CHAT_FRAGMENT;
+                } while (sent < total);
+            } finally {
+                outgoingCodec.releaseEncoded();
+                if (fragmented) {
+                    channel.beginBatch();
+                }
+            }
+        }
+
+        // Stream a file as FILE_CHUNK frames, then send the message naming it. Each
+        // chunk is a separate frame write, so chat and pings are not held up.
+        public void writeImage(ChatMessage message, File file) {
+            byte[] chunk = BufferPool.SHARED.acquire(Frame.MAX_FILE_CHUNK);
+            try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+                byte[] name = file.getName().getBytes(StandardCharsets.US_ASCII);
+                chunk[0] = (byte) name.length;
+                System.arraycopy(name, 0, chunk, 1, name.length);
+                int start = 1 + name.length;
+                long remaining = file.length();
+                do {
+                    int n = (int) Math.min(Frame.MAX_FILE_CHUNK - start, remaining);
+                    in.readFully(chunk, start, n);
+                    remaining -= n;
+                    byte flags = remaining > 0 ? Frame.FLAG_MORE : 0;
+                    channel.writeFrame(Frame.TYPE_FILE_CHUNK, flags, chunk, 0, start + n);
+                    start = 0;
+                } while (remaining > 0);
+            } catch (IOException e) {
+                Log.e(TAG, "Exception during image write", e);
+                sendToastMessage("Failed to send image");
+                return;
+            } finally {
+                BufferPool.SHARED.release(chunk);
+            }
+
+            write(Collections.singletonList(message));
+        }
+
+        // Voice frames bypass the chat write lock; the channel interleaves them
+        // with any message or file being sent
+        public void writeVoice(byte[] packet, int length, boolean last) {
+            try {
+                channel.writeFrame(Frame.TYPE_VOICE, last ? 0 : Frame.FLAG_MORE, packet, 0, length);
+            } catch (IOException e) {
+                Log.e(TAG, "Exception during voice write", e);
+            }
+        }
+
         public void cancel() {
+            pingScheduler.shutdownNow();
+            credits.close();
+            inbound.close();
             try {
                 if (socket != null) {
                     socket.close();
@@ -523,4 +1265,4 @@ public class BluetoothService {
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -10,13 +10,11 @@ import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Looper;
-import android.os.Message;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.util.Log;
 import android.view.KeyEvent;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.inputmethod.EditorInfo;
 import android.widget.EditText;
@@ -29,25 +27,52 @@ import androidx.annotation.NonNull;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
+import androidx.lifecycle.ViewModelProvider;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
+import com.example.bluechatpro.adapters.BubbleTextCache;
 import com.example.bluechatpro.adapters.MessageAdapter;
+import com.example.bluechatpro.adapters.MessageViewPool;
+import com.example.bluechatpro.media.VoicePlayer;
 import com.example.bluechatpro.models.ChatMessage;
+import com.example.bluechatpro.models.MessageWindow;
+import com.example.bluechatpro.protocol.PresenceSender;
+import com.example.bluechatpro.storage.ImageStore;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 public class ChatActivity extends AppCompatActivity {
 
-    private BluetoothAdapter bluetoothAdapter;
-    private BluetoothService bluetoothService;
+    // The connection and the conversation live in the view model, so a rotation
+    // only rebuilds the views
+    private ChatViewModel viewModel;
+    private MessageWindow window;
     private MessageAdapter messageAdapter;
-    private List<ChatMessage> messageList = new ArrayList<>();
+    private LinearLayoutManager layoutManager;
+    private BubbleTextCache textCache;
+    private int shownVersion;
+    // Rows beyond those on screen whose text is measured ahead
+    private static final int PREFETCH_MARGIN_ROWS = 15;
+    private int prefetchedFirst = RecyclerView.NO_POSITION;
+
+    // Image picker result, and the microphone permission for push-to-talk
+    private static final int REQUEST_PICK_IMAGE = 1;
+    private static final int REQUEST_RECORD_AUDIO = 1002;
+
+    // Search results replace the conversation in the list while searching
+    private static final int SEARCH_PAGE_SIZE = 50;
+    private MessageAdapter searchAdapter;
+    private final List<ChatMessage> searchResults = new ArrayList<>();
+    private String searchQuery;
+    private int searchTotal;
+    private boolean searchLoading;
 
     private String connectedDeviceName;
     private String connectedDeviceAddress;
-    private BluetoothDevice connectedDevice;
 
     // UI elements
     private ProgressBar progressBar;
@@ -60,51 +85,7 @@ public class ChatActivity extends AppCompatActivity {
     private ImageButton btnBack;
     private ImageButton btnInfo;
     private RecyclerView recyclerViewMessages;
-
-    // Handler for BluetoothService callbacks
-    private final Handler handler = new Handler(Looper.getMainLooper()) {
-        @Override
-        public void handleMessage(@NonNull Message msg) {
-            switch (msg.what) {
-                case BluetoothService.MESSAGE_STATE_CHANGE:
-                    handleStateChange(msg);
-                    break;
-
-                case BluetoothService.MESSAGE_READ:
-                    handleMessageRead(msg);
-                    break;
-
-                case BluetoothService.MESSAGE_WRITE:
-                    handleMessageWrite(msg);
-                    break;
-
-                case BluetoothService.MESSAGE_DEVICE_NAME:
-                    if (msg.obj != null) {
-                        connectedDeviceName = msg.obj.toString();
-                    }
-                    updateTitle();
-                    break;
-
-                case BluetoothService.MESSAGE_TOAST:
-                    if (msg.obj != null) {
-                        Toast.makeText(ChatActivity.this, msg.obj.toString(), Toast.LENGTH_SHORT).show();
-                    }
-                    break;
-
-                case BluetoothService.MESSAGE_DEVICE_CONNECTED:
-                    handleDeviceConnected(msg);
-                    break;
-
-                case BluetoothService.MESSAGE_CONNECTION_FAILED:
-                    handleConnectionFailed();
-                    break;
-
-                case BluetoothService.MESSAGE_CONNECTION_LOST:
-                    handleConnectionLost();
-                    break;
-            }
-        }
-    };
+    private MessageViewPool viewPool;
 
     // BroadcastReceiver for Bluetooth state changes
     private final BroadcastReceiver bluetoothStateReceiver = new BroadcastReceiver() {
@@ -140,12 +121,7 @@ public class ChatActivity extends AppCompatActivity {
                 }
 
                 if (device != null && device.getAddress().equals(connectedDeviceAddress)) {
-                    runOnUiThread(() -> {
-                        updateStatus("Device disconnected");
-                        Toast.makeText(ChatActivity.this, "Disconnected from " + connectedDeviceName,
-                                Toast.LENGTH_SHORT).show();
-                        enableInput(false);
-                    });
+                    viewModel.onPeerDisconnected();
                 }
             }
         }
@@ -167,19 +143,23 @@ public class ChatActivity extends AppCompatActivity {
             return;
         }
 
-        // Initialize views
-        initializeViews();
-
-        // Get Bluetooth adapter
-        bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-        if (bluetoothAdapter == null) {
+        if (BluetoothAdapter.getDefaultAdapter() == null) {
             Toast.makeText(this, "Bluetooth not supported", Toast.LENGTH_SHORT).show();
             finish();
             return;
         }
 
+        // Shows earlier messages with this device the first time only
+        viewModel = new ViewModelProvider(this).get(ChatViewModel.class);
+        viewModel.open(connectedDeviceName, connectedDeviceAddress);
+        window = viewModel.getWindow();
+
+        // Initialize views
+        initializeViews();
+
         // Setup UI
         setupUI();
+        observeViewModel();
 
         // Check Bluetooth permissions
         if (!checkBluetoothPermissions()) {
@@ -266,57 +246,183 @@ public class ChatActivity extends AppCompatActivity {
 
         // Setup click listeners
         setupClickListeners();
+    }
 
-        // Update title
-        updateTitle();
-        enableInput(false); // Disable until connected
-        updateStatus("Connecting...");
+    private void observeViewModel() {
+        viewModel.getMessageChanges().observe(this, this::showChange);
+        viewModel.getPeerName().observe(this, name -> {
+            connectedDeviceName = name;
+            updateTitle();
+        });
+        viewModel.getStatus().observe(this, status -> showConnectionStatus());
+        viewModel.getPeerPresence().observe(this, presence -> showConnectionStatus());
+        viewModel.isConnected().observe(this, this::enableInput);
+        viewModel.getToast().observe(this, text -> {
+            if (text != null) {
+                Toast.makeText(this, text, Toast.LENGTH_SHORT).show();
+                viewModel.toastShown();
+            }
+        });
+    }
+
+    // Apply a change to the window. One we missed, e.g. while being recreated,
+    // means the list has to be bound afresh.
+    private void showChange(MessageWindow.Change change) {
+        if (change.version <= shownVersion) {
+            return;
+        }
+        if (change.version != shownVersion + 1) {
+            prefetchTextAround(window.getMessages());
+            messageAdapter.notifyDataSetChanged();
+        } else {
+            prefetchText(change);
+            switch (change.kind) {
+                case MessageWindow.Change.INSERTED:
+                    messageAdapter.notifyItemRangeInserted(change.position, change.count);
+                    break;
+                case MessageWindow.Change.CHANGED:
+                    messageAdapter.notifyItemRangeChanged(change.position, change.count);
+                    break;
+                case MessageWindow.Change.REMOVED:
+                    messageAdapter.notifyItemRangeRemoved(change.position, change.count);
+                    break;
+                default:
+                    messageAdapter.notifyDataSetChanged();
+            }
+        }
+        shownVersion = change.version;
+        if (change.kind == MessageWindow.Change.INSERTED) {
+            scrollToBottom();
+        }
+    }
+
+    // Rows bound in this frame are measured as they bind; the rest of the change
+    // is measured meanwhile, for when it scrolls into view. Of a page loaded in
+    // front, only the rows nearest the screen; scrolling reaches the others.
+    private void prefetchText(MessageWindow.Change change) {
+        if (change.kind == MessageWindow.Change.INSERTED || change.kind == MessageWindow.Change.CHANGED) {
+            int end = change.position + change.count;
+            int start = Math.max(change.position, end - PREFETCH_MARGIN_ROWS);
+            textCache.prefetch(window.getMessages().subList(start, end));
+        }
+    }
+
+    // Measure the rows on screen and a margin either side of them, or the
+    // newest rows before the list has been laid out
+    private void prefetchTextAround(List<ChatMessage> messages) {
+        int first = layoutManager.findFirstVisibleItemPosition();
+        int last = layoutManager.findLastVisibleItemPosition();
+        if (first == RecyclerView.NO_POSITION) {
+            first = messages.size();
+            last = messages.size();
+        }
+        int from = Math.max(0, first - PREFETCH_MARGIN_ROWS);
+        int to = Math.min(messages.size(), last + 1 + PREFETCH_MARGIN_ROWS);
+        if (from < to) {
+            textCache.prefetch(messages.subList(from, to));
+        }
     }
 
     private void setupRecyclerView() {
-        messageAdapter = new MessageAdapter(messageList);
-        recyclerViewMessages.setLayoutManager(new LinearLayoutManager(this));
+        BlueChatProApplication app = (BlueChatProApplication) getApplication();
+        ImageStore imageStore = viewModel.getImageStore();
+        textCache = app.getBubbleTextCache();
+        messageAdapter = new MessageAdapter(window.getMessages(), app.getThumbnailLoader(), imageStore, textCache);
+        searchAdapter = new MessageAdapter(searchResults, app.getThumbnailLoader(), imageStore, textCache);
+        shownVersion = window.getVersion();
+        messageAdapter.setOnVoiceClickListener(this::playVoice);
+        searchAdapter.setOnVoiceClickListener(this::playVoice);
+        layoutManager = new LinearLayoutManager(this);
+        recyclerViewMessages.setLayoutManager(layoutManager);
+        // Holders are inflated while the chat opens rather than on the first fling,
+        // so prefetch between frames only has binding left to do
+        viewPool = new MessageViewPool(getResources().getDisplayMetrics());
+        recyclerViewMessages.setRecycledViewPool(viewPool);
+        recyclerViewMessages.setItemViewCacheSize(MessageViewPool.VIEW_CACHE_ROWS);
         recyclerViewMessages.setAdapter(messageAdapter);
+        viewPool.prewarm(recyclerViewMessages, messageAdapter);
+
+        // Fetch the next page of search results as the end comes into view, and
+        // measure the text of rows about to
+        recyclerViewMessages.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                int first = layoutManager.findFirstVisibleItemPosition();
+                if (first != prefetchedFirst) {
+                    prefetchedFirst = first;
+                    prefetchTextAround(searchQuery != null ? searchResults : window.getMessages());
+                }
+                if (searchQuery != null && !searchLoading && searchResults.size() < searchTotal
+                        && layoutManager.findLastVisibleItemPosition() >= searchResults.size() - 10) {
+                    loadSearchPage(searchResults.size());
+                }
+            }
+        });
     }
 
-    private void initializeBluetooth() {
-        try {
-            // Get the Bluetooth device with permission check
-            if (ActivityCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED) {
-                connectedDevice = bluetoothAdapter.getRemoteDevice(connectedDeviceAddress);
-            } else {
-                Toast.makeText(this, "Bluetooth permission required", Toast.LENGTH_SHORT).show();
-                finish();
-                return;
-            }
+    private void showSearchDialog() {
+        EditText input = new EditText(this);
+        input.setHint("Search all conversations");
+        input.setText(searchQuery);
 
-            // Setup Bluetooth service
-            setupBluetoothService();
+        new AlertDialog.Builder(this)
+                .setTitle("Search")
+                .setView(input)
+                .setPositiveButton("Search", (dialog, which) -> {
+                    String query = input.getText().toString().trim();
+                    if (!query.isEmpty()) {
+                        startSearch(query);
+                    }
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
 
-            // Register broadcast receiver
-            registerBluetoothReceiver();
+    private void startSearch(String query) {
+        searchQuery = query;
+        searchTotal = 0;
+        searchResults.clear();
+        searchAdapter.notifyDataSetChanged();
+        // Same view types, so the pool's holders carry over
+        recyclerViewMessages.swapAdapter(searchAdapter, true);
+        loadSearchPage(0);
+    }
 
-        } catch (SecurityException e) {
-            Log.e("ChatActivity", "SecurityException: " + e.getMessage());
-            Toast.makeText(this, "Security exception: " + e.getMessage(), Toast.LENGTH_SHORT).show();
-            finish();
-        }
+    private void loadSearchPage(int offset) {
+        searchLoading = true;
+        viewModel.getHistory().search(searchQuery, offset, SEARCH_PAGE_SIZE, page -> {
+            // Drop pages for a search that has since been replaced or closed
+            if (!page.query.equals(searchQuery) || page.offset != searchResults.size()) {
+                return;
+            }
+            searchLoading = false;
+            searchTotal = page.total;
+            searchResults.addAll(page.messages);
+            // Pages come in as the list reaches them, so their first rows show next
+            textCache.prefetch(page.messages.subList(0, Math.min(page.messages.size(), PREFETCH_MARGIN_ROWS)));
+            searchAdapter.notifyItemRangeInserted(page.offset, page.messages.size());
+            updateStatus(searchTotal + " results for \"" + searchQuery + "\"");
+        });
     }
 
-    private void setupBluetoothService() {
-        bluetoothService = new BluetoothService(this, handler);
+    private void stopSearch() {
+        searchQuery = null;
+        searchResults.clear();
+        recyclerViewMessages.swapAdapter(messageAdapter, true);
+        scrollToBottom();
+        showConnectionStatus();
+    }
 
-        // Connect to the device
-        if (bluetoothService.getState() == BluetoothService.STATE_NONE) {
-            bluetoothService.start();
+    private void initializeBluetooth() {
+        // Connects once per view model, not again after a rotation
+        if (!viewModel.connect()) {
+            Toast.makeText(this, "Bluetooth permission required", Toast.LENGTH_SHORT).show();
+            finish();
+            return;
         }
 
-        // Start connection
-        new Handler().postDelayed(() -> {
-            if (bluetoothService != null && connectedDevice != null) {
-                bluetoothService.connect(connectedDevice);
-            }
-        }, 500);
+        // Register broadcast receiver
+        registerBluetoothReceiver();
     }
 
     private void registerBluetoothReceiver() {
@@ -331,6 +437,18 @@ public class ChatActivity extends AppCompatActivity {
         btnBack.setOnClickListener(v -> finish());
         btnSend.setOnClickListener(v -> sendMessage());
         btnAttach.setOnClickListener(v -> showAttachmentOptions());
+        btnAttach.setOnLongClickListener(v -> {
+            startVoice();
+            return true;
+        });
+        btnAttach.setOnTouchListener((v, event) -> {
+            int action = event.getAction();
+            if ((action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL)
+                    && viewModel.isRecording()) {
+                stopVoice();
+            }
+            return false;
+        });
         btnInfo.setOnClickListener(v -> showConnectionInfo());
 
         btnInfo.setOnLongClickListener(v -> {
@@ -363,6 +481,7 @@ public class ChatActivity extends AppCompatActivity {
                 @Override
                 public void afterTextChanged(Editable s) {
                     btnSend.setEnabled(s.toString().trim().length() > 0);
+                    viewModel.onDraftChanged(s.length() == 0);
                 }
             });
         }
@@ -380,6 +499,23 @@ public class ChatActivity extends AppCompatActivity {
         });
     }
 
+    // The connection state, or what the peer is doing while connected
+    private void showConnectionStatus() {
+        if (searchQuery != null) {
+            return;
+        }
+        String status = viewModel.getStatus().getValue();
+        Integer presence = viewModel.getPeerPresence().getValue();
+        if (presence != null && (presence & PresenceSender.STATE_TYPING) != 0) {
+            status = "Typing...";
+        } else if (presence != null && (presence & PresenceSender.STATE_ACTIVE) != 0) {
+            status = "Connected - in chat";
+        }
+        if (status != null) {
+            updateStatus(status);
+        }
+    }
+
     private void updateStatus(String status) {
         runOnUiThread(() -> {
             if (textStatus != null) {
@@ -395,20 +531,21 @@ public class ChatActivity extends AppCompatActivity {
         });
     }
 
+    // Text can always be written, since it waits in the outbox while disconnected;
+    // images and voice need a live connection
     private void enableInput(boolean enabled) {
         runOnUiThread(() -> {
             if (editMessage != null) {
-                editMessage.setEnabled(enabled);
                 if (enabled) {
                     editMessage.setHint("Type a message...");
                     editMessage.requestFocus();
                 } else {
-                    editMessage.setHint("Connecting...");
+                    editMessage.setHint("Offline - messages send on reconnect");
                 }
             }
             if (btnSend != null) {
                 if (editMessage != null) {
-                    btnSend.setEnabled(enabled && editMessage.getText().toString().trim().length() > 0);
+                    btnSend.setEnabled(editMessage.getText().toString().trim().length() > 0);
                 } else {
                     btnSend.setEnabled(enabled);
                 }
@@ -429,196 +566,70 @@ public class ChatActivity extends AppCompatActivity {
             return;
         }
 
-        if (bluetoothService == null || bluetoothService.getState() != BluetoothService.STATE_CONNECTED) {
-            Toast.makeText(this, "Not connected to device", Toast.LENGTH_SHORT).show();
-            return;
-        }
-
-        try {
-            // Create and add message using the correct constructor
-            ChatMessage chatMessage = new ChatMessage(
-                    message,
-                    "You",
-                    "your_address", // You might want to add your device address here
-                    true
-            );
-            chatMessage.setTimestamp(System.currentTimeMillis());
-
-            messageList.add(chatMessage);
-            messageAdapter.notifyItemInserted(messageList.size() - 1);
-            scrollToBottom();
-
-            // Clear input
-            editMessage.setText("");
-
-            // Send via Bluetooth
-            byte[] send = message.getBytes();
-            bluetoothService.write(send);
-
-        } catch (Exception e) {
-            Log.e("ChatActivity", "Error sending message: " + e.getMessage());
-            Toast.makeText(this, "Failed to send message", Toast.LENGTH_SHORT).show();
-        }
+        // Clear input
+        editMessage.setText("");
+        viewModel.sendText(message);
     }
 
     private void scrollToBottom() {
         runOnUiThread(() -> {
-            if (messageList.size() > 0 && recyclerViewMessages != null) {
-                recyclerViewMessages.smoothScrollToPosition(messageList.size() - 1);
+            if (window.size() > 0 && recyclerViewMessages != null && searchQuery == null) {
+                recyclerViewMessages.smoothScrollToPosition(window.size() - 1);
             }
         });
     }
 
-    // Handler methods
-    private void handleStateChange(Message msg) {
-        switch (msg.arg1) {
-            case BluetoothService.STATE_CONNECTED:
-                updateStatus("Connected");
-                enableInput(true);
-
-                // Add welcome message
-                ChatMessage welcomeMsg = new ChatMessage(
-                        "Connected to " + connectedDeviceName,
-                        "System",
-                        connectedDeviceAddress,
-                        false
-                );
-                welcomeMsg.setTimestamp(System.currentTimeMillis());
-
-                messageList.add(welcomeMsg);
-                messageAdapter.notifyItemInserted(messageList.size() - 1);
-                scrollToBottom();
-                break;
-
-            case BluetoothService.STATE_CONNECTING:
-                updateStatus("Connecting...");
-                enableInput(false);
-                break;
-
-            case BluetoothService.STATE_LISTEN:
-            case BluetoothService.STATE_NONE:
-                updateStatus("Not connected");
-                enableInput(false);
-                break;
-        }
-    }
-
-    private void handleMessageRead(Message msg) {
-        if (msg.obj instanceof byte[]) {
-            byte[] readBuf = (byte[]) msg.obj;
-            int bytes = msg.arg1;
-
-            if (bytes > 0) {
-                String readMessage = new String(readBuf, 0, bytes);
-
-                // Add received message to UI
-                ChatMessage chatMessage = new ChatMessage(
-                        readMessage,
-                        connectedDeviceName,
-                        connectedDeviceAddress,
-                        false
-                );
-                chatMessage.setTimestamp(System.currentTimeMillis());
-
-                messageList.add(chatMessage);
-                messageAdapter.notifyItemInserted(messageList.size() - 1);
-                scrollToBottom();
-
-                // Show notification
-                showNotification(readMessage);
-            }
-        }
+    private void showAttachmentOptions() {
+        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+        intent.setType("image/*");
+        startActivityForResult(Intent.createChooser(intent, "Send image"), REQUEST_PICK_IMAGE);
     }
 
-    private void handleMessageWrite(Message msg) {
-        if (msg.obj instanceof byte[]) {
-            byte[] writeBuf = (byte[]) msg.obj;
-            String writeMessage = new String(writeBuf);
-
-            // Update message status in the list
-            if (messageList.size() > 0) {
-                for (int i = messageList.size() - 1; i >= 0; i--) {
-                    ChatMessage message = messageList.get(i);
-                    if (message.getContent().equals(writeMessage) && message.isSent()) {
-                        // Update status if needed
-                        messageAdapter.notifyItemChanged(i);
-                        break;
-                    }
-                }
-            }
+    private void startVoice() {
+        if (ActivityCompat.checkSelfPermission(this, Manifest.permission.RECORD_AUDIO) != PackageManager.PERMISSION_GRANTED) {
+            ActivityCompat.requestPermissions(this,
+                    new String[] {Manifest.permission.RECORD_AUDIO},
+                    REQUEST_RECORD_AUDIO);
+            return;
         }
-    }
 
-    private void handleDeviceConnected(Message msg) {
-        if (msg.obj instanceof BluetoothDevice) {
-            BluetoothDevice device = (BluetoothDevice) msg.obj;
-            if (device != null) {
-                connectedDevice = device;
-                String deviceName = "Unknown Device";
-                try {
-                    if (ActivityCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED) {
-                        deviceName = device.getName();
-                        if (deviceName == null) {
-                            deviceName = "Unknown Device";
-                        }
-                    }
-                } catch (SecurityException e) {
-                    Log.e("ChatActivity", "SecurityException getting device name: " + e.getMessage());
-                }
-                connectedDeviceName = deviceName;
-                updateTitle();
-                Toast.makeText(this, "Connected to " + deviceName, Toast.LENGTH_SHORT).show();
-            }
+        viewModel.startVoice();
+        if (viewModel.isRecording()) {
+            editMessage.setHint("Recording... release to send");
         }
     }
 
-    private void handleConnectionFailed() {
-        updateStatus("Connection failed");
-        enableInput(false);
-
-        Toast.makeText(this, "Unable to connect to device", Toast.LENGTH_LONG).show();
-
-        // Try to reconnect after 3 seconds
-        new Handler().postDelayed(() -> {
-            if (bluetoothService != null && connectedDevice != null) {
-                bluetoothService.connect(connectedDevice);
-            }
-        }, 3000);
+    private void stopVoice() {
+        viewModel.stopVoice();
+        editMessage.setHint("Type a message...");
     }
 
-    private void handleConnectionLost() {
-        updateStatus("Connection lost");
-        enableInput(false);
-
-        Toast.makeText(this, "Connection lost. Attempting to reconnect...", Toast.LENGTH_LONG).show();
-
-        // Add disconnect message
-        ChatMessage disconnectMsg = new ChatMessage(
-                "Connection lost",
-                "System",
-                connectedDeviceAddress,
-                false
-        );
-        disconnectMsg.setTimestamp(System.currentTimeMillis());
-
-        messageList.add(disconnectMsg);
-        messageAdapter.notifyItemInserted(messageList.size() - 1);
-        scrollToBottom();
-
-        // Try to reconnect after 5 seconds
-        new Handler().postDelayed(() -> {
-            if (bluetoothService != null && connectedDevice != null) {
-                bluetoothService.connect(connectedDevice);
+    private void playVoice(ChatMessage message) {
+        try {
+            File clip = viewModel.getImageStore().fileFor(message.getContent());
+            if (clip.exists()) {
+                VoicePlayer.play(clip);
+                return;
             }
-        }, 5000);
+        } catch (IOException e) {
+            // Falls through to the toast
+        }
+        Toast.makeText(this, "Voice message not available", Toast.LENGTH_SHORT).show();
     }
 
-    private void showAttachmentOptions() {
-        Toast.makeText(this, "Attachment feature coming soon!", Toast.LENGTH_SHORT).show();
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+
+        if (requestCode == REQUEST_PICK_IMAGE && resultCode == RESULT_OK
+                && data != null && data.getData() != null) {
+            viewModel.sendImage(data.getData());
+        }
     }
 
     private void showConnectionInfo() {
         String state = "Unknown";
+        BluetoothService bluetoothService = viewModel.getService();
         if (bluetoothService != null) {
             int serviceState = bluetoothService.getState();
             switch (serviceState) {
@@ -632,13 +643,18 @@ public class ChatActivity extends AppCompatActivity {
         String info = "Device: " + connectedDeviceName + "\n" +
                 "Address: " + connectedDeviceAddress + "\n" +
                 "Status: " + getStatusText() + "\n" +
-                "Messages: " + messageList.size() + "\n" +
+                "Messages: " + window.size() + "\n" +
                 "Connection State: " + state;
 
+        if (bluetoothService != null) {
+            info += "\n" + bluetoothService.getLinkMetrics();
+        }
+
         new AlertDialog.Builder(this)
                 .setTitle("Connection Info")
                 .setMessage(info)
                 .setPositiveButton("OK", null)
+                .setNeutralButton("Search", (dialog, which) -> showSearchDialog())
                 .show();
     }
 
@@ -650,7 +666,7 @@ public class ChatActivity extends AppCompatActivity {
     }
 
     private void clearChat() {
-        if (messageList.isEmpty()) {
+        if (window.size() == 0) {
             return;
         }
 
@@ -658,38 +674,59 @@ public class ChatActivity extends AppCompatActivity {
                 .setTitle("Clear Chat")
                 .setMessage("Are you sure you want to clear all messages?")
                 .setPositiveButton("Clear", (dialog, which) -> {
-                    messageList.clear();
-                    messageAdapter.notifyDataSetChanged();
+                    viewModel.clearMessages();
                     Toast.makeText(this, "Chat cleared", Toast.LENGTH_SHORT).show();
                 })
                 .setNegativeButton("Cancel", null)
                 .show();
     }
 
-    private void showNotification(String message) {
-        Log.d("ChatActivity", "New message received: " + message);
+    @Override
+    protected void onResume() {
+        super.onResume();
+        if (viewModel != null) {
+            viewModel.setVisible(true);
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (viewModel != null) {
+            viewModel.setVisible(false);
+        }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
 
-        // Stop Bluetooth service
-        if (bluetoothService != null) {
-            bluetoothService.stop();
-        }
-
-        // Unregister receiver
+        // The connection stays up across a rotation; the view model closes it
+        // once the chat is finished
         try {
             unregisterReceiver(bluetoothStateReceiver);
         } catch (IllegalArgumentException e) {
             // Receiver was not registered
         }
+
+        // Recycles every row, so the loader takes back the thumbnails they hold
+        if (recyclerViewMessages != null) {
+            recyclerViewMessages.setAdapter(null);
+        }
+        if (viewPool != null) {
+            viewPool.detach();
+        }
     }
 
     @Override
     public void onBackPressed() {
+        if (searchQuery != null) {
+            stopSearch();
+            return;
+        }
+
         // Confirm before exiting if connected
+        BluetoothService bluetoothService = viewModel.getService();
         if (bluetoothService != null && bluetoothService.getState() == BluetoothService.STATE_CONNECTED) {
             new AlertDialog.Builder(this)
                     .setTitle("Disconnect")
@@ -0,0 +1,570 @@
+package com.example.bluechatpro;
+
+import android.app.Application;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.AndroidViewModel;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import com.example.bluechatpro.media.ImageImporter;
+import com.example.bluechatpro.media.VoicePlayer;
+import com.example.bluechatpro.media.VoiceRecorder;
+import com.example.bluechatpro.models.ChatMessage;
+import com.example.bluechatpro.models.MessageWindow;
+import com.example.bluechatpro.models.Peer;
+import com.example.bluechatpro.protocol.InboundQueue;
+import com.example.bluechatpro.protocol.ReconnectBackoff;
+import com.example.bluechatpro.storage.ChatHistory;
+import com.example.bluechatpro.storage.ImageStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// State of one chat screen that must outlive the activity: the connection, the
+// message window and any image or voice message on its way out. A rotation
+// rebuilds only the views, which observe what is here. The connection closes
+// when the screen is finished for good.
+public class ChatViewModel extends AndroidViewModel {
+
+    private static final String TAG = "ChatViewModel";
+
+    private static final int HISTORY_LIMIT = 200;
+
+    // Received messages are taken a batch per looper turn, so a flooding peer
+    // cannot starve input and drawing; older messages leave the window (they
+    // stay in history) once it grows past the cap
+    static final int READ_BATCH = 32;
+    private static final int MAX_WINDOW_MESSAGES = 1000;
+
+    private static final long CONNECT_DELAY_MS = 500;
+
+    private final ChatHistory history;
+    private final ImageStore imageStore;
+    private final MessageWindow window = new MessageWindow(MAX_WINDOW_MESSAGES);
+    // Picked images are downscaled into the image store before sending
+    private final ExecutorService imageImporter = Executors.newSingleThreadExecutor();
+    // Hold the attach button to record a voice message, release to finish it
+    private final VoiceRecorder voiceRecorder = new VoiceRecorder();
+    // The voice message is on its way out and recording starts once it is; a
+    // release meanwhile ends the clip as soon as it starts
+    private boolean voiceStarting;
+    private boolean voiceStopRequested;
+    private final Handler handler = new Handler(Looper.getMainLooper(), this::handleMessage);
+    private final ReconnectBackoff reconnectBackoff = new ReconnectBackoff();
+    private final Runnable reconnect = this::reconnect;
+
+    private final MutableLiveData<MessageWindow.Change> messageChanges = new MutableLiveData<>();
+    private final MutableLiveData<String> status = new MutableLiveData<>("Connecting...");
+    private final MutableLiveData<Boolean> connected = new MutableLiveData<>(false);
+    private final MutableLiveData<String> peerName = new MutableLiveData<>();
+    private final MutableLiveData<String> toast = new MutableLiveData<>();
+    // PresenceSender state bits from the peer
+    private final MutableLiveData<Integer> peerPresence = new MutableLiveData<>(0);
+
+    private BluetoothService bluetoothService;
+    private BluetoothDevice device;
+    private String peerAddress;
+    private boolean visible;
+
+    public ChatViewModel(@NonNull Application application) {
+        super(application);
+        BlueChatProApplication app = (BlueChatProApplication) application;
+        history = app.getHistory();
+        imageStore = app.getImageStore();
+        window.setListener(messageChanges::setValue);
+    }
+
+    // Show the conversation with a peer; only the first call does anything
+    public void open(String name, String address) {
+        if (peerAddress != null) {
+            return;
+        }
+        peerAddress = address;
+        peerName.setValue(name);
+        history.loadConversation(address, HISTORY_LIMIT, window::prepend);
+    }
+
+    // Start the connection; only the first call does anything. The caller has
+    // checked the Bluetooth permissions. Returns false if the peer is unusable.
+    public boolean connect() {
+        if (bluetoothService != null) {
+            return true;
+        }
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if (adapter == null) {
+            return false;
+        }
+        try {
+            device = adapter.getRemoteDevice(peerAddress);
+        } catch (SecurityException | IllegalArgumentException e) {
+            Log.e(TAG, "Cannot open " + peerAddress, e);
+            return false;
+        }
+
+        bluetoothService = new BluetoothService(getApplication(), handler);
+        bluetoothService.setActive(visible);
+        if (bluetoothService.getState() == BluetoothService.STATE_NONE) {
+            bluetoothService.start();
+        }
+        handler.postDelayed(() -> bluetoothService.connect(device), CONNECT_DELAY_MS);
+        return true;
+    }
+
+    public LiveData<MessageWindow.Change> getMessageChanges() {
+        return messageChanges;
+    }
+
+    public MessageWindow getWindow() {
+        return window;
+    }
+
+    public LiveData<String> getStatus() {
+        return status;
+    }
+
+    // Text can always be written, since it waits in the outbox while disconnected;
+    // images and voice need a live connection
+    public LiveData<Boolean> isConnected() {
+        return connected;
+    }
+
+    public LiveData<String> getPeerName() {
+        return peerName;
+    }
+
+    public LiveData<Integer> getPeerPresence() {
+        return peerPresence;
+    }
+
+    public String getPeerAddress() {
+        return peerAddress;
+    }
+
+    // Messages for a toast; the observer calls toastShown() once it is up
+    public LiveData<String> getToast() {
+        return toast;
+    }
+
+    public void toastShown() {
+        toast.setValue(null);
+    }
+
+    // Null until connect()
+    public BluetoothService getService() {
+        return bluetoothService;
+    }
+
+    // Where BluetoothService reports to
+    Handler getHandler() {
+        return handler;
+    }
+
+    public ChatHistory getHistory() {
+        return history;
+    }
+
+    public ImageStore getImageStore() {
+        return imageStore;
+    }
+
+    // While the chat is on screen, received messages count as read
+    public void setVisible(boolean visible) {
+        this.visible = visible;
+        if (bluetoothService != null) {
+            bluetoothService.setActive(visible);
+        }
+        if (visible && peerAddress != null) {
+            history.markRead(peerAddress);
+        }
+    }
+
+    // The message being written changed; the peer sees that we are typing
+    public void onDraftChanged(boolean empty) {
+        if (bluetoothService == null) {
+            return;
+        }
+        if (empty) {
+            bluetoothService.stopTyping();
+        } else {
+            bluetoothService.onTyping();
+        }
+    }
+
+    public void sendText(String text) {
+        if (bluetoothService == null) {
+            toast.setValue("Not connected to device");
+            return;
+        }
+        bluetoothService.stopTyping();
+        ChatMessage chatMessage = new ChatMessage(text, bluetoothService.getLocalPeer(), true);
+        chatMessage.setTimestamp(System.currentTimeMillis());
+        chatMessage.setStatus(ChatMessage.MessageStatus.SENDING);
+        window.append(chatMessage);
+
+        // Send via Bluetooth, or queue it until the connection is back
+        bluetoothService.write(chatMessage);
+    }
+
+    public void sendImage(Uri uri) {
+        if (!isLinkUp()) {
+            toast.setValue("Not connected to device");
+            return;
+        }
+
+        ChatMessage chatMessage = newOutgoing(ChatMessage.MessageType.IMAGE);
+        chatMessage.setContent(ImageStore.nameFor(chatMessage.getMessageId(), "jpg"));
+
+        // Decoding and re-encoding a photo takes far too long for the main thread
+        imageImporter.execute(() -> {
+            File file;
+            try {
+                file = imageStore.create(chatMessage.getContent());
+                ImageImporter.importImage(getApplication().getContentResolver(), uri, file);
+            } catch (IOException | OutOfMemoryError e) {
+                Log.e(TAG, "Error importing image: " + e.getMessage());
+                toast.postValue("Could not load image");
+                return;
+            }
+
+            handler.post(() -> {
+                window.append(chatMessage);
+                bluetoothService.writeImage(chatMessage, file);
+            });
+        });
+    }
+
+    // The caller has checked the microphone permission
+    public void startVoice() {
+        if (!isLinkUp()) {
+            toast.setValue("Not connected to device");
+            return;
+        }
+        if (voiceStarting || voiceRecorder.isRecording()) {
+            return;
+        }
+
+        ChatMessage chatMessage = newOutgoing(ChatMessage.MessageType.VOICE);
+        chatMessage.setContent(ImageStore.nameFor(chatMessage.getMessageId(), "voice"));
+
+        // Keep our own copy of the clip for replay
+        ImageStore.Receiver clip = null;
+        try {
+            clip = imageStore.beginReceive(chatMessage.getContent());
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot store voice message: " + e.getMessage());
+        }
+        window.append(chatMessage);
+
+        // The message goes first so the peer is ready to play the stream that follows
+        BluetoothService service = bluetoothService;
+        ImageStore.Receiver savedClip = clip;
+        voiceStarting = true;
+        voiceStopRequested = false;
+        service.write(chatMessage, () -> handler.post(() -> {
+            if (!voiceStarting) {
+                return;
+            }
+            voiceStarting = false;
+            voiceRecorder.start((packet, length, last) -> {
+                service.writeVoice(packet, length, last);
+                saveVoicePacket(savedClip, packet, length, last);
+            });
+            if (voiceStopRequested) {
+                voiceRecorder.stop();
+            }
+        }));
+    }
+
+    public void stopVoice() {
+        voiceStopRequested = true;
+        voiceRecorder.stop();
+    }
+
+    public boolean isRecording() {
+        return voiceStarting || voiceRecorder.isRecording();
+    }
+
+    // Deletes the conversation from history too, so it stays gone
+    public void clearMessages() {
+        if (peerAddress != null) {
+            history.clearConversation(peerAddress);
+        }
+        window.clear();
+    }
+
+    // The link layer went away before the socket noticed
+    public void onPeerDisconnected() {
+        status.setValue("Device disconnected");
+        connected.setValue(false);
+        toast.setValue("Disconnected from " + peerName.getValue());
+    }
+
+    @Override
+    protected void onCleared() {
+        imageImporter.shutdownNow();
+        voiceRecorder.stop();
+        handler.removeCallbacksAndMessages(null);
+        if (bluetoothService != null) {
+            bluetoothService.stop();
+        }
+    }
+
+    private boolean isLinkUp() {
+        return bluetoothService != null && bluetoothService.getState() == BluetoothService.STATE_CONNECTED;
+    }
+
+    private ChatMessage newOutgoing(ChatMessage.MessageType type) {
+        ChatMessage chatMessage = new ChatMessage(null, bluetoothService.getLocalPeer(), true);
+        chatMessage.setType(type);
+        chatMessage.setStatus(ChatMessage.MessageStatus.SENDING);
+        return chatMessage;
+    }
+
+    // Runs on the recording thread
+    private void saveVoicePacket(ImageStore.Receiver clip, byte[] packet, int length, boolean last) {
+        if (clip == null) {
+            return;
+        }
+        try {
+            VoicePlayer.appendToClip(clip, packet, 0, length);
+            if (last) {
+                clip.finish();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot store voice message: " + e.getMessage());
+            clip.abort();
+        }
+    }
+
+    // BluetoothService callbacks
+    private boolean handleMessage(Message msg) {
+        switch (msg.what) {
+            case BluetoothService.MESSAGE_STATE_CHANGE:
+                handleStateChange(msg.arg1);
+                break;
+
+            case BluetoothService.MESSAGE_READ:
+                handleMessageRead(msg);
+                break;
+
+            case BluetoothService.MESSAGE_WRITE:
+                handleMessageWrite(msg);
+                break;
+
+            case BluetoothService.MESSAGE_DELIVERED:
+                handleMessageDelivered(msg);
+                break;
+
+            case BluetoothService.MESSAGE_SYNCED:
+                handleMessagesSynced(msg);
+                break;
+
+            case BluetoothService.MESSAGE_PRESENCE:
+                peerPresence.setValue(msg.arg1);
+                break;
+
+            case BluetoothService.MESSAGE_DEVICE_NAME:
+                if (msg.obj != null) {
+                    peerName.setValue(msg.obj.toString());
+                }
+                break;
+
+            case BluetoothService.MESSAGE_TOAST:
+                if (msg.obj != null) {
+                    toast.setValue(msg.obj.toString());
+                }
+                break;
+
+            case BluetoothService.MESSAGE_DEVICE_CONNECTED:
+                handleDeviceConnected(msg);
+                break;
+
+            case BluetoothService.MESSAGE_CONNECTION_FAILED:
+                handleConnectionFailed();
+                break;
+
+            case BluetoothService.MESSAGE_CONNECTION_LOST:
+                handleConnectionLost();
+                break;
+        }
+        return true;
+    }
+
+    private void handleStateChange(int state) {
+        switch (state) {
+            case BluetoothService.STATE_CONNECTED:
+                status.setValue("Connected");
+                connected.setValue(true);
+                reconnectBackoff.reset();
+
+                // Add welcome message
+                ChatMessage welcomeMsg = new ChatMessage("Connected to " + peerName.getValue(), Peer.SYSTEM, false);
+                welcomeMsg.setTimestamp(System.currentTimeMillis());
+                window.append(welcomeMsg);
+                break;
+
+            case BluetoothService.STATE_CONNECTING:
+                status.setValue("Connecting...");
+                connected.setValue(false);
+                // A voice message still on its way out went with the connection
+                voiceStarting = false;
+                break;
+
+            case BluetoothService.STATE_LISTEN:
+            case BluetoothService.STATE_NONE:
+                status.setValue("Not connected");
+                connected.setValue(false);
+                peerPresence.setValue(0);
+                voiceStarting = false;
+                break;
+        }
+    }
+
+    private void handleMessageRead(Message msg) {
+        if (!(msg.obj instanceof InboundQueue)) {
+            return;
+        }
+
+        // Messages arrive fully decoded by the connection thread, with the
+        // sender's send time already corrected into our clock. Taking them
+        // returns credit to the peer.
+        InboundQueue inbound = (InboundQueue) msg.obj;
+        for (ChatMessage chatMessage : inbound.drain(READ_BATCH)) {
+            showReceived(chatMessage);
+        }
+
+        // Let other work run before the next batch
+        if (inbound.needsDrain()) {
+            handler.obtainMessage(BluetoothService.MESSAGE_READ, inbound).sendToTarget();
+        }
+    }
+
+    private void showReceived(ChatMessage chatMessage) {
+        String readMessage = chatMessage.getContent();
+        if (readMessage.isEmpty()) {
+            return;
+        }
+
+        Peer sender = chatMessage.getSender();
+        if (sender == null || sender.getAddress() == null) {
+            chatMessage.setSender(history.getPeers().intern(peerAddress, peerName.getValue()));
+        } else if (sender.getName() == null) {
+            sender.setName(peerName.getValue());
+        }
+        history.append(peerAddress, chatMessage);
+        if (visible) {
+            history.markRead(peerAddress);
+        }
+        window.insertByTime(chatMessage);
+        Log.d(TAG, "New message received: " + readMessage);
+    }
+
+    private void handleMessageWrite(Message msg) {
+        if (msg.obj instanceof ChatMessage) {
+            ChatMessage writeMessage = (ChatMessage) msg.obj;
+
+            // Update message status in the window. Queued messages may be written
+            // again after a reconnect; they are recorded only the first time.
+            int i = window.findSent(writeMessage);
+            if (i >= 0) {
+                ChatMessage message = window.get(i);
+                if (message.getStatus() == ChatMessage.MessageStatus.SENDING) {
+                    message.setStatus(ChatMessage.MessageStatus.SENT);
+                    window.changed(i);
+                    history.append(peerAddress, message);
+                }
+            } else {
+                // Queued in an earlier session and sent from the outbox
+                writeMessage.setStatus(ChatMessage.MessageStatus.SENT);
+                window.append(writeMessage);
+                history.append(peerAddress, writeMessage);
+            }
+        }
+    }
+
+    private void handleMessageDelivered(Message msg) {
+        ChatMessage delivered = new ChatMessage();
+        delivered.setMessageId((String) msg.obj);
+        history.markDelivered(peerAddress, delivered.getMessageId());
+        int i = window.findSent(delivered);
+        if (i >= 0) {
+            window.get(i).setStatus(ChatMessage.MessageStatus.DELIVERED);
+            window.changed(i);
+        }
+    }
+
+    // Messages history sync brought from the peer, already stored
+    @SuppressWarnings("unchecked")
+    private void handleMessagesSynced(Message msg) {
+        for (ChatMessage message : (List<ChatMessage>) msg.obj) {
+            window.insertByTime(message);
+        }
+        if (visible) {
+            history.markRead(peerAddress);
+        }
+    }
+
+    private void handleDeviceConnected(Message msg) {
+        if (msg.obj instanceof BluetoothDevice) {
+            device = (BluetoothDevice) msg.obj;
+            String deviceName = null;
+            try {
+                deviceName = device.getName();
+            } catch (SecurityException e) {
+                Log.e(TAG, "SecurityException getting device name: " + e.getMessage());
+            }
+            if (deviceName == null) {
+                deviceName = "Unknown Device";
+            } else {
+                // Messages already shown and stored take the current name too
+                history.renamePeer(device.getAddress(), deviceName);
+            }
+            peerName.setValue(deviceName);
+            toast.setValue("Connected to " + deviceName);
+        }
+    }
+
+    private void handleConnectionFailed() {
+        status.setValue("Connection failed");
+        connected.setValue(false);
+        toast.setValue("Unable to connect to device");
+        reconnectLater();
+    }
+
+    private void handleConnectionLost() {
+        status.setValue("Connection lost");
+        connected.setValue(false);
+        peerPresence.setValue(0);
+        toast.setValue("Connection lost. Attempting to reconnect...");
+
+        // Add disconnect message
+        ChatMessage disconnectMsg = new ChatMessage("Connection lost", Peer.SYSTEM, false);
+        disconnectMsg.setTimestamp(System.currentTimeMillis());
+        window.append(disconnectMsg);
+        reconnectLater();
+    }
+
+    // Try to reconnect after a delay that starts from the measured link RTT and
+    // grows with every attempt that fails. One attempt is pending at a time.
+    private void reconnectLater() {
+        handler.removeCallbacks(reconnect);
+        handler.postDelayed(reconnect, reconnectBackoff.nextDelayMillis(bluetoothService.getReconnectDelayMillis()));
+    }
+
+    private void reconnect() {
+        if (device != null) {
+            bluetoothService.connect(device);
+        }
+    }
+}
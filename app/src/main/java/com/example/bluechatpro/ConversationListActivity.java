@@ -0,0 +1,63 @@
+package com.example.bluechatpro;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.view.View;
+import android.widget.ImageButton;
+import android.widget.TextView;
+
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.example.bluechatpro.adapters.ConversationAdapter;
+import com.example.bluechatpro.models.Conversation;
+import com.example.bluechatpro.storage.ChatHistory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Past conversations, most recent first. The list comes from the saved
+// per-peer summaries, so it shows immediately however long the history is.
+public class ConversationListActivity extends AppCompatActivity {
+
+    private ChatHistory history;
+    private ConversationAdapter conversationAdapter;
+    private TextView textEmpty;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_conversations);
+
+        history = ((BlueChatProApplication) getApplication()).getHistory();
+
+        textEmpty = findViewById(R.id.textEmpty);
+        ImageButton btnBack = findViewById(R.id.btnBack);
+        btnBack.setOnClickListener(v -> finish());
+
+        RecyclerView recyclerView = findViewById(R.id.recyclerViewConversations);
+        conversationAdapter = new ConversationAdapter(new ArrayList<>(), this::openConversation);
+        recyclerView.setLayoutManager(new LinearLayoutManager(this));
+        recyclerView.setAdapter(conversationAdapter);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // Refresh unread counts and previews after returning from a chat
+        history.loadConversations(this::showConversations);
+    }
+
+    private void showConversations(List<Conversation> conversations) {
+        conversationAdapter.updateConversations(conversations);
+        textEmpty.setVisibility(conversations.isEmpty() ? View.VISIBLE : View.GONE);
+    }
+
+    private void openConversation(Conversation conversation) {
+        Intent intent = new Intent(ConversationListActivity.this, ChatActivity.class);
+        intent.putExtra("device_name", conversation.getDisplayName());
+        intent.putExtra("device_address", conversation.getPeerAddress());
+        startActivity(intent);
+    }
+}
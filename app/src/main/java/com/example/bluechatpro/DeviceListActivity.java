@@ -16,7 +16,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
-import android.graphics.drawable.ColorDrawable;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
@@ -33,6 +32,7 @@ import com.example.bluechatpro.models.BluetoothDeviceItem;
 
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -43,6 +43,8 @@ public class DeviceListActivity extends AppCompatActivity {
     private List<BluetoothDeviceItem> deviceList = new ArrayList<>();
     private List<BluetoothDeviceItem> pairedDevicesList = new ArrayList<>();
     private List<BluetoothDeviceItem> discoveredDevicesList = new ArrayList<>();
+    private final Set<String> discoveredAddresses = new HashSet<>();
+    private int selectedTab;
 
     private ProgressBar progressBar;
     private TextView textStatus;
@@ -79,18 +81,10 @@ public class DeviceListActivity extends AppCompatActivity {
                         String deviceAddress = device.getAddress();
                         BluetoothDeviceItem deviceItem = new BluetoothDeviceItem(deviceName, deviceAddress);
 
-                        // Check if device is already in the list
-                        boolean exists = false;
-                        for (BluetoothDeviceItem item : discoveredDevicesList) {
-                            if (item.getDeviceAddress().equals(deviceItem.getDeviceAddress())) {
-                                exists = true;
-                                break;
-                            }
-                        }
-
-                        if (!exists) {
+                        // Devices are reported more than once during a scan
+                        if (discoveredAddresses.add(deviceAddress)) {
                             discoveredDevicesList.add(deviceItem);
-                            updateDeviceList();
+                            showFoundDevice(deviceItem);
 
                             // Update status
                             runOnUiThread(() -> {
@@ -384,6 +378,8 @@ public class DeviceListActivity extends AppCompatActivity {
     }
 
     private void updateButtonStates(int selectedTab) {
+        this.selectedTab = selectedTab;
+
         // Reset all buttons
         btnPairedDevices.setBackgroundColor(ContextCompat.getColor(this, android.R.color.transparent));
         btnNewDevices.setBackgroundColor(ContextCompat.getColor(this, android.R.color.transparent));
@@ -408,25 +404,32 @@ public class DeviceListActivity extends AppCompatActivity {
     private void updateDeviceList() {
         runOnUiThread(() -> {
             // Check which tab is active and update accordingly
-            int highlightColor = ContextCompat.getColor(this, android.R.color.holo_blue_light);
-
-            // Check if the button has the highlight color
-            if (isViewHighlighted(btnNewDevices, highlightColor) ||
-                    isViewHighlighted(btnAllDevices, highlightColor)) {
+            if (selectedTab != 0) {
                 showAllDevices();
             }
         });
     }
 
-    private boolean isViewHighlighted(View view, int highlightColor) {
-        if (view.getBackground() instanceof ColorDrawable) {
-            return ((ColorDrawable) view.getBackground()).getColor() == highlightColor;
+    // A found device is added to the list in place rather than rebuilding it, so a
+    // busy scan binds one new row per device instead of every visible row
+    private void showFoundDevice(BluetoothDeviceItem deviceItem) {
+        if (selectedTab == 0) {
+            return;
+        }
+        if (selectedTab == 2) {
+            for (BluetoothDeviceItem pairedDevice : pairedDevicesList) {
+                if (pairedDevice.getDeviceAddress().equals(deviceItem.getDeviceAddress())) {
+                    return;
+                }
+            }
         }
-        return false;
+        deviceList.add(deviceItem);
+        deviceAdapter.notifyItemInserted(deviceList.size() - 1);
     }
 
     private void clearDiscoveredDevices() {
         discoveredDevicesList.clear();
+        discoveredAddresses.clear();
         updateDeviceList();
     }
 
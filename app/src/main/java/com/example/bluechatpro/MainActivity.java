@@ -30,6 +30,7 @@ public class MainActivity extends AppCompatActivity {
     private TextView textBluetoothStatus;
     private Button btnEnableBluetooth;
     private Button btnDiscoverDevices;
+    private Button btnConversations;
     private Button btnMakeDiscoverable;
     private Button btnSettings;
 
@@ -39,8 +40,21 @@ public class MainActivity extends AppCompatActivity {
         setContentView(R.layout.activity_main);
 
         initializeViews();
-        checkBluetoothSupport();
-        requestAllPermissions();
+
+        // The status line says "Checking..." until the first frame is up; the
+        // adapter lookup and permission prompt would only hold that frame back
+        StartupOrchestrator startup = ((BlueChatProApplication) getApplication()).getStartup();
+        startup.runAfterFirstFrame("main.bluetoothStatus", () -> {
+            if (!isFinishing()) {
+                checkBluetoothSupport();
+            }
+        });
+        startup.runAfterFirstFrame("main.permissions", () -> {
+            if (!isFinishing()) {
+                requestAllPermissions();
+                reportFullyDrawn();
+            }
+        });
     }
 
     private void initializeViews() {
@@ -48,6 +62,7 @@ public class MainActivity extends AppCompatActivity {
         textBluetoothStatus = findViewById(R.id.textBluetoothStatus);
         btnEnableBluetooth = findViewById(R.id.btnEnableBluetooth);
         btnDiscoverDevices = findViewById(R.id.btnDiscoverDevices);
+        btnConversations = findViewById(R.id.btnConversations);
         btnMakeDiscoverable = findViewById(R.id.btnMakeDiscoverable);
         btnSettings = findViewById(R.id.btnSettings);
 
@@ -60,6 +75,10 @@ public class MainActivity extends AppCompatActivity {
             btnDiscoverDevices.setOnClickListener(v -> openDeviceList());
         }
 
+        if (btnConversations != null) {
+            btnConversations.setOnClickListener(v -> openConversations());
+        }
+
         if (btnMakeDiscoverable != null) {
             btnMakeDiscoverable.setOnClickListener(v -> makeDiscoverable());
         }
@@ -70,7 +89,8 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void checkBluetoothSupport() {
-        bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        // Normally already looked up by the startup worker
+        bluetoothAdapter = ((BlueChatProApplication) getApplication()).getBluetoothAdapter();
 
         if (bluetoothAdapter == null) {
             // Device doesn't support Bluetooth
@@ -246,6 +266,11 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    private void openConversations() {
+        // History is readable even while Bluetooth is off
+        startActivity(new Intent(this, ConversationListActivity.class));
+    }
+
     private void openDeviceList() {
         if (bluetoothAdapter == null) {
             return;
@@ -0,0 +1,143 @@
+package com.example.bluechatpro;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+// Runs app initialisation in three phases so that little stands between process
+// start and the first frame: work the first screen needs runs at once on the main
+// thread, warm-up runs at once on a background thread, and everything else waits
+// until the first frame has been drawn, then runs one task per main-thread message
+// so input is handled in between. Each task is a named trace section and is timed.
+public class StartupOrchestrator {
+
+    public interface Tracer {
+        void beginSection(String name);
+        void endSection();
+    }
+
+    public interface Clock {
+        long nanoTime();
+    }
+
+    public static final class Section {
+        public final String name;
+        public final boolean background;
+        // Relative to the orchestrator's origin
+        public final long startNanos;
+        public final long durationNanos;
+
+        Section(String name, boolean background, long startNanos, long durationNanos) {
+            this.name = name;
+            this.background = background;
+            this.startNanos = startNanos;
+            this.durationNanos = durationNanos;
+        }
+
+        @Override
+        public String toString() {
+            return name + (background ? " (bg)" : "") + " @" + startNanos / 1_000_000
+                    + "ms " + durationNanos / 1000 + "us";
+        }
+    }
+
+    private final Executor mainExecutor;
+    private final Executor backgroundExecutor;
+    private final Tracer tracer;
+    private final Clock clock;
+    private final long origin;
+
+    private final List<Section> sections = new ArrayList<>();
+    private final List<String> deferredNames = new ArrayList<>();
+    private final List<Runnable> deferred = new ArrayList<>();
+    private long firstFrameNanos = -1;
+
+    public StartupOrchestrator(Executor mainExecutor, Executor backgroundExecutor, Tracer tracer,
+                               Clock clock) {
+        this.mainExecutor = mainExecutor;
+        this.backgroundExecutor = backgroundExecutor;
+        this.tracer = tracer;
+        this.clock = clock;
+        this.origin = clock.nanoTime();
+    }
+
+    // On the calling thread, now
+    public void runNow(String name, Runnable task) {
+        run(name, false, task);
+    }
+
+    public void runInBackground(String name, Runnable task) {
+        backgroundExecutor.execute(() -> run(name, true, task));
+    }
+
+    // On the main thread once the first frame is up; at once if it already is
+    public void runAfterFirstFrame(String name, Runnable task) {
+        synchronized (this) {
+            if (firstFrameNanos < 0) {
+                deferredNames.add(name);
+                deferred.add(task);
+                return;
+            }
+        }
+        mainExecutor.execute(() -> run(name, false, task));
+    }
+
+    // The first activity reports its first frame here; later calls are ignored
+    public void onFirstFrame() {
+        List<String> names;
+        List<Runnable> tasks;
+        synchronized (this) {
+            if (firstFrameNanos >= 0) {
+                return;
+            }
+            firstFrameNanos = clock.nanoTime() - origin;
+            names = new ArrayList<>(deferredNames);
+            tasks = new ArrayList<>(deferred);
+            deferredNames.clear();
+            deferred.clear();
+        }
+        for (int i = 0; i < tasks.size(); i++) {
+            String name = names.get(i);
+            Runnable task = tasks.get(i);
+            mainExecutor.execute(() -> run(name, false, task));
+        }
+    }
+
+    public synchronized boolean isFirstFrameShown() {
+        return firstFrameNanos >= 0;
+    }
+
+    // Time from the origin to the first frame, or -1 before it
+    public synchronized long getFirstFrameNanos() {
+        return firstFrameNanos;
+    }
+
+    // Finished sections in the order they ended
+    public synchronized List<Section> getSections() {
+        return Collections.unmodifiableList(new ArrayList<>(sections));
+    }
+
+    public synchronized String describe() {
+        StringBuilder sb = new StringBuilder("first frame ");
+        sb.append(firstFrameNanos < 0 ? "pending" : firstFrameNanos / 1_000_000 + "ms");
+        for (Section section : sections) {
+            sb.append("; ").append(section);
+        }
+        return sb.toString();
+    }
+
+    private void run(String name, boolean background, Runnable task) {
+        long start = clock.nanoTime();
+        tracer.beginSection(name);
+        try {
+            task.run();
+        } finally {
+            tracer.endSection();
+            long end = clock.nanoTime();
+            synchronized (this) {
+                sections.add(new Section(name, background, start - origin, end - start));
+            }
+        }
+    }
+}
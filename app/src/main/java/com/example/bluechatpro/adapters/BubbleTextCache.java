@@ -0,0 +1,216 @@
+package com.example.bluechatpro.adapters;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Typeface;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.Spannable;
+import android.text.SpannableString;
+import android.text.style.StyleSpan;
+import android.text.style.URLSpan;
+import android.util.LruCache;
+import android.widget.TextView;
+
+import androidx.core.text.PrecomputedTextCompat;
+import androidx.core.widget.TextViewCompat;
+
+import com.example.bluechatpro.models.ChatMessage;
+import com.example.bluechatpro.models.MessageMarkup;
+import com.example.bluechatpro.models.Peer;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+// Message text styled and measured ahead of binding. Parsing links, mentions
+// and emoji shortcodes (see MessageMarkup) and shaping glyphs are most of what
+// showing a long or rich message costs, so both run on a background thread as
+// messages arrive or pages load, and binding a bubble is a lookup. Entries are
+// keyed by message id and the width the text view may take, so deciding what to
+// measure never decodes a message's content; the LRU is sized in characters.
+// A bubble bound before its text was ready shows the plain string until it is.
+// Text views must all share the metrics of the first one attached; a view with
+// others empties the cache. Call everything on the main thread.
+public class BubbleTextCache {
+
+    private static final int MAX_CACHE_CHARS = 256 * 1024;
+    // Rough cost of a short message's entry beyond its characters
+    private static final int ENTRY_CHARS = 32;
+
+    // Styled text and the content it was made from
+    private static final class Entry {
+        final String content;
+        final PrecomputedTextCompat text;
+
+        Entry(String content, PrecomputedTextCompat text) {
+            this.content = content;
+            this.text = text;
+        }
+    }
+
+    private final LruCache<String, Entry> cache;
+    private final Executor measurer;
+    private final Executor main;
+    // Keys waiting to be measured
+    private final Set<String> pending = new HashSet<>();
+    // Views showing plain text until their key is ready; a view's tag is the key
+    // it shows now. Weak, as a list may be torn down with measuring under way.
+    private final Map<String, WeakReference<TextView>> waiting = new HashMap<>();
+    private PrecomputedTextCompat.Params params;
+    private int width;
+    private int hits;
+    private int misses;
+
+    public BubbleTextCache() {
+        this(Executors.newSingleThreadExecutor(), new Handler(Looper.getMainLooper())::post);
+    }
+
+    public BubbleTextCache(Executor measurer, Executor main) {
+        this.measurer = measurer;
+        this.main = main;
+        cache = new LruCache<String, Entry>(MAX_CACHE_CHARS) {
+            @Override
+            protected int sizeOf(String key, Entry entry) {
+                return entry.text.length() + ENTRY_CHARS;
+            }
+        };
+    }
+
+    // Take the text metrics and width from a newly created message view. Anything
+    // measured for other metrics, e.g. before a font size change, is dropped.
+    public void attach(TextView view) {
+        PrecomputedTextCompat.Params viewParams = TextViewCompat.getTextMetricsParams(view);
+        // The view has not been measured yet, so its limit is what is known;
+        // -1 when it only has the bubble's
+        int viewWidth = view.getMaxWidth();
+        if (!viewParams.equals(params)) {
+            params = viewParams;
+            cache.evictAll();
+            pending.clear();
+            waiting.clear();
+        }
+        width = viewWidth;
+    }
+
+    // Show message's text, styled and measured already if it has been; if not,
+    // the plain text is shown until that is done
+    public void bind(TextView view, ChatMessage message) {
+        String content = message.getContent();
+        String key = key(message);
+        view.setTag(key);
+        Entry entry = key != null ? cache.get(key) : null;
+        // An edited message keeps its id
+        if (entry != null && entry.content.equals(content != null ? content : "")) {
+            hits++;
+            TextViewCompat.setPrecomputedText(view, entry.text);
+            return;
+        }
+        misses++;
+        view.setText(content);
+        if (key != null) {
+            waiting.put(key, new WeakReference<>(view));
+            List<ChatMessage> one = new ArrayList<>(1);
+            one.add(message);
+            prefetch(one);
+        }
+    }
+
+    // Measure text messages that are about to be shown, e.g. the rows next to
+    // those on screen. Their content is decoded on the worker.
+    public void prefetch(List<ChatMessage> messages) {
+        if (params == null) {
+            return;
+        }
+        List<String> keys = new ArrayList<>();
+        List<ChatMessage> batch = new ArrayList<>();
+        for (ChatMessage message : messages) {
+            String key = key(message);
+            if (key != null && cache.get(key) == null && pending.add(key)) {
+                keys.add(key);
+                batch.add(message);
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        PrecomputedTextCompat.Params batchParams = params;
+        measurer.execute(() -> {
+            List<Entry> measured = new ArrayList<>(batch.size());
+            for (ChatMessage message : batch) {
+                String content = message.getContent();
+                if (content == null) {
+                    content = "";
+                }
+                measured.add(new Entry(content, PrecomputedTextCompat.create(style(content), batchParams)));
+            }
+            main.execute(() -> {
+                // Measured for metrics since replaced
+                if (batchParams != params) {
+                    return;
+                }
+                for (int i = 0; i < keys.size(); i++) {
+                    String key = keys.get(i);
+                    if (!pending.remove(key)) {
+                        continue;
+                    }
+                    Entry entry = measured.get(i);
+                    cache.put(key, entry);
+                    WeakReference<TextView> ref = waiting.remove(key);
+                    TextView view = ref != null ? ref.get() : null;
+                    if (view != null && key.equals(view.getTag())) {
+                        TextViewCompat.setPrecomputedText(view, entry.text);
+                    }
+                }
+            });
+        });
+    }
+
+    // Worker thread only
+    static CharSequence style(String content) {
+        MessageMarkup markup = MessageMarkup.parse(content);
+        if (markup.isPlain()) {
+            return markup.text;
+        }
+        SpannableString text = new SpannableString(markup.text);
+        for (MessageMarkup.Span span : markup.spans) {
+            Object style = span.kind == MessageMarkup.LINK
+                    ? new URLSpan(span.target)
+                    : new StyleSpan(Typeface.BOLD);
+            text.setSpan(style, span.start, span.end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        return text;
+    }
+
+    public int hitCount() {
+        return hits;
+    }
+
+    public int missCount() {
+        return misses;
+    }
+
+    // Hook for Application.onTrimMemory
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            cache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            cache.trimToSize(cache.maxSize() / 2);
+        }
+    }
+
+    // Null for what bubbles do not show as text: notices, images, voice clips.
+    // Header fields only; the content may still be encoded.
+    private String key(ChatMessage message) {
+        if (params == null || message.getMessageId() == null
+                || message.getType() != ChatMessage.MessageType.TEXT || message.getSender() == Peer.SYSTEM) {
+            return null;
+        }
+        return message.getMessageId() + "@" + width;
+    }
+}
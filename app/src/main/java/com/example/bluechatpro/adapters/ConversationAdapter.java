@@ -0,0 +1,87 @@
+package com.example.bluechatpro.adapters;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+import androidx.annotation.NonNull;
+import androidx.cardview.widget.CardView;
+import androidx.recyclerview.widget.RecyclerView;
+import com.example.bluechatpro.R;
+import com.example.bluechatpro.models.Conversation;
+import java.util.List;
+
+public class ConversationAdapter extends RecyclerView.Adapter<ConversationAdapter.ConversationViewHolder> {
+
+    private List<Conversation> conversationList;
+    private OnConversationClickListener listener;
+
+    public interface OnConversationClickListener {
+        void onConversationClick(Conversation conversation);
+    }
+
+    public ConversationAdapter(List<Conversation> conversationList, OnConversationClickListener listener) {
+        this.conversationList = conversationList;
+        this.listener = listener;
+    }
+
+    @NonNull
+    @Override
+    public ConversationViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.item_conversation, parent, false);
+        return new ConversationViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ConversationViewHolder holder, int position) {
+        Conversation conversation = conversationList.get(position);
+
+        holder.textPeerName.setText(conversation.getDisplayName());
+        String preview = conversation.getLastMessage();
+        holder.textLastMessage.setText(conversation.isLastSent() ? "You: " + preview : preview);
+        holder.textTime.setText(conversation.getFormattedTime());
+
+        // Unread badge
+        if (conversation.getUnreadCount() > 0) {
+            holder.textUnread.setText(String.valueOf(conversation.getUnreadCount()));
+            holder.textUnread.setVisibility(View.VISIBLE);
+        } else {
+            holder.textUnread.setVisibility(View.GONE);
+        }
+
+        holder.cardConversation.setOnClickListener(v -> {
+            if (listener != null) {
+                listener.onConversationClick(conversation);
+            }
+        });
+    }
+
+    @Override
+    public int getItemCount() {
+        return conversationList.size();
+    }
+
+    // Update the dataset
+    public void updateConversations(List<Conversation> conversations) {
+        conversationList = conversations;
+        notifyDataSetChanged();
+    }
+
+    static class ConversationViewHolder extends RecyclerView.ViewHolder {
+        CardView cardConversation;
+        TextView textPeerName;
+        TextView textLastMessage;
+        TextView textTime;
+        TextView textUnread;
+
+        ConversationViewHolder(@NonNull View itemView) {
+            super(itemView);
+            cardConversation = itemView.findViewById(R.id.cardConversation);
+            textPeerName = itemView.findViewById(R.id.textPeerName);
+            textLastMessage = itemView.findViewById(R.id.textLastMessage);
+            textTime = itemView.findViewById(R.id.textTime);
+            textUnread = itemView.findViewById(R.id.textUnread);
+        }
+    }
+}
@@ -18,6 +18,8 @@ public class DeviceAdapter extends RecyclerView.Adapter<DeviceAdapter.DeviceView
 
     private List<BluetoothDeviceItem> deviceList;
     private OnDeviceClickListener listener;
+    private int pairedColor;
+    private int unpairedColor;
 
     public interface OnDeviceClickListener {
         void onDeviceClick(BluetoothDeviceItem deviceItem);
@@ -34,7 +36,27 @@ public class DeviceAdapter extends RecyclerView.Adapter<DeviceAdapter.DeviceView
     public DeviceViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
         View view = LayoutInflater.from(parent.getContext())
                 .inflate(R.layout.item_device, parent, false);
-        return new DeviceViewHolder(view);
+        DeviceViewHolder holder = new DeviceViewHolder(view);
+        if (pairedColor == 0) {
+            pairedColor = parent.getContext().getResources().getColor(android.R.color.holo_green_dark);
+            unpairedColor = parent.getContext().getResources().getColor(android.R.color.holo_red_dark);
+        }
+
+        // Set once per holder rather than on every bind
+        holder.cardDevice.setOnClickListener(v -> {
+            int position = holder.getBindingAdapterPosition();
+            if (listener != null && position != RecyclerView.NO_POSITION) {
+                listener.onDeviceClick(deviceList.get(position));
+            }
+        });
+
+        holder.btnPair.setOnClickListener(v -> {
+            int position = holder.getBindingAdapterPosition();
+            if (listener != null && position != RecyclerView.NO_POSITION) {
+                listener.onPairClick(deviceList.get(position));
+            }
+        });
+        return holder;
     }
 
     @SuppressLint("MissingPermission")
@@ -55,29 +77,14 @@ public class DeviceAdapter extends RecyclerView.Adapter<DeviceAdapter.DeviceView
         // Set pairing status
         if (deviceItem.isPaired()) {
             holder.textPairStatus.setText("Paired");
-            holder.textPairStatus.setTextColor(holder.itemView.getContext()
-                    .getResources().getColor(android.R.color.holo_green_dark));
+            holder.textPairStatus.setTextColor(pairedColor);
             holder.btnPair.setText("Unpair");
         } else {
             holder.textPairStatus.setText("Not paired");
-            holder.textPairStatus.setTextColor(holder.itemView.getContext()
-                    .getResources().getColor(android.R.color.holo_red_dark));
+            holder.textPairStatus.setTextColor(unpairedColor);
             holder.btnPair.setText("Pair");
         }
 
-        // Set click listeners
-        holder.cardDevice.setOnClickListener(v -> {
-            if (listener != null) {
-                listener.onDeviceClick(deviceItem);
-            }
-        });
-
-        holder.btnPair.setOnClickListener(v -> {
-            if (listener != null) {
-                listener.onPairClick(deviceItem);
-            }
-        });
-
         // Show/hide signal strength (if available)
         if (deviceItem.getSignalStrength() > 0) {
             holder.textSignalStrength.setText("Signal: " + deviceItem.getSignalStrength() + " dBm");
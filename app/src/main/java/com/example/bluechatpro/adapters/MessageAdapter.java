@@ -1,36 +1,71 @@
 package com.example.bluechatpro.adapters;
 
+import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.ImageView;
 import android.widget.TextView;
 import androidx.annotation.NonNull;
 import androidx.recyclerview.widget.RecyclerView;
 import com.example.bluechatpro.R;
+import com.example.bluechatpro.media.ThumbnailLoader;
 import com.example.bluechatpro.models.ChatMessage;
+import com.example.bluechatpro.models.Peer;
+import com.example.bluechatpro.storage.ImageStore;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 
 public class MessageAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
 
-    private static final int VIEW_TYPE_MESSAGE_SENT = 1;
-    private static final int VIEW_TYPE_MESSAGE_RECEIVED = 2;
-    private static final int VIEW_TYPE_SYSTEM = 3;
+    static final int VIEW_TYPE_MESSAGE_SENT = 1;
+    static final int VIEW_TYPE_MESSAGE_RECEIVED = 2;
+    static final int VIEW_TYPE_SYSTEM = 3;
+    static final int VIEW_TYPE_IMAGE_SENT = 4;
+    static final int VIEW_TYPE_IMAGE_RECEIVED = 5;
 
     private List<ChatMessage> messageList;
+    private final ThumbnailLoader thumbnailLoader;
+    private final ImageStore imageStore;
+    private final BubbleTextCache textCache;
+    private OnVoiceClickListener voiceClickListener;
+    // Row layouts inflated ahead of time by a MessageViewPool, used before inflating anew
+    private final SparseArray<ArrayDeque<View>> inflated = new SparseArray<>();
+
+    public interface OnVoiceClickListener {
+        void onVoiceClick(ChatMessage message);
+    }
 
     public MessageAdapter(List<ChatMessage> messageList) {
+        this(messageList, null, null, null);
+    }
+
+    // Without a loader and store, image messages show their file name as text;
+    // without a text cache, text is measured as it is bound
+    public MessageAdapter(List<ChatMessage> messageList, ThumbnailLoader thumbnailLoader, ImageStore imageStore,
+                          BubbleTextCache textCache) {
         this.messageList = messageList;
+        this.thumbnailLoader = thumbnailLoader;
+        this.imageStore = imageStore;
+        this.textCache = textCache;
+    }
+
+    public void setOnVoiceClickListener(OnVoiceClickListener listener) {
+        this.voiceClickListener = listener;
     }
 
     @Override
     public int getItemViewType(int position) {
         ChatMessage message = messageList.get(position);
 
-        if (message.getSenderName().equals("System")) {
+        if (message.getSender() == Peer.SYSTEM) {
             return VIEW_TYPE_SYSTEM;
+        } else if (message.getType() == ChatMessage.MessageType.IMAGE && thumbnailLoader != null) {
+            return message.isSent() ? VIEW_TYPE_IMAGE_SENT : VIEW_TYPE_IMAGE_RECEIVED;
         } else if (message.isSent()) {
             return VIEW_TYPE_MESSAGE_SENT;
         } else {
@@ -41,33 +76,104 @@ public class MessageAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
     @NonNull
     @Override
     public RecyclerView.ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
-        View view;
+        View view = inflate(parent, viewType);
 
         if (viewType == VIEW_TYPE_MESSAGE_SENT) {
-            view = LayoutInflater.from(parent.getContext())
-                    .inflate(R.layout.item_message_sent, parent, false);
-            return new SentMessageHolder(view);
+            SentMessageHolder holder = new SentMessageHolder(view);
+            attachText(holder.textMessage);
+            return holder;
         } else if (viewType == VIEW_TYPE_MESSAGE_RECEIVED) {
-            view = LayoutInflater.from(parent.getContext())
-                    .inflate(R.layout.item_message_received, parent, false);
-            return new ReceivedMessageHolder(view);
+            ReceivedMessageHolder holder = new ReceivedMessageHolder(view);
+            attachText(holder.textMessage);
+            return holder;
+        } else if (viewType == VIEW_TYPE_IMAGE_SENT || viewType == VIEW_TYPE_IMAGE_RECEIVED) {
+            return new ImageMessageHolder(view);
         } else {
-            view = LayoutInflater.from(parent.getContext())
-                    .inflate(R.layout.item_message_system, parent, false);
             return new SystemMessageHolder(view);
         }
     }
 
+    static int layoutFor(int viewType) {
+        switch (viewType) {
+            case VIEW_TYPE_MESSAGE_SENT:
+                return R.layout.item_message_sent;
+            case VIEW_TYPE_MESSAGE_RECEIVED:
+                return R.layout.item_message_received;
+            case VIEW_TYPE_IMAGE_SENT:
+                return R.layout.item_message_image_sent;
+            case VIEW_TYPE_IMAGE_RECEIVED:
+                return R.layout.item_message_image_received;
+            default:
+                return R.layout.item_message_system;
+        }
+    }
+
+    // Whether rows of the image view types are ever made
+    boolean showsImages() {
+        return thumbnailLoader != null;
+    }
+
+    // A row layout inflated off the main thread, for the next holder of its type
+    void offerInflated(int viewType, View view) {
+        ArrayDeque<View> views = inflated.get(viewType);
+        if (views == null) {
+            views = new ArrayDeque<>();
+            inflated.put(viewType, views);
+        }
+        views.add(view);
+    }
+
+    private View inflate(ViewGroup parent, int viewType) {
+        ArrayDeque<View> views = inflated.get(viewType);
+        if (views != null && !views.isEmpty()) {
+            return views.poll();
+        }
+        return LayoutInflater.from(parent.getContext()).inflate(layoutFor(viewType), parent, false);
+    }
+
     @Override
     public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position) {
         ChatMessage message = messageList.get(position);
 
         if (holder instanceof SentMessageHolder) {
-            ((SentMessageHolder) holder).bind(message);
+            ((SentMessageHolder) holder).bind(message, textCache);
+            bindVoice(holder, ((SentMessageHolder) holder).textMessage, message);
         } else if (holder instanceof ReceivedMessageHolder) {
-            ((ReceivedMessageHolder) holder).bind(message);
+            ((ReceivedMessageHolder) holder).bind(message, textCache);
+            bindVoice(holder, ((ReceivedMessageHolder) holder).textMessage, message);
         } else if (holder instanceof SystemMessageHolder) {
             ((SystemMessageHolder) holder).bind(message);
+        } else if (holder instanceof ImageMessageHolder) {
+            ((ImageMessageHolder) holder).bind(message, thumbnailLoader, imageStore);
+        }
+    }
+
+    private void attachText(TextView textMessage) {
+        if (textCache != null) {
+            textCache.attach(textMessage);
+        }
+    }
+
+    // Voice messages show as a bubble that replays the clip when tapped
+    private void bindVoice(RecyclerView.ViewHolder holder, TextView textMessage, ChatMessage message) {
+        if (message.getType() == ChatMessage.MessageType.VOICE) {
+            textMessage.setText("Voice message \u25B6");
+            holder.itemView.setOnClickListener(v -> {
+                if (voiceClickListener != null) {
+                    voiceClickListener.onVoiceClick(message);
+                }
+            });
+        } else {
+            holder.itemView.setOnClickListener(null);
+            holder.itemView.setClickable(false);
+        }
+    }
+
+    // Hand the thumbnail back so its bitmap can be reused by another holder
+    @Override
+    public void onViewRecycled(@NonNull RecyclerView.ViewHolder holder) {
+        if (holder instanceof ImageMessageHolder) {
+            thumbnailLoader.release(((ImageMessageHolder) holder).imageMessage);
         }
     }
 
@@ -107,37 +213,49 @@ public class MessageAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
             textStatus = itemView.findViewById(R.id.textStatus);
         }
 
-        void bind(ChatMessage message) {
-            textMessage.setText(message.getContent());
+        void bind(ChatMessage message, BubbleTextCache textCache) {
+            bindText(textMessage, message, textCache);
             textTime.setText(message.getFormattedTime());
+            bindStatus(textStatus, message);
+        }
+    }
 
-            // Set status indicator
-            if (textStatus != null) {
-                switch (message.getStatus()) {
-                    case SENDING:
-                        textStatus.setText("Sending...");
-                        textStatus.setVisibility(View.VISIBLE);
-                        break;
-                    case SENT:
-                        textStatus.setText("Sent");
-                        textStatus.setVisibility(View.VISIBLE);
-                        break;
-                    case DELIVERED:
-                        textStatus.setText("Delivered");
-                        textStatus.setVisibility(View.VISIBLE);
-                        break;
-                    case READ:
-                        textStatus.setText("Read");
-                        textStatus.setVisibility(View.VISIBLE);
-                        break;
-                    case FAILED:
-                        textStatus.setText("Failed");
-                        textStatus.setVisibility(View.VISIBLE);
-                        break;
-                    default:
-                        textStatus.setVisibility(View.GONE);
-                }
-            }
+    static void bindText(TextView textMessage, ChatMessage message, BubbleTextCache textCache) {
+        if (textCache != null) {
+            textCache.bind(textMessage, message);
+        } else {
+            textMessage.setText(message.getContent());
+        }
+    }
+
+    // Set status indicator
+    static void bindStatus(TextView textStatus, ChatMessage message) {
+        if (textStatus == null) {
+            return;
+        }
+        switch (message.getStatus()) {
+            case SENDING:
+                textStatus.setText("Sending...");
+                textStatus.setVisibility(View.VISIBLE);
+                break;
+            case SENT:
+                textStatus.setText("Sent");
+                textStatus.setVisibility(View.VISIBLE);
+                break;
+            case DELIVERED:
+                textStatus.setText("Delivered");
+                textStatus.setVisibility(View.VISIBLE);
+                break;
+            case READ:
+                textStatus.setText("Read");
+                textStatus.setVisibility(View.VISIBLE);
+                break;
+            case FAILED:
+                textStatus.setText("Failed");
+                textStatus.setVisibility(View.VISIBLE);
+                break;
+            default:
+                textStatus.setVisibility(View.GONE);
         }
     }
 
@@ -154,11 +272,11 @@ public class MessageAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
             textTime = itemView.findViewById(R.id.textTime);
         }
 
-        void bind(ChatMessage message) {
+        void bind(ChatMessage message, BubbleTextCache textCache) {
             if (textSender != null) {
                 textSender.setText(message.getSenderName());
             }
-            textMessage.setText(message.getContent());
+            bindText(textMessage, message, textCache);
             textTime.setText(message.getFormattedTime());
         }
     }
@@ -179,4 +297,36 @@ public class MessageAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
             textTime.setText(message.getFormattedTime());
         }
     }
+
+    // ViewHolder for sent and received images. The thumbnail is decoded in the
+    // background at the view's fixed size, so binding never touches the disk.
+    static class ImageMessageHolder extends RecyclerView.ViewHolder {
+        ImageView imageMessage;
+        TextView textSender;
+        TextView textTime;
+        TextView textStatus;
+
+        ImageMessageHolder(@NonNull View itemView) {
+            super(itemView);
+            imageMessage = itemView.findViewById(R.id.imageMessage);
+            textSender = itemView.findViewById(R.id.textSender);
+            textTime = itemView.findViewById(R.id.textTime);
+            textStatus = itemView.findViewById(R.id.textStatus);
+        }
+
+        void bind(ChatMessage message, ThumbnailLoader loader, ImageStore store) {
+            if (textSender != null) {
+                textSender.setText(message.getSenderName());
+            }
+            textTime.setText(message.getFormattedTime());
+            bindStatus(textStatus, message);
+
+            try {
+                int size = imageMessage.getLayoutParams().width;
+                loader.load(store.fileFor(message.getContent()), imageMessage, size);
+            } catch (IOException e) {
+                loader.release(imageMessage);
+            }
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,98 @@
+package com.example.bluechatpro.adapters;
+
+import android.util.DisplayMetrics;
+
+import androidx.asynclayoutinflater.view.AsyncLayoutInflater;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.ArrayDeque;
+
+// Holders for the chat list, made before the first scroll needs them. A fling
+// through a freshly opened long chat would otherwise inflate a bubble layout
+// for nearly every row of its first few screens. prewarm() inflates the layouts
+// on a background thread while the chat opens, and the main thread only wraps
+// each one in its holder. The chat and its search results share the pool, so
+// switching between them inflates nothing either.
+// Call everything on the main thread.
+public class MessageViewPool extends RecyclerView.RecycledViewPool {
+
+    // Shortest a bubble row gets: one line of text and its time
+    private static final int MIN_ROW_DP = 56;
+    // Rows the list keeps bound just off screen, beyond the pool
+    public static final int VIEW_CACHE_ROWS = 4;
+    private static final int SYSTEM_ROWS = 2;
+    private static final int IMAGE_ROWS = 3;
+
+    private final int bubbleRows;
+    // View types of the layouts still to inflate, and the inflater while there are any
+    private final ArrayDeque<Integer> toInflate = new ArrayDeque<>();
+    private AsyncLayoutInflater inflater;
+
+    public MessageViewPool(DisplayMetrics metrics) {
+        // Either kind of bubble may fill the screen, as when one side sends a
+        // run of messages, with a few more for the rows prefetch binds ahead
+        int screenRows = (int) Math.ceil(metrics.heightPixels / (MIN_ROW_DP * metrics.density));
+        bubbleRows = screenRows + 2;
+        setMaxRecycledViews(MessageAdapter.VIEW_TYPE_MESSAGE_SENT, bubbleRows);
+        setMaxRecycledViews(MessageAdapter.VIEW_TYPE_MESSAGE_RECEIVED, bubbleRows);
+        setMaxRecycledViews(MessageAdapter.VIEW_TYPE_SYSTEM, SYSTEM_ROWS);
+        setMaxRecycledViews(MessageAdapter.VIEW_TYPE_IMAGE_SENT, IMAGE_ROWS);
+        setMaxRecycledViews(MessageAdapter.VIEW_TYPE_IMAGE_RECEIVED, IMAGE_ROWS);
+    }
+
+    // Fill the pool with holders of adapter's for list. Call once list has its
+    // layout manager, this pool and adapter, since setting an adapter empties
+    // the pool.
+    public void prewarm(RecyclerView list, MessageAdapter adapter) {
+        queue(MessageAdapter.VIEW_TYPE_MESSAGE_SENT, bubbleRows);
+        queue(MessageAdapter.VIEW_TYPE_MESSAGE_RECEIVED, bubbleRows);
+        queue(MessageAdapter.VIEW_TYPE_SYSTEM, SYSTEM_ROWS);
+        if (adapter.showsImages()) {
+            queue(MessageAdapter.VIEW_TYPE_IMAGE_SENT, IMAGE_ROWS);
+            queue(MessageAdapter.VIEW_TYPE_IMAGE_RECEIVED, IMAGE_ROWS);
+        }
+        if (inflater == null && !toInflate.isEmpty()) {
+            inflater = new AsyncLayoutInflater(list.getContext());
+            inflateNext(list, adapter);
+        }
+    }
+
+    public boolean isPrewarming() {
+        return inflater != null;
+    }
+
+    // Stop prewarming and let go of every holder, with the views and context
+    // they hold. Layouts already being inflated are dropped when they arrive.
+    public void detach() {
+        toInflate.clear();
+        inflater = null;
+        clear();
+    }
+
+    private void queue(int viewType, int count) {
+        for (int i = getRecycledViewCount(viewType); i < count; i++) {
+            toInflate.add(viewType);
+        }
+    }
+
+    // One layout at a time: the inflater's queue is short, and asking for more
+    // than it holds blocks the main thread until there is room
+    private void inflateNext(RecyclerView list, MessageAdapter adapter) {
+        Integer viewType = toInflate.poll();
+        if (viewType == null) {
+            inflater = null;
+            return;
+        }
+        // A layout that could not be inflated in the background is inflated
+        // on the main thread instead, before this is called
+        AsyncLayoutInflater current = inflater;
+        current.inflate(MessageAdapter.layoutFor(viewType), list, (view, resid, parent) -> {
+            if (inflater != current) {
+                return;
+            }
+            adapter.offerInflated(viewType, view);
+            putRecycledView(adapter.createViewHolder(list, viewType));
+            inflateNext(list, adapter);
+        });
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.bluechatpro.group;
+
+import java.util.function.LongSupplier;
+
+// Hybrid logical clock. A timestamp is wall-clock milliseconds in the high 48 bits
+// and a counter in the low 16, so timestamps sort like times, never go backwards,
+// and come after anything already seen from another device whose clock is up to
+// MAX_DRIFT_MS ahead of ours. A device further ahead than that cannot drag every
+// clock it talks to into the future with it.
+public class HybridClock {
+
+    static final long MAX_DRIFT_MS = 5 * 60 * 1000;
+
+    private static final int LOGICAL_BITS = 16;
+    private static final long LOGICAL_MASK = (1L << LOGICAL_BITS) - 1;
+
+    private final LongSupplier wallClock;
+    private long last;
+
+    public HybridClock() {
+        this(System::currentTimeMillis);
+    }
+
+    public HybridClock(LongSupplier wallClock) {
+        this.wallClock = wallClock;
+    }
+
+    // Timestamp for a local event, such as sending a message
+    public synchronized long now() {
+        long wall = wallClock.getAsLong() << LOGICAL_BITS;
+        last = wall > last ? wall : last + 1;
+        return last;
+    }
+
+    // Note a timestamp seen from another device. One too far ahead of our wall
+    // clock only moves us up to the drift bound.
+    public synchronized void update(long remote) {
+        long wall = wallClock.getAsLong() << LOGICAL_BITS;
+        long limit = wall + (MAX_DRIFT_MS << LOGICAL_BITS);
+        last = Math.max(Math.max(last, Math.min(remote, limit)), wall);
+    }
+
+    public static long toMillis(long timestamp) {
+        return timestamp >>> LOGICAL_BITS;
+    }
+
+    public static long fromMillis(long millis) {
+        return millis << LOGICAL_BITS;
+    }
+
+    static long counter(long timestamp) {
+        return timestamp & LOGICAL_MASK;
+    }
+}
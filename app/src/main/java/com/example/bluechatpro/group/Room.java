@@ -0,0 +1,276 @@
+package com.example.bluechatpro.group;
+
+import com.example.bluechatpro.models.ChatMessage;
+import com.example.bluechatpro.models.Peer;
+import com.example.bluechatpro.protocol.BufferPool;
+import com.example.bluechatpro.protocol.ChatMessageCodec;
+import com.example.bluechatpro.protocol.Frame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// This device's member of a group chat room. The room is connected to some of the
+// other members by links, and every entry is passed on to every link except the
+// one it came from, so members that are not connected directly still get each
+// other's messages. When a link comes up both ends say what they hold of each
+// device's numbered entries (TYPE_ROOM_SYNC), and each sends the other just the
+// ranges it lacks, a page at a time, so a late joiner catches up without a replay.
+//
+// Entries payload: [room:UTF][kind:1][count:4] then per entry
+//   [time:8][origin:UTF][seq:4][message length:4][ChatMessageCodec record]
+// where kind says whether these are live entries or a catch-up page, and if a
+// page, whether more follow.
+// Sync payload: [room:UTF][count:4] then per origin [origin:UTF][high water:4]
+public class Room {
+
+    // Sends a frame to one member. Must not block the caller for long; the room
+    // calls it from link reader threads.
+    public interface Link {
+        void send(byte type, byte[] payload, int length);
+    }
+
+    public interface Listener {
+        // Entries new to this device, each origin's in order. Called without the
+        // room's lock held, from the thread that posted or received them.
+        void onEntriesAdded(List<RoomEntry> added);
+    }
+
+    // Catch-up pages stop at whichever limit comes first
+    static final int SYNC_PAGE = 256;
+    private static final int SYNC_PAGE_BYTES = 256 * 1024;
+
+    private static final int KIND_LIVE = 0;
+    private static final int KIND_PAGE = 1;
+    private static final int KIND_LAST_PAGE = 2;
+
+    private final String id;
+    private final String localAddress;
+    private final HybridClock clock;
+    private final Listener listener;
+    private final RoomLog log = new RoomLog();
+    private final List<Link> links = new CopyOnWriteArrayList<>();
+    private final ChatMessageCodec codec = new ChatMessageCodec(false, BufferPool.SHARED);
+    private int nextSeq;
+
+    public Room(String id, String localAddress, HybridClock clock, Listener listener) {
+        this(id, localAddress, clock, listener, 0);
+    }
+
+    // lastSeq is the number of the last entry this device posted to the room
+    // before, so posts after a restart do not reuse numbers members already hold
+    public Room(String id, String localAddress, HybridClock clock, Listener listener, int lastSeq) {
+        this.id = id;
+        this.localAddress = localAddress;
+        this.clock = clock;
+        this.listener = listener;
+        this.nextSeq = lastSeq + 1;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    // Post a message from this device to everyone
+    public RoomEntry post(ChatMessage message) {
+        List<RoomEntry> added = new ArrayList<>(1);
+        byte[] payload;
+        synchronized (this) {
+            long time = clock.now();
+            message.setTimestamp(HybridClock.toMillis(time));
+            message.setSender(new Peer(localAddress, message.getSenderName()));
+            added.add(new RoomEntry(time, localAddress, nextSeq++, message));
+            log.merge(added);
+            payload = encodeEntries(added, false);
+        }
+        for (Link link : links) {
+            link.send(Frame.TYPE_ROOM, payload, payload.length);
+        }
+        notifyAdded(added);
+        return added.get(0);
+    }
+
+    // A member is reachable through this link; exchange what each side is missing
+    public void attach(Link link) {
+        links.add(link);
+        byte[] sync;
+        synchronized (this) {
+            sync = encodeSync(log.versionVector());
+        }
+        link.send(Frame.TYPE_ROOM_SYNC, sync, sync.length);
+    }
+
+    public void detach(Link link) {
+        links.remove(link);
+    }
+
+    // Hand over a TYPE_ROOM or TYPE_ROOM_SYNC frame that arrived on a link
+    public void onFrame(Link from, byte type, byte[] payload, int offset, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload, offset, length));
+        if (!id.equals(in.readUTF())) {
+            return;
+        }
+        if (type == Frame.TYPE_ROOM_SYNC) {
+            onSync(from, in);
+        } else if (type == Frame.TYPE_ROOM) {
+            onEntries(from, in);
+        }
+    }
+
+    public synchronized int size() {
+        return log.size();
+    }
+
+    // The whole room in its agreed order
+    public synchronized List<RoomEntry> entries() {
+        return log.entries();
+    }
+
+    public synchronized Map<String, Integer> versionVector() {
+        return log.versionVector();
+    }
+
+    private void onSync(Link from, DataInputStream in) throws IOException {
+        int count = in.readInt();
+        Map<String, Integer> theirs = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            theirs.put(in.readUTF(), in.readInt());
+        }
+
+        byte[] reply;
+        synchronized (this) {
+            reply = encodeEntries(log.missing(theirs, SYNC_PAGE), true);
+        }
+        from.send(Frame.TYPE_ROOM, reply, reply.length);
+    }
+
+    private void onEntries(Link from, DataInputStream in) throws IOException {
+        int kind = in.readUnsignedByte();
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid room entry count: " + count);
+        }
+        List<RoomEntry> received = new ArrayList<>(Math.min(count, SYNC_PAGE));
+        long latest = 0;
+        for (int i = 0; i < count; i++) {
+            RoomEntry entry = readEntry(in);
+            received.add(entry);
+            latest = Math.max(latest, entry.time);
+        }
+
+        List<RoomEntry> added;
+        byte[] forward = null;
+        byte[] next = null;
+        synchronized (this) {
+            clock.update(latest);
+            added = log.merge(received);
+            // Our own earlier posts, handed back by a member that kept them
+            nextSeq = Math.max(nextSeq, log.highWater(localAddress) + 1);
+            if (!added.isEmpty() && links.size() > 1) {
+                forward = encodeEntries(added, false);
+            }
+            if (kind == KIND_PAGE) {
+                next = encodeSync(log.versionVector());
+            }
+        }
+
+        if (next != null) {
+            from.send(Frame.TYPE_ROOM_SYNC, next, next.length);
+        }
+        if (forward != null) {
+            for (Link link : links) {
+                if (link != from) {
+                    link.send(Frame.TYPE_ROOM, forward, forward.length);
+                }
+            }
+        }
+        if (!added.isEmpty()) {
+            notifyAdded(added);
+        }
+    }
+
+    private RoomEntry readEntry(DataInputStream in) throws IOException {
+        long time = in.readLong();
+        String origin = in.readUTF();
+        int seq = in.readInt();
+        int length = in.readInt();
+        if (seq <= 0 || length < 0 || length > Frame.MAX_PAYLOAD_SIZE) {
+            throw new IOException("Invalid room entry");
+        }
+        byte[] record = new byte[length];
+        in.readFully(record);
+
+        ChatMessage message = new ChatMessage();
+        synchronized (this) {
+            codec.decode(record, 0, length, message);
+        }
+        message.setSent(origin.equals(localAddress));
+        return new RoomEntry(time, origin, seq, message);
+    }
+
+    // Called with the lock held. A page may stop short of the entries given.
+    private byte[] encodeEntries(List<RoomEntry> entries, boolean page) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(entries.size() * 96);
+        DataOutputStream out = new DataOutputStream(body);
+        int count = 0;
+        try {
+            for (RoomEntry entry : entries) {
+                if (page && body.size() >= SYNC_PAGE_BYTES) {
+                    break;
+                }
+                out.writeLong(entry.time);
+                out.writeUTF(entry.origin);
+                out.writeInt(entry.seq);
+                byte[] record = codec.encode(entry.message);
+                out.writeInt(codec.getEncodedLength());
+                out.write(record, 0, codec.getEncodedLength());
+                codec.releaseEncoded();
+                count++;
+            }
+
+            int kind = KIND_LIVE;
+            if (page) {
+                kind = count < entries.size() || count == SYNC_PAGE ? KIND_PAGE : KIND_LAST_PAGE;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.size() + 64);
+            DataOutputStream header = new DataOutputStream(bytes);
+            header.writeUTF(id);
+            header.writeByte(kind);
+            header.writeInt(count);
+            body.writeTo(bytes);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // Writing to memory does not fail
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private byte[] encodeSync(Map<String, Integer> vector) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + vector.size() * 24);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeUTF(id);
+            out.writeInt(vector.size());
+            for (Map.Entry<String, Integer> origin : vector.entrySet()) {
+                out.writeUTF(origin.getKey());
+                out.writeInt(origin.getValue());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void notifyAdded(List<RoomEntry> added) {
+        if (listener != null) {
+            listener.onEntriesAdded(added);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.example.bluechatpro.group;
+
+import com.example.bluechatpro.models.ChatMessage;
+
+// One message in a room, as every member stores it. Each device numbers the
+// entries it posts 1, 2, 3... so members can tell each other exactly which ranges
+// they hold. Entries sort by hybrid logical time, then by origin, so members
+// holding the same entries hold them in the same order.
+public final class RoomEntry implements Comparable<RoomEntry> {
+
+    public final long time;
+    public final String origin;
+    public final int seq;
+    public final ChatMessage message;
+
+    public RoomEntry(long time, String origin, int seq, ChatMessage message) {
+        this.time = time;
+        this.origin = origin;
+        this.seq = seq;
+        this.message = message;
+    }
+
+    @Override
+    public int compareTo(RoomEntry other) {
+        int c = Long.compare(time, other.time);
+        if (c == 0) {
+            c = origin.compareTo(other.origin);
+        }
+        return c != 0 ? c : Integer.compare(seq, other.seq);
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.bluechatpro.group;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+// The entries of one room in their agreed order, plus an index by origin and
+// number for answering "what comes after seq n from device d". Merging k entries
+// into a log of n costs O(k log n) whatever order they arrive in.
+// Not thread-safe; Room guards it.
+public class RoomLog {
+
+    private final TreeSet<RoomEntry> ordered = new TreeSet<>();
+    // Entry seq lives at index seq - 1
+    private final Map<String, ArrayList<RoomEntry>> byOrigin = new HashMap<>();
+    // Entries that arrived ahead of a gap in their origin's numbering
+    private final Map<String, TreeMap<Integer, RoomEntry>> early = new HashMap<>();
+
+    public int size() {
+        return ordered.size();
+    }
+
+    // Highest n such that entries 1..n from origin are all here
+    public int highWater(String origin) {
+        ArrayList<RoomEntry> entries = byOrigin.get(origin);
+        return entries != null ? entries.size() : 0;
+    }
+
+    public Map<String, Integer> versionVector() {
+        Map<String, Integer> vector = new HashMap<>();
+        for (Map.Entry<String, ArrayList<RoomEntry>> origin : byOrigin.entrySet()) {
+            vector.put(origin.getKey(), origin.getValue().size());
+        }
+        return vector;
+    }
+
+    // Add entries from anywhere. Returns the ones that were new, each origin's in
+    // number order; duplicates are dropped, and an entry after a gap waits for it.
+    public List<RoomEntry> merge(Collection<RoomEntry> entries) {
+        List<RoomEntry> added = new ArrayList<>();
+        for (RoomEntry entry : entries) {
+            ArrayList<RoomEntry> origin = byOrigin.get(entry.origin);
+            if (origin == null) {
+                origin = new ArrayList<>();
+                byOrigin.put(entry.origin, origin);
+            }
+            if (entry.seq <= origin.size()) {
+                continue;
+            }
+            if (entry.seq > origin.size() + 1) {
+                TreeMap<Integer, RoomEntry> waiting = early.get(entry.origin);
+                if (waiting == null) {
+                    waiting = new TreeMap<>();
+                    early.put(entry.origin, waiting);
+                }
+                waiting.put(entry.seq, entry);
+                continue;
+            }
+
+            accept(origin, entry, added);
+            TreeMap<Integer, RoomEntry> waiting = early.get(entry.origin);
+            while (waiting != null && !waiting.isEmpty() && waiting.firstKey() <= origin.size() + 1) {
+                RoomEntry next = waiting.pollFirstEntry().getValue();
+                if (next.seq == origin.size() + 1) {
+                    accept(origin, next, added);
+                }
+            }
+        }
+        return added;
+    }
+
+    // Up to max entries that a member holding the given version vector lacks,
+    // oldest first. Each origin's missing range is already in order, so this is
+    // a k-way merge of ranges rather than a scan of the log.
+    public List<RoomEntry> missing(Map<String, Integer> theirs, int max) {
+        PriorityQueue<Cursor> cursors = new PriorityQueue<>();
+        for (Map.Entry<String, ArrayList<RoomEntry>> origin : byOrigin.entrySet()) {
+            Integer seen = theirs.get(origin.getKey());
+            int from = seen != null ? seen : 0;
+            if (from < origin.getValue().size()) {
+                cursors.add(new Cursor(origin.getValue(), from));
+            }
+        }
+
+        List<RoomEntry> missing = new ArrayList<>();
+        while (missing.size() < max && !cursors.isEmpty()) {
+            Cursor cursor = cursors.poll();
+            missing.add(cursor.current());
+            if (++cursor.index < cursor.entries.size()) {
+                cursors.add(cursor);
+            }
+        }
+        return missing;
+    }
+
+    // Snapshot of the whole log in order
+    public List<RoomEntry> entries() {
+        return new ArrayList<>(ordered);
+    }
+
+    private void accept(ArrayList<RoomEntry> origin, RoomEntry entry, List<RoomEntry> added) {
+        origin.add(entry);
+        ordered.add(entry);
+        added.add(entry);
+    }
+
+    private static final class Cursor implements Comparable<Cursor> {
+        final List<RoomEntry> entries;
+        int index;
+
+        Cursor(List<RoomEntry> entries, int index) {
+            this.entries = entries;
+            this.index = index;
+        }
+
+        RoomEntry current() {
+            return entries.get(index);
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            return current().compareTo(other.current());
+        }
+    }
+}
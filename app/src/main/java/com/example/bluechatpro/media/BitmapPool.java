@@ -0,0 +1,58 @@
+package com.example.bluechatpro.media;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Bitmaps no longer shown or cached, kept so the next decode can write into one of
+// them (BitmapFactory.Options.inBitmap) instead of allocating a new pixel buffer.
+// Shared between the main thread and decoder threads.
+class BitmapPool {
+
+    private final long maxBytes;
+    private final List<Bitmap> bitmaps = new ArrayList<>();
+    private long bytes;
+
+    BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized void put(Bitmap bitmap) {
+        if (!bitmap.isMutable() || bitmap.isRecycled()) {
+            return;
+        }
+        int size = bitmap.getAllocationByteCount();
+        if (size > maxBytes) {
+            return;
+        }
+        // Make room by dropping the oldest entries
+        while (bytes + size > maxBytes && !bitmaps.isEmpty()) {
+            bytes -= bitmaps.remove(0).getAllocationByteCount();
+        }
+        bitmaps.add(bitmap);
+        bytes += size;
+    }
+
+    // Smallest pooled bitmap whose buffer can hold byteCount bytes, or null
+    synchronized Bitmap get(int byteCount) {
+        int best = -1;
+        for (int i = 0; i < bitmaps.size(); i++) {
+            int size = bitmaps.get(i).getAllocationByteCount();
+            if (size >= byteCount && (best < 0 || size < bitmaps.get(best).getAllocationByteCount())) {
+                best = i;
+            }
+        }
+        if (best < 0) {
+            return null;
+        }
+        Bitmap bitmap = bitmaps.remove(best);
+        bytes -= bitmap.getAllocationByteCount();
+        return bitmap;
+    }
+
+    synchronized void clear() {
+        bitmaps.clear();
+        bytes = 0;
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.bluechatpro.media;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// Prepares a picked image for sending: downscaled to at most MAX_EDGE pixels and
+// re-encoded as JPEG, so a camera photo costs a few hundred KB on the link
+// instead of several MB. Runs off the main thread.
+public final class ImageImporter {
+
+    public static final int MAX_EDGE = 1600;
+    private static final int JPEG_QUALITY = 85;
+
+    private ImageImporter() {}
+
+    public static void importImage(ContentResolver resolver, Uri uri, File target) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream in = resolver.openInputStream(uri)) {
+            if (in == null) {
+                throw new IOException("Cannot open " + uri);
+            }
+            BitmapFactory.decodeStream(in, null, options);
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Not an image");
+        }
+
+        // Sample down to within 2x of the limit, then scale exactly
+        int longEdge = Math.max(options.outWidth, options.outHeight);
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = ThumbnailLoader.calculateInSampleSize(longEdge, longEdge, MAX_EDGE);
+
+        Bitmap bitmap;
+        try (InputStream in = resolver.openInputStream(uri)) {
+            bitmap = BitmapFactory.decodeStream(in, null, options);
+        }
+        if (bitmap == null) {
+            throw new IOException("Could not decode image");
+        }
+
+        longEdge = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (longEdge > MAX_EDGE) {
+            float scale = (float) MAX_EDGE / longEdge;
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap, Math.round(bitmap.getWidth() * scale),
+                    Math.round(bitmap.getHeight() * scale), true);
+            bitmap.recycle();
+            bitmap = scaled;
+        }
+
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(target))) {
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out)) {
+                throw new IOException("Could not encode image");
+            }
+        } finally {
+            bitmap.recycle();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.bluechatpro.media;
+
+import java.util.TreeMap;
+
+// Smooths the arrival of voice frames for playback. Playback starts once enough
+// frames are queued to ride out the measured arrival jitter; when the queue runs
+// dry it pauses until it has refilled. Frames that arrive after their turn are
+// dropped, and the oldest frames are dropped if the queue grows past maxDepth,
+// so a stall on the link never turns into lasting delay.
+// The reader thread calls put(), the playback thread poll().
+public class JitterBuffer {
+
+    private final int frameMillis;
+    private final int minDepth;
+    private final int maxDepth;
+    private final TreeMap<Integer, short[]> frames = new TreeMap<>();
+
+    private int nextSequence;
+    private boolean playing;
+    private boolean ended;
+
+    // Interarrival jitter in ms, scaled by 16 (RFC 3550, section 6.4.1)
+    private int jitter;
+    private long lastArrival = -1;
+    private int lastArrivalSequence;
+
+    private int underruns;
+    private int dropped;
+
+    public JitterBuffer(int frameMillis, int minDepth, int maxDepth) {
+        this.frameMillis = frameMillis;
+        this.minDepth = minDepth;
+        this.maxDepth = maxDepth;
+    }
+
+    public synchronized void put(int sequence, short[] samples, long arrivalMillis) {
+        if (lastArrival >= 0) {
+            long expected = (long) (sequence - lastArrivalSequence) * frameMillis;
+            long d = Math.abs((arrivalMillis - lastArrival) - expected);
+            jitter += (int) Math.min(d, 10_000) - ((jitter + 8) >> 4);
+        }
+        lastArrival = arrivalMillis;
+        lastArrivalSequence = sequence;
+
+        if (sequence < nextSequence || ended) {
+            dropped++;
+            return;
+        }
+        frames.put(sequence, samples);
+        while (frames.size() > maxDepth) {
+            nextSequence = frames.pollFirstEntry().getKey() + 1;
+            dropped++;
+        }
+    }
+
+    // No more frames will arrive; whatever is queued still plays
+    public synchronized void end() {
+        ended = true;
+    }
+
+    // The next frame to play, or null when there is nothing to play right now
+    public synchronized short[] poll() {
+        if (!playing) {
+            if (frames.isEmpty() || (frames.size() < getTargetDepth() && !ended)) {
+                return null;
+            }
+            playing = true;
+        }
+        if (frames.isEmpty()) {
+            if (!ended) {
+                playing = false;
+                underruns++;
+            }
+            return null;
+        }
+
+        // A gap in the sequence is skipped rather than waited for
+        short[] samples = frames.remove(nextSequence);
+        if (samples == null) {
+            dropped++;
+        }
+        nextSequence++;
+        return samples;
+    }
+
+    public synchronized boolean isFinished() {
+        return ended && frames.isEmpty();
+    }
+
+    // Frames to queue before playing: enough to cover twice the jitter
+    public synchronized int getTargetDepth() {
+        int cover = ((jitter >> 4) * 2 + frameMillis - 1) / frameMillis;
+        return Math.max(minDepth, Math.min(maxDepth, minDepth + cover));
+    }
+
+    public synchronized int getJitterMillis() {
+        return jitter >> 4;
+    }
+
+    public synchronized int getUnderruns() {
+        return underruns;
+    }
+
+    public synchronized int getDropped() {
+        return dropped;
+    }
+}
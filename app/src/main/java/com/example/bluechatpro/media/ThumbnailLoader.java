@@ -0,0 +1,196 @@
+package com.example.bluechatpro.media;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Loads downscaled image thumbnails into ImageViews.
+// Decoding runs on background threads: image bounds are read first, then the image
+// is decoded with the power-of-two inSampleSize that still covers the target size.
+// Results live in an LRU cache sized in bytes. A bitmap that leaves the cache and is
+// no longer shown goes to a pool, and later decodes reuse its memory through inBitmap.
+// Call load() and release() on the main thread only.
+public class ThumbnailLoader {
+
+    private static final String TAG = "ThumbnailLoader";
+
+    private static final long MAX_CACHE_BYTES = 32L * 1024 * 1024;
+
+    private final LruCache<String, Bitmap> cache;
+    private final BitmapPool pool;
+    private final ExecutorService decoder = Executors.newFixedThreadPool(2);
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // How many views show each bitmap, and evicted bitmaps still on screen
+    private final Map<Bitmap, Integer> shown = new IdentityHashMap<>();
+    private final Set<Bitmap> evictedWhileShown = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // What an ImageView is showing or waiting for, kept in its tag
+    private static class Request {
+        final String key;
+        Future<?> decode;
+        Bitmap bitmap;
+
+        Request(String key) {
+            this.key = key;
+        }
+    }
+
+    public ThumbnailLoader() {
+        // An eighth of the heap, which keeps 2 GB devices well clear of OOM
+        long cacheBytes = Math.min(MAX_CACHE_BYTES, Runtime.getRuntime().maxMemory() / 8);
+        pool = new BitmapPool(cacheBytes / 4);
+        cache = new LruCache<String, Bitmap>((int) cacheBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                if (shown.containsKey(oldValue)) {
+                    evictedWhileShown.add(oldValue);
+                } else {
+                    pool.put(oldValue);
+                }
+            }
+        };
+    }
+
+    public void load(File file, ImageView view, int targetSize) {
+        String key = file.getName() + "@" + targetSize;
+        Object tag = view.getTag();
+        if (tag instanceof Request && ((Request) tag).key.equals(key)) {
+            return;
+        }
+        release(view);
+
+        Request request = new Request(key);
+        view.setTag(request);
+
+        Bitmap cached = cache.get(key);
+        if (cached != null) {
+            show(view, request, cached);
+            return;
+        }
+
+        view.setImageDrawable(null);
+        request.decode = decoder.submit(() -> {
+            Bitmap bitmap = decode(file, targetSize);
+            if (bitmap == null) {
+                return;
+            }
+            mainHandler.post(() -> {
+                Bitmap result = cache.get(key);
+                if (result == null) {
+                    cache.put(key, bitmap);
+                    result = bitmap;
+                } else {
+                    // Another view decoded the same thumbnail first
+                    pool.put(bitmap);
+                }
+                if (view.getTag() == request) {
+                    show(view, request, result);
+                }
+            });
+        });
+    }
+
+    // The view no longer needs its image, e.g. its holder was recycled
+    public void release(ImageView view) {
+        Object tag = view.getTag();
+        if (!(tag instanceof Request)) {
+            return;
+        }
+        Request request = (Request) tag;
+        view.setTag(null);
+        view.setImageDrawable(null);
+        if (request.decode != null) {
+            request.decode.cancel(false);
+        }
+
+        Bitmap bitmap = request.bitmap;
+        if (bitmap == null) {
+            return;
+        }
+        Integer count = shown.get(bitmap);
+        if (count == null || count <= 1) {
+            shown.remove(bitmap);
+            if (evictedWhileShown.remove(bitmap)) {
+                pool.put(bitmap);
+            }
+        } else {
+            shown.put(bitmap, count - 1);
+        }
+    }
+
+    // Hook for Application.onTrimMemory
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            cache.evictAll();
+            pool.clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            cache.trimToSize(cache.maxSize() / 2);
+            pool.clear();
+        }
+    }
+
+    private void show(ImageView view, Request request, Bitmap bitmap) {
+        request.bitmap = bitmap;
+        Integer count = shown.get(bitmap);
+        shown.put(bitmap, count == null ? 1 : count + 1);
+        view.setImageBitmap(bitmap);
+    }
+
+    private Bitmap decode(File file, int targetSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        int sampleSize = calculateInSampleSize(options.outWidth, options.outHeight, targetSize);
+        int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        int height = (options.outHeight + sampleSize - 1) / sampleSize;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+        options.inBitmap = pool.get(width * height * 4);
+        try {
+            return BitmapFactory.decodeFile(file.getPath(), options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap did not fit this image after all
+            options.inBitmap = null;
+            return BitmapFactory.decodeFile(file.getPath(), options);
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "Out of memory decoding " + file.getName());
+            mainHandler.post(cache::evictAll);
+            return null;
+        }
+    }
+
+    // Largest power of two that keeps both sides at least targetSize
+    static int calculateInSampleSize(int width, int height, int targetSize) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= targetSize && height / (sampleSize * 2) >= targetSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+}
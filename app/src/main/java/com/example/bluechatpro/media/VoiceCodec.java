@@ -0,0 +1,124 @@
+package com.example.bluechatpro.media;
+
+import com.example.bluechatpro.protocol.Frame;
+
+import java.io.IOException;
+
+// Voice is sent as 20 ms frames of 8 kHz mono audio, IMA ADPCM coded at 4 bits a
+// sample (32 kbit/s). Every packet starts with the coder state, so each one
+// decodes on its own and a dropped packet costs only its own 20 ms.
+// Packet: [seq:4][predictor:2][index:1][samples: two per byte, low nibble first]
+public class VoiceCodec {
+
+    public static final int SAMPLE_RATE = 8000;
+    public static final int FRAME_MILLIS = 20;
+    public static final int FRAME_SAMPLES = SAMPLE_RATE * FRAME_MILLIS / 1000;
+    public static final int HEADER_SIZE = 7;
+    public static final int MAX_PACKET_SIZE = HEADER_SIZE + FRAME_SAMPLES / 2;
+
+    private static final int[] INDEX_TABLE = {
+            -1, -1, -1, -1, 2, 4, 6, 8,
+            -1, -1, -1, -1, 2, 4, 6, 8
+    };
+
+    private static final int[] STEP_TABLE = {
+            7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+            50, 55, 60, 66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230,
+            253, 279, 307, 337, 371, 408, 449, 494, 544, 598, 658, 724, 796, 876, 963,
+            1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066, 2272, 2499, 2749, 3024, 3327,
+            3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487,
+            12635, 13899, 15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+    };
+
+    // Encoder state carried from one packet to the next
+    private int predictor;
+    private int index;
+    private int sequence;
+
+    // Encode up to FRAME_SAMPLES samples into one packet; returns the packet length.
+    // An odd trailing sample is dropped.
+    public int encode(short[] pcm, int count, byte[] packet) {
+        count = Math.min(count, FRAME_SAMPLES) & ~1;
+        Frame.writeInt(packet, 0, sequence++);
+        packet[4] = (byte) (predictor >> 8);
+        packet[5] = (byte) predictor;
+        packet[6] = (byte) index;
+
+        int p = HEADER_SIZE;
+        for (int i = 0; i < count; i += 2) {
+            int low = encodeSample(pcm[i]);
+            int high = encodeSample(pcm[i + 1]);
+            packet[p++] = (byte) (low | (high << 4));
+        }
+        return p;
+    }
+
+    public static int sequenceOf(byte[] packet, int offset) {
+        return Frame.readInt(packet, offset);
+    }
+
+    // Decode one packet into pcm; returns the number of samples
+    public static int decode(byte[] packet, int offset, int length, short[] pcm) throws IOException {
+        if (length < HEADER_SIZE || length > MAX_PACKET_SIZE) {
+            throw new IOException("Invalid voice packet length: " + length);
+        }
+        int predictor = (short) (((packet[offset + 4] & 0xFF) << 8) | (packet[offset + 5] & 0xFF));
+        int index = packet[offset + 6] & 0xFF;
+        if (index >= STEP_TABLE.length) {
+            throw new IOException("Invalid voice coder state");
+        }
+
+        int n = 0;
+        for (int p = offset + HEADER_SIZE; p < offset + length; p++) {
+            for (int shift = 0; shift <= 4; shift += 4) {
+                int code = (packet[p] >> shift) & 0x0F;
+                predictor = clamp(predictor + delta(code, STEP_TABLE[index]));
+                index = clampIndex(index + INDEX_TABLE[code]);
+                pcm[n++] = (short) predictor;
+            }
+        }
+        return n;
+    }
+
+    private int encodeSample(int sample) {
+        int step = STEP_TABLE[index];
+        int diff = sample - predictor;
+        int code = 0;
+        if (diff < 0) {
+            code = 8;
+            diff = -diff;
+        }
+        if (diff >= step) {
+            code |= 4;
+            diff -= step;
+        }
+        if (diff >= step >> 1) {
+            code |= 2;
+            diff -= step >> 1;
+        }
+        if (diff >= step >> 2) {
+            code |= 1;
+        }
+
+        // Track exactly what the decoder will reconstruct
+        predictor = clamp(predictor + delta(code, step));
+        index = clampIndex(index + INDEX_TABLE[code]);
+        return code;
+    }
+
+    private static int delta(int code, int step) {
+        int delta = step >> 3;
+        if ((code & 4) != 0) delta += step;
+        if ((code & 2) != 0) delta += step >> 1;
+        if ((code & 1) != 0) delta += step >> 2;
+        return (code & 8) != 0 ? -delta : delta;
+    }
+
+    private static int clamp(int sample) {
+        return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+    }
+
+    private static int clampIndex(int index) {
+        return Math.max(0, Math.min(STEP_TABLE.length - 1, index));
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.bluechatpro.media;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.util.Log;
+
+import com.example.bluechatpro.storage.ImageStore;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+// Plays voice. A live stream is decoded as packets arrive and queued in a jitter
+// buffer; a playback thread feeds AudioTrack one frame at a time, and the
+// blocking write paces it at the real-time rate. While the buffer fills the
+// track gets silence, so it never starves.
+// Stored clips (see appendToClip) are played straight from the file.
+public class VoicePlayer {
+
+    private static final String TAG = "VoicePlayer";
+
+    // 60 ms to 400 ms of queued audio
+    private static final int MIN_DEPTH = 3;
+    private static final int MAX_DEPTH = 20;
+
+    private final JitterBuffer jitter =
+            new JitterBuffer(VoiceCodec.FRAME_MILLIS, MIN_DEPTH, MAX_DEPTH);
+    private volatile boolean stopped;
+
+    public void start() {
+        new Thread(this::playLive, "VoicePlayer").start();
+    }
+
+    // Called on the connection's reader thread for each incoming packet
+    public void offer(byte[] packet, int offset, int length) throws IOException {
+        short[] samples = new short[VoiceCodec.FRAME_SAMPLES];
+        int n = VoiceCodec.decode(packet, offset, length, samples);
+        if (n > 0) {
+            jitter.put(VoiceCodec.sequenceOf(packet, offset),
+                    n == samples.length ? samples : Arrays.copyOf(samples, n),
+                    System.currentTimeMillis());
+        }
+    }
+
+    // The stream is complete; queued audio still plays out
+    public void end() {
+        jitter.end();
+    }
+
+    public void stop() {
+        stopped = true;
+        jitter.end();
+    }
+
+    // Stored clips are a sequence of [length:2][packet] records
+    public static void appendToClip(ImageStore.Receiver clip, byte[] packet, int offset, int length)
+            throws IOException {
+        byte[] header = {(byte) (length >> 8), (byte) length};
+        clip.write(header, 0, header.length);
+        clip.write(packet, offset, length);
+    }
+
+    public static void play(File clip) {
+        new Thread(() -> playClip(clip), "VoicePlayer").start();
+    }
+
+    private void playLive() {
+        AudioTrack track = openTrack();
+        if (track == null) {
+            return;
+        }
+        short[] silence = new short[VoiceCodec.FRAME_SAMPLES];
+        try {
+            track.play();
+            while (!stopped) {
+                short[] samples = jitter.poll();
+                if (samples == null) {
+                    if (jitter.isFinished()) {
+                        break;
+                    }
+                    samples = silence;
+                }
+                track.write(samples, 0, samples.length);
+            }
+            Log.d(TAG, "Voice stream done, jitter " + jitter.getJitterMillis() + " ms, "
+                    + jitter.getUnderruns() + " underruns, " + jitter.getDropped() + " dropped");
+        } finally {
+            track.stop();
+            track.release();
+        }
+    }
+
+    private static void playClip(File clip) {
+        AudioTrack track = openTrack();
+        if (track == null) {
+            return;
+        }
+        byte[] packet = new byte[VoiceCodec.MAX_PACKET_SIZE];
+        short[] samples = new short[VoiceCodec.FRAME_SAMPLES];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(clip)))) {
+            track.play();
+            while (true) {
+                int length;
+                try {
+                    length = in.readUnsignedShort();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length > packet.length) {
+                    throw new IOException("Corrupt voice clip");
+                }
+                in.readFully(packet, 0, length);
+                int n = VoiceCodec.decode(packet, 0, length, samples);
+                track.write(samples, 0, n);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not play " + clip.getName(), e);
+        } finally {
+            track.stop();
+            track.release();
+        }
+    }
+
+    private static AudioTrack openTrack() {
+        int minBuffer = AudioTrack.getMinBufferSize(VoiceCodec.SAMPLE_RATE,
+                AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        AudioTrack track = new AudioTrack(AudioManager.STREAM_MUSIC, VoiceCodec.SAMPLE_RATE,
+                AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT,
+                Math.max(minBuffer, VoiceCodec.FRAME_SAMPLES * 2 * 2), AudioTrack.MODE_STREAM);
+        if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+            Log.e(TAG, "Audio output unavailable");
+            track.release();
+            return null;
+        }
+        return track;
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.bluechatpro.media;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.util.Log;
+
+// Push-to-talk capture. Records 8 kHz mono PCM and hands out one encoded packet
+// per 20 ms frame while recording is still going, so the peer can start playing
+// almost immediately. The stream always ends with an empty packet marked last.
+// Needs the RECORD_AUDIO permission.
+public class VoiceRecorder {
+
+    private static final String TAG = "VoiceRecorder";
+
+    public static final long MAX_DURATION_MS = 2 * 60 * 1000;
+
+    public interface Listener {
+        // Called on the recording thread; the packet is only valid during the call
+        void onPacket(byte[] packet, int length, boolean last);
+    }
+
+    private volatile boolean stopped;
+    private Thread thread;
+
+    public void start(Listener listener) {
+        stopped = false;
+        thread = new Thread(() -> record(listener), "VoiceRecorder");
+        thread.start();
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    public boolean isRecording() {
+        return thread != null && thread.isAlive();
+    }
+
+    private void record(Listener listener) {
+        VoiceCodec codec = new VoiceCodec();
+        short[] pcm = new short[VoiceCodec.FRAME_SAMPLES];
+        byte[] packet = new byte[VoiceCodec.MAX_PACKET_SIZE];
+
+        AudioRecord recorder = null;
+        try {
+            int minBuffer = AudioRecord.getMinBufferSize(VoiceCodec.SAMPLE_RATE,
+                    AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+            recorder = new AudioRecord(MediaRecorder.AudioSource.VOICE_COMMUNICATION,
+                    VoiceCodec.SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT,
+                    Math.max(minBuffer, VoiceCodec.FRAME_SAMPLES * 2 * 4));
+            if (recorder.getState() != AudioRecord.STATE_INITIALIZED) {
+                Log.e(TAG, "Microphone unavailable");
+                return;
+            }
+
+            recorder.startRecording();
+            long maxFrames = MAX_DURATION_MS / VoiceCodec.FRAME_MILLIS;
+            for (long frame = 0; !stopped && frame < maxFrames; frame++) {
+                int n = readFrame(recorder, pcm);
+                if (n <= 0) {
+                    break;
+                }
+                listener.onPacket(packet, codec.encode(pcm, n, packet), false);
+            }
+        } catch (SecurityException e) {
+            Log.e(TAG, "SecurityException when recording", e);
+        } finally {
+            if (recorder != null) {
+                if (recorder.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) {
+                    recorder.stop();
+                }
+                recorder.release();
+            }
+            listener.onPacket(packet, codec.encode(pcm, 0, packet), true);
+        }
+    }
+
+    private static int readFrame(AudioRecord recorder, short[] pcm) {
+        int read = 0;
+        while (read < pcm.length) {
+            int n = recorder.read(pcm, read, pcm.length - read);
+            if (n <= 0) {
+                break;
+            }
+            read += n;
+        }
+        return read;
+    }
+}
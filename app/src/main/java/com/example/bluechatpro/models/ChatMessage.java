@@ -3,16 +3,20 @@ package com.example.bluechatpro.models;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
+import java.util.UUID;
 
 public class ChatMessage {
     private String messageId;
     private String content;
-    private String senderName;
-    private String senderAddress;
+    // Shared by every message from the same device
+    private Peer sender;
     private boolean isSent; // true if sent by current user
     private long timestamp;
     private MessageStatus status; // SENT, DELIVERED, READ
     private MessageType type; // TEXT, IMAGE, FILE
+    // Set while still encoded, for messages read from history
+    private volatile Encoded encodedHeader;
+    private volatile Encoded encodedContent;
 
     public enum MessageStatus {
         SENDING, SENT, DELIVERED, READ, FAILED
@@ -22,55 +26,113 @@ public class ChatMessage {
         TEXT, IMAGE, FILE, VOICE
     }
 
+    // A message still in its stored form. Until a field is asked for, the message
+    // costs little more than its encoded bytes; then the header fields are decoded
+    // together, and the content on its own, normally when the message is bound to
+    // a view. Decoded fields are kept and the encoded form let go.
+    public interface Encoded {
+        // Set everything but the content
+        void decodeHeader(ChatMessage into);
+
+        String decodeContent();
+    }
+
     // Constructor with all parameters
-    public ChatMessage(String content, String senderName, String senderAddress, boolean isSent) {
+    public ChatMessage(String content, Peer sender, boolean isSent) {
         this.messageId = generateMessageId();
         this.content = content;
-        this.senderName = senderName;
-        this.senderAddress = senderAddress;
+        this.sender = sender;
         this.isSent = isSent;
         this.timestamp = System.currentTimeMillis();
         this.status = isSent ? MessageStatus.SENT : MessageStatus.DELIVERED;
         this.type = MessageType.TEXT;
     }
 
-    // Empty constructor for Firebase or serialization
+    // Empty constructor for serialization (see protocol.ChatMessageCodec)
     public ChatMessage() {
         this.timestamp = System.currentTimeMillis();
     }
 
+    // From a sender outside any PeerTable
+    public ChatMessage(String content, String senderName, String senderAddress, boolean isSent) {
+        this(content, new Peer(senderAddress, senderName), isSent);
+    }
+
+    // Backed by an encoded record, decoded on first access
+    public ChatMessage(Encoded encoded) {
+        this.encodedHeader = encoded;
+        this.encodedContent = encoded;
+    }
+
+    // Random, so two messages never share an id: acks, sync and duplicate
+    // detection all go by it, on both devices
     private String generateMessageId() {
-        return "MSG_" + System.currentTimeMillis() + "_" + (int)(Math.random() * 1000);
+        return "MSG_" + UUID.randomUUID();
     }
 
     // Getters
-    public String getMessageId() { return messageId; }
-    public String getContent() { return content; }
-    public String getSenderName() { return senderName; }
-    public String getSenderAddress() { return senderAddress; }
-    public boolean isSent() { return isSent; }
-    public long getTimestamp() { return timestamp; }
-    public MessageStatus getStatus() { return status; }
-    public MessageType getType() { return type; }
+    public String getMessageId() { decodeHeader(); return messageId; }
+    public Peer getSender() { decodeHeader(); return sender; }
+    public String getSenderName() { Peer sender = getSender(); return sender != null ? sender.getName() : null; }
+    public String getSenderAddress() { Peer sender = getSender(); return sender != null ? sender.getAddress() : null; }
+    public boolean isSent() { decodeHeader(); return isSent; }
+    public long getTimestamp() { decodeHeader(); return timestamp; }
+    public MessageStatus getStatus() { decodeHeader(); return status; }
+    public MessageType getType() { decodeHeader(); return type; }
+
+    public String getContent() {
+        if (encodedContent != null) {
+            synchronized (this) {
+                Encoded encoded = encodedContent;
+                if (encoded != null) {
+                    content = encoded.decodeContent();
+                    encodedContent = null;
+                }
+            }
+        }
+        return content;
+    }
 
     // Formatted time
     public String getFormattedTime() {
         SimpleDateFormat sdf = new SimpleDateFormat("HH:mm", Locale.getDefault());
-        return sdf.format(new Date(timestamp));
+        return sdf.format(new Date(getTimestamp()));
     }
 
     public String getFormattedDate() {
         SimpleDateFormat sdf = new SimpleDateFormat("MMM dd, yyyy", Locale.getDefault());
-        return sdf.format(new Date(timestamp));
+        return sdf.format(new Date(getTimestamp()));
     }
 
     // Setters
-    public void setMessageId(String messageId) { this.messageId = messageId; }
-    public void setContent(String content) { this.content = content; }
-    public void setSenderName(String senderName) { this.senderName = senderName; }
-    public void setSenderAddress(String senderAddress) { this.senderAddress = senderAddress; }
-    public void setSent(boolean sent) { isSent = sent; }
-    public void setTimestamp(long timestamp) { this.timestamp = timestamp; }
-    public void setStatus(MessageStatus status) { this.status = status; }
-    public void setType(MessageType type) { this.type = type; }
-}
\ No newline at end of file
+    public void setMessageId(String messageId) { decodeHeader(); this.messageId = messageId; }
+    public void setContent(String content) { encodedContent = null; this.content = content; }
+    public void setSender(Peer sender) { decodeHeader(); this.sender = sender; }
+    public void setSent(boolean sent) { decodeHeader(); isSent = sent; }
+    public void setTimestamp(long timestamp) { decodeHeader(); this.timestamp = timestamp; }
+    public void setStatus(MessageStatus status) { decodeHeader(); this.status = status; }
+    public void setType(MessageType type) { decodeHeader(); this.type = type; }
+
+    // Decoded into a scratch message and copied, so another thread never sees
+    // half the fields set
+    private void decodeHeader() {
+        if (encodedHeader == null) {
+            return;
+        }
+        synchronized (this) {
+            Encoded encoded = encodedHeader;
+            if (encoded == null) {
+                return;
+            }
+            ChatMessage header = new ChatMessage((Encoded) null);
+            encoded.decodeHeader(header);
+            messageId = header.messageId;
+            sender = header.sender;
+            isSent = header.isSent;
+            timestamp = header.timestamp;
+            status = header.status;
+            type = header.type;
+            encodedHeader = null;
+        }
+    }
+}
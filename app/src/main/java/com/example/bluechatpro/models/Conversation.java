@@ -0,0 +1,60 @@
+package com.example.bluechatpro.models;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+// Summary of the chat with one peer, as shown in the conversation list
+public class Conversation {
+    private String peerAddress;
+    private String peerName;
+    private String lastMessage;
+    private boolean lastSent; // true if the last message was ours
+    private long lastTimestamp;
+    private int unreadCount;
+    private int messageCount;
+
+    public Conversation(String peerAddress) {
+        this.peerAddress = peerAddress;
+    }
+
+    public Conversation(Conversation other) {
+        this.peerAddress = other.peerAddress;
+        this.peerName = other.peerName;
+        this.lastMessage = other.lastMessage;
+        this.lastSent = other.lastSent;
+        this.lastTimestamp = other.lastTimestamp;
+        this.unreadCount = other.unreadCount;
+        this.messageCount = other.messageCount;
+    }
+
+    // Getters
+    public String getPeerAddress() { return peerAddress; }
+    public String getPeerName() { return peerName; }
+    public String getLastMessage() { return lastMessage; }
+    public boolean isLastSent() { return lastSent; }
+    public long getLastTimestamp() { return lastTimestamp; }
+    public int getUnreadCount() { return unreadCount; }
+    public int getMessageCount() { return messageCount; }
+
+    // Name if we know it, otherwise the address
+    public String getDisplayName() {
+        return peerName != null ? peerName : peerAddress;
+    }
+
+    // Time for today's messages, date for older ones
+    public String getFormattedTime() {
+        long startOfDay = System.currentTimeMillis() - System.currentTimeMillis() % (24 * 60 * 60 * 1000L);
+        String pattern = lastTimestamp >= startOfDay ? "HH:mm" : "MMM dd";
+        SimpleDateFormat sdf = new SimpleDateFormat(pattern, Locale.getDefault());
+        return sdf.format(new Date(lastTimestamp));
+    }
+
+    // Setters
+    public void setPeerName(String peerName) { this.peerName = peerName; }
+    public void setLastMessage(String lastMessage) { this.lastMessage = lastMessage; }
+    public void setLastSent(boolean lastSent) { this.lastSent = lastSent; }
+    public void setLastTimestamp(long lastTimestamp) { this.lastTimestamp = lastTimestamp; }
+    public void setUnreadCount(int unreadCount) { this.unreadCount = unreadCount; }
+    public void setMessageCount(int messageCount) { this.messageCount = messageCount; }
+}
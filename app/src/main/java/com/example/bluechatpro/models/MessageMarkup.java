@@ -0,0 +1,140 @@
+package com.example.bluechatpro.models;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// What chat text shows beyond its characters: web links, @mentions, and emoji
+// written as :shortcodes:, which are replaced by the emoji itself. Parsing scans
+// the whole message with a regex, so it belongs on a worker thread; the result
+// is what a bubble is styled from.
+public final class MessageMarkup {
+
+    public static final int LINK = 1;
+    public static final int MENTION = 2;
+
+    // Links first, so an address like http://host/:x: stays one link. A
+    // shortcode's closing colon is only looked at, not matched, so when the name
+    // is not an emoji that colon can still open the next one, as in 10:30:wave:
+    private static final Pattern MARKUP = Pattern.compile(
+            "((?:https?://|www\\.)[^\\s<>\"]+)"
+                    + "|(?<![\\w@])(@[A-Za-z0-9_][A-Za-z0-9_.-]{0,31})"
+                    + "|(:[a-z0-9_+-]{1,30})(?=:)");
+
+    // Trailing punctuation belongs to the sentence, not the link or name
+    private static final String TRAILING = ".,;:!?)'\"";
+
+    private static final Map<String, String> EMOJI = new HashMap<>();
+
+    static {
+        EMOJI.put(":smile:", "😄");
+        EMOJI.put(":grin:", "😁");
+        EMOJI.put(":joy:", "😂");
+        EMOJI.put(":wink:", "😉");
+        EMOJI.put(":sunglasses:", "😎");
+        EMOJI.put(":thinking:", "🤔");
+        EMOJI.put(":cry:", "😢");
+        EMOJI.put(":heart:", "❤️");
+        EMOJI.put(":thumbsup:", "👍");
+        EMOJI.put(":+1:", "👍");
+        EMOJI.put(":thumbsdown:", "👎");
+        EMOJI.put(":wave:", "👋");
+        EMOJI.put(":clap:", "👏");
+        EMOJI.put(":pray:", "🙏");
+        EMOJI.put(":ok_hand:", "👌");
+        EMOJI.put(":fire:", "🔥");
+        EMOJI.put(":tada:", "🎉");
+        EMOJI.put(":rocket:", "🚀");
+        EMOJI.put(":eyes:", "👀");
+        EMOJI.put(":100:", "💯");
+    }
+
+    // A link or mention in the parsed text; target is the address to open or
+    // the name mentioned
+    public static final class Span {
+        public final int kind;
+        public final int start;
+        public final int end;
+        public final String target;
+
+        Span(int kind, int start, int end, String target) {
+            this.kind = kind;
+            this.start = start;
+            this.end = end;
+            this.target = target;
+        }
+    }
+
+    public final String text;
+    public final List<Span> spans;
+
+    private MessageMarkup(String text, List<Span> spans) {
+        this.text = text;
+        this.spans = spans;
+    }
+
+    public boolean isPlain() {
+        return spans.isEmpty();
+    }
+
+    public static MessageMarkup parse(String content) {
+        if (content == null || !mayHaveMarkup(content)) {
+            return new MessageMarkup(content, Collections.emptyList());
+        }
+        StringBuilder text = new StringBuilder(content.length());
+        List<Span> spans = new ArrayList<>();
+        Matcher matcher = MARKUP.matcher(content);
+        int copied = 0;
+        while (matcher.find()) {
+            int start = matcher.start();
+            int end = matcher.end();
+            if (matcher.group(3) != null) {
+                // Starting on the closing colon of the emoji before it
+                if (start < copied) {
+                    continue;
+                }
+                String emoji = EMOJI.get(matcher.group(3) + ":");
+                if (emoji == null) {
+                    continue;
+                }
+                text.append(content, copied, start).append(emoji);
+                copied = end + 1;
+                continue;
+            }
+            while (end > start + 1 && TRAILING.indexOf(content.charAt(end - 1)) >= 0) {
+                end--;
+            }
+            text.append(content, copied, start);
+            String target;
+            int kind;
+            if (matcher.group(1) != null) {
+                kind = LINK;
+                target = content.substring(start, end);
+                if (target.startsWith("www.")) {
+                    target = "http://" + target;
+                }
+            } else {
+                kind = MENTION;
+                target = content.substring(start + 1, end);
+            }
+            spans.add(new Span(kind, text.length(), text.length() + end - start, target));
+            text.append(content, start, end);
+            copied = end;
+        }
+        if (copied == 0) {
+            return new MessageMarkup(content, spans);
+        }
+        text.append(content, copied, content.length());
+        return new MessageMarkup(text.toString(), spans);
+    }
+
+    // Most messages have nothing to parse, which a look for the characters every
+    // piece of markup contains tells without the regex
+    private static boolean mayHaveMarkup(String content) {
+        return content.indexOf(':') >= 0 || content.indexOf('@') >= 0 || content.contains("www.");
+    }
+}
@@ -0,0 +1,137 @@
+package com.example.bluechatpro.models;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// The messages shown for one conversation, oldest first. Past the capacity the
+// oldest leave the window; they stay in history. Every change is numbered and
+// described, so a list that saw each one can animate it, and a list that missed
+// some (e.g. while its activity was being recreated) knows to rebind everything.
+// Main thread only.
+public class MessageWindow {
+
+    public interface Listener {
+        void onChanged(Change change);
+    }
+
+    public static final class Change {
+        public static final int INSERTED = 1;
+        public static final int CHANGED = 2;
+        public static final int REMOVED = 3;
+        public static final int RESET = 4;
+
+        public final int version;
+        public final int kind;
+        public final int position;
+        public final int count;
+
+        Change(int version, int kind, int position, int count) {
+            this.version = version;
+            this.kind = kind;
+            this.position = position;
+            this.count = count;
+        }
+    }
+
+    private final int capacity;
+    private final List<ChatMessage> messages = new ArrayList<>();
+    private final List<ChatMessage> view = Collections.unmodifiableList(messages);
+    private Listener listener;
+    private int version;
+
+    public MessageWindow(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // Live read-only view, suitable for an adapter
+    public List<ChatMessage> getMessages() {
+        return view;
+    }
+
+    public int size() {
+        return messages.size();
+    }
+
+    public ChatMessage get(int position) {
+        return messages.get(position);
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    // Earlier messages loaded from history go in front
+    public void prepend(List<ChatMessage> earlier) {
+        int room = capacity - messages.size();
+        if (room <= 0 || earlier.isEmpty()) {
+            return;
+        }
+        List<ChatMessage> kept = earlier.size() > room
+                ? earlier.subList(earlier.size() - room, earlier.size()) : earlier;
+        messages.addAll(0, kept);
+        notify(Change.INSERTED, 0, kept.size());
+    }
+
+    public int append(ChatMessage message) {
+        messages.add(message);
+        notify(Change.INSERTED, messages.size() - 1, 1);
+        return trim(messages.size() - 1);
+    }
+
+    // Keep the window ordered by time even when the two clocks disagree
+    public int insertByTime(ChatMessage message) {
+        int position = messages.size();
+        while (position > 0 && messages.get(position - 1).getTimestamp() > message.getTimestamp()) {
+            position--;
+        }
+        messages.add(position, message);
+        notify(Change.INSERTED, position, 1);
+        return trim(position);
+    }
+
+    // The message at position was modified in place
+    public void changed(int position) {
+        notify(Change.CHANGED, position, 1);
+    }
+
+    public void clear() {
+        messages.clear();
+        notify(Change.RESET, 0, 0);
+    }
+
+    // Newest message we sent with this instance or id, or -1
+    public int findSent(ChatMessage sent) {
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            ChatMessage message = messages.get(i);
+            if (message == sent || (message.isSent()
+                    && sent.getMessageId() != null
+                    && sent.getMessageId().equals(message.getMessageId()))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Drop the oldest messages past capacity; returns where position ended up
+    private int trim(int position) {
+        int excess = messages.size() - capacity;
+        if (excess <= 0) {
+            return position;
+        }
+        messages.subList(0, excess).clear();
+        notify(Change.REMOVED, 0, excess);
+        return position - excess;
+    }
+
+    private void notify(int kind, int position, int count) {
+        version++;
+        if (listener != null) {
+            listener.onChanged(new Change(version, kind, position, count));
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.bluechatpro.models;
+
+// Who a message is from: a device by its Bluetooth address, and the name it goes
+// by. A PeerTable keeps one instance per address, so every message from a device
+// shares it and a rename is one field write. Stored records carry the table's id
+// for the peer instead of the name and address.
+public final class Peer {
+
+    // Not numbered by a table (yet)
+    public static final int NO_ID = -1;
+
+    // Notices the app adds to the chat; never stored
+    public static final Peer SYSTEM = new Peer(null, "System");
+
+    private final String address;
+    private volatile String name;
+    private volatile int id = NO_ID;
+
+    // A peer outside any table, e.g. decoded from a frame; the table takes its
+    // name when a message from it is stored
+    public Peer(String address, String name) {
+        this.address = address;
+        this.name = name;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    // Set once, by the table that numbers the peer
+    public void assignId(int id) {
+        if (this.id != NO_ID && this.id != id) {
+            throw new IllegalStateException("Peer " + address + " already has id " + this.id);
+        }
+        this.id = id;
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.bluechatpro.protocol;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+// Small pool of byte arrays for encode/write paths that would otherwise
+// allocate a fresh buffer per message. Sizes are rounded up to a power of two.
+// Buffers for the odd huge message are left to the GC rather than kept for good.
+public final class BufferPool {
+
+    public static final BufferPool SHARED = new BufferPool(16);
+
+    private static final int MIN_SIZE = 1024;
+    // Largest buffer kept; a chat message with an inline image fits easily
+    static final int MAX_POOLED_SIZE = 64 * 1024;
+
+    private final int maxPooled;
+    private final ArrayDeque<byte[]> free = new ArrayDeque<>();
+
+    public BufferPool(int maxPooled) {
+        this.maxPooled = maxPooled;
+    }
+
+    public synchronized byte[] acquire(int minSize) {
+        Iterator<byte[]> it = free.iterator();
+        while (it.hasNext()) {
+            byte[] buffer = it.next();
+            if (buffer.length >= minSize) {
+                it.remove();
+                return buffer;
+            }
+        }
+        int size = MIN_SIZE;
+        while (size < minSize) {
+            size <<= 1;
+        }
+        return new byte[size];
+    }
+
+    public synchronized void release(byte[] buffer) {
+        if (buffer != null && buffer.length <= MAX_POOLED_SIZE && free.size() < maxPooled) {
+            free.push(buffer);
+        }
+    }
+
+    synchronized int size() {
+        return free.size();
+    }
+}
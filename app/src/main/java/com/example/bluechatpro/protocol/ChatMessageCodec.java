@@ -0,0 +1,386 @@
+package com.example.bluechatpro.protocol;
+
+import com.example.bluechatpro.models.ChatMessage;
+import com.example.bluechatpro.models.Peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+// Compact binary form of a ChatMessage.
+//   [schema version:1][header length:varint][header][content: UTF-8 to end of record]
+// Header:
+//   [flags:1][type ordinal:varint][status ordinal:varint][timestamp:zigzag varint]
+//   [sender][message id: length-prefixed UTF-8]
+// Sender is either an interned id, an id definition followed by name and address,
+// inline name and address, or, in records kept on this device, the sender's id
+// in a Senders table. Newer schema versions only append header fields, so
+// older readers skip what they do not know using the header length. Content comes
+// last so it can be streamed across frames.
+//
+// In streaming mode the codec keeps per-direction state: timestamps are deltas from
+// the previous message and senders are interned after their first appearance. Use one
+// instance per direction, on one thread.
+public class ChatMessageCodec {
+
+    public static final int SCHEMA_VERSION = 1;
+
+    // Header flags
+    static final int FLAG_SENT = 0x01;
+    static final int FLAG_DELTA_TIME = 0x02;
+    static final int FLAG_SENDER_REF = 0x04;
+    static final int FLAG_SENDER_DEFINE = 0x08;
+    static final int FLAG_SENDER_STORED = 0x10;
+
+    private static final int MAX_INTERNED_SENDERS = 256;
+
+    private static final ChatMessage.MessageType[] TYPES = ChatMessage.MessageType.values();
+    private static final ChatMessage.MessageStatus[] STATUSES = ChatMessage.MessageStatus.values();
+
+    // Numbers senders for records that stay on this device: the message log
+    // stores a small id rather than each message's name and address
+    public interface Senders {
+        // The one Peer for address
+        Peer intern(String address, String name);
+
+        // The id to store a message from sender under, or Peer.NO_ID to store it inline
+        int idOf(Peer sender);
+
+        Peer byId(int id);
+    }
+
+    private final boolean streaming;
+    private final BufferPool pool;
+    private final Senders senders;
+    private final Utf8Codec text = new Utf8Codec();
+
+    // Encoder state
+    private final Map<String, Integer> senderIds = new HashMap<>();
+    private final ArrayList<String> definedNames = new ArrayList<>();
+    private long lastEncodedTimestamp;
+    private byte[] header = new byte[128];
+    private byte[] encoded;
+    private int encodedLength;
+    private int headerEnd;
+
+    // Decoder state
+    private final ArrayList<Peer> senderPeers = new ArrayList<>();
+    private long lastDecodedTimestamp;
+    private int position;
+    private int limit;
+    private byte[] headerCopy = new byte[128];
+
+    public ChatMessageCodec(boolean streaming, BufferPool pool) {
+        this(streaming, pool, null);
+    }
+
+    // Decoded senders are interned in senders. Without streaming, records name
+    // senders by their id there, so are only readable with the same table.
+    public ChatMessageCodec(boolean streaming, BufferPool pool, Senders senders) {
+        this.streaming = streaming;
+        this.pool = pool;
+        this.senders = senders;
+    }
+
+    // Encode into a buffer taken from the pool; hand it back with releaseEncoded()
+    public byte[] encode(ChatMessage message) {
+        String content = message.getContent() != null ? message.getContent() : "";
+
+        int headerLength = writeHeader(message);
+        int maxSize = 1 + 5 + headerLength + Utf8Codec.maxEncodedLength(content);
+        encoded = pool.acquire(maxSize);
+
+        int p = 0;
+        encoded[p++] = (byte) SCHEMA_VERSION;
+        p = writeVarint(encoded, p, headerLength);
+        System.arraycopy(header, 0, encoded, p, headerLength);
+        p += headerLength;
+        headerEnd = p;
+
+        ByteBuffer out = ByteBuffer.wrap(encoded, p, encoded.length - p);
+        text.encodeInto(content, out);
+        encodedLength = out.position();
+        return encoded;
+    }
+
+    public int getEncodedLength() {
+        return encodedLength;
+    }
+
+    // Bytes before the content; these must arrive together for decodeHeader()
+    public int getEncodedHeaderLength() {
+        return headerEnd;
+    }
+
+    public void releaseEncoded() {
+        pool.release(encoded);
+        encoded = null;
+    }
+
+    // Decode a complete record into the given message
+    public void decode(byte[] buf, int offset, int length, ChatMessage into) throws IOException {
+        int contentStart = decodeHeader(buf, offset, length, into);
+        into.setContent(text.decode(buf, contentStart, offset + length - contentStart));
+    }
+
+    // Decode everything but the content; returns the offset where content starts
+    public int decodeHeader(byte[] buf, int offset, int length, ChatMessage into) throws IOException {
+        position = offset;
+        limit = offset + length;
+
+        int version = readByte(buf);
+        if (version < 1) {
+            throw new IOException("Unsupported message schema " + version);
+        }
+        int headerLength = (int) readVarint(buf);
+        int headerEnd = position + headerLength;
+        if (headerLength < 0 || headerEnd > limit) {
+            throw new IOException("Truncated message header");
+        }
+        limit = headerEnd;
+
+        int flags = readByte(buf);
+        into.setSent((flags & FLAG_SENT) != 0);
+        into.setType(enumAt(TYPES, (int) readVarint(buf), ChatMessage.MessageType.TEXT));
+        into.setStatus(enumAt(STATUSES, (int) readVarint(buf), ChatMessage.MessageStatus.SENT));
+
+        long time = zigzagDecode(readVarint(buf));
+        if ((flags & FLAG_DELTA_TIME) != 0) {
+            time += lastDecodedTimestamp;
+        }
+        lastDecodedTimestamp = time;
+        into.setTimestamp(time);
+
+        if ((flags & FLAG_SENDER_STORED) != 0) {
+            int id = (int) readVarint(buf);
+            Peer sender = senders != null ? senders.byId(id) : null;
+            if (sender == null) {
+                throw new IOException("Unknown stored sender " + id);
+            }
+            into.setSender(sender);
+        } else if ((flags & (FLAG_SENDER_REF | FLAG_SENDER_DEFINE)) != 0) {
+            int id = (int) readVarint(buf);
+            if ((flags & FLAG_SENDER_DEFINE) != 0) {
+                if (id >= MAX_INTERNED_SENDERS) {
+                    throw new IOException("Sender id out of range");
+                }
+                while (senderPeers.size() <= id) {
+                    senderPeers.add(null);
+                }
+                String name = readString(buf);
+                senderPeers.set(id, peer(readString(buf), name));
+            } else if (id >= senderPeers.size() || senderPeers.get(id) == null) {
+                throw new IOException("Unknown sender id " + id);
+            }
+            // Repeated senders share the same Peer
+            into.setSender(senderPeers.get(id));
+        } else {
+            String name = readString(buf);
+            into.setSender(peer(readString(buf), name));
+        }
+
+        into.setMessageId(readString(buf));
+
+        // Skip header fields added by newer schema versions
+        return headerEnd;
+    }
+
+    // Decode the header of a record held in a buffer, such as a mapped file, at
+    // offset. Only the header bytes are copied out, and the buffer's position is
+    // left alone. Returns where the content starts, relative to offset.
+    public int decodeHeader(ByteBuffer buf, int offset, int length, ChatMessage into) throws IOException {
+        int headerBytes = headerSize(buf, offset, length);
+        if (headerCopy.length < headerBytes) {
+            headerCopy = new byte[Math.max(headerBytes, headerCopy.length * 2)];
+        }
+        ByteBuffer header = buf.duplicate();
+        header.position(offset);
+        header.get(headerCopy, 0, headerBytes);
+        decodeHeader(headerCopy, 0, headerBytes, into);
+        return headerBytes;
+    }
+
+    // Where the status is in the record at offset, relative to it. It is one byte
+    // after [version:1][header length:varint][flags:1][type:varint], as long as
+    // both enums stay under 128 values, so it can be changed in place.
+    public static int statusOffset(byte[] record, int offset, int length) throws IOException {
+        int p = offset + 1;
+        while (p < offset + length && (record[p] & 0x80) != 0) {
+            p++;
+        }
+        // Past the header length, the flags and the type
+        p += 3;
+        if (p >= offset + length || (record[p - 1] & 0x80) != 0 || (record[p] & 0x80) != 0) {
+            throw new IOException("Truncated message header");
+        }
+        return p - offset;
+    }
+
+    // Bytes before the content in the record at offset
+    public static int headerSize(ByteBuffer buf, int offset, int length) throws IOException {
+        // [version:1][header length:varint]
+        int p = offset + 1;
+        long headerLength = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (p >= offset + length || shift >= 35) {
+                throw new IOException("Truncated message header");
+            }
+            int b = buf.get(p++);
+            headerLength |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        long headerBytes = p - offset + headerLength;
+        if (headerBytes > length) {
+            throw new IOException("Truncated message header");
+        }
+        return (int) headerBytes;
+    }
+
+    private Peer peer(String address, String name) {
+        if (address == null && name == null) {
+            return null;
+        }
+        return senders != null && address != null ? senders.intern(address, name) : new Peer(address, name);
+    }
+
+    private int writeHeader(ChatMessage message) {
+        Peer sender = message.getSender();
+        String name = sender != null ? sender.getName() : null;
+        String address = sender != null ? sender.getAddress() : null;
+        String messageId = message.getMessageId();
+        int maxSize = 32 + maxStringSize(name) + maxStringSize(address) + maxStringSize(messageId);
+        if (header.length < maxSize) {
+            header = new byte[Math.max(maxSize, header.length * 2)];
+        }
+
+        int flags = message.isSent() ? FLAG_SENT : 0;
+        int senderId = -1;
+        boolean define = false;
+        int storedId = !streaming && senders != null ? senders.idOf(sender) : Peer.NO_ID;
+        if (storedId != Peer.NO_ID) {
+            flags |= FLAG_SENDER_STORED;
+        } else if (streaming && address != null) {
+            Integer known = senderIds.get(address);
+            if (known != null) {
+                senderId = known;
+                // A renamed sender is defined again under the same id
+                define = !equalStrings(definedNames.get(senderId), name);
+            } else if (senderIds.size() < MAX_INTERNED_SENDERS) {
+                senderId = senderIds.size();
+                senderIds.put(address, senderId);
+                definedNames.add(null);
+                define = true;
+            }
+            if (senderId >= 0) {
+                definedNames.set(senderId, name);
+                flags |= define ? FLAG_SENDER_DEFINE : FLAG_SENDER_REF;
+            }
+        }
+
+        long time = message.getTimestamp();
+        if (streaming) {
+            flags |= FLAG_DELTA_TIME;
+            time -= lastEncodedTimestamp;
+            lastEncodedTimestamp = message.getTimestamp();
+        }
+
+        int p = 0;
+        header[p++] = (byte) flags;
+        p = writeVarint(header, p, message.getType() != null ? message.getType().ordinal() : 0);
+        p = writeVarint(header, p, message.getStatus() != null ? message.getStatus().ordinal() : 0);
+        p = writeVarint(header, p, zigzagEncode(time));
+
+        if (storedId != Peer.NO_ID) {
+            p = writeVarint(header, p, storedId);
+        } else {
+            if (senderId >= 0) {
+                p = writeVarint(header, p, senderId);
+            }
+            if (senderId < 0 || define) {
+                p = writeString(header, p, name);
+                p = writeString(header, p, address);
+            }
+        }
+        p = writeString(header, p, messageId);
+        return p;
+    }
+
+    // Strings are length-prefixed; null and empty both encode as length 0
+    private int writeString(byte[] buf, int p, String value) {
+        if (value == null || value.isEmpty()) {
+            return writeVarint(buf, p, 0);
+        }
+        int length = Utf8Codec.encodedLength(value);
+        p = writeVarint(buf, p, length);
+        ByteBuffer out = ByteBuffer.wrap(buf, p, length);
+        text.encodeInto(value, out);
+        return p + length;
+    }
+
+    private String readString(byte[] buf) throws IOException {
+        int length = (int) readVarint(buf);
+        if (length == 0) {
+            return null;
+        }
+        if (length < 0 || position + length > limit) {
+            throw new IOException("Truncated string");
+        }
+        String value = new String(buf, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return value;
+    }
+
+    private int readByte(byte[] buf) throws IOException {
+        if (position >= limit) {
+            throw new IOException("Truncated message record");
+        }
+        return buf[position++] & 0xFF;
+    }
+
+    private long readVarint(byte[] buf) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte(buf);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static int writeVarint(byte[] buf, int p, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf[p++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[p++] = (byte) value;
+        return p;
+    }
+
+    static long zigzagEncode(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long zigzagDecode(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int maxStringSize(String value) {
+        return 5 + (value != null ? Utf8Codec.maxEncodedLength(value) : 0);
+    }
+
+    private static boolean equalStrings(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    // Unknown ordinals from newer peers fall back to a default
+    private static <T> T enumAt(T[] values, int ordinal, T fallback) {
+        return ordinal >= 0 && ordinal < values.length ? values[ordinal] : fallback;
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.bluechatpro.protocol;
+
+import java.io.InterruptedIOException;
+
+// Sending side of credit-based flow control. Each chat message costs one credit,
+// and the peer grants more as its UI consumes what it has received, so we never
+// run more than a window ahead of it. The gate stays open until the peer agrees
+// to flow control.
+public class CreditGate {
+
+    private boolean enabled;
+    private boolean closed;
+    private int credits;
+
+    // The peer will send credits; until the first grant nothing may be sent
+    public synchronized void enable() {
+        enabled = true;
+    }
+
+    public synchronized void grant(int count) {
+        credits += count;
+        notifyAll();
+    }
+
+    // Stop waiting, e.g. because the connection is gone
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    // Take up to wanted credits, waiting for the first one as long as it takes.
+    // Never sends past the window: the peer cuts off a sender that does. A peer
+    // that stops granting holds us here until the connection closes, which
+    // releases every waiter.
+    public synchronized int acquire(int wanted) throws InterruptedIOException {
+        if (!enabled || closed) {
+            return wanted;
+        }
+
+        while (credits <= 0 && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for credit");
+            }
+        }
+        if (closed) {
+            return wanted;
+        }
+
+        int taken = Math.min(wanted, credits);
+        credits -= taken;
+        return taken;
+    }
+
+    public synchronized int getCredits() {
+        return credits;
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.bluechatpro.protocol;
+
+// Wire layout shared by both ends of a connection:
+// [type:1][flags:1][length:4][payload:length]
+public final class Frame {
+
+    public static final int HEADER_SIZE = 6;
+    public static final int MAX_PAYLOAD_SIZE = 1024 * 1024;
+
+    // Longer chat messages are split over several frames
+    public static final int MAX_CHAT_FRAGMENT = 2048;
+
+    // Files go out in chunks of this size, so chat frames can interleave
+    public static final int MAX_FILE_CHUNK = 8192;
+
+    // Chat messages a receiver accepts before the sender must wait for credit
+    public static final int CREDIT_WINDOW = 64;
+
+    // Frame types
+    public static final byte TYPE_CHAT = 1;
+    public static final byte TYPE_PING = 2;
+    public static final byte TYPE_PONG = 3;
+    public static final byte TYPE_HELLO = 4;
+    public static final byte TYPE_FILE_CHUNK = 5;
+    public static final byte TYPE_VOICE = 6;
+    public static final byte TYPE_ACK = 7;           // payload: id of a chat message received
+    public static final byte TYPE_CREDIT = 8;        // payload: [count:4] more chat messages the peer may send
+    public static final byte TYPE_ROOM = 9;          // payload: entries of a group room (see group.Room)
+    public static final byte TYPE_ROOM_SYNC = 10;    // payload: what the sender holds of a room; asks for the rest
+    public static final byte TYPE_HISTORY_SYNC = 11; // payload: a step of reconciling chat history (see storage.HistorySync)
+    public static final byte TYPE_PRESENCE = 12;     // payload: [state:1] typing and presence (see PresenceSender)
+
+    // Frame flags
+    public static final byte FLAG_COMPRESSED = 0x01;
+    public static final byte FLAG_ENCRYPTED = 0x02;
+    public static final byte FLAG_MORE = 0x04;       // payload continues in the next frame of this type
+
+    private Frame() {}
+
+    public static void writeInt(byte[] buf, int off, int value) {
+        buf[off] = (byte) (value >>> 24);
+        buf[off + 1] = (byte) (value >>> 16);
+        buf[off + 2] = (byte) (value >>> 8);
+        buf[off + 3] = (byte) value;
+    }
+
+    public static int readInt(byte[] buf, int off) {
+        return ((buf[off] & 0xFF) << 24)
+                | ((buf[off + 1] & 0xFF) << 16)
+                | ((buf[off + 2] & 0xFF) << 8)
+                | (buf[off + 3] & 0xFF);
+    }
+
+    public static void writeLong(byte[] buf, int off, long value) {
+        writeInt(buf, off, (int) (value >>> 32));
+        writeInt(buf, off + 4, (int) value);
+    }
+
+    public static long readLong(byte[] buf, int off) {
+        return ((long) readInt(buf, off) << 32) | (readInt(buf, off + 4) & 0xFFFFFFFFL);
+    }
+}
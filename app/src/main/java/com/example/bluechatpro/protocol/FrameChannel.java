@@ -0,0 +1,270 @@
+package com.example.bluechatpro.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Splits a byte stream into frames and writes frames back onto it.
+// Reading happens on a single thread; writes may come from any thread.
+// Writers take turns frame by frame in arrival order, so a small voice frame
+// waits for at most one chat fragment or file chunk, never a whole message.
+public class FrameChannel {
+
+    public interface Listener {
+        // The payload is payload[offset, offset + length), a view into the read
+        // buffer that is only valid for the duration of the call
+        void onFrame(byte type, byte flags, byte[] payload, int offset, int length) throws IOException;
+    }
+
+    private final InputStream inputStream;
+    private final OutputStream outputStream;
+    private final LinkMetrics metrics;
+    private final ReentrantLock writeLock = new ReentrantLock(true);
+    private final FrameCompressor compressor = new FrameCompressor();
+    private boolean compressionEnabled;
+    // Set on the reader thread by the handshake, read by both
+    private volatile SessionCipher sessionCipher;
+
+    // Frames written inside a batch are held back until it ends or grows past this
+    private static final int MAX_BATCH_BYTES = 16 * 1024;
+
+    // Reads take whatever the stream has, up to the read buffer's size, and every
+    // complete frame in it is handed on in place. The buffer doubles while reads
+    // keep filling it or a frame does not fit, and shrinks back when a window of
+    // reads saw only small frames.
+    private static final int MIN_READ_BUFFER = 2 * 1024;
+    private static final int MAX_READ_BUFFER = 64 * 1024;
+    private static final int SIZING_WINDOW = 64;
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(MIN_READ_BUFFER);
+    private int readsInWindow;
+    private int largestFrameInWindow;
+    private boolean filledInWindow;
+
+    private byte[] writeBuffer = new byte[1024];
+    private int batchDepth;
+    private int batched;
+
+    public FrameChannel(InputStream inputStream, OutputStream outputStream, LinkMetrics metrics) {
+        this.inputStream = inputStream;
+        this.outputStream = outputStream;
+        this.metrics = metrics;
+    }
+
+    // Compress outgoing frames once the peer has agreed to it.
+    // Incoming frames are inflated whenever they are flagged, regardless.
+    public void setCompressionEnabled(boolean enabled) {
+        writeLock.lock();
+        try {
+            compressionEnabled = enabled;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Encrypt every frame except the hello from now on, and refuse any that
+    // arrives unencrypted
+    public void setSessionCipher(SessionCipher sessionCipher) {
+        writeLock.lock();
+        try {
+            this.sessionCipher = sessionCipher;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public void release() {
+        writeLock.lock();
+        try {
+            compressionEnabled = false;
+            compressor.release();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Frames written until endBatch() go out together, in as few socket writes as
+    // possible. Other writers wait for the batch, so keep it short.
+    public void beginBatch() {
+        writeLock.lock();
+        batchDepth++;
+    }
+
+    public void endBatch() throws IOException {
+        try {
+            if (--batchDepth == 0) {
+                flushBatch();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Read frames until the stream ends or fails
+    public void readLoop(Listener listener) throws IOException {
+        while (true) {
+            fill();
+            readBuffer.flip();
+            byte[] array = readBuffer.array();
+            int needed = 0;
+
+            while (readBuffer.remaining() >= Frame.HEADER_SIZE) {
+                int start = readBuffer.position();
+                byte type = array[start];
+                byte flags = array[start + 1];
+                int length = Frame.readInt(array, start + 2);
+
+                if (length < 0 || length > Frame.MAX_PAYLOAD_SIZE) {
+                    throw new IOException("Invalid frame length: " + length);
+                }
+                largestFrameInWindow = Math.max(largestFrameInWindow, Frame.HEADER_SIZE + length);
+                if (readBuffer.remaining() < Frame.HEADER_SIZE + length) {
+                    needed = Frame.HEADER_SIZE + length;
+                    break;
+                }
+
+                readBuffer.position(start + Frame.HEADER_SIZE + length);
+                metrics.onFrameReceived(Frame.HEADER_SIZE + length);
+                deliver(listener, type, flags, array, start + Frame.HEADER_SIZE, length);
+            }
+
+            readBuffer.compact();
+            resize(needed);
+        }
+    }
+
+    // Size the read buffer has adapted to, for diagnostics
+    public int getReadBufferSize() {
+        return readBuffer.capacity();
+    }
+
+    private void deliver(Listener listener, byte type, byte flags, byte[] payload, int offset, int length)
+            throws IOException {
+        if ((flags & Frame.FLAG_ENCRYPTED) != 0) {
+            if (sessionCipher == null) {
+                throw new IOException("Encrypted frame before key exchange");
+            }
+            try {
+                length = sessionCipher.open(type, flags, payload, offset, length);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Frame failed authentication", e);
+            }
+            payload = sessionCipher.getOpened();
+            offset = 0;
+            flags &= ~Frame.FLAG_ENCRYPTED;
+        } else if (sessionCipher != null && type != Frame.TYPE_HELLO) {
+            // Anyone on the link could inject a plaintext frame
+            throw new IOException("Unencrypted frame after key exchange");
+        }
+
+        if ((flags & Frame.FLAG_COMPRESSED) != 0) {
+            payload = compressor.decompress(type, payload, offset, length);
+            offset = 0;
+            length = compressor.getInflatedLength();
+            flags &= ~Frame.FLAG_COMPRESSED;
+        }
+        listener.onFrame(type, flags, payload, offset, length);
+    }
+
+    // One read call, taking as much as the stream has ready
+    private void fill() throws IOException {
+        int space = readBuffer.remaining();
+        int n = inputStream.read(readBuffer.array(), readBuffer.position(), space);
+        if (n < 0) {
+            throw new EOFException("Stream closed");
+        }
+        readBuffer.position(readBuffer.position() + n);
+        filledInWindow |= n == space;
+        readsInWindow++;
+    }
+
+    // Called with the buffer in fill mode. needed is the size of a frame that did
+    // not fit, or 0.
+    private void resize(int needed) {
+        int capacity = readBuffer.capacity();
+        int target = capacity;
+        if (needed > capacity) {
+            target = Math.max(needed, capacity * 2);
+        } else if (filledInWindow && capacity < MAX_READ_BUFFER) {
+            // More was waiting than we could take in one read
+            target = capacity * 2;
+            filledInWindow = false;
+        } else if (readsInWindow >= SIZING_WINDOW) {
+            if (!filledInWindow) {
+                int fit = Math.max(MIN_READ_BUFFER, Integer.highestOneBit(largestFrameInWindow) * 4);
+                target = Math.min(capacity, Math.max(fit, readBuffer.position()));
+            }
+            readsInWindow = 0;
+            largestFrameInWindow = 0;
+            filledInWindow = false;
+        }
+
+        if (target > capacity || target <= capacity / 2) {
+            readBuffer.flip();
+            readBuffer = ByteBuffer.allocate(target).put(readBuffer);
+        }
+    }
+
+    // Write one frame with a single call on the underlying stream
+    public void writeFrame(byte type, byte flags, byte[] payload, int offset, int length)
+            throws IOException {
+        writeLock.lock();
+        try {
+            if (compressionEnabled && compressor.compress(type, payload, offset, length)) {
+                metrics.onCompressed(length, compressor.getDeflatedLength());
+                payload = compressor.getDeflated();
+                offset = 0;
+                length = compressor.getDeflatedLength();
+                flags |= Frame.FLAG_COMPRESSED;
+            }
+
+            if (sessionCipher != null && type != Frame.TYPE_HELLO) {
+                flags |= Frame.FLAG_ENCRYPTED;
+                try {
+                    length = sessionCipher.seal(type, flags, payload, offset, length);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("Unable to encrypt frame", e);
+                }
+                payload = sessionCipher.getSealed();
+                offset = 0;
+            }
+
+            int total = Frame.HEADER_SIZE + length;
+            if (writeBuffer.length < batched + total) {
+                writeBuffer = Arrays.copyOf(writeBuffer, Math.max(batched + total, writeBuffer.length * 2));
+            }
+
+            writeBuffer[batched] = type;
+            writeBuffer[batched + 1] = flags;
+            Frame.writeInt(writeBuffer, batched + 2, length);
+            System.arraycopy(payload, offset, writeBuffer, batched + Frame.HEADER_SIZE, length);
+            batched += total;
+            metrics.onFrameSent(total);
+
+            if (batchDepth == 0 || batched >= MAX_BATCH_BYTES) {
+                flushBatch();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void flushBatch() throws IOException {
+        if (batched == 0) {
+            return;
+        }
+        int length = batched;
+        batched = 0;
+        outputStream.write(writeBuffer, 0, length);
+        outputStream.flush();
+    }
+
+    public void writeFrame(byte type, byte[] payload) throws IOException {
+        writeFrame(type, (byte) 0, payload, 0, payload.length);
+    }
+}
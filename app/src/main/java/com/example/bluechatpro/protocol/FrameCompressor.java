@@ -0,0 +1,162 @@
+package com.example.bluechatpro.protocol;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Per-connection Deflate contexts for frame payloads.
+// Chat text goes through one long-lived stream per direction: every frame is
+// sync-flushed, so earlier messages (and a preset dictionary of common chat
+// phrases) act as the dictionary for later ones. Bulk payloads such as file
+// chunks are compressed independently at a higher level, which lets us drop
+// the result when it does not pay off. Deflate caps the window at 32 KB, so
+// the bulk context trades speed for ratio rather than a wider window.
+public class FrameCompressor {
+
+    // Payloads smaller than this are sent as-is; headers would eat the gain
+    static final int MIN_COMPRESS_SIZE = 32;
+
+    private static final byte[] SYNC_TRAILER = {0, 0, (byte) 0xFF, (byte) 0xFF};
+
+    static final byte[] TEXT_DICTIONARY = (
+            "http://https://www..com  :) :D ;) haha lol ok okay thanks thank you yes no " +
+            "sorry please what when where why how are you doing good morning night " +
+            "see you later tomorrow today tonight I'm I'll I think I don't know " +
+            "can you do you want to let me know on my way be there in minutes " +
+            "that's great sounds good ").getBytes(StandardCharsets.UTF_8);
+
+    private final Deflater textDeflater = new Deflater(Deflater.BEST_SPEED, true);
+    private final Inflater textInflater = new Inflater(true);
+    private final Deflater bulkDeflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+    private final Inflater bulkInflater = new Inflater(true);
+
+    // Separate buffers: compression runs on writer threads, decompression on the reader
+    private byte[] deflated = new byte[1024];
+    private int deflatedLength;
+    private byte[] inflated = new byte[1024];
+    private int inflatedLength;
+
+    public FrameCompressor() {
+        textDeflater.setDictionary(TEXT_DICTIONARY);
+        textInflater.setDictionary(TEXT_DICTIONARY);
+    }
+
+    static boolean isText(byte type) {
+        return type == Frame.TYPE_CHAT;
+    }
+
+    // Control frames stay uncompressed so they remain cheap and timing-accurate;
+    // voice packets are already coded and too small to gain anything
+    static boolean isCompressible(byte type) {
+        return type != Frame.TYPE_HELLO && type != Frame.TYPE_PING && type != Frame.TYPE_PONG
+                && type != Frame.TYPE_VOICE;
+    }
+
+    // Compress into the internal buffer; returns false if the payload should go out raw
+    public boolean compress(byte type, byte[] payload, int offset, int length) {
+        if (!isCompressible(type) || length < MIN_COMPRESS_SIZE) {
+            return false;
+        }
+
+        if (isText(type)) {
+            // The stream state is shared with the peer, so the output is always sent
+            textDeflater.setInput(payload, offset, length);
+            deflatedLength = deflate(textDeflater, false);
+            // Strip the sync marker; the receiver adds it back
+            deflatedLength -= SYNC_TRAILER.length;
+            return true;
+        }
+
+        if (MediaSniffer.isCompressed(payload, offset, length)) {
+            return false;
+        }
+
+        bulkDeflater.reset();
+        bulkDeflater.setInput(payload, offset, length);
+        bulkDeflater.finish();
+        deflatedLength = deflate(bulkDeflater, true);
+        return deflatedLength < length;
+    }
+
+    // Result of the last successful compress(), valid until the next call
+    public byte[] getDeflated() {
+        return deflated;
+    }
+
+    public int getDeflatedLength() {
+        return deflatedLength;
+    }
+
+    // Inflate a compressed payload; the result is valid until the next call
+    public byte[] decompress(byte type, byte[] payload, int length) throws IOException {
+        return decompress(type, payload, 0, length);
+    }
+
+    public byte[] decompress(byte type, byte[] payload, int offset, int length) throws IOException {
+        try {
+            if (isText(type)) {
+                textInflater.setInput(payload, offset, length);
+                inflatedLength = inflate(textInflater, 0);
+                textInflater.setInput(SYNC_TRAILER);
+                inflatedLength = inflate(textInflater, inflatedLength);
+            } else {
+                bulkInflater.reset();
+                bulkInflater.setInput(payload, offset, length);
+                inflatedLength = inflate(bulkInflater, 0);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame", e);
+        }
+        return inflated;
+    }
+
+    public int getInflatedLength() {
+        return inflatedLength;
+    }
+
+    public void release() {
+        textDeflater.end();
+        textInflater.end();
+        bulkDeflater.end();
+        bulkInflater.end();
+    }
+
+    private int deflate(Deflater deflater, boolean finish) {
+        int written = 0;
+        while (true) {
+            deflated = ensureCapacity(deflated, written + 64, written);
+            int space = deflated.length - written;
+            int n = deflater.deflate(deflated, written, space, finish ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+            written += n;
+            if (finish ? deflater.finished() : n < space) {
+                return written;
+            }
+        }
+    }
+
+    private int inflate(Inflater inflater, int written) throws DataFormatException, IOException {
+        while (true) {
+            inflated = ensureCapacity(inflated, written + 256, written);
+            int space = inflated.length - written;
+            int n = inflater.inflate(inflated, written, space);
+            written += n;
+            if (written > Frame.MAX_PAYLOAD_SIZE) {
+                throw new IOException("Decompressed frame too large");
+            }
+            if (n < space) {
+                return written;
+            }
+        }
+    }
+
+    private static byte[] ensureCapacity(byte[] buffer, int size, int used) {
+        if (buffer.length >= size) {
+            return buffer;
+        }
+        byte[] grown = new byte[Math.max(size, buffer.length * 2)];
+        System.arraycopy(buffer, 0, grown, 0, used);
+        return grown;
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.bluechatpro.protocol;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+
+// Connection setup: send our hello, then apply whatever both sides agreed on
+// once the peer's hello arrives. Hellos travel in the clear, so a side that can
+// encrypt refuses a peer that does not offer to: otherwise anyone on the link
+// could strip the offer from a hello and read everything after it.
+public class Handshake {
+
+    private final KeyPair keyPair;
+    private final Hello hello;
+    private SessionCipher sessionCipher;
+    private boolean complete;
+
+    public Handshake() {
+        KeyPair generated = null;
+        try {
+            generated = SessionCipher.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            // No EC support: fall back to an unencrypted session
+        }
+        keyPair = generated;
+
+        int capabilities = Hello.LOCAL_CAPABILITIES;
+        if (keyPair == null) {
+            capabilities &= ~Hello.CAP_ENCRYPTION;
+        }
+        hello = new Hello(Hello.PROTOCOL_VERSION, capabilities,
+                keyPair != null ? keyPair.getPublic().getEncoded() : null);
+    }
+
+    // The hello to send; the same one every time, as the key derivation covers it
+    public Hello createHello() {
+        return hello;
+    }
+
+    // Configure the channel for the agreed capabilities and return them
+    public int complete(Hello peer, FrameChannel channel) throws GeneralSecurityException {
+        int agreed = hello.negotiate(peer);
+
+        if ((agreed & Hello.CAP_ENCRYPTION) != 0) {
+            sessionCipher = SessionCipher.establish(keyPair, peer.getPublicKey(), hello.encode(), peer.encode());
+            channel.setSessionCipher(sessionCipher);
+        } else if (keyPair != null) {
+            throw new GeneralSecurityException("Peer did not offer encryption");
+        }
+        channel.setCompressionEnabled((agreed & Hello.CAP_DEFLATE) != 0);
+
+        complete = true;
+        return agreed;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    // Null when the session is not encrypted
+    public SessionCipher getSessionCipher() {
+        return sessionCipher;
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.bluechatpro.protocol;
+
+// First frame each side sends after connecting: protocol version, capability bits
+// and, when encryption is offered, an ephemeral public key.
+// A feature is used in one direction only when both sides advertise it.
+// The bytes of both hellos feed the session key derivation, so a hello altered
+// on the way leaves the two sides with different keys.
+// Layout: [version:1][capabilities:4][keyLength:2][key:keyLength]
+public final class Hello {
+
+    public static final int PROTOCOL_VERSION = 2;
+
+    // Capability bits
+    public static final int CAP_DEFLATE = 1;
+    public static final int CAP_ENCRYPTION = 2;
+    public static final int CAP_FLOW_CONTROL = 4;
+    public static final int CAP_HISTORY_SYNC = 8;
+    public static final int CAP_PRESENCE = 16;
+
+    public static final int LOCAL_CAPABILITIES = CAP_DEFLATE | CAP_ENCRYPTION | CAP_FLOW_CONTROL
+            | CAP_HISTORY_SYNC | CAP_PRESENCE;
+
+    private static final int FIXED_SIZE = 7;
+
+    private final int version;
+    private final int capabilities;
+    private final byte[] publicKey;
+    // As sent or received, once known
+    private byte[] encoded;
+
+    public Hello(int version, int capabilities, byte[] publicKey) {
+        this.version = version;
+        this.capabilities = capabilities;
+        this.publicKey = publicKey;
+    }
+
+    private Hello(int version, int capabilities, byte[] publicKey, byte[] encoded) {
+        this(version, capabilities, publicKey);
+        this.encoded = encoded;
+    }
+
+    public int getVersion() { return version; }
+    public int getCapabilities() { return capabilities; }
+    public byte[] getPublicKey() { return publicKey; }
+
+    // Capabilities both ends support
+    public int negotiate(Hello peer) {
+        int agreed = capabilities & peer.capabilities;
+        if (publicKey == null || peer.publicKey == null) {
+            agreed &= ~CAP_ENCRYPTION;
+        }
+        return agreed;
+    }
+
+    // The same bytes every time, and for a decoded hello exactly those received
+    public byte[] encode() {
+        if (encoded != null) {
+            return encoded;
+        }
+        int keyLength = publicKey != null ? publicKey.length : 0;
+        byte[] payload = new byte[FIXED_SIZE + keyLength];
+        payload[0] = (byte) version;
+        Frame.writeInt(payload, 1, capabilities);
+        payload[5] = (byte) (keyLength >>> 8);
+        payload[6] = (byte) keyLength;
+        if (keyLength > 0) {
+            System.arraycopy(publicKey, 0, payload, FIXED_SIZE, keyLength);
+        }
+        encoded = payload;
+        return payload;
+    }
+
+    // Tolerates older, shorter hellos by treating missing fields as absent
+    public static Hello decode(byte[] payload, int length) {
+        return decode(payload, 0, length);
+    }
+
+    public static Hello decode(byte[] payload, int offset, int length) {
+        int version = length > 0 ? payload[offset] & 0xFF : 0;
+        int capabilities = length >= 5 ? Frame.readInt(payload, offset + 1) : 0;
+
+        byte[] publicKey = null;
+        if (length >= FIXED_SIZE) {
+            int keyLength = ((payload[offset + 5] & 0xFF) << 8) | (payload[offset + 6] & 0xFF);
+            if (keyLength > 0 && FIXED_SIZE + keyLength <= length) {
+                publicKey = new byte[keyLength];
+                System.arraycopy(payload, offset + FIXED_SIZE, publicKey, 0, keyLength);
+            }
+        }
+        byte[] encoded = new byte[length];
+        System.arraycopy(payload, offset, encoded, 0, length);
+        return new Hello(version, capabilities, publicKey, encoded);
+    }
+}
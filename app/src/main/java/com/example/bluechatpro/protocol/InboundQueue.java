@@ -0,0 +1,121 @@
+package com.example.bluechatpro.protocol;
+
+import com.example.bluechatpro.models.ChatMessage;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+// Bounded hand-off of received chat messages from the connection's reader thread
+// to the UI. The UI takes messages in batches, and each one it takes is returned
+// to the peer as a credit, so withheld credit is what holds the peer back. The
+// reader never waits here: it must keep reading pongs and credits whatever the
+// UI is doing, or two busy peers could each wait for the other. A peer that
+// sends past its credit is cut off instead.
+public class InboundQueue {
+
+    // A peer that has not agreed to flow control cannot know the window, so it
+    // gets this many windows before it is cut off
+    static final int UNCREDITED_WINDOWS = 8;
+
+    public interface CreditListener {
+        // Called on the consuming thread; must not block
+        void onCredits(int count);
+    }
+
+    private final int capacity;
+    private final CreditListener listener;
+    private final ArrayDeque<ChatMessage> messages;
+    private int limit;
+    private int unreturned;
+    private boolean drainScheduled;
+    private boolean closed;
+
+    public InboundQueue(int capacity, CreditListener listener) {
+        this.capacity = capacity;
+        this.listener = listener;
+        this.messages = new ArrayDeque<>(capacity);
+        this.limit = capacity * UNCREDITED_WINDOWS;
+    }
+
+    // The peer has agreed to flow control, so it never has more than a window
+    // of messages unanswered by credit
+    public synchronized void enforceCredits() {
+        limit = capacity;
+    }
+
+    // Returns true when the consumer has to be told to drain; after that no
+    // further notice is needed until it has emptied the queue. Fails when the
+    // peer has sent more than it was granted.
+    public synchronized boolean put(ChatMessage message) throws IOException {
+        if (closed) {
+            return false;
+        }
+        if (messages.size() >= limit) {
+            throw new IOException("Peer sent past its credit window");
+        }
+
+        messages.add(message);
+        if (drainScheduled) {
+            return false;
+        }
+        drainScheduled = true;
+        return true;
+    }
+
+    // A message that used a credit but will not be queued, e.g. a duplicate
+    public void discard() {
+        int credits;
+        synchronized (this) {
+            unreturned++;
+            credits = takeCredits();
+        }
+        if (credits > 0) {
+            listener.onCredits(credits);
+        }
+    }
+
+    // Take up to max messages. Credits go back in quarter-window batches, or
+    // all at once when the queue runs empty.
+    public List<ChatMessage> drain(int max) {
+        List<ChatMessage> batch = new ArrayList<>(Math.min(max, capacity));
+        int credits;
+        synchronized (this) {
+            while (batch.size() < max && !messages.isEmpty()) {
+                batch.add(messages.poll());
+            }
+            if (messages.isEmpty()) {
+                drainScheduled = false;
+            }
+            unreturned += batch.size();
+            credits = takeCredits();
+        }
+        if (credits > 0) {
+            listener.onCredits(credits);
+        }
+        return batch;
+    }
+
+    // True while messages are left that the consumer was told about
+    public synchronized boolean needsDrain() {
+        return drainScheduled;
+    }
+
+    public synchronized int size() {
+        return messages.size();
+    }
+
+    public synchronized void close() {
+        closed = true;
+    }
+
+    private int takeCredits() {
+        if (unreturned >= Math.max(1, capacity / 4) || (messages.isEmpty() && unreturned > 0)) {
+            int credits = unreturned;
+            unreturned = 0;
+            return credits;
+        }
+        return 0;
+    }
+}
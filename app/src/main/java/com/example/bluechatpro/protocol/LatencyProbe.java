@@ -0,0 +1,158 @@
+package com.example.bluechatpro.protocol;
+
+import java.util.function.LongSupplier;
+
+// Measures round trip time and peer clock offset from ping/pong frames.
+// A ping carries the sender's send time (t1); the pong echoes it together with
+// the peer's receive time (t2) and reply time (t3), and the pong arrives at t4:
+//   rtt    = (t4 - t1) - (t3 - t2)
+//   offset = ((t2 - t1) + (t3 - t4)) / 2
+public class LatencyProbe {
+
+    public static final long PING_INTERVAL_MS = 5000;
+
+    static final int PING_SIZE = 12;
+    static final int PONG_SIZE = 28;
+
+    private static final long INITIAL_TIMEOUT_MS = 3000;
+    private static final long MIN_TIMEOUT_MS = 500;
+    private static final long MAX_TIMEOUT_MS = 30000;
+
+    // Number of recent samples considered when picking the clock offset
+    private static final int FILTER_SIZE = 8;
+
+    private final LinkMetrics metrics;
+    private final LongSupplier clock;
+
+    private int nextSequence;
+    private long smoothedRtt = -1;
+    private long rttVariance;
+    private long clockOffset;
+    private long lastPongAt;
+
+    private final long[] sampleRtts = new long[FILTER_SIZE];
+    private final long[] sampleOffsets = new long[FILTER_SIZE];
+    private int sampleCount;
+
+    public LatencyProbe(LinkMetrics metrics) {
+        this(metrics, System::currentTimeMillis);
+    }
+
+    LatencyProbe(LinkMetrics metrics, LongSupplier clock) {
+        this.metrics = metrics;
+        this.clock = clock;
+        this.lastPongAt = clock.getAsLong();
+    }
+
+    // Start over for a new connection: the peer may be another device, with its
+    // own clock, and the link another route
+    public synchronized void reset() {
+        lastPongAt = clock.getAsLong();
+        smoothedRtt = -1;
+        rttVariance = 0;
+        clockOffset = 0;
+        sampleCount = 0;
+    }
+
+    public synchronized byte[] createPing() {
+        byte[] ping = new byte[PING_SIZE];
+        Frame.writeInt(ping, 0, nextSequence++);
+        Frame.writeLong(ping, 4, clock.getAsLong());
+        return ping;
+    }
+
+    // Build the reply to a received ping; receivedAt is the local arrival time (t2)
+    public byte[] createPong(byte[] ping, int length, long receivedAt) {
+        return createPong(ping, 0, length, receivedAt);
+    }
+
+    public byte[] createPong(byte[] ping, int offset, int length, long receivedAt) {
+        if (length < PING_SIZE) {
+            return null;
+        }
+        byte[] pong = new byte[PONG_SIZE];
+        System.arraycopy(ping, offset, pong, 0, PING_SIZE);
+        Frame.writeLong(pong, 12, receivedAt);
+        Frame.writeLong(pong, 20, clock.getAsLong());
+        return pong;
+    }
+
+    // Process a pong; receivedAt is the local arrival time (t4)
+    public void onPong(byte[] pong, int length, long receivedAt) {
+        onPong(pong, 0, length, receivedAt);
+    }
+
+    public synchronized void onPong(byte[] pong, int start, int length, long receivedAt) {
+        if (length < PONG_SIZE) {
+            return;
+        }
+        long t1 = Frame.readLong(pong, start + 4);
+        long t2 = Frame.readLong(pong, start + 12);
+        long t3 = Frame.readLong(pong, start + 20);
+        long t4 = receivedAt;
+
+        long rtt = (t4 - t1) - (t3 - t2);
+        if (rtt < 0) {
+            return;
+        }
+        long offset = ((t2 - t1) + (t3 - t4)) / 2;
+        lastPongAt = t4;
+
+        // RFC 6298 smoothing
+        if (smoothedRtt < 0) {
+            smoothedRtt = rtt;
+            rttVariance = rtt / 2;
+        } else {
+            rttVariance = (3 * rttVariance + Math.abs(smoothedRtt - rtt)) / 4;
+            smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+        }
+
+        // The sample with the lowest RTT has the least queuing asymmetry, so trust its offset
+        int slot = sampleCount % FILTER_SIZE;
+        sampleRtts[slot] = rtt;
+        sampleOffsets[slot] = offset;
+        sampleCount++;
+
+        int best = 0;
+        int filled = Math.min(sampleCount, FILTER_SIZE);
+        for (int i = 1; i < filled; i++) {
+            if (sampleRtts[i] < sampleRtts[best]) {
+                best = i;
+            }
+        }
+        clockOffset = sampleOffsets[best];
+
+        metrics.onRttSample(rtt, smoothedRtt, clockOffset);
+    }
+
+    public synchronized long getSmoothedRtt() {
+        return smoothedRtt;
+    }
+
+    public synchronized long getClockOffset() {
+        return clockOffset;
+    }
+
+    // Retransmission-style timeout derived from the live RTT
+    public synchronized long getTimeoutMillis() {
+        if (smoothedRtt < 0) {
+            return INITIAL_TIMEOUT_MS;
+        }
+        long timeout = smoothedRtt + Math.max(10, 4 * rttVariance);
+        return Math.max(MIN_TIMEOUT_MS, Math.min(MAX_TIMEOUT_MS, timeout));
+    }
+
+    // How long the peer may stay silent before the link is considered dead
+    public long getLivenessTimeoutMillis() {
+        return PING_INTERVAL_MS + 3 * getTimeoutMillis();
+    }
+
+    public synchronized boolean isPeerSilent() {
+        return clock.getAsLong() - lastPongAt > getLivenessTimeoutMillis();
+    }
+
+    // Convert a timestamp taken on the peer's clock into local time
+    public synchronized long toLocalTime(long peerTime) {
+        return peerTime - clockOffset;
+    }
+}
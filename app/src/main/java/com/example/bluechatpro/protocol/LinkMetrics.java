@@ -0,0 +1,79 @@
+package com.example.bluechatpro.protocol;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Live counters for one connection, readable from any thread
+public class LinkMetrics {
+
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong framesReceived = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong bytesBeforeCompression = new AtomicLong();
+    private final AtomicLong bytesAfterCompression = new AtomicLong();
+
+    private volatile long rttMillis = -1;
+    private volatile long smoothedRttMillis = -1;
+    private volatile long clockOffsetMillis;
+    private volatile String cipherSuite = "none";
+    private volatile String verificationCode;
+
+    void onFrameSent(int bytes) {
+        framesSent.incrementAndGet();
+        bytesSent.addAndGet(bytes);
+    }
+
+    void onFrameReceived(int bytes) {
+        framesReceived.incrementAndGet();
+        bytesReceived.addAndGet(bytes);
+    }
+
+    void onCompressed(int originalBytes, int compressedBytes) {
+        bytesBeforeCompression.addAndGet(originalBytes);
+        bytesAfterCompression.addAndGet(compressedBytes);
+    }
+
+    public void onSessionEstablished(String cipherSuite, String verificationCode) {
+        this.cipherSuite = cipherSuite;
+        this.verificationCode = verificationCode;
+    }
+
+    void onRttSample(long rtt, long smoothedRtt, long clockOffset) {
+        rttMillis = rtt;
+        smoothedRttMillis = smoothedRtt;
+        clockOffsetMillis = clockOffset;
+    }
+
+    public long getFramesSent() { return framesSent.get(); }
+    public long getFramesReceived() { return framesReceived.get(); }
+    public long getBytesSent() { return bytesSent.get(); }
+    public long getBytesReceived() { return bytesReceived.get(); }
+
+    // Compressed size over original size for frames that were compressed, 1.0 if none were
+    public double getCompressionRatio() {
+        long before = bytesBeforeCompression.get();
+        return before == 0 ? 1.0 : (double) bytesAfterCompression.get() / before;
+    }
+
+    // Last measured round trip, or -1 before the first pong
+    public long getRttMillis() { return rttMillis; }
+    public long getSmoothedRttMillis() { return smoothedRttMillis; }
+
+    // Estimated peer clock minus local clock
+    public long getClockOffsetMillis() { return clockOffsetMillis; }
+
+    public String getCipherSuite() { return cipherSuite; }
+
+    // Short code to compare with the peer's screen, or null when not encrypted
+    public String getVerificationCode() { return verificationCode; }
+
+    @Override
+    public String toString() {
+        return "Encryption: " + cipherSuite + (verificationCode != null ? " (code " + verificationCode + ")" : "") + "\n" +
+                "RTT: " + (smoothedRttMillis < 0 ? "n/a" : smoothedRttMillis + " ms") + "\n" +
+                "Clock offset: " + clockOffsetMillis + " ms\n" +
+                "Frames: " + framesSent.get() + " sent / " + framesReceived.get() + " received\n" +
+                "Bytes: " + bytesSent.get() + " sent / " + bytesReceived.get() + " received\n" +
+                "Compression: " + Math.round(getCompressionRatio() * 100) + "%";
+    }
+}
@@ -0,0 +1,61 @@
+package com.example.bluechatpro.protocol;
+
+// Cheap detection of payloads that are already compressed (images, audio, archives),
+// so we don't spend CPU deflating data that will not shrink.
+final class MediaSniffer {
+
+    private static final int SAMPLE_SIZE = 512;
+
+    // A sample this diverse is indistinguishable from random data
+    private static final int HIGH_ENTROPY_DISTINCT_BYTES = 200;
+
+    private MediaSniffer() {}
+
+    static boolean isCompressed(byte[] data, int offset, int length) {
+        return hasCompressedMagic(data, offset, length) || looksRandom(data, offset, length);
+    }
+
+    static boolean hasCompressedMagic(byte[] d, int o, int len) {
+        if (len < 4) {
+            return false;
+        }
+        int b0 = d[o] & 0xFF, b1 = d[o + 1] & 0xFF, b2 = d[o + 2] & 0xFF, b3 = d[o + 3] & 0xFF;
+
+        if (b0 == 0xFF && b1 == 0xD8 && b2 == 0xFF) return true;                 // JPEG
+        if (b0 == 0x89 && b1 == 'P' && b2 == 'N' && b3 == 'G') return true;     // PNG
+        if (b0 == 'G' && b1 == 'I' && b2 == 'F') return true;                   // GIF
+        if (b0 == 'P' && b1 == 'K' && b2 == 3 && b3 == 4) return true;          // ZIP, APK, DOCX
+        if (b0 == 0x1F && b1 == 0x8B) return true;                              // GZIP
+        if (b0 == 'O' && b1 == 'g' && b2 == 'g' && b3 == 'S') return true;      // OGG / Opus
+        if (b0 == '#' && b1 == '!' && b2 == 'A' && b3 == 'M') return true;      // AMR
+        if (b0 == 'I' && b1 == 'D' && b2 == '3') return true;                   // MP3
+        if (b0 == 0xFF && (b1 & 0xE0) == 0xE0) return true;                     // MPEG audio / AAC
+
+        if (len >= 12) {
+            int b4 = d[o + 4] & 0xFF, b5 = d[o + 5] & 0xFF, b6 = d[o + 6] & 0xFF, b7 = d[o + 7] & 0xFF;
+            if (b4 == 'f' && b5 == 't' && b6 == 'y' && b7 == 'p') return true;  // MP4, HEIC, 3GP
+            if (b0 == 'R' && b1 == 'I' && b2 == 'F' && b3 == 'F'
+                    && d[o + 8] == 'W' && d[o + 9] == 'E' && d[o + 10] == 'B' && d[o + 11] == 'P') {
+                return true;                                                    // WebP
+            }
+        }
+        return false;
+    }
+
+    static boolean looksRandom(byte[] data, int offset, int length) {
+        int sample = Math.min(length, SAMPLE_SIZE);
+        if (sample < SAMPLE_SIZE) {
+            return false;
+        }
+        boolean[] seen = new boolean[256];
+        int distinct = 0;
+        for (int i = 0; i < sample; i++) {
+            int b = data[offset + i] & 0xFF;
+            if (!seen[b]) {
+                seen[b] = true;
+                distinct++;
+            }
+        }
+        return distinct >= HIGH_ENTROPY_DISTINCT_BYTES;
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.bluechatpro.protocol;
+
+import java.util.function.LongSupplier;
+
+// Our typing and presence as seen on the peer's screen, sent as TYPE_PRESENCE
+// frames. Both live in one state byte, so whatever changed since the last frame
+// goes out together in the next one, and frames go out at most every
+// MIN_INTERVAL_MS however fast the user types. Keystrokes only note the time;
+// typing ends TYPING_IDLE_MS after the last one, or when the message is sent.
+// Payload: [state:1] of STATE_* bits.
+public class PresenceSender {
+
+    // The chat with the peer is on screen
+    public static final int STATE_ACTIVE = 1;
+    public static final int STATE_TYPING = 2;
+
+    // The first change goes out at once, later ones at most this often
+    static final long MIN_INTERVAL_MS = 250;
+    static final long TYPING_IDLE_MS = 3000;
+
+    public interface Scheduler {
+        // Run task on another thread after delayMillis
+        void schedule(Runnable task, long delayMillis);
+    }
+
+    public interface Sink {
+        // Write the frame; called on the scheduler's thread
+        void send(int state);
+    }
+
+    private final Scheduler scheduler;
+    private final Sink sink;
+    private final LongSupplier clock;
+
+    private int state;
+    private int sentState;
+    private long sentAt;
+    private long lastKeystrokeAt;
+    private boolean flushScheduled;
+    private boolean idleCheckScheduled;
+
+    public PresenceSender(Scheduler scheduler, Sink sink) {
+        this(scheduler, sink, System::currentTimeMillis);
+    }
+
+    PresenceSender(Scheduler scheduler, Sink sink, LongSupplier clock) {
+        this.scheduler = scheduler;
+        this.sink = sink;
+        this.clock = clock;
+        this.sentAt = clock.getAsLong() - MIN_INTERVAL_MS;
+    }
+
+    // Called for every edit of the message field; cheap when already typing
+    public synchronized void keystroke() {
+        lastKeystrokeAt = clock.getAsLong();
+        if ((state & STATE_TYPING) == 0) {
+            update(state | STATE_TYPING);
+        }
+        if (!idleCheckScheduled) {
+            idleCheckScheduled = true;
+            scheduler.schedule(this::checkIdle, TYPING_IDLE_MS);
+        }
+    }
+
+    // The message was sent or the field cleared
+    public synchronized void stopTyping() {
+        update(state & ~STATE_TYPING);
+    }
+
+    public synchronized void setActive(boolean active) {
+        update(active ? state | STATE_ACTIVE : state & ~STATE_ACTIVE);
+    }
+
+    public synchronized int getState() {
+        return state;
+    }
+
+    private void update(int newState) {
+        state = newState;
+        if (state == sentState || flushScheduled) {
+            return;
+        }
+        flushScheduled = true;
+        long wait = sentAt + MIN_INTERVAL_MS - clock.getAsLong();
+        scheduler.schedule(this::flush, Math.max(0, wait));
+    }
+
+    private void flush() {
+        int toSend;
+        synchronized (this) {
+            flushScheduled = false;
+            // Changed back before the frame went out: nothing to say
+            if (state == sentState) {
+                return;
+            }
+            toSend = state;
+            sentState = state;
+            sentAt = clock.getAsLong();
+        }
+        sink.send(toSend);
+    }
+
+    // One timer for the whole run of keystrokes, moved along as they come
+    private synchronized void checkIdle() {
+        idleCheckScheduled = false;
+        if ((state & STATE_TYPING) == 0) {
+            return;
+        }
+        long idle = clock.getAsLong() - lastKeystrokeAt;
+        if (idle >= TYPING_IDLE_MS) {
+            update(state & ~STATE_TYPING);
+        } else {
+            idleCheckScheduled = true;
+            scheduler.schedule(this::checkIdle, TYPING_IDLE_MS - idle);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.bluechatpro.protocol;
+
+import java.util.Random;
+
+// Delays between attempts to get a lost connection back. Each failed attempt
+// doubles the wait, up to MAX_DELAY_MS, so a peer that has walked away is not
+// paged every few seconds until the battery runs out. Each delay is drawn from
+// its upper half, so two phones that lost each other at the same moment do not
+// keep calling at the same moment either. A connection that comes up starts
+// the sequence over.
+public class ReconnectBackoff {
+
+    static final long MAX_DELAY_MS = 60_000;
+
+    private final Random random;
+    private int attempts;
+
+    public ReconnectBackoff() {
+        this(new Random());
+    }
+
+    ReconnectBackoff(Random random) {
+        this.random = random;
+    }
+
+    // Delay before the next attempt; baseMillis is the first, e.g. scaled by the
+    // link's last RTT
+    public synchronized long nextDelayMillis(long baseMillis) {
+        long delay = Math.min(MAX_DELAY_MS, baseMillis << Math.min(attempts, 16));
+        attempts++;
+        long half = delay / 2;
+        return half + (long) (random.nextDouble() * (delay - half));
+    }
+
+    public synchronized void reset() {
+        attempts = 0;
+    }
+}
@@ -0,0 +1,193 @@
+package com.example.bluechatpro.protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Locale;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+// AES-256-GCM for one connection, keyed from an ephemeral ECDH exchange.
+// Each direction has its own key and a 64-bit frame counter as nonce. The stream
+// is ordered and reliable, so the counter is implicit and never sent; only the
+// 16-byte tag is added per frame. The frame type and flags are authenticated too.
+// Both hellos are part of the key derivation, so tampering with either one
+// leaves the two sides unable to read each other. The exchange itself is
+// unauthenticated: users can compare the verification code on both screens to
+// rule out a man in the middle.
+public class SessionCipher {
+
+    public static final int TAG_SIZE = 16;
+    private static final int NONCE_SIZE = 12;
+    public static final String SUITE = "ECDH-P256/AES-256-GCM";
+
+    private static final byte[] INFO = "BlueChatPro session v1".getBytes(StandardCharsets.US_ASCII);
+
+    private final String verificationCode;
+
+    // Cipher instances and buffers are reused for every frame; only the init for
+    // each new nonce allocates. Sealing runs under the channel's write lock and
+    // opening on the reader thread, so each side has its own.
+    private final Cipher sealCipher;
+    private final Cipher openCipher;
+    private final SecretKey sendKey;
+    private final SecretKey receiveKey;
+    private final byte[] sealNonce = new byte[NONCE_SIZE];
+    private final byte[] openNonce = new byte[NONCE_SIZE];
+    private final byte[] sealAad = new byte[2];
+    private final byte[] openAad = new byte[2];
+    private long sealCounter;
+    private long openCounter;
+    private byte[] sealed = new byte[1024];
+    private byte[] opened = new byte[1024];
+
+    private SessionCipher(SecretKey sendKey, SecretKey receiveKey, String verificationCode)
+            throws GeneralSecurityException {
+        this.verificationCode = verificationCode;
+        this.sendKey = sendKey;
+        this.receiveKey = receiveKey;
+        this.sealCipher = Cipher.getInstance("AES/GCM/NoPadding");
+        this.openCipher = Cipher.getInstance("AES/GCM/NoPadding");
+    }
+
+    public static KeyPair generateKeyPair() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        return generator.generateKeyPair();
+    }
+
+    // Derive the session from our key pair, the peer's encoded public key and the
+    // hellos each side sent
+    public static SessionCipher establish(KeyPair local, byte[] peerPublicKey, byte[] localHello,
+            byte[] peerHello) throws GeneralSecurityException {
+        PublicKey peerKey = KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(peerPublicKey));
+        KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+        agreement.init(local.getPrivate());
+        agreement.doPhase(peerKey, true);
+        byte[] secret = agreement.generateSecret();
+
+        // Order the two public keys so both sides build the same transcript
+        byte[] localPublicKey = local.getPublic().getEncoded();
+        boolean localFirst = compare(localPublicKey, peerPublicKey) < 0;
+        byte[] first = localFirst ? localPublicKey : peerPublicKey;
+        byte[] second = localFirst ? peerPublicKey : localPublicKey;
+        byte[] salt = new byte[first.length + second.length];
+        System.arraycopy(first, 0, salt, 0, first.length);
+        System.arraycopy(second, 0, salt, first.length, second.length);
+        byte[] info = concat(INFO, localFirst ? localHello : peerHello, localFirst ? peerHello : localHello);
+
+        byte[] material = hkdf(salt, secret, info, 68);
+        SecretKey firstKey = new SecretKeySpec(material, 0, 32, "AES");
+        SecretKey secondKey = new SecretKeySpec(material, 32, 32, "AES");
+        int code = (Frame.readInt(material, 64) & 0x7FFFFFFF) % 1_000_000;
+
+        Arrays.fill(secret, (byte) 0);
+        Arrays.fill(material, (byte) 0);
+
+        return new SessionCipher(localFirst ? firstKey : secondKey, localFirst ? secondKey : firstKey,
+                String.format(Locale.US, "%06d", code));
+    }
+
+    // Encrypt a payload; the ciphertext and tag land in getSealed()
+    public int seal(byte type, byte flags, byte[] payload, int offset, int length) throws GeneralSecurityException {
+        sealed = ensureCapacity(sealed, length + TAG_SIZE);
+        Frame.writeLong(sealNonce, 4, sealCounter++);
+        sealAad[0] = type;
+        sealAad[1] = flags;
+        sealCipher.init(Cipher.ENCRYPT_MODE, sendKey, new GCMParameterSpec(TAG_SIZE * 8, sealNonce));
+        sealCipher.updateAAD(sealAad);
+        return sealCipher.doFinal(payload, offset, length, sealed, 0);
+    }
+
+    public byte[] getSealed() {
+        return sealed;
+    }
+
+    // Decrypt and verify a payload; the plaintext lands in getOpened()
+    public int open(byte type, byte flags, byte[] payload, int length) throws GeneralSecurityException {
+        return open(type, flags, payload, 0, length);
+    }
+
+    public int open(byte type, byte flags, byte[] payload, int offset, int length) throws GeneralSecurityException {
+        if (length < TAG_SIZE) {
+            throw new GeneralSecurityException("Frame shorter than tag");
+        }
+        opened = ensureCapacity(opened, length);
+        Frame.writeLong(openNonce, 4, openCounter++);
+        openAad[0] = type;
+        openAad[1] = flags;
+        openCipher.init(Cipher.DECRYPT_MODE, receiveKey, new GCMParameterSpec(TAG_SIZE * 8, openNonce));
+        openCipher.updateAAD(openAad);
+        return openCipher.doFinal(payload, offset, length, opened, 0);
+    }
+
+    public byte[] getOpened() {
+        return opened;
+    }
+
+    // Six digits both users should see on their screens
+    public String getVerificationCode() {
+        return verificationCode;
+    }
+
+    // RFC 5869 HKDF with SHA-256
+    private static byte[] hkdf(byte[] salt, byte[] secret, byte[] info, int length)
+            throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+        byte[] pseudoRandomKey = mac.doFinal(secret);
+
+        mac.init(new SecretKeySpec(pseudoRandomKey, "HmacSHA256"));
+        byte[] result = new byte[length];
+        byte[] block = new byte[0];
+        int written = 0;
+        for (int counter = 1; written < length; counter++) {
+            mac.update(block);
+            mac.update(info);
+            mac.update((byte) counter);
+            block = mac.doFinal();
+            int n = Math.min(block.length, length - written);
+            System.arraycopy(block, 0, result, written, n);
+            written += n;
+        }
+        return result;
+    }
+
+    // Each part after the first is length-prefixed, so no two transcripts collide
+    private static byte[] concat(byte[] label, byte[] first, byte[] second) {
+        byte[] result = new byte[label.length + 4 + first.length + 4 + second.length];
+        System.arraycopy(label, 0, result, 0, label.length);
+        int at = label.length;
+        Frame.writeInt(result, at, first.length);
+        System.arraycopy(first, 0, result, at + 4, first.length);
+        at += 4 + first.length;
+        Frame.writeInt(result, at, second.length);
+        System.arraycopy(second, 0, result, at + 4, second.length);
+        return result;
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private static byte[] ensureCapacity(byte[] buffer, int size) {
+        return buffer.length >= size ? buffer : new byte[Math.max(size, buffer.length * 2)];
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.bluechatpro.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+// UTF-8 text codec with reusable coder state and buffers.
+// Decoding is incremental: a multibyte sequence cut off at the end of one chunk
+// is carried over and completed by the next, so chunk boundaries can fall anywhere.
+// Not thread-safe; use one instance per direction.
+public class Utf8Codec {
+
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private ByteBuffer encoded = ByteBuffer.allocate(256);
+    private final CharBuffer decoded = CharBuffer.allocate(256);
+
+    // Holds at most one incomplete sequence (3 bytes) plus the chunk being decoded
+    private ByteBuffer pending = ByteBuffer.allocate(256);
+
+    // Encode text; the returned buffer is ready to read and valid until the next call
+    public ByteBuffer encode(CharSequence text) {
+        int needed = (int) (text.length() * (double) encoder.maxBytesPerChar());
+        if (encoded.capacity() < needed) {
+            encoded = ByteBuffer.allocate(Math.max(needed, encoded.capacity() * 2));
+        }
+        encoded.clear();
+        encoder.reset();
+
+        CharBuffer input = CharBuffer.wrap(text);
+        encoder.encode(input, encoded, true);
+        encoder.flush(encoded);
+        encoded.flip();
+        return encoded;
+    }
+
+    // Encode text straight into a caller-supplied buffer that has room for maxEncodedLength()
+    public void encodeInto(CharSequence text, ByteBuffer out) {
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(text), out, true);
+        encoder.flush(out);
+    }
+
+    public static int maxEncodedLength(CharSequence text) {
+        return text.length() * 3;
+    }
+
+    // Exact number of bytes encode() produces, without encoding
+    public static int encodedLength(CharSequence text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1; // unpaired surrogate is replaced with '?'
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    // Decode the next chunk of a message, appending complete characters to out
+    public void decode(byte[] bytes, int offset, int length, StringBuilder out) {
+        ByteBuffer input;
+        if (pending.position() == 0) {
+            input = ByteBuffer.wrap(bytes, offset, length);
+        } else {
+            // Join the carried-over tail with the new chunk
+            if (pending.remaining() < length) {
+                ByteBuffer grown = ByteBuffer.allocate(pending.position() + length);
+                pending.flip();
+                grown.put(pending);
+                pending = grown;
+            }
+            pending.put(bytes, offset, length);
+            pending.flip();
+            input = pending;
+        }
+
+        drain(input, false, out);
+
+        // Keep any incomplete trailing sequence for the next chunk
+        if (input == pending) {
+            pending.compact();
+        } else {
+            pending.clear();
+            pending.put(input);
+        }
+    }
+
+    // End of message: flush decoder state; a dangling partial sequence becomes U+FFFD
+    public void finish(StringBuilder out) {
+        pending.flip();
+        drain(pending, true, out);
+        decoder.flush(decoded);
+        appendDecoded(out);
+        reset();
+    }
+
+    public void reset() {
+        decoder.reset();
+        pending.clear();
+        decoded.clear();
+    }
+
+    // Convenience for whole messages
+    public String decode(byte[] bytes, int offset, int length) {
+        StringBuilder out = new StringBuilder(length);
+        decode(bytes, offset, length, out);
+        finish(out);
+        return out.toString();
+    }
+
+    private void drain(ByteBuffer input, boolean endOfInput, StringBuilder out) {
+        while (true) {
+            CoderResult result = decoder.decode(input, decoded, endOfInput);
+            appendDecoded(out);
+            if (result.isUnderflow()) {
+                return;
+            }
+            if (result.isError()) {
+                try {
+                    result.throwException();
+                } catch (CharacterCodingException e) {
+                    // Unreachable with REPLACE actions
+                    return;
+                }
+            }
+        }
+    }
+
+    private void appendDecoded(StringBuilder out) {
+        decoded.flip();
+        out.append(decoded);
+        decoded.clear();
+    }
+}
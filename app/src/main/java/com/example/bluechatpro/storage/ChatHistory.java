@@ -0,0 +1,640 @@
+package com.example.bluechatpro.storage;
+
+import android.util.Log;
+
+import com.example.bluechatpro.models.ChatMessage;
+import com.example.bluechatpro.models.Conversation;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Persisted chat history for all peers: the message log plus the indexes kept
+// over it. Log work runs on one background thread in submission order; the
+// conversation summaries have their own thread so the conversation list never
+// waits behind a log scan. Results are handed back through the callback executor
+// (the main thread in the app).
+//
+// Retention is enforced by compacting the log on a third thread: it plans and
+// copies while the worker goes on appending and reading, then the worker swaps
+// the files and moves the indexes over to the new ids. Clearing a conversation
+// rides on the same path: its messages are recorded as expired at once, hidden
+// from then on, and dropped from the log by the next compaction.
+public class ChatHistory {
+
+    private static final String TAG = "ChatHistory";
+
+    // Summaries are written at most this often while messages flow
+    private static final long SUMMARY_SAVE_DELAY_MS = 2000;
+    // Retention is checked again after this many new messages
+    private static final int COMPACTION_CHECK_APPENDS = 2000;
+    // The search index is saved again after this many new messages
+    private static final int SEARCH_SAVE_APPENDS = 10_000;
+
+    public interface Callback<T> {
+        void onResult(T result);
+    }
+
+    // One page of search results, newest first
+    public static class SearchPage {
+        public final String query;
+        public final int total;
+        public final int offset;
+        public final List<ChatMessage> messages;
+
+        SearchPage(String query, int total, int offset, List<ChatMessage> messages) {
+            this.query = query;
+            this.total = total;
+            this.offset = offset;
+            this.messages = messages;
+        }
+    }
+
+    // One reconciliation of a conversation with the peer's copy
+    public final class PeerSync {
+        private final HistorySync sync;
+        private final Callback<List<ChatMessage>> onReceived;
+
+        PeerSync(HistorySync sync, Callback<List<ChatMessage>> onReceived) {
+            this.sync = sync;
+            this.onReceived = onReceived;
+        }
+
+        // Hand over a TYPE_HISTORY_SYNC frame; the payload must not be reused
+        public void onFrame(byte[] payload) {
+            worker.execute(() -> {
+                try {
+                    List<ChatMessage> received = sync.onFrame(payload, 0, payload.length);
+                    if (!received.isEmpty()) {
+                        scheduleSummarySave();
+                        callbackExecutor.execute(() -> onReceived.onResult(received));
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "History sync failed", e);
+                }
+            });
+        }
+    }
+
+    private final ExecutorService worker = Executors.newSingleThreadExecutor();
+    private final ScheduledExecutorService summaryWorker = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor();
+    private final Executor callbackExecutor;
+    private final SearchIndex searchIndex = new SearchIndex();
+    private final Map<String, PostingList> peerMessages = new HashMap<>();
+    private final ConversationIndex conversationIndex = new ConversationIndex();
+    private final Map<String, SyncSet> syncSets = new HashMap<>();
+    // Log ids of cleared messages still waiting for a compaction to drop them
+    private final BitSet cleared = new BitSet();
+    private final SecureRandom random = new SecureRandom();
+    private final RetentionSettings retention = new RetentionSettings();
+    private final PeerTable peers;
+    private final File summaryFile;
+    private final File searchFile;
+    private final File retentionFile;
+    private final ExpiredIds expiredIds;
+    private final Future<?> summariesLoaded;
+    private final AtomicBoolean summarySavePending = new AtomicBoolean();
+    private MessageLog log;
+    private boolean compacting;
+    private int appendsSinceCompaction;
+    private int appendsSinceSearchSave;
+
+    // Last search, kept so further pages do not rerun the query
+    private String lastQuery;
+    private SearchIndex.Hits lastHits;
+
+    public ChatHistory(File directory, Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+        summaryFile = new File(directory, "conversations.idx");
+        searchFile = new File(directory, "search.idx");
+        retentionFile = new File(directory, "retention.cfg");
+        peers = new PeerTable(new File(directory, "peers.tbl"));
+        expiredIds = new ExpiredIds(new File(directory, "expired.ids"));
+        summariesLoaded = summaryWorker.submit(this::loadSummaries);
+        File logFile = new File(directory, "messages.log");
+        worker.execute(() -> open(logFile));
+    }
+
+    public void append(String peer, ChatMessage message) {
+        worker.execute(() -> {
+            if (log == null) {
+                return;
+            }
+            // Already here if history sync brought it before it arrived live
+            String messageId = message.getMessageId();
+            if (messageId != null && syncSet(peer).contains(SyncSet.hash(messageId))) {
+                return;
+            }
+            try {
+                int id = log.append(peer, message);
+                index(id, peer, message);
+                scheduleSummarySave();
+                onAppended();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to persist message", e);
+            }
+        });
+    }
+
+    // The peer acknowledged a message we sent it. Queued behind the message's
+    // own append, so it always finds it.
+    public void markDelivered(String peer, String messageId) {
+        worker.execute(() -> {
+            int id = log != null ? syncSet(peer).id(SyncSet.hash(messageId)) : -1;
+            if (id < 0) {
+                return;
+            }
+            try {
+                ChatMessage.MessageStatus status = log.read(id).getStatus();
+                if (status == ChatMessage.MessageStatus.SENDING || status == ChatMessage.MessageStatus.SENT
+                        || status == ChatMessage.MessageStatus.FAILED) {
+                    log.setStatus(id, ChatMessage.MessageStatus.DELIVERED);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to save delivery of " + messageId, e);
+            }
+        });
+    }
+
+    // Delete every message exchanged with peer so far. Their ids are saved as
+    // expired straight away, so neither a restart nor history sync brings them
+    // back before compaction has removed them from the log.
+    public void clearConversation(String peer) {
+        worker.execute(() -> {
+            PostingList ids = peerMessages.put(peer, new PostingList());
+            if (ids != null) {
+                for (int id : ids.toArray()) {
+                    cleared.set(id);
+                }
+            }
+            SyncSet set = syncSet(peer);
+            long[] hashes = set.hashes(SyncSet.MIN, SyncSet.MAX);
+            int count = 0;
+            for (long hash : hashes) {
+                if (set.drop(hash) >= 0) {
+                    hashes[count++] = hash;
+                }
+            }
+            try {
+                expiredIds.append(peer, Arrays.copyOf(hashes, count));
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to record cleared messages", e);
+            }
+            conversationIndex.onCleared(peer);
+            lastQuery = null;
+            lastHits = null;
+            scheduleSummarySave();
+            scheduleCompaction();
+        });
+    }
+
+    // Every device messages have come from; live messages should take their
+    // senders from here so they share one Peer with the stored ones
+    public PeerTable getPeers() {
+        return peers;
+    }
+
+    // Show name for peer everywhere at once, stored messages included
+    public void renamePeer(String peer, String name) {
+        worker.execute(() -> {
+            try {
+                peers.rename(peer, name);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to save peer name", e);
+            }
+            conversationIndex.rename(peer, name);
+            scheduleSummarySave();
+        });
+    }
+
+    // Clear the unread count once the user has seen the conversation.
+    // Queued behind pending appends so it covers them too.
+    public void markRead(String peer) {
+        worker.execute(() -> {
+            conversationIndex.markRead(peer);
+            scheduleSummarySave();
+        });
+    }
+
+    // All conversations, most recent first, straight from the saved summaries
+    public void loadConversations(Callback<List<Conversation>> callback) {
+        summaryWorker.execute(() -> {
+            List<Conversation> conversations = conversationIndex.snapshot();
+            callbackExecutor.execute(() -> callback.onResult(conversations));
+        });
+    }
+
+    // Most recent messages exchanged with peer, oldest first
+    public void loadConversation(String peer, int limit, Callback<List<ChatMessage>> callback) {
+        worker.execute(() -> {
+            List<ChatMessage> messages = new ArrayList<>();
+            PostingList ids = peerMessages.get(peer);
+            if (ids != null) {
+                int[] all = ids.toArray();
+                for (int i = Math.max(0, all.length - limit); i < all.length; i++) {
+                    ChatMessage message = read(all[i]);
+                    if (message != null) {
+                        messages.add(message);
+                    }
+                }
+            }
+            callbackExecutor.execute(() -> callback.onResult(messages));
+        });
+    }
+
+    public void search(String query, int offset, int limit, Callback<SearchPage> callback) {
+        worker.execute(() -> {
+            if (!query.equals(lastQuery)) {
+                lastQuery = query;
+                lastHits = searchIndex.search(query);
+            }
+
+            List<ChatMessage> messages = new ArrayList<>();
+            for (int id : lastHits.page(offset, limit)) {
+                ChatMessage message = !cleared.get(id) ? read(id) : null;
+                if (message != null) {
+                    messages.add(message);
+                }
+            }
+            SearchPage page = new SearchPage(query, lastHits.size(), offset, messages);
+            callbackExecutor.execute(() -> callback.onResult(page));
+        });
+    }
+
+    // Start bringing the conversation with peer and the peer's own copy of it up
+    // to the union of the two. Frames for the peer go out through link, from the
+    // worker thread; messages only the peer had are stored and then handed to the
+    // callback a frame's worth at a time.
+    public PeerSync startSync(String peer, HistorySync.Link link, Callback<List<ChatMessage>> onReceived) {
+        HistorySync sync = new HistorySync(new PeerStore(peer), link, random.nextLong());
+        worker.execute(() -> {
+            try {
+                sync.start();
+            } catch (IOException e) {
+                Log.e(TAG, "History sync failed to start", e);
+            }
+        });
+        return new PeerSync(sync, onReceived);
+    }
+
+    // Limits for every conversation without its own policy; not saved, so the
+    // app sets it on each start
+    public void setDefaultRetention(RetentionPolicy policy) {
+        worker.execute(() -> {
+            retention.setDefault(policy);
+            scheduleCompaction();
+        });
+    }
+
+    // Limits for one conversation, or null for the default. Saved.
+    public void setRetention(String peer, RetentionPolicy policy) {
+        worker.execute(() -> {
+            retention.set(peer, policy);
+            try {
+                retention.save(retentionFile);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to save retention settings", e);
+            }
+            scheduleCompaction();
+        });
+    }
+
+    public void close() {
+        worker.execute(() -> {
+            compactor.shutdownNow();
+            if (log != null && appendsSinceSearchSave > 0) {
+                saveSearchIndex();
+            }
+            try {
+                if (log != null) {
+                    log.close();
+                    log = null;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to close message log", e);
+            }
+            summaryWorker.execute(this::saveSummaries);
+            summaryWorker.shutdown();
+        });
+        worker.shutdown();
+    }
+
+    // Open the log and rebuild the in-memory indexes from it, starting from the
+    // saved summaries and search index
+    private void open(File file) {
+        try {
+            // Log records name their senders by id in the table
+            peers.load();
+            log = new MessageLog(file, peers);
+
+            // Summaries are replayed only for messages appended after they were saved
+            summariesLoaded.get();
+            if (conversationIndex.getLastId() >= log.size()) {
+                conversationIndex.clear();
+            }
+            boolean stale = conversationIndex.getLastId() < log.size() - 1;
+
+            // So is the search index; the scan only decodes the content of
+            // messages one of the two still needs
+            loadSearchIndex();
+            appendsSinceSearchSave = log.size() - 1 - searchIndex.getMaxId();
+
+            loadRetention();
+
+            log.scan(this::index, Math.min(searchIndex.getMaxId(), conversationIndex.getLastId()) + 1);
+            if (appendsSinceSearchSave >= SEARCH_SAVE_APPENDS) {
+                saveSearchIndex();
+            }
+            if (stale) {
+                scheduleSummarySave();
+            }
+            scheduleCompaction();
+        } catch (IOException | ExecutionException e) {
+            Log.e(TAG, "Failed to open message log", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void loadRetention() {
+        try {
+            retention.load(retentionFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load retention settings", e);
+        }
+        // Messages retention dropped still count as known to history sync
+        try {
+            expiredIds.load((peer, hash) -> syncSet(peer).add(hash, -1));
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load expired message ids", e);
+        }
+    }
+
+    private void loadSearchIndex() {
+        try {
+            searchIndex.load(searchFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load search index", e);
+        }
+        if (searchIndex.getMaxId() >= log.size()) {
+            searchIndex.clear();
+        }
+    }
+
+    // On the worker, so the index cannot change while it is written
+    private void saveSearchIndex() {
+        appendsSinceSearchSave = 0;
+        try {
+            searchIndex.save(searchFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save search index", e);
+        }
+    }
+
+    private void loadSummaries() {
+        try {
+            conversationIndex.load(summaryFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load conversation summaries", e);
+            conversationIndex.clear();
+        }
+    }
+
+    private void saveSummaries() {
+        summarySavePending.set(false);
+        if (!conversationIndex.isDirty()) {
+            return;
+        }
+        try {
+            conversationIndex.save(summaryFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save conversation summaries", e);
+        }
+    }
+
+    private void scheduleSummarySave() {
+        if (summarySavePending.compareAndSet(false, true)) {
+            summaryWorker.schedule(this::saveSummaries, SUMMARY_SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void index(int id, String peer, ChatMessage message) {
+        // Cleared before the last compaction could drop it
+        if (message.getMessageId() != null) {
+            long hash = SyncSet.hash(message.getMessageId());
+            if (syncSet(peer).contains(hash) && syncSet(peer).id(hash) < 0) {
+                cleared.set(id);
+                return;
+            }
+        }
+
+        // Image and voice messages only carry a file name, nothing worth searching
+        if (message.getType() != ChatMessage.MessageType.IMAGE
+                && message.getType() != ChatMessage.MessageType.VOICE) {
+            searchIndex.add(id, message.getContent());
+        }
+        conversationIndex.onAppend(id, peer, message);
+
+        PostingList ids = peerMessages.get(peer);
+        if (ids == null) {
+            ids = new PostingList();
+            peerMessages.put(peer, ids);
+        }
+        ids.add(id);
+        if (message.getMessageId() != null) {
+            syncSet(peer).add(SyncSet.hash(message.getMessageId()), id);
+        }
+
+        // New messages may match the cached query
+        lastQuery = null;
+        lastHits = null;
+    }
+
+    private void onAppended() {
+        if (++appendsSinceCompaction >= COMPACTION_CHECK_APPENDS) {
+            scheduleCompaction();
+        }
+        if (++appendsSinceSearchSave >= SEARCH_SAVE_APPENDS) {
+            saveSearchIndex();
+        }
+    }
+
+    // On the worker. The compactor reads and copies the log; the result comes
+    // back here to be committed between other log work.
+    private void scheduleCompaction() {
+        if (log == null || compacting || (!retention.limitsAnything() && cleared.isEmpty())) {
+            return;
+        }
+        compacting = true;
+        appendsSinceCompaction = 0;
+        MessageLog target = log;
+        MessageLog.Planner planner = retention.planner(System.currentTimeMillis(), (BitSet) cleared.clone());
+        try {
+            compactor.execute(() -> {
+                long start = System.nanoTime();
+                MessageLog.Compaction compaction = null;
+                try {
+                    compaction = target.compact(planner);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to compact message log", e);
+                }
+                MessageLog.Compaction done = compaction;
+                try {
+                    worker.execute(() -> finishCompaction(target, done, start));
+                } catch (RejectedExecutionException e) {
+                    // Closed meanwhile
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            compacting = false;
+        }
+    }
+
+    private void finishCompaction(MessageLog target, MessageLog.Compaction compaction, long start) {
+        compacting = false;
+        if (compaction == null || log != target) {
+            return;
+        }
+        // The saved search index names messages by the ids about to change; a
+        // crash before it is saved again rebuilds it from the log
+        if (searchFile.exists() && !searchFile.delete()) {
+            Log.e(TAG, "Could not remove the old search index");
+        }
+        int[] map;
+        try {
+            map = log.commit(compaction);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to commit compaction", e);
+            return;
+        }
+
+        // Ids of kept messages closed up; move every index over. Only messages
+        // cleared while the compaction ran are still left to drop.
+        BitSet remaining = new BitSet();
+        for (int id = cleared.nextSetBit(0); id >= 0 && id < map.length; id = cleared.nextSetBit(id + 1)) {
+            if (map[id] >= 0) {
+                remaining.set(map[id]);
+            }
+        }
+        cleared.clear();
+        cleared.or(remaining);
+        searchIndex.remap(map);
+        saveSearchIndex();
+        Map<String, Integer> counts = new HashMap<>();
+        for (Map.Entry<String, PostingList> peer : peerMessages.entrySet()) {
+            PostingList remapped = peer.getValue().remap(map);
+            peer.setValue(remapped);
+            counts.put(peer.getKey(), remapped.count());
+        }
+        // The expired ids are written afresh, one batch per peer; if that
+        // fails, the ones just dropped are appended as before
+        Map<String, long[]> dropped = new HashMap<>();
+        Map<String, long[]> expired = new HashMap<>();
+        for (Map.Entry<String, SyncSet> peer : syncSets.entrySet()) {
+            dropped.put(peer.getKey(), peer.getValue().remap(map));
+            expired.put(peer.getKey(), peer.getValue().droppedHashes());
+        }
+        try {
+            expiredIds.rewrite(expired);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to rewrite expired message ids", e);
+            try {
+                for (Map.Entry<String, long[]> peer : dropped.entrySet()) {
+                    expiredIds.append(peer.getKey(), peer.getValue());
+                }
+            } catch (IOException again) {
+                Log.e(TAG, "Failed to record expired messages", again);
+            }
+        }
+        conversationIndex.onCompacted(map, counts);
+        lastQuery = null;
+        lastHits = null;
+        summaryWorker.execute(this::saveSummaries);
+
+        Log.i(TAG, "Compaction dropped " + compaction.dropped + " messages, read "
+                + compaction.bytesRead / 1024 + " KB, wrote " + compaction.bytesWritten / 1024 + " KB in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+        if (!cleared.isEmpty()) {
+            scheduleCompaction();
+        }
+    }
+
+    private SyncSet syncSet(String peer) {
+        SyncSet set = syncSets.get(peer);
+        if (set == null) {
+            set = new SyncSet();
+            syncSets.put(peer, set);
+        }
+        return set;
+    }
+
+    private ChatMessage read(int id) {
+        if (log == null) {
+            return null;
+        }
+        try {
+            return log.read(id);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read message " + id, e);
+            return null;
+        }
+    }
+
+    // The conversation with one peer as HistorySync sees it, on the worker
+    private final class PeerStore implements HistorySync.Store {
+        private final String peer;
+
+        PeerStore(String peer) {
+            this.peer = peer;
+        }
+
+        @Override
+        public SyncSet getSet() {
+            return syncSet(peer);
+        }
+
+        @Override
+        public ChatMessage read(int id) throws IOException {
+            if (log == null) {
+                throw new IOException("Message log is not open");
+            }
+            return log.read(id);
+        }
+
+        @Override
+        public boolean add(ChatMessage message) throws IOException {
+            if (log == null) {
+                throw new IOException("Message log is not open");
+            }
+            // Kept by the peer longer than we keep anything; remembered as dropped
+            if (retention.get(peer).isExpired(message.getTimestamp(), System.currentTimeMillis())) {
+                long hash = SyncSet.hash(message.getMessageId());
+                syncSet(peer).add(hash, -1);
+                expiredIds.append(peer, new long[] {hash});
+                return false;
+            }
+            if (!message.isSent()) {
+                message.setSender(peers.intern(peer, message.getSenderName()));
+            }
+            index(log.append(peer, message), peer, message);
+            onAppended();
+            return true;
+        }
+    }
+}
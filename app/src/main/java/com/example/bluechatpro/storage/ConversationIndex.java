@@ -0,0 +1,222 @@
+package com.example.bluechatpro.storage;
+
+import com.example.bluechatpro.models.ChatMessage;
+import com.example.bluechatpro.models.Conversation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Per-peer summary of the message log: last message, its time and the unread count.
+// Each append updates one entry in constant time. The summaries are saved to their own
+// small file, so the conversation list can be shown without reading the message log.
+// The file records the last log id it covers; anything appended after that is
+// replayed from the log on startup.
+public class ConversationIndex {
+
+    private static final int FORMAT_VERSION = 1;
+
+    // Enough of the last message for a one-line preview
+    static final int PREVIEW_LENGTH = 100;
+
+    private final Map<String, Conversation> conversations = new HashMap<>();
+    private int lastId = -1;
+    private boolean dirty;
+
+    public synchronized void onAppend(int id, String peer, ChatMessage message) {
+        if (id <= lastId) {
+            return;
+        }
+        lastId = id;
+
+        Conversation conversation = conversations.get(peer);
+        if (conversation == null) {
+            conversation = new Conversation(peer);
+            conversations.put(peer, conversation);
+        }
+
+        // History sync appends older messages after newer ones; the preview
+        // stays with the newest
+        if (message.getTimestamp() >= conversation.getLastTimestamp()) {
+            conversation.setLastMessage(preview(message));
+            conversation.setLastSent(message.isSent());
+            conversation.setLastTimestamp(message.getTimestamp());
+        }
+        conversation.setMessageCount(conversation.getMessageCount() + 1);
+        if (!message.isSent()) {
+            conversation.setUnreadCount(conversation.getUnreadCount() + 1);
+            if (message.getSenderName() != null) {
+                conversation.setPeerName(message.getSenderName());
+            }
+        }
+        dirty = true;
+    }
+
+    private static String preview(ChatMessage message) {
+        if (message.getType() == ChatMessage.MessageType.IMAGE) {
+            return "Photo";
+        } else if (message.getType() == ChatMessage.MessageType.VOICE) {
+            return "Voice message";
+        }
+        String content = message.getContent() != null ? message.getContent() : "";
+        if (content.length() > PREVIEW_LENGTH) {
+            int end = PREVIEW_LENGTH;
+            if (Character.isHighSurrogate(content.charAt(end - 1))) {
+                end--;
+            }
+            content = content.substring(0, end);
+        }
+        return content;
+    }
+
+    public synchronized void clear() {
+        conversations.clear();
+        lastId = -1;
+        dirty = true;
+    }
+
+    // Follow a log compaction: ids move down by map, and each conversation keeps
+    // counts[peer] messages. A conversation emptied by retention stays listed
+    // with its last preview.
+    public synchronized void onCompacted(int[] map, Map<String, Integer> counts) {
+        int newLastId = -1;
+        for (int id = Math.min(lastId, map.length - 1); id >= 0 && newLastId < 0; id--) {
+            newLastId = map[id];
+        }
+        lastId = newLastId;
+        for (Conversation conversation : conversations.values()) {
+            Integer count = counts.get(conversation.getPeerAddress());
+            int remaining = count != null ? count : 0;
+            conversation.setMessageCount(remaining);
+            conversation.setUnreadCount(Math.min(conversation.getUnreadCount(), remaining));
+        }
+        dirty = true;
+    }
+
+    // The user cleared the conversation; it stays listed, empty
+    public synchronized void onCleared(String peer) {
+        Conversation conversation = conversations.get(peer);
+        if (conversation != null) {
+            conversation.setLastMessage("");
+            conversation.setLastSent(false);
+            conversation.setMessageCount(0);
+            conversation.setUnreadCount(0);
+            dirty = true;
+        }
+    }
+
+    public synchronized void rename(String peer, String name) {
+        Conversation conversation = conversations.get(peer);
+        if (conversation != null && name != null && !name.equals(conversation.getPeerName())) {
+            conversation.setPeerName(name);
+            dirty = true;
+        }
+    }
+
+    public synchronized void markRead(String peer) {
+        Conversation conversation = conversations.get(peer);
+        if (conversation != null && conversation.getUnreadCount() != 0) {
+            conversation.setUnreadCount(0);
+            dirty = true;
+        }
+    }
+
+    // Highest log id reflected in the summaries
+    public synchronized int getLastId() {
+        return lastId;
+    }
+
+    public synchronized boolean isDirty() {
+        return dirty;
+    }
+
+    // Copies of all summaries, most recent conversation first
+    public synchronized List<Conversation> snapshot() {
+        List<Conversation> list = new ArrayList<>(conversations.size());
+        for (Conversation conversation : conversations.values()) {
+            list.add(new Conversation(conversation));
+        }
+        list.sort((a, b) -> Long.compare(b.getLastTimestamp(), a.getLastTimestamp()));
+        return list;
+    }
+
+    public synchronized void load(File file) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int version = in.readUnsignedByte();
+            if (version != FORMAT_VERSION) {
+                // Unknown layout; rebuilt from the log instead
+                return;
+            }
+            int savedLastId = in.readInt();
+            int count = in.readInt();
+            Map<String, Conversation> loaded = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                Conversation conversation = new Conversation(in.readUTF());
+                conversation.setPeerName(readNullableUTF(in));
+                conversation.setLastMessage(in.readUTF());
+                conversation.setLastSent(in.readBoolean());
+                conversation.setLastTimestamp(in.readLong());
+                conversation.setUnreadCount(in.readInt());
+                conversation.setMessageCount(in.readInt());
+                loaded.put(conversation.getPeerAddress(), conversation);
+            }
+            conversations.clear();
+            conversations.putAll(loaded);
+            lastId = savedLastId;
+            dirty = false;
+        }
+    }
+
+    // Write to a temporary file and rename it, so a crash never leaves a half-written index
+    public void save(File file) throws IOException {
+        List<Conversation> list;
+        int savedLastId;
+        synchronized (this) {
+            list = snapshot();
+            savedLastId = lastId;
+            dirty = false;
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeByte(FORMAT_VERSION);
+            out.writeInt(savedLastId);
+            out.writeInt(list.size());
+            for (Conversation conversation : list) {
+                out.writeUTF(conversation.getPeerAddress());
+                writeNullableUTF(out, conversation.getPeerName());
+                out.writeUTF(conversation.getLastMessage() != null ? conversation.getLastMessage() : "");
+                out.writeBoolean(conversation.isLastSent());
+                out.writeLong(conversation.getLastTimestamp());
+                out.writeInt(conversation.getUnreadCount());
+                out.writeInt(conversation.getMessageCount());
+            }
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.bluechatpro.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.util.Map;
+
+// Hashes of messages that retention dropped or the user cleared, per peer, so
+// history sync still counts them as known after a restart instead of fetching
+// them again. [peer:UTF][count:4][hash:8]*count per batch. Batches are appended
+// as messages go, and each log compaction rewrites the file as one batch per
+// peer. A batch cut short by a crash is cut off on load, so the next append
+// does not land after it.
+public class ExpiredIds {
+
+    public interface Visitor {
+        void onExpired(String peer, long hash);
+    }
+
+    private final File file;
+
+    public ExpiredIds(File file) {
+        this.file = file;
+    }
+
+    public synchronized void append(String peer, long[] hashes) throws IOException {
+        if (hashes.length == 0) {
+            return;
+        }
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file, true)))) {
+            writeBatch(out, peer, hashes);
+        }
+    }
+
+    // Replace the file with exactly these hashes
+    public synchronized void rewrite(Map<String, long[]> hashes) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            for (Map.Entry<String, long[]> peer : hashes.entrySet()) {
+                if (peer.getValue().length > 0) {
+                    writeBatch(out, peer.getKey(), peer.getValue());
+                }
+            }
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    public synchronized void load(Visitor visitor) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        long length = file.length();
+        long good = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (good < length) {
+                String peer;
+                long[] hashes;
+                try {
+                    peer = in.readUTF();
+                    int count = in.readInt();
+                    if (count <= 0 || count > length / 8) {
+                        break;
+                    }
+                    hashes = new long[count];
+                    for (int i = 0; i < count; i++) {
+                        hashes[i] = in.readLong();
+                    }
+                } catch (EOFException | UTFDataFormatException e) {
+                    break;
+                }
+                for (long hash : hashes) {
+                    visitor.onExpired(peer, hash);
+                }
+                good += 2 + utfLength(peer) + 4 + 8L * hashes.length;
+            }
+        }
+        // Later batches must not follow a torn one
+        if (good < length) {
+            try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+                raw.setLength(good);
+            }
+        }
+    }
+
+    private static void writeBatch(DataOutputStream out, String peer, long[] hashes) throws IOException {
+        out.writeUTF(peer);
+        out.writeInt(hashes.length);
+        for (long hash : hashes) {
+            out.writeLong(hash);
+        }
+    }
+
+    // Bytes writeUTF takes for s, after its length
+    private static int utfLength(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            length += c >= 1 && c <= 0x7F ? 1 : c <= 0x7FF ? 2 : 3;
+        }
+        return length;
+    }
+}
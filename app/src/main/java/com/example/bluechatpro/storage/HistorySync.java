@@ -0,0 +1,353 @@
+package com.example.bluechatpro.storage;
+
+import com.example.bluechatpro.models.ChatMessage;
+import com.example.bluechatpro.protocol.BufferPool;
+import com.example.bluechatpro.protocol.ChatMessageCodec;
+import com.example.bluechatpro.protocol.Frame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Brings one conversation's history on both devices up to the union of the two,
+// over TYPE_HISTORY_SYNC frames. Each side opens with the count and fingerprint
+// of its whole SyncSet; if they match there is nothing to do. Otherwise the side
+// that drew the lower token splits the hash space into FANOUT equal parts and
+// sends each one's digest, the other splits the parts that differ and answers
+// with its own digests of those, and so on down until a range holds at most LEAF messages on one side,
+// whose hashes are then listed so each side can send what the other lacks. Ranges
+// that agree are never looked into, so the traffic grows with the size of the
+// difference and only logarithmically with the history.
+//
+// Payload: [kind:1][count:4] then count records of the kind:
+//   START     [token:8][messages:4][fingerprint:8]
+//   RANGES    [lo:8][hi:8] then FANOUT parts of [messages:4][fingerprint:8]
+//   HASHES    [lo:8][hi:8][n:4][hash:8]*n    all the sender holds in the range
+//   WANT      [hash:8]
+//   MESSAGES  [length:4][ChatMessageCodec record]
+// Records past SYNC_FRAME_BYTES go on in another frame of the same kind.
+//
+// Not thread-safe; ChatHistory runs it on its worker.
+public class HistorySync {
+
+    // Sends one frame to the peer
+    public interface Link {
+        void send(byte[] payload) throws IOException;
+    }
+
+    // The conversation on this side
+    public interface Store {
+        SyncSet getSet();
+
+        ChatMessage read(int id) throws IOException;
+
+        // Store a message the peer had and we lacked; it must join the set. False
+        // if retention kept it out, which joins it to the set as dropped.
+        boolean add(ChatMessage message) throws IOException;
+    }
+
+    static final int FANOUT = 16;
+    // Must be at least FANOUT so a range too narrow to split is always listed
+    static final int LEAF = 32;
+    static final int SYNC_FRAME_BYTES = 64 * 1024;
+
+    private static final int KIND_START = 1;
+    private static final int KIND_RANGES = 2;
+    private static final int KIND_HASHES = 3;
+    private static final int KIND_WANT = 4;
+    private static final int KIND_MESSAGES = 5;
+
+    private final Store store;
+    private final Link link;
+    private final long token;
+    private final ChatMessageCodec codec = new ChatMessageCodec(false, BufferPool.SHARED);
+
+    private int framesSent;
+    private long bytesSent;
+    private int messagesSent;
+    private int messagesReceived;
+
+    public HistorySync(Store store, Link link, long token) {
+        this.store = store;
+        this.link = link;
+        this.token = token;
+    }
+
+    // Send our opening summary
+    public void start() throws IOException {
+        SyncSet set = store.getSet();
+        Batch out = new Batch(KIND_START);
+        out.data.writeLong(token);
+        out.data.writeInt(set.count(SyncSet.MIN, SyncSet.MAX));
+        out.data.writeLong(set.fingerprint(SyncSet.MIN, SyncSet.MAX));
+        out.next();
+        out.flush();
+    }
+
+    // Messages received; the callback in ChatHistory hands them to the screen
+    public List<ChatMessage> onFrame(byte[] payload, int offset, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload, offset, length));
+        int kind = in.readUnsignedByte();
+        int count = in.readInt();
+        if (count < 0 || count > length) {
+            throw new IOException("Invalid history sync record count: " + count);
+        }
+
+        List<ChatMessage> received = new ArrayList<>();
+        switch (kind) {
+            case KIND_START:
+                onStart(in);
+                break;
+            case KIND_RANGES:
+                onRanges(in, count);
+                break;
+            case KIND_HASHES:
+                onHashes(in, count);
+                break;
+            case KIND_WANT:
+                onWant(in, count);
+                break;
+            case KIND_MESSAGES:
+                onMessages(in, count, received);
+                break;
+            default:
+                throw new IOException("Unknown history sync kind " + kind);
+        }
+        return received;
+    }
+
+    public int getFramesSent() {
+        return framesSent;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public int getMessagesSent() {
+        return messagesSent;
+    }
+
+    public int getMessagesReceived() {
+        return messagesReceived;
+    }
+
+    private void onStart(DataInputStream in) throws IOException {
+        long theirToken = in.readLong();
+        int theirCount = in.readInt();
+        long theirFingerprint = in.readLong();
+
+        // Both sides opened; the lower token leads so the tree is walked once
+        if (token < theirToken) {
+            Batch ranges = new Batch(KIND_RANGES);
+            Batch hashes = new Batch(KIND_HASHES);
+            compare(SyncSet.MIN, SyncSet.MAX, theirCount, theirFingerprint, ranges, hashes);
+            ranges.flush();
+            hashes.flush();
+        }
+    }
+
+    private void onRanges(DataInputStream in, int count) throws IOException {
+        Batch ranges = new Batch(KIND_RANGES);
+        Batch hashes = new Batch(KIND_HASHES);
+        for (int i = 0; i < count; i++) {
+            long lo = in.readLong();
+            long hi = in.readLong();
+            if (Long.compareUnsigned(hi - lo, LEAF) < 0) {
+                throw new IOException("History sync range too narrow to split");
+            }
+            long step = step(lo, hi);
+            for (int part = 0; part < FANOUT; part++) {
+                int theirCount = in.readInt();
+                long theirFingerprint = in.readLong();
+                compare(partLo(lo, step, part), partHi(lo, hi, step, part), theirCount, theirFingerprint,
+                        ranges, hashes);
+            }
+        }
+        ranges.flush();
+        hashes.flush();
+    }
+
+    // One range the peer summarised: skip it if it matches ours, list it if we
+    // hold few enough, or else split it and send back our side of each part
+    private void compare(long lo, long hi, int theirCount, long theirFingerprint,
+                         Batch ranges, Batch hashes) throws IOException {
+        SyncSet set = store.getSet();
+        int count = set.count(lo, hi);
+        if (count == theirCount && set.fingerprint(lo, hi) == theirFingerprint) {
+            return;
+        }
+        if (count <= LEAF) {
+            long[] ours = set.hashes(lo, hi);
+            hashes.data.writeLong(lo);
+            hashes.data.writeLong(hi);
+            hashes.data.writeInt(ours.length);
+            for (long hash : ours) {
+                hashes.data.writeLong(hash);
+            }
+            hashes.next();
+            return;
+        }
+
+        // Both sides cut a range into the same parts, so only its ends are sent
+        long step = step(lo, hi);
+        ranges.data.writeLong(lo);
+        ranges.data.writeLong(hi);
+        for (int part = 0; part < FANOUT; part++) {
+            long partLo = partLo(lo, step, part);
+            long partHi = partHi(lo, hi, step, part);
+            ranges.data.writeInt(set.count(partLo, partHi));
+            ranges.data.writeLong(set.fingerprint(partLo, partHi));
+        }
+        ranges.next();
+    }
+
+    private static long step(long lo, long hi) {
+        return Long.divideUnsigned(hi - lo, FANOUT);
+    }
+
+    private static long partLo(long lo, long step, int part) {
+        return lo + part * step;
+    }
+
+    private static long partHi(long lo, long hi, long step, int part) {
+        return part == FANOUT - 1 ? hi : lo + (part + 1) * step - 1;
+    }
+
+    // The peer's whole holding in some ranges: send what it lacks, ask for the rest
+    private void onHashes(DataInputStream in, int count) throws IOException {
+        SyncSet set = store.getSet();
+        Batch want = new Batch(KIND_WANT);
+        Batch messages = new Batch(KIND_MESSAGES);
+        for (int i = 0; i < count; i++) {
+            long lo = in.readLong();
+            long hi = in.readLong();
+            int n = in.readInt();
+            if (n < 0 || n > Frame.MAX_PAYLOAD_SIZE / 8) {
+                throw new IOException("Invalid history sync hash count: " + n);
+            }
+            SyncSet theirs = new SyncSet();
+            for (int j = 0; j < n; j++) {
+                long hash = in.readLong();
+                theirs.add(hash, 0);
+                if (!set.contains(hash)) {
+                    want.data.writeLong(hash);
+                    want.next();
+                }
+            }
+            for (long hash : set.hashes(lo, hi)) {
+                // Dropped by retention: we agree it is gone but have nothing to send
+                int id = set.id(hash);
+                if (id >= 0 && !theirs.contains(hash)) {
+                    writeMessage(id, messages);
+                }
+            }
+        }
+        want.flush();
+        messages.flush();
+    }
+
+    private void onWant(DataInputStream in, int count) throws IOException {
+        SyncSet set = store.getSet();
+        Batch messages = new Batch(KIND_MESSAGES);
+        for (int i = 0; i < count; i++) {
+            int id = set.id(in.readLong());
+            if (id >= 0) {
+                writeMessage(id, messages);
+            }
+        }
+        messages.flush();
+    }
+
+    private void onMessages(DataInputStream in, int count, List<ChatMessage> received) throws IOException {
+        SyncSet set = store.getSet();
+        for (int i = 0; i < count; i++) {
+            int length = in.readInt();
+            if (length < 0 || length > Frame.MAX_PAYLOAD_SIZE) {
+                throw new IOException("Invalid history sync message length: " + length);
+            }
+            byte[] record = new byte[length];
+            in.readFully(record);
+            ChatMessage message = new ChatMessage();
+            codec.decode(record, 0, length, message);
+            if (message.getMessageId() == null || set.contains(SyncSet.hash(message.getMessageId()))) {
+                continue;
+            }
+
+            // What the peer sent, we received, and the other way round
+            message.setSent(!message.isSent());
+            if (message.isSent()) {
+                message.setStatus(ChatMessage.MessageStatus.DELIVERED);
+            }
+            if (store.add(message)) {
+                received.add(message);
+                messagesReceived++;
+            }
+        }
+    }
+
+    private void writeMessage(int id, Batch messages) throws IOException {
+        ChatMessage message = store.read(id);
+        if (message == null) {
+            return;
+        }
+        byte[] record = codec.encode(message);
+        try {
+            int length = codec.getEncodedLength();
+            // A record too big for any frame stays behind
+            if (length > Frame.MAX_PAYLOAD_SIZE - 16) {
+                return;
+            }
+            if (messages.body.size() + length > Frame.MAX_PAYLOAD_SIZE - 16) {
+                messages.flush();
+            }
+            messages.data.writeInt(length);
+            messages.data.write(record, 0, length);
+        } finally {
+            codec.releaseEncoded();
+        }
+        messagesSent++;
+        messages.next();
+    }
+
+    // Records of one kind, sent in frames of about SYNC_FRAME_BYTES
+    private final class Batch {
+        final int kind;
+        final ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+        final DataOutputStream data = new DataOutputStream(body);
+        int count;
+
+        Batch(int kind) {
+            this.kind = kind;
+        }
+
+        // The record just written is complete
+        void next() throws IOException {
+            count++;
+            if (body.size() >= SYNC_FRAME_BYTES) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            if (count == 0) {
+                return;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.size() + 5);
+            DataOutputStream header = new DataOutputStream(bytes);
+            header.writeByte(kind);
+            header.writeInt(count);
+            body.writeTo(bytes);
+            byte[] payload = bytes.toByteArray();
+            link.send(payload);
+            framesSent++;
+            bytesSent += payload.length;
+            body.reset();
+            count = 0;
+        }
+    }
+}
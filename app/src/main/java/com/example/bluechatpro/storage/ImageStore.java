@@ -0,0 +1,127 @@
+package com.example.bluechatpro.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+
+// Directory of image files referenced by IMAGE messages. A message's content is
+// the bare file name; names arriving from peers are validated so they can never
+// point outside the directory or replace a file already stored.
+public class ImageStore {
+
+    // Received images larger than this are dropped
+    public static final long MAX_IMAGE_SIZE = 16 * 1024 * 1024;
+
+    private static final int MAX_NAME_LENGTH = 96;
+
+    private final File directory;
+
+    // An image being received; written to a temporary file until complete
+    public class Receiver {
+        private final File target;
+        private final File partial;
+        private final OutputStream out;
+        private long size;
+
+        Receiver(File target) throws IOException {
+            this.target = target;
+            this.partial = new File(directory, target.getName() + ".part");
+            // Claiming the partial file keeps two receives of one name apart
+            if (target.exists() || !partial.createNewFile()) {
+                throw new FileAlreadyExistsException(target.getName());
+            }
+            this.out = new BufferedOutputStream(new FileOutputStream(partial), 64 * 1024);
+        }
+
+        public void write(byte[] data, int offset, int length) throws IOException {
+            size += length;
+            if (size > MAX_IMAGE_SIZE) {
+                throw new IOException("Image too large");
+            }
+            out.write(data, offset, length);
+        }
+
+        public File finish() throws IOException {
+            out.close();
+            if (target.exists()) {
+                partial.delete();
+                throw new FileAlreadyExistsException(target.getName());
+            }
+            if (!partial.renameTo(target)) {
+                partial.delete();
+                throw new IOException("Could not store " + target.getName());
+            }
+            return target;
+        }
+
+        public void abort() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Deleting anyway
+            }
+            partial.delete();
+        }
+    }
+
+    public ImageStore(File directory) {
+        this.directory = directory;
+    }
+
+    public static String nameFor(String messageId, String extension) {
+        return sanitize(messageId) + "." + extension;
+    }
+
+    public File fileFor(String name) throws IOException {
+        if (!isValidName(name)) {
+            throw new IOException("Invalid image name");
+        }
+        return new File(directory, name);
+    }
+
+    // Where a locally created image should be written
+    public File create(String name) throws IOException {
+        File target = fileFor(name);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        return target;
+    }
+
+    // Throws FileAlreadyExistsException if the name is stored or being received
+    public Receiver beginReceive(String name) throws IOException {
+        return new Receiver(create(name));
+    }
+
+    // Letters, digits, '_', '-' and single dots between them; no paths
+    static boolean isValidName(String name) {
+        if (name == null || name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+            return false;
+        }
+        char previous = '.';
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean plain = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '_' || c == '-';
+            if (!plain && !(c == '.' && previous != '.')) {
+                return false;
+            }
+            previous = c;
+        }
+        return previous != '.';
+    }
+
+    private static String sanitize(String value) {
+        StringBuilder name = new StringBuilder(value.length());
+        for (int i = 0; i < value.length() && name.length() < MAX_NAME_LENGTH - 8; i++) {
+            char c = value.charAt(i);
+            boolean plain = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '_' || c == '-';
+            name.append(plain ? c : '_');
+        }
+        return name.toString();
+    }
+}
@@ -0,0 +1,587 @@
+package com.example.bluechatpro.storage;
+
+import com.example.bluechatpro.models.ChatMessage;
+import com.example.bluechatpro.models.Peer;
+import com.example.bluechatpro.protocol.BufferPool;
+import com.example.bluechatpro.protocol.ChatMessageCodec;
+import com.example.bluechatpro.protocol.Frame;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+// Append-only file of chat messages across all peers.
+//   [length:4][peer][ChatMessageCodec record]
+// The conversation's peer is [0xFF][id:4] for its id in the PeerTable, or
+// [length:1][address] if it has none. Senders inside the record are ids in the
+// same table. Messages are numbered in append order; the number is the message's
+// id in the search and summary indexes. Only record offsets are kept in memory.
+//
+// Compaction rewrites the file without the records a Planner drops, in two steps:
+// compact() plans and copies everything present when it starts without holding the
+// log's lock, so appends and reads carry on; commit() then copies what was appended
+// meanwhile and swaps the files. Ids of the kept messages close up, in order, and
+// commit() returns the old-to-new mapping for the indexes.
+//
+// A stored message's status can change later, e.g. when the peer acknowledges
+// it; setStatus() rewrites the one status byte in place.
+//
+// Reads go through memory maps of the file in SEGMENT_SIZE pieces. A segment is
+// mapped, once, when every record starting in it is complete, so its bytes never
+// change but for status bytes, which the mapping sees as they are written. read()
+// hands out messages left encoded in the mapping, decoded only when their fields
+// are used, so reading a page costs no syscall and no copy.
+// Records in the segment still being appended to are copied out with a seek and
+// a read, and left encoded in the copy.
+public class MessageLog implements Closeable {
+
+    public interface Visitor {
+        void onMessage(int id, String peer, ChatMessage message) throws IOException;
+    }
+
+    // Chooses what a compaction drops. Sees each record once, oldest first, with
+    // everything but the message content decoded.
+    public interface Planner {
+        void onRecord(int id, String peer, ChatMessage header, int recordBytes);
+
+        // The ids to drop, once every record has been seen
+        BitSet dropped();
+    }
+
+    // A compacted copy of the log waiting for commit()
+    public static final class Compaction {
+        private final File file;
+        private final int generation;
+        private final int records;
+        private final int[] map;
+        private final long[] offsets;
+        private final int kept;
+        private final long end;
+
+        // For reporting: bytes read while planning and copying, and written
+        public final long bytesRead;
+        public final long bytesWritten;
+        public final int dropped;
+
+        Compaction(File file, int generation, int records, int[] map, long[] offsets, int kept, long end,
+                   long bytesRead, long bytesWritten) {
+            this.file = file;
+            this.generation = generation;
+            this.records = records;
+            this.map = map;
+            this.offsets = offsets;
+            this.kept = kept;
+            this.end = end;
+            this.bytesRead = bytesRead;
+            this.bytesWritten = bytesWritten;
+            this.dropped = records - kept;
+        }
+    }
+
+    private static final int MAX_RECORD_SIZE = Frame.MAX_PAYLOAD_SIZE * 4;
+    static final long SEGMENT_SIZE = 8L * 1024 * 1024;
+    private static final int PEER_STORED = 0xFF;
+
+    private final File path;
+    private RandomAccessFile file;
+    private final PeerTable peers;
+    private final ChatMessageCodec codec;
+    // Decodes messages handed out by read(), on whichever thread uses them first
+    private final ChatMessageCodec viewCodec;
+    private long[] offsets = new long[1024];
+    private int count;
+    private long end;
+    private byte[] readBuffer = new byte[1024];
+    // Bumped by every commit, so a compaction planned before another is refused
+    private int generation;
+    // Segment k covers the records starting in [k * SEGMENT_SIZE, (k + 1) * SEGMENT_SIZE)
+    private boolean mapped;
+    private ByteBuffer[] segments = new ByteBuffer[16];
+    // Statuses set while a compaction copies, by id; commit() applies them again
+    // to records it may have copied before they changed
+    private Map<Integer, ChatMessage.MessageStatus> statusChanges;
+
+    // With its own peer table, kept next to the log
+    public MessageLog(File path) throws IOException {
+        this(path, true);
+    }
+
+    // Records name their senders by id in peers, which must be loaded already
+    public MessageLog(File path, PeerTable peers) throws IOException {
+        this(path, peers, true);
+    }
+
+    // Without mapping every read seeks and reads, for comparison
+    MessageLog(File path, boolean mapped) throws IOException {
+        this(path, loadPeers(path), mapped);
+    }
+
+    private MessageLog(File path, PeerTable peers, boolean mapped) throws IOException {
+        this.path = path;
+        this.peers = peers;
+        this.mapped = mapped;
+        codec = new ChatMessageCodec(false, BufferPool.SHARED, peers);
+        viewCodec = new ChatMessageCodec(false, BufferPool.SHARED, peers);
+        file = new RandomAccessFile(path, "rw");
+        indexRecords();
+    }
+
+    private static PeerTable loadPeers(File path) throws IOException {
+        PeerTable peers = new PeerTable(new File(path.getPath() + ".peers"));
+        peers.load();
+        return peers;
+    }
+
+    // Append a message to the conversation with peer; returns its id
+    public synchronized int append(String peer, ChatMessage message) throws IOException {
+        int peerId = peers.idOf(peers.get(peer));
+        byte[] peerBytes = peerId == Peer.NO_ID ? peer.getBytes(StandardCharsets.UTF_8) : null;
+        if (peerBytes != null && peerBytes.length >= PEER_STORED) {
+            throw new IOException("Peer address too long");
+        }
+        int peerSize = peerBytes != null ? 1 + peerBytes.length : 5;
+
+        byte[] encoded = codec.encode(message);
+        byte[] record = null;
+        try {
+            int length = peerSize + codec.getEncodedLength();
+            record = BufferPool.SHARED.acquire(4 + length);
+            Frame.writeInt(record, 0, length);
+            if (peerBytes != null) {
+                record[4] = (byte) peerBytes.length;
+                System.arraycopy(peerBytes, 0, record, 5, peerBytes.length);
+            } else {
+                record[4] = (byte) PEER_STORED;
+                Frame.writeInt(record, 5, peerId);
+            }
+            System.arraycopy(encoded, 0, record, 4 + peerSize, codec.getEncodedLength());
+
+            // One write per message; durability is left to the OS page cache
+            file.seek(end);
+            file.write(record, 0, 4 + length);
+            addOffset(end);
+            end += 4 + length;
+        } finally {
+            codec.releaseEncoded();
+            BufferPool.SHARED.release(record);
+        }
+        return count - 1;
+    }
+
+    // The message with this id, left encoded until its fields are used
+    public synchronized ChatMessage read(int id) throws IOException {
+        if (id < 0 || id >= count) {
+            throw new IOException("No message " + id);
+        }
+        ByteBuffer segment = segmentOf(id);
+        if (segment != null) {
+            return view(segment, (int) (offsets[id] - segmentStart(id)));
+        }
+        // Still being appended to: a copy of the record
+        file.seek(offsets[id]);
+        file.readFully(readBuffer, 0, 4);
+        int length = Frame.readInt(readBuffer, 0);
+        if (length <= 0 || length > MAX_RECORD_SIZE) {
+            throw new IOException("Corrupt message record");
+        }
+        byte[] record = new byte[4 + length];
+        Frame.writeInt(record, 0, length);
+        file.readFully(record, 4, length);
+        return view(ByteBuffer.wrap(record), 0);
+    }
+
+    // Change the status of the message with this id
+    public synchronized void setStatus(int id, ChatMessage.MessageStatus status) throws IOException {
+        if (id < 0 || id >= count) {
+            throw new IOException("No message " + id);
+        }
+        writeStatus(file, offsets[id], status);
+        if (statusChanges != null) {
+            statusChanges.put(id, status);
+        }
+    }
+
+    private void writeStatus(RandomAccessFile target, long offset, ChatMessage.MessageStatus status)
+            throws IOException {
+        // Enough for the length, any peer prefix and the start of the header
+        byte[] head = readBuffer;
+        target.seek(offset);
+        int n = target.read(head, 0, Math.min(head.length, 4 + 256 + 16));
+        if (n < 5) {
+            throw new IOException("Corrupt message record");
+        }
+        int length = Math.min(Frame.readInt(head, 0), n - 4);
+        int peerSize = peerSize(head[4] & 0xFF, length);
+        int at = 4 + peerSize + ChatMessageCodec.statusOffset(head, 4 + peerSize, length - peerSize);
+        target.seek(offset + at);
+        target.write(status.ordinal());
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    // Visit every message in order, streaming the file rather than seeking per record
+    public synchronized void scan(Visitor visitor) throws IOException {
+        scan(visitor, 0);
+    }
+
+    // As scan(Visitor), but messages before contentFrom come with everything but
+    // their content decoded, for indexes that already cover them
+    public synchronized void scan(Visitor visitor, int contentFrom) throws IOException {
+        try (DataInputStream in = open()) {
+            for (int id = 0; id < count; id++) {
+                int length = in.readInt();
+                byte[] record = recordBuffer(length);
+                in.readFully(record, 0, length);
+                ChatMessage message = new ChatMessage();
+                String peer;
+                if (id < contentFrom) {
+                    int peerSize = peerSize(record[0] & 0xFF, length);
+                    codec.decodeHeader(record, peerSize, length - peerSize, message);
+                    peer = peerOf(record);
+                } else {
+                    peer = decode(record, length, message);
+                }
+                visitor.onMessage(id, peer, message);
+            }
+        }
+    }
+
+    // Plan a compaction and copy the kept records, without blocking appends or
+    // reads. Returns null if the planner drops nothing. One at a time.
+    public Compaction compact(Planner planner) throws IOException {
+        int records;
+        long prefixEnd;
+        long[] prefixOffsets;
+        int planned;
+        synchronized (this) {
+            records = count;
+            prefixEnd = end;
+            prefixOffsets = Arrays.copyOf(offsets, count + 1);
+            prefixOffsets[count] = end;
+            planned = generation;
+            statusChanges = new HashMap<>();
+        }
+
+        // Records up to prefixEnd never change, so they can be read unlocked; a
+        // status set meanwhile is written again by commit()
+        ChatMessageCodec headers = new ChatMessageCodec(false, BufferPool.SHARED, peers);
+        byte[] buffer = new byte[1024];
+        try (DataInputStream in = open()) {
+            for (int id = 0; id < records; id++) {
+                int length = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_SIZE) {
+                    throw new IOException("Corrupt message record");
+                }
+                if (buffer.length < length) {
+                    buffer = new byte[Math.max(length, buffer.length * 2)];
+                }
+                in.readFully(buffer, 0, length);
+                int peerSize = peerSize(buffer[0] & 0xFF, length);
+                ChatMessage header = new ChatMessage();
+                headers.decodeHeader(buffer, peerSize, length - peerSize, header);
+                planner.onRecord(id, peerOf(buffer), header, 4 + length);
+            }
+        }
+        BitSet dropped = planner.dropped();
+        if (dropped.isEmpty()) {
+            synchronized (this) {
+                statusChanges = null;
+            }
+            return null;
+        }
+
+        // Copy runs of kept records file to file
+        File copy = new File(path.getPath() + ".compact");
+        int[] map = new int[records];
+        long[] newOffsets = new long[Math.max(16, records - dropped.cardinality() + 64)];
+        int kept = 0;
+        long written = 0;
+        try (RandomAccessFile source = new RandomAccessFile(path, "r");
+             RandomAccessFile target = new RandomAccessFile(copy, "rw")) {
+            target.setLength(0);
+            FileChannel from = source.getChannel();
+            FileChannel to = target.getChannel();
+            int id = 0;
+            while (id < records) {
+                if (dropped.get(id)) {
+                    map[id++] = -1;
+                    continue;
+                }
+                int next = dropped.nextSetBit(id);
+                int runEnd = next < 0 || next > records ? records : next;
+                for (int i = id; i < runEnd; i++) {
+                    map[i] = kept;
+                    newOffsets[kept++] = written + prefixOffsets[i] - prefixOffsets[id];
+                }
+                written += transfer(from, prefixOffsets[id], prefixOffsets[runEnd] - prefixOffsets[id], to, written);
+                id = runEnd;
+            }
+        }
+        return new Compaction(copy, planned, records, map, newOffsets, kept, written,
+                prefixEnd + written, written);
+    }
+
+    // Put a compaction in place of the log. Copies the records appended since
+    // compact() started, then swaps the files; returns each old id's new id, or -1
+    // for a dropped message. Fails, leaving the log as it was, if another commit
+    // came first.
+    public synchronized int[] commit(Compaction compaction) throws IOException {
+        Map<Integer, ChatMessage.MessageStatus> changed = statusChanges;
+        statusChanges = null;
+        if (compaction.generation != generation) {
+            compaction.file.delete();
+            throw new IOException("Log changed under compaction");
+        }
+
+        int[] map = Arrays.copyOf(compaction.map, count);
+        long[] newOffsets = compaction.offsets;
+        int kept = compaction.kept;
+        long newEnd = compaction.end;
+        try (RandomAccessFile target = new RandomAccessFile(compaction.file, "rw")) {
+            if (count > compaction.records) {
+                long tailStart = offsets[compaction.records];
+                newEnd += transfer(file.getChannel(), tailStart, end - tailStart, target.getChannel(), newEnd);
+                if (newOffsets.length < kept + count - compaction.records) {
+                    newOffsets = Arrays.copyOf(newOffsets, kept + count - compaction.records + 64);
+                }
+                for (int id = compaction.records; id < count; id++) {
+                    map[id] = kept;
+                    newOffsets[kept++] = compaction.end + offsets[id] - tailStart;
+                }
+            }
+            if (changed != null) {
+                for (Map.Entry<Integer, ChatMessage.MessageStatus> change : changed.entrySet()) {
+                    int newId = map[change.getKey()];
+                    if (newId >= 0) {
+                        writeStatus(target, newOffsets[newId], change.getValue());
+                    }
+                }
+            }
+            target.getFD().sync();
+        }
+
+        file.close();
+        if (!compaction.file.renameTo(path)) {
+            file = new RandomAccessFile(path, "rw");
+            compaction.file.delete();
+            throw new IOException("Cannot replace " + path);
+        }
+        file = new RandomAccessFile(path, "rw");
+        offsets = newOffsets;
+        count = kept;
+        end = newEnd;
+        generation++;
+        // Messages already read keep the old mappings, which stay valid
+        Arrays.fill(segments, null);
+        return map;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        Arrays.fill(segments, null);
+        file.close();
+    }
+
+    private static long transfer(FileChannel from, long position, long length, FileChannel to, long at)
+            throws IOException {
+        long done = 0;
+        while (done < length) {
+            long moved = from.transferTo(position + done, length - done, to.position(at + done));
+            if (moved <= 0) {
+                throw new EOFException();
+            }
+            done += moved;
+        }
+        return done;
+    }
+
+    // The mapped segment holding record id, or null if it is still being appended
+    // to or cannot be mapped
+    private ByteBuffer segmentOf(int id) throws IOException {
+        if (!mapped || id < 0 || id >= count) {
+            return null;
+        }
+        int index = (int) (offsets[id] / SEGMENT_SIZE);
+        long start = index * SEGMENT_SIZE;
+        long limit = start + SEGMENT_SIZE;
+        if (end < limit) {
+            return null;
+        }
+        if (index >= segments.length) {
+            segments = Arrays.copyOf(segments, Math.max(index + 1, segments.length * 2));
+        }
+        if (segments[index] == null) {
+            // Up to the first record starting past the segment, or the end
+            int next = Arrays.binarySearch(offsets, id, count, limit);
+            int first = next >= 0 ? next : -next - 1;
+            long segmentEnd = first < count ? offsets[first] : end;
+            try {
+                segments[index] = file.getChannel().map(FileChannel.MapMode.READ_ONLY, start, segmentEnd - start);
+            } catch (IOException e) {
+                // Out of address space; read the plain way from now on
+                mapped = false;
+                return null;
+            }
+        }
+        return segments[index];
+    }
+
+    private long segmentStart(int id) {
+        return offsets[id] / SEGMENT_SIZE * SEGMENT_SIZE;
+    }
+
+    private ChatMessage view(ByteBuffer buf, int at) throws IOException {
+        if (at + 4 > buf.limit()) {
+            throw new IOException("Corrupt message record");
+        }
+        int length = buf.getInt(at);
+        if (length <= 0 || length > MAX_RECORD_SIZE || at + 4 + length > buf.limit()) {
+            throw new IOException("Corrupt message record");
+        }
+        int peerSize = peerSize(buf.get(at + 4) & 0xFF, length);
+        int start = at + 4 + peerSize;
+        int recordLength = length - peerSize;
+        int headerSize = ChatMessageCodec.headerSize(buf, start, recordLength);
+        return new ChatMessage(new Record(viewCodec, buf, start, recordLength, headerSize));
+    }
+
+    private String decode(byte[] record, int length, ChatMessage message) throws IOException {
+        int peerSize = peerSize(record[0] & 0xFF, length);
+        codec.decode(record, peerSize, length - peerSize, message);
+        return peerOf(record);
+    }
+
+    // Bytes the conversation's peer takes at the start of a record
+    private static int peerSize(int first, int length) throws IOException {
+        int size = first == PEER_STORED ? 5 : 1 + first;
+        if (size > length) {
+            throw new IOException("Corrupt message record");
+        }
+        return size;
+    }
+
+    // The conversation's peer; one String per peer rather than per record
+    private String peerOf(byte[] record) throws IOException {
+        int first = record[0] & 0xFF;
+        if (first != PEER_STORED) {
+            return new String(record, 1, first, StandardCharsets.UTF_8);
+        }
+        Peer peer = peers.byId(Frame.readInt(record, 1));
+        if (peer == null) {
+            throw new IOException("Unknown stored peer");
+        }
+        return peer.getAddress();
+    }
+
+    // Find record boundaries. A record cut short by a crash mid-append is dropped.
+    private void indexRecords() throws IOException {
+        long fileLength = file.length();
+        try (DataInputStream in = open()) {
+            long position = 0;
+            while (position + 4 <= fileLength) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > MAX_RECORD_SIZE || position + 4 + length > fileLength) {
+                    break;
+                }
+                skipFully(in, length);
+                addOffset(position);
+                position += 4 + length;
+            }
+            end = position;
+        }
+        if (end < fileLength) {
+            file.setLength(end);
+        }
+    }
+
+    private DataInputStream open() throws IOException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(path), 64 * 1024));
+    }
+
+    private static void skipFully(DataInputStream in, int length) throws IOException {
+        while (length > 0) {
+            int skipped = in.skipBytes(length);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            length -= skipped;
+        }
+    }
+
+    private void addOffset(long offset) {
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+        }
+        offsets[count++] = offset;
+    }
+
+    private byte[] recordBuffer(int length) throws IOException {
+        if (length <= 0 || length > MAX_RECORD_SIZE) {
+            throw new IOException("Corrupt message record");
+        }
+        if (readBuffer.length < length) {
+            readBuffer = new byte[Math.max(length, readBuffer.length * 2)];
+        }
+        return readBuffer;
+    }
+
+    // A ChatMessageCodec record inside a mapped segment, or a copy of one. Decoded
+    // on whichever thread first asks, so the shared codec is locked.
+    private static final class Record implements ChatMessage.Encoded {
+        private final ChatMessageCodec codec;
+        private final ByteBuffer buf;
+        private final int offset;
+        private final int length;
+        private final int headerSize;
+
+        Record(ChatMessageCodec codec, ByteBuffer buf, int offset, int length, int headerSize) {
+            this.codec = codec;
+            this.buf = buf;
+            this.offset = offset;
+            this.length = length;
+            this.headerSize = headerSize;
+        }
+
+        @Override
+        public void decodeHeader(ChatMessage into) {
+            synchronized (codec) {
+                try {
+                    codec.decodeHeader(buf, offset, length, into);
+                } catch (IOException e) {
+                    // Checked when read; only a file changed underneath gets here.
+                    // Same fallbacks as for fields the codec does not know.
+                    into.setType(ChatMessage.MessageType.TEXT);
+                    into.setStatus(ChatMessage.MessageStatus.SENT);
+                }
+            }
+        }
+
+        @Override
+        public String decodeContent() {
+            byte[] utf8 = new byte[length - headerSize];
+            ByteBuffer content = buf.duplicate();
+            content.position(offset + headerSize);
+            content.get(utf8);
+            return new String(utf8, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.example.bluechatpro.storage;
+
+import com.example.bluechatpro.models.ChatMessage;
+import com.example.bluechatpro.protocol.BufferPool;
+import com.example.bluechatpro.protocol.ChatMessageCodec;
+import com.example.bluechatpro.protocol.Frame;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Outgoing messages not yet acknowledged by their peer. A message is added before
+// it is written to the link and removed when the peer's ack arrives, so messages
+// written while disconnected, or lost with a dropped link, survive until the next
+// connection and are resent in order. Receivers drop copies they have already seen.
+// On disk it is an append-only log of
+//   [op:1][length:4][body]   ADD: [peer length:1][peer address][ChatMessageCodec record]
+//                            DONE: [message id, UTF-8]
+// which is emptied whenever nothing is pending and compacted when DONE records pile up.
+public class Outbox implements Closeable {
+
+    private static final byte OP_ADD = 1;
+    private static final byte OP_DONE = 2;
+
+    private static final int MAX_RECORD_SIZE = Frame.MAX_PAYLOAD_SIZE * 4;
+    private static final int COMPACT_AFTER_DONE = 256;
+
+    private static class Entry {
+        final String peer;
+        final ChatMessage message;
+
+        Entry(String peer, ChatMessage message) {
+            this.peer = peer;
+            this.message = message;
+        }
+    }
+
+    private final File path;
+    private final ChatMessageCodec codec = new ChatMessageCodec(false, BufferPool.SHARED);
+    private final Map<String, Entry> pending = new LinkedHashMap<>();
+    private RandomAccessFile file;
+    private long end;
+    private int doneRecords;
+
+    public Outbox(File path) throws IOException {
+        this.path = path;
+        file = new RandomAccessFile(path, "rw");
+        load();
+    }
+
+    // Queue a message for peer; a message already queued is left where it is
+    public synchronized void add(String peer, ChatMessage message) throws IOException {
+        String id = message.getMessageId();
+        if (id == null || pending.containsKey(id)) {
+            return;
+        }
+        writeAdd(peer, message);
+        pending.put(id, new Entry(peer, message));
+    }
+
+    // The peer has the message; returns false if it was not pending
+    public synchronized boolean remove(String messageId) throws IOException {
+        if (pending.remove(messageId) == null) {
+            return false;
+        }
+
+        if (pending.isEmpty()) {
+            file.setLength(0);
+            end = 0;
+            doneRecords = 0;
+        } else if (doneRecords + 1 >= COMPACT_AFTER_DONE) {
+            compact();
+        } else {
+            byte[] id = messageId.getBytes(StandardCharsets.UTF_8);
+            writeRecord(OP_DONE, id, id.length);
+            doneRecords++;
+        }
+        return true;
+    }
+
+    // Messages waiting for peer, oldest first
+    public synchronized List<ChatMessage> pending(String peer) {
+        List<ChatMessage> messages = new ArrayList<>();
+        for (Entry entry : pending.values()) {
+            if (entry.peer.equals(peer)) {
+                messages.add(entry.message);
+            }
+        }
+        return messages;
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        file.close();
+    }
+
+    private void writeAdd(String peer, ChatMessage message) throws IOException {
+        byte[] peerBytes = peer.getBytes(StandardCharsets.UTF_8);
+        if (peerBytes.length > 255) {
+            throw new IOException("Peer address too long");
+        }
+
+        byte[] encoded = codec.encode(message);
+        byte[] body = null;
+        try {
+            int length = 1 + peerBytes.length + codec.getEncodedLength();
+            body = BufferPool.SHARED.acquire(length);
+            body[0] = (byte) peerBytes.length;
+            System.arraycopy(peerBytes, 0, body, 1, peerBytes.length);
+            System.arraycopy(encoded, 0, body, 1 + peerBytes.length, codec.getEncodedLength());
+            writeRecord(OP_ADD, body, length);
+        } finally {
+            codec.releaseEncoded();
+            BufferPool.SHARED.release(body);
+        }
+    }
+
+    // One write per record, like MessageLog
+    private void writeRecord(byte op, byte[] body, int length) throws IOException {
+        byte[] record = BufferPool.SHARED.acquire(5 + length);
+        try {
+            record[0] = op;
+            Frame.writeInt(record, 1, length);
+            System.arraycopy(body, 0, record, 5, length);
+            file.seek(end);
+            file.write(record, 0, 5 + length);
+            end += 5 + length;
+        } finally {
+            BufferPool.SHARED.release(record);
+        }
+    }
+
+    // Rewrite the log with only the pending messages, then swap it in
+    private void compact() throws IOException {
+        File tmp = new File(path.getPath() + ".tmp");
+        RandomAccessFile old = file;
+        long oldEnd = end;
+        file = new RandomAccessFile(tmp, "rw");
+        end = 0;
+        boolean replaced = false;
+        try {
+            file.setLength(0);
+            for (Entry entry : pending.values()) {
+                writeAdd(entry.peer, entry.message);
+            }
+            if (!tmp.renameTo(path)) {
+                throw new IOException("Could not replace " + path);
+            }
+            replaced = true;
+        } finally {
+            if (replaced) {
+                old.close();
+                doneRecords = 0;
+            } else {
+                // Keep appending to the old log
+                file.close();
+                tmp.delete();
+                file = old;
+                end = oldEnd;
+            }
+        }
+    }
+
+    // Replay the log. A record cut short by a crash mid-append is dropped.
+    private void load() throws IOException {
+        long fileLength = file.length();
+        long position = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+            byte[] body = new byte[1024];
+            while (position + 5 <= fileLength) {
+                byte op;
+                int length;
+                try {
+                    op = in.readByte();
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > MAX_RECORD_SIZE || position + 5 + length > fileLength) {
+                    break;
+                }
+                if (body.length < length) {
+                    body = new byte[Math.max(length, body.length * 2)];
+                }
+                in.readFully(body, 0, length);
+
+                if (op == OP_ADD) {
+                    int peerLength = body[0] & 0xFF;
+                    if (1 + peerLength > length) {
+                        break;
+                    }
+                    String peer = new String(body, 1, peerLength, StandardCharsets.UTF_8);
+                    ChatMessage message = new ChatMessage();
+                    codec.decode(body, 1 + peerLength, length - 1 - peerLength, message);
+                    message.setStatus(ChatMessage.MessageStatus.SENDING);
+                    pending.put(message.getMessageId(), new Entry(peer, message));
+                } else if (op == OP_DONE) {
+                    pending.remove(new String(body, 0, length, StandardCharsets.UTF_8));
+                    doneRecords++;
+                } else {
+                    break;
+                }
+                position += 5 + length;
+            }
+        }
+        end = position;
+        if (end < fileLength) {
+            file.setLength(end);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.example.bluechatpro.storage;
+
+import com.example.bluechatpro.models.Peer;
+import com.example.bluechatpro.protocol.ChatMessageCodec;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+// Every device messages have come from, one Peer per address. Peers get a small
+// id the first time one of their messages is stored, and the message log keeps
+// that id in place of the name and address.
+// Append-only file: [id:4][address:UTF][has name:1][name:UTF] per record; a later
+// record for an id renames it. The file is cut back to before the first record
+// that is torn or corrupt. A record is written and synced before any message
+// that uses its id.
+//
+// Writes are serialized by their own lock and synced without holding the table's,
+// so looking up senders on the UI and reader threads never waits for the disk.
+public class PeerTable implements ChatMessageCodec.Senders {
+
+    private final File file;
+    private final Object writeLock = new Object();
+    private final Map<String, Peer> byAddress = new HashMap<>();
+    private final ArrayList<Peer> byId = new ArrayList<>();
+    // Name last written for each id
+    private final ArrayList<String> savedNames = new ArrayList<>();
+
+    // A null file keeps ids for this run only
+    public PeerTable(File file) {
+        this.file = file;
+    }
+
+    // Read the ids stored so far. Peers interned before this keep their instance
+    // and take their stored id.
+    public void load() throws IOException {
+        synchronized (writeLock) {
+            synchronized (this) {
+                loadLocked();
+            }
+        }
+    }
+
+    private void loadLocked() throws IOException {
+        if (file == null || !file.exists()) {
+            return;
+        }
+        byte[] bytes = new byte[(int) file.length()];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(bytes);
+        }
+        ByteArrayInputStream stream = new ByteArrayInputStream(bytes);
+        DataInputStream in = new DataInputStream(stream);
+        int good = 0;
+        while (stream.available() > 0) {
+            int id;
+            String address;
+            String name;
+            try {
+                id = in.readInt();
+                address = in.readUTF();
+                name = in.readBoolean() ? in.readUTF() : null;
+            } catch (EOFException | UTFDataFormatException e) {
+                break;
+            }
+            if (id < 0 || id > byId.size()) {
+                break;
+            }
+            good = bytes.length - stream.available();
+            if (id < byId.size()) {
+                // A rename
+                byId.get(id).setName(name);
+                savedNames.set(id, name);
+                continue;
+            }
+            Peer peer = byAddress.get(address);
+            if (peer == null) {
+                peer = new Peer(address, name);
+                byAddress.put(address, peer);
+            } else if (peer.getName() == null) {
+                peer.setName(name);
+            }
+            peer.assignId(id);
+            byId.add(peer);
+            savedNames.add(name);
+        }
+        // Later records must not follow a torn or corrupt one
+        if (good < bytes.length) {
+            try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+                raw.setLength(good);
+            }
+        }
+    }
+
+    public synchronized Peer get(String address) {
+        return intern(address, null);
+    }
+
+    // The table's peer for address; a name is taken only if it has none yet,
+    // since messages decoded from history carry whatever name was current then
+    @Override
+    public synchronized Peer intern(String address, String name) {
+        Peer peer = byAddress.get(address);
+        if (peer == null) {
+            peer = new Peer(address, name);
+            byAddress.put(address, peer);
+        } else if (peer.getName() == null && name != null) {
+            peer.setName(name);
+        }
+        return peer;
+    }
+
+    @Override
+    public synchronized Peer byId(int id) {
+        return id >= 0 && id < byId.size() ? byId.get(id) : null;
+    }
+
+    // Number of the sender for storing its message, stored first if it is new;
+    // NO_ID if it cannot be (no address, or the table cannot be written)
+    @Override
+    public int idOf(Peer sender) {
+        if (sender == null || sender.getAddress() == null) {
+            return Peer.NO_ID;
+        }
+        // Ids are only assigned under writeLock, so the one picked here is still
+        // free once its record is synced
+        synchronized (writeLock) {
+            Peer peer;
+            int id;
+            String name;
+            boolean stored;
+            synchronized (this) {
+                peer = intern(sender.getAddress(), sender.getName());
+                name = peer.getName();
+                stored = peer.getId() != Peer.NO_ID;
+                if (stored && (savedNames.get(peer.getId()) != null || name == null)) {
+                    return peer.getId();
+                }
+                id = stored ? peer.getId() : byId.size();
+            }
+            if (stored) {
+                // Stored as a conversation before any of its messages named it
+                try {
+                    write(id, peer.getAddress(), name);
+                    synchronized (this) {
+                        savedNames.set(id, name);
+                    }
+                } catch (IOException e) {
+                    // The id still holds; the name is written with the next message
+                }
+                return id;
+            }
+            try {
+                write(id, peer.getAddress(), name);
+            } catch (IOException e) {
+                return Peer.NO_ID;
+            }
+            synchronized (this) {
+                peer.assignId(id);
+                byId.add(peer);
+                savedNames.add(name);
+            }
+            return id;
+        }
+    }
+
+    // Every message from peer, stored or not, shows the new name
+    public void rename(String address, String name) throws IOException {
+        synchronized (writeLock) {
+            int id;
+            synchronized (this) {
+                Peer peer = get(address);
+                peer.setName(name);
+                id = peer.getId();
+                if (id == Peer.NO_ID || equalNames(savedNames.get(id), name)) {
+                    return;
+                }
+            }
+            write(id, address, name);
+            synchronized (this) {
+                savedNames.set(id, name);
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return byAddress.size();
+    }
+
+    private void write(int id, String address, String name) throws IOException {
+        if (file == null) {
+            return;
+        }
+        try (FileOutputStream stream = new FileOutputStream(file, true)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(id);
+            out.writeUTF(address);
+            out.writeBoolean(name != null);
+            if (name != null) {
+                out.writeUTF(name);
+            }
+            out.flush();
+            // Rare, and a message must never be stored under an id that is not
+            stream.getFD().sync();
+        }
+    }
+
+    private static boolean equalNames(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.bluechatpro.storage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+// Ascending message ids stored as varint gaps. Ids only ever grow because the
+// log is append-only, so a common word costs about one byte per message.
+final class PostingList {
+
+    private byte[] data = new byte[4];
+    private int size;
+    private int last = -1;
+    private int count;
+
+    // Returns false if id is not past the last id added (e.g. a repeated word)
+    boolean add(int id) {
+        if (id <= last) {
+            return false;
+        }
+        if (size + 5 > data.length) {
+            data = Arrays.copyOf(data, Math.max(size + 5, data.length + (data.length >> 1)));
+        }
+        int gap = id - last - 1;
+        while ((gap & ~0x7F) != 0) {
+            data[size++] = (byte) ((gap & 0x7F) | 0x80);
+            gap >>>= 7;
+        }
+        data[size++] = (byte) gap;
+        last = id;
+        count++;
+        return true;
+    }
+
+    int count() {
+        return count;
+    }
+
+    int last() {
+        return last;
+    }
+
+    int sizeInBytes() {
+        return size;
+    }
+
+    void addTo(BitSet ids) {
+        int id = -1;
+        int p = 0;
+        while (p < size) {
+            int gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[p++];
+                gap |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            id += gap + 1;
+            ids.set(id);
+        }
+    }
+
+    int[] toArray() {
+        int[] ids = new int[count];
+        int id = -1;
+        int p = 0;
+        for (int i = 0; i < count; i++) {
+            int gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[p++];
+                gap |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            id += gap + 1;
+            ids[i] = id;
+        }
+        return ids;
+    }
+
+    // [count:4][last:4][size:4][gaps]
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(count);
+        out.writeInt(last);
+        out.writeInt(size);
+        out.write(data, 0, size);
+    }
+
+    static PostingList readFrom(DataInputStream in) throws IOException {
+        PostingList list = new PostingList();
+        list.count = in.readInt();
+        list.last = in.readInt();
+        list.size = in.readInt();
+        if (list.count < 0 || list.size < list.count || list.size > 5 * list.count) {
+            throw new IOException("Corrupt posting list");
+        }
+        list.data = new byte[Math.max(4, list.size)];
+        in.readFully(list.data, 0, list.size);
+        return list;
+    }
+
+    // The same list after a log compaction: each id becomes map[id], and ids
+    // mapped to -1 are left out. Order is kept because the mapping is.
+    PostingList remap(int[] map) {
+        PostingList remapped = new PostingList();
+        for (int id : toArray()) {
+            int newId = id < map.length ? map[id] : -1;
+            if (newId >= 0) {
+                remapped.add(newId);
+            }
+        }
+        return remapped;
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.bluechatpro.storage;
+
+import com.example.bluechatpro.models.ChatMessage;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+// Applies each conversation's RetentionPolicy to the whole log for a compaction.
+// Remembers a few numbers per record on the way through, then walks back from
+// the newest to count messages and bytes per conversation. Messages the user
+// cleared are dropped whatever the policy.
+final class RetentionPlanner implements MessageLog.Planner {
+
+    private final Map<String, RetentionPolicy> policies;
+    private final RetentionPolicy fallback;
+    private final long now;
+    private final BitSet cleared;
+
+    private final Map<String, Integer> peerIds = new HashMap<>();
+    private RetentionPolicy[] peerPolicies = new RetentionPolicy[8];
+    private int[] peers = new int[1024];
+    private long[] timestamps = new long[1024];
+    private int[] sizes = new int[1024];
+    private int records;
+
+    RetentionPlanner(Map<String, RetentionPolicy> policies, RetentionPolicy fallback, long now) {
+        this(policies, fallback, now, new BitSet());
+    }
+
+    RetentionPlanner(Map<String, RetentionPolicy> policies, RetentionPolicy fallback, long now, BitSet cleared) {
+        this.policies = policies;
+        this.fallback = fallback;
+        this.now = now;
+        this.cleared = cleared;
+    }
+
+    @Override
+    public void onRecord(int id, String peer, ChatMessage header, int recordBytes) {
+        Integer peerId = peerIds.get(peer);
+        if (peerId == null) {
+            peerId = peerIds.size();
+            peerIds.put(peer, peerId);
+            if (peerId == peerPolicies.length) {
+                peerPolicies = Arrays.copyOf(peerPolicies, peerId * 2);
+            }
+            RetentionPolicy policy = policies.get(peer);
+            peerPolicies[peerId] = policy != null ? policy : fallback;
+        }
+        if (records == peers.length) {
+            peers = Arrays.copyOf(peers, records * 2);
+            timestamps = Arrays.copyOf(timestamps, records * 2);
+            sizes = Arrays.copyOf(sizes, records * 2);
+        }
+        peers[records] = peerId;
+        timestamps[records] = header.getTimestamp();
+        sizes[records] = recordBytes;
+        records++;
+    }
+
+    @Override
+    public BitSet dropped() {
+        BitSet dropped = new BitSet(records);
+        int[] keptCount = new int[peerIds.size()];
+        long[] keptBytes = new long[peerIds.size()];
+        // Once one message is over the byte limit, every older one is too
+        boolean[] full = new boolean[peerIds.size()];
+        for (int id = records - 1; id >= 0; id--) {
+            int peer = peers[id];
+            RetentionPolicy policy = peerPolicies[peer];
+            if (policy.keepsAll()) {
+                continue;
+            }
+            if (policy.maxBytes != 0 && keptBytes[peer] + sizes[id] > policy.maxBytes) {
+                full[peer] = true;
+            }
+            boolean keep = !full[peer]
+                    && !policy.isExpired(timestamps[id], now)
+                    && (policy.maxCount == 0 || keptCount[peer] < policy.maxCount);
+            if (keep) {
+                keptCount[peer]++;
+                keptBytes[peer] += sizes[id];
+            } else {
+                dropped.set(id);
+            }
+        }
+        dropped.or(cleared.get(0, records));
+        return dropped;
+    }
+}
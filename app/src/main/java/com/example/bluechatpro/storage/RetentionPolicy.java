@@ -0,0 +1,49 @@
+package com.example.bluechatpro.storage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+// How much of one conversation's history to keep. A message goes once it is older
+// than maxAgeMillis, or is not among the newest maxCount messages or the newest
+// maxBytes of the log. Zero means no limit.
+public final class RetentionPolicy {
+
+    public static final RetentionPolicy KEEP_ALL = new RetentionPolicy(0, 0, 0);
+
+    public final long maxAgeMillis;
+    public final int maxCount;
+    public final long maxBytes;
+
+    public RetentionPolicy(long maxAgeMillis, int maxCount, long maxBytes) {
+        if (maxAgeMillis < 0 || maxCount < 0 || maxBytes < 0) {
+            throw new IllegalArgumentException("Negative retention limit");
+        }
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxCount = maxCount;
+        this.maxBytes = maxBytes;
+    }
+
+    public boolean keepsAll() {
+        return maxAgeMillis == 0 && maxCount == 0 && maxBytes == 0;
+    }
+
+    // Whether a message sent at timestamp is already too old to keep
+    public boolean isExpired(long timestamp, long now) {
+        return maxAgeMillis != 0 && timestamp < now - maxAgeMillis;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeLong(maxAgeMillis);
+        out.writeInt(maxCount);
+        out.writeLong(maxBytes);
+    }
+
+    static RetentionPolicy read(DataInputStream in) throws IOException {
+        try {
+            return new RetentionPolicy(in.readLong(), in.readInt(), in.readLong());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt retention policy", e);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.bluechatpro.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+// Retention policies: a default from the app for every conversation, and the
+// user's overrides for some peers, which are saved to a small file of their own.
+//   [version:1][count:4] then per peer [address:UTF][policy]
+public class RetentionSettings {
+
+    private static final int FORMAT_VERSION = 1;
+
+    private final Map<String, RetentionPolicy> policies = new HashMap<>();
+    private RetentionPolicy fallback = RetentionPolicy.KEEP_ALL;
+
+    public synchronized RetentionPolicy get(String peer) {
+        RetentionPolicy policy = policies.get(peer);
+        return policy != null ? policy : fallback;
+    }
+
+    public synchronized void setDefault(RetentionPolicy policy) {
+        fallback = policy;
+    }
+
+    // A null policy goes back to the default
+    public synchronized void set(String peer, RetentionPolicy policy) {
+        if (policy == null) {
+            policies.remove(peer);
+        } else {
+            policies.put(peer, policy);
+        }
+    }
+
+    // Whether some conversation has a limit at all
+    public synchronized boolean limitsAnything() {
+        if (!fallback.keepsAll()) {
+            return true;
+        }
+        for (RetentionPolicy policy : policies.values()) {
+            if (!policy.keepsAll()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // A planner for one compaction, with the policies as they are now; it drops
+    // the cleared ids too
+    public synchronized MessageLog.Planner planner(long now, BitSet cleared) {
+        return new RetentionPlanner(new HashMap<>(policies), fallback, now, cleared);
+    }
+
+    public synchronized void load(File file) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readUnsignedByte() != FORMAT_VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            Map<String, RetentionPolicy> loaded = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                loaded.put(in.readUTF(), RetentionPolicy.read(in));
+            }
+            policies.clear();
+            policies.putAll(loaded);
+        }
+    }
+
+    // Write to a temporary file and rename it, as ConversationIndex does
+    public synchronized void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeByte(FORMAT_VERSION);
+            out.writeInt(policies.size());
+            for (Map.Entry<String, RetentionPolicy> entry : policies.entrySet()) {
+                out.writeUTF(entry.getKey());
+                entry.getValue().write(out);
+            }
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+}
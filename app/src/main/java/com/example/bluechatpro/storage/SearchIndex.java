@@ -0,0 +1,234 @@
+package com.example.bluechatpro.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+// Inverted index from lower-cased words to the ids of the messages containing them.
+// It grows incrementally as messages are appended to the log. Terms are kept sorted
+// so a prefix query is a range walk over the dictionary.
+//
+// Query syntax is a list of words that must all appear; the last word also matches
+// as a prefix unless the query ends with a separator, so results follow typing.
+//
+// The index is saved with the last log id it covers, so a restart only tokenizes
+// the messages appended after that.
+//   [version:1][maxId:4][terms:4] then per term [term:UTF][PostingList]
+public class SearchIndex {
+
+    private static final int FORMAT_VERSION = 1;
+
+    // Longer runs of letters (URLs, CJK sentences) are indexed by their first characters
+    static final int MAX_TERM_LENGTH = 24;
+
+    private final TreeMap<String, PostingList> terms = new TreeMap<>();
+    private int maxId = -1;
+
+    // Matching message ids, newest first
+    public static class Hits {
+        private final BitSet ids;
+        private final int count;
+
+        Hits(BitSet ids) {
+            this.ids = ids;
+            this.count = ids.cardinality();
+        }
+
+        public int size() {
+            return count;
+        }
+
+        public int[] page(int offset, int limit) {
+            int n = Math.max(0, Math.min(limit, count - offset));
+            int[] page = new int[n];
+            int id = ids.length();
+            for (int skip = 0; skip <= offset && id >= 0; skip++) {
+                id = ids.previousSetBit(id - 1);
+            }
+            for (int i = 0; i < n && id >= 0; i++) {
+                page[i] = id;
+                id = ids.previousSetBit(id - 1);
+            }
+            return page;
+        }
+    }
+
+    // Index a message; ids must be added in increasing order
+    public synchronized void add(int id, CharSequence text) {
+        if (id <= maxId || text == null) {
+            return;
+        }
+        maxId = id;
+
+        for (String term : tokenize(text)) {
+            PostingList postings = terms.get(term);
+            if (postings == null) {
+                postings = new PostingList();
+                terms.put(term, postings);
+            }
+            // Repeats of a word within the message are dropped here
+            postings.add(id);
+        }
+    }
+
+    public synchronized Hits search(String query) {
+        List<String> words = tokenize(query);
+        if (words.isEmpty()) {
+            return new Hits(new BitSet());
+        }
+        boolean lastIsPrefix = !Character.isWhitespace(query.charAt(query.length() - 1));
+
+        BitSet result = null;
+        for (int i = 0; i < words.size(); i++) {
+            BitSet matches = new BitSet(maxId + 1);
+            String word = words.get(i);
+            if (i == words.size() - 1 && lastIsPrefix) {
+                for (PostingList postings : prefixRange(word).values()) {
+                    postings.addTo(matches);
+                }
+            } else {
+                PostingList postings = terms.get(word);
+                if (postings != null) {
+                    postings.addTo(matches);
+                }
+            }
+
+            if (result == null) {
+                result = matches;
+            } else {
+                result.and(matches);
+            }
+            if (result.isEmpty()) {
+                break;
+            }
+        }
+        return new Hits(result);
+    }
+
+    // Follow a log compaction; see PostingList.remap. Words left without any
+    // message are forgotten.
+    public synchronized void remap(int[] map) {
+        Iterator<Map.Entry<String, PostingList>> entries = terms.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, PostingList> entry = entries.next();
+            PostingList remapped = entry.getValue().remap(map);
+            if (remapped.count() == 0) {
+                entries.remove();
+            } else {
+                entry.setValue(remapped);
+            }
+        }
+        int newMaxId = -1;
+        for (int id = Math.min(maxId, map.length - 1); id >= 0 && newMaxId < 0; id--) {
+            newMaxId = map[id];
+        }
+        maxId = newMaxId;
+    }
+
+    // Highest message id indexed; add() skips anything up to it
+    public synchronized int getMaxId() {
+        return maxId;
+    }
+
+    public synchronized void clear() {
+        terms.clear();
+        maxId = -1;
+    }
+
+    // Replace the contents with a saved index. Left empty if the file is
+    // missing, of another version or damaged; the caller rebuilds it from the log.
+    public synchronized void load(File file) throws IOException {
+        clear();
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readUnsignedByte() != FORMAT_VERSION) {
+                return;
+            }
+            int savedMaxId = in.readInt();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String term = in.readUTF();
+                PostingList postings = PostingList.readFrom(in);
+                if (postings.last() > savedMaxId) {
+                    throw new IOException("Corrupt search index");
+                }
+                terms.put(term, postings);
+            }
+            maxId = savedMaxId;
+        } catch (IOException e) {
+            clear();
+            throw e;
+        }
+    }
+
+    // Written to a temporary file and renamed, so a crash never leaves half an index
+    public synchronized void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024))) {
+            out.writeByte(FORMAT_VERSION);
+            out.writeInt(maxId);
+            out.writeInt(terms.size());
+            for (Map.Entry<String, PostingList> entry : terms.entrySet()) {
+                out.writeUTF(entry.getKey());
+                entry.getValue().writeTo(out);
+            }
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    public synchronized int termCount() {
+        return terms.size();
+    }
+
+    // Total size of the encoded posting lists
+    public synchronized long sizeInBytes() {
+        long size = 0;
+        for (PostingList postings : terms.values()) {
+            size += postings.sizeInBytes();
+        }
+        return size;
+    }
+
+    private SortedMap<String, PostingList> prefixRange(String prefix) {
+        // Every term starting with prefix sorts before prefix + U+FFFF
+        return terms.subMap(prefix, prefix + Character.MAX_VALUE);
+    }
+
+    static List<String> tokenize(CharSequence text) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < text.length(); ) {
+            int codePoint = Character.codePointAt(text, i);
+            i += Character.charCount(codePoint);
+            if (Character.isLetterOrDigit(codePoint)) {
+                if (word.length() < MAX_TERM_LENGTH) {
+                    word.appendCodePoint(Character.toLowerCase(codePoint));
+                }
+            } else if (word.length() > 0) {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        if (word.length() > 0) {
+            words.add(word.toString());
+        }
+        return words;
+    }
+}
@@ -0,0 +1,222 @@
+package com.example.bluechatpro.storage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// The message ids of one conversation as 64-bit hashes, for comparing histories
+// with the peer. Answers "how many, and what XOR" over any range of the hash
+// space in O(log n), so two sides can narrow a difference down range by range
+// without listing what they agree on. Ids are hashed rather than ordered by
+// time because each device stores messages under its own clock.
+// A message dropped by retention stays as a hash without an id, so the two sides
+// still agree on it and sync does not bring it back.
+// Not thread-safe; ChatHistory only touches it on its worker.
+public class SyncSet {
+
+    // The whole hash space, as signed longs
+    public static final long MIN = Long.MIN_VALUE;
+    public static final long MAX = Long.MAX_VALUE;
+
+    // Hash -> log id or -1 if dropped, open addressing; 0 marks a free slot
+    private long[] keys = new long[64];
+    private int[] values = new int[64];
+    private int size;
+
+    // Sorted hashes with prefix XORs: xors[i] covers sorted[0..i)
+    private long[] sorted = new long[0];
+    private long[] xors = {0};
+    // Added since the last sort
+    private long[] pending = new long[16];
+    private int pendingCount;
+
+    public static long hash(String messageId) {
+        // FNV-1a over the UTF-8 bytes, then a finalizer so nearby ids spread out
+        long h = 0xcbf29ce484222325L;
+        for (byte b : messageId.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h != 0 ? h : 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Record that the message with this hash is at log id, or with id -1 that it
+    // was dropped; false if already known
+    public boolean add(long hash, int id) {
+        if (size * 2 >= keys.length) {
+            grow();
+        }
+        int slot = slot(keys, hash);
+        if (keys[slot] != 0) {
+            if (values[slot] < 0) {
+                values[slot] = id;
+            }
+            return false;
+        }
+        keys[slot] = hash;
+        values[slot] = id;
+        size++;
+
+        if (pendingCount == pending.length) {
+            pending = Arrays.copyOf(pending, pendingCount * 2);
+        }
+        pending[pendingCount++] = hash;
+        return true;
+    }
+
+    // Keep the message known but forget its id, as if dropped; returns the id
+    // it had, or -1
+    public int drop(long hash) {
+        int slot = slot(keys, hash);
+        if (keys[slot] == 0) {
+            return -1;
+        }
+        int id = values[slot];
+        values[slot] = -1;
+        return id;
+    }
+
+    public boolean contains(long hash) {
+        return keys[slot(keys, hash)] != 0;
+    }
+
+    // Log id of the message with this hash, or -1 if absent or dropped
+    public int id(long hash) {
+        int slot = slot(keys, hash);
+        return keys[slot] != 0 ? values[slot] : -1;
+    }
+
+    // Follow a log compaction: each id becomes map[id]. Returns the hashes of the
+    // messages it dropped, which stay in the set without an id.
+    public long[] remap(int[] map) {
+        long[] dropped = new long[16];
+        int droppedCount = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            int id = values[slot];
+            if (keys[slot] == 0 || id < 0) {
+                continue;
+            }
+            values[slot] = id < map.length ? map[id] : -1;
+            if (values[slot] < 0) {
+                if (droppedCount == dropped.length) {
+                    dropped = Arrays.copyOf(dropped, droppedCount * 2);
+                }
+                dropped[droppedCount++] = keys[slot];
+            }
+        }
+        return Arrays.copyOf(dropped, droppedCount);
+    }
+
+    // Hashes of the messages known without an id
+    public long[] droppedHashes() {
+        long[] dropped = new long[16];
+        int count = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != 0 && values[slot] < 0) {
+                if (count == dropped.length) {
+                    dropped = Arrays.copyOf(dropped, count * 2);
+                }
+                dropped[count++] = keys[slot];
+            }
+        }
+        return Arrays.copyOf(dropped, count);
+    }
+
+    // Messages with hashes in [lo, hi]
+    public int count(long lo, long hi) {
+        settle();
+        return upper(hi) - lower(lo);
+    }
+
+    // XOR of the hashes in [lo, hi]; with the count, equal for equal sets
+    // except by a 2^-64 chance
+    public long fingerprint(long lo, long hi) {
+        settle();
+        return xors[upper(hi)] ^ xors[lower(lo)];
+    }
+
+    // The hashes in [lo, hi], in order
+    public long[] hashes(long lo, long hi) {
+        settle();
+        return Arrays.copyOfRange(sorted, lower(lo), upper(hi));
+    }
+
+    // Merge what was added since the last query into the sorted array. Cheap
+    // when few were added; one sort of everything after opening the log.
+    private void settle() {
+        if (pendingCount == 0) {
+            return;
+        }
+        Arrays.sort(pending, 0, pendingCount);
+        long[] merged = new long[sorted.length + pendingCount];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < sorted.length && j < pendingCount) {
+            merged[k++] = sorted[i] <= pending[j] ? sorted[i++] : pending[j++];
+        }
+        while (i < sorted.length) {
+            merged[k++] = sorted[i++];
+        }
+        while (j < pendingCount) {
+            merged[k++] = pending[j++];
+        }
+
+        // Prefixes before the first new hash are unchanged
+        int from = lower(pending[0]);
+        long[] newXors = Arrays.copyOf(xors, merged.length + 1);
+        for (int n = from; n < merged.length; n++) {
+            newXors[n + 1] = newXors[n] ^ merged[n];
+        }
+        sorted = merged;
+        xors = newXors;
+        pendingCount = 0;
+        if (pending.length > 1024) {
+            pending = new long[16];
+        }
+    }
+
+    // First index with sorted[index] >= hash
+    private int lower(long hash) {
+        int index = Arrays.binarySearch(sorted, hash);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    // First index with sorted[index] > hash
+    private int upper(long hash) {
+        int index = Arrays.binarySearch(sorted, hash);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = slot(keys, oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    // The slot holding hash, or the free slot where it would go
+    private static int slot(long[] table, long hash) {
+        int mask = table.length - 1;
+        int slot = (int) (hash ^ (hash >>> 32)) & mask;
+        while (table[slot] != 0 && table[slot] != hash) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+}
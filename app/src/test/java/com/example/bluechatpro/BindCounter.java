@@ -0,0 +1,108 @@
+package com.example.bluechatpro;
+
+import android.view.ViewGroup;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.lang.management.ManagementFactory;
+
+// Stands between a RecyclerView and its real adapter and counts the holders the
+// list creates and binds. Changes the real adapter announces are passed on, so
+// the screen under test keeps driving its own adapter.
+public class BindCounter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
+
+    private final RecyclerView.Adapter<RecyclerView.ViewHolder> adapter;
+    private int creates;
+    private int binds;
+
+    @SuppressWarnings("unchecked")
+    public static BindCounter install(RecyclerView list) {
+        BindCounter counter = new BindCounter((RecyclerView.Adapter<RecyclerView.ViewHolder>) list.getAdapter());
+        list.setAdapter(counter);
+        return counter;
+    }
+
+    private BindCounter(RecyclerView.Adapter<RecyclerView.ViewHolder> adapter) {
+        this.adapter = adapter;
+        adapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                notifyDataSetChanged();
+            }
+
+            @Override
+            public void onItemRangeChanged(int position, int count) {
+                notifyItemRangeChanged(position, count);
+            }
+
+            @Override
+            public void onItemRangeChanged(int position, int count, Object payload) {
+                notifyItemRangeChanged(position, count, payload);
+            }
+
+            @Override
+            public void onItemRangeInserted(int position, int count) {
+                notifyItemRangeInserted(position, count);
+            }
+
+            @Override
+            public void onItemRangeRemoved(int position, int count) {
+                notifyItemRangeRemoved(position, count);
+            }
+
+            @Override
+            public void onItemRangeMoved(int from, int to, int count) {
+                notifyDataSetChanged();
+            }
+        });
+    }
+
+    public int getCreates() {
+        return creates;
+    }
+
+    public int getBinds() {
+        return binds;
+    }
+
+    public void reset() {
+        creates = 0;
+        binds = 0;
+    }
+
+    // Bytes allocated so far by the calling thread, which under Robolectric is
+    // also the main looper's
+    public static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @NonNull
+    @Override
+    public RecyclerView.ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        creates++;
+        return adapter.onCreateViewHolder(parent, viewType);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position) {
+        binds++;
+        adapter.onBindViewHolder(holder, position);
+    }
+
+    @Override
+    public void onViewRecycled(@NonNull RecyclerView.ViewHolder holder) {
+        adapter.onViewRecycled(holder);
+    }
+
+    @Override
+    public int getItemViewType(int position) {
+        return adapter.getItemViewType(position);
+    }
+
+    @Override
+    public int getItemCount() {
+        return adapter.getItemCount();
+    }
+}
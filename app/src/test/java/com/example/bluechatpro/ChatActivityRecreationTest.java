@@ -0,0 +1,67 @@
+package com.example.bluechatpro;
+
+import android.Manifest;
+import android.app.Application;
+import android.content.Intent;
+
+import androidx.lifecycle.ViewModelProvider;
+import androidx.recyclerview.widget.RecyclerView;
+import androidx.test.core.app.ActivityScenario;
+import androidx.test.core.app.ApplicationProvider;
+
+import com.example.bluechatpro.models.ChatMessage;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class ChatActivityRecreationTest {
+
+    @Test
+    public void rotationKeepsConnectionAndConversation() {
+        Application app = ApplicationProvider.getApplicationContext();
+        shadowOf(app).grantPermissions(Manifest.permission.BLUETOOTH_CONNECT, Manifest.permission.BLUETOOTH_SCAN);
+        Intent intent = new Intent(app, ChatActivity.class)
+                .putExtra("device_name", "Peer")
+                .putExtra("device_address", "00:11:22:33:44:55");
+
+        try (ActivityScenario<ChatActivity> scenario = ActivityScenario.launch(intent)) {
+            AtomicReference<ChatViewModel> before = new AtomicReference<>();
+            AtomicReference<BluetoothService> service = new AtomicReference<>();
+            scenario.onActivity(activity -> {
+                ChatViewModel viewModel = new ViewModelProvider(activity).get(ChatViewModel.class);
+                before.set(viewModel);
+                service.set(viewModel.getService());
+                viewModel.sendText("sent before rotating");
+            });
+            assertNotNull(service.get());
+
+            scenario.recreate();
+
+            scenario.onActivity(activity -> {
+                ChatViewModel viewModel = new ViewModelProvider(activity).get(ChatViewModel.class);
+                assertSame(before.get(), viewModel);
+                assertSame(service.get(), viewModel.getService());
+
+                // The new list shows the same window, and nothing was loaded twice
+                RecyclerView list = activity.findViewById(R.id.recyclerViewMessages);
+                assertEquals(viewModel.getWindow().size(), list.getAdapter().getItemCount());
+                int copies = 0;
+                for (ChatMessage message : viewModel.getWindow().getMessages()) {
+                    if ("sent before rotating".equals(message.getContent())) {
+                        copies++;
+                    }
+                }
+                assertEquals(1, copies);
+            });
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package com.example.bluechatpro;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Looper;
+import android.text.Spanned;
+import android.text.style.URLSpan;
+import android.view.View;
+import android.widget.TextView;
+
+import androidx.lifecycle.ViewModelProvider;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+import androidx.test.core.app.ActivityScenario;
+import androidx.test.core.app.ApplicationProvider;
+
+import com.example.bluechatpro.adapters.BubbleTextCache;
+import com.example.bluechatpro.adapters.MessageAdapter;
+import com.example.bluechatpro.adapters.MessageViewPool;
+import com.example.bluechatpro.models.ChatMessage;
+import com.example.bluechatpro.models.Peer;
+import com.example.bluechatpro.protocol.InboundQueue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+// Budgets for the chat screen's hot paths under synthetic load. They are loose
+// enough for any machine; what they catch is work that grows with the number of
+// messages instead of the number of rows on screen.
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class ChatUiPerformanceTest {
+
+    private static final int MESSAGES = 10_000;
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+
+    // Holders are only made for what fits on screen plus caches, per view type
+    private static final int MAX_CREATES = 80;
+    private static final long MAX_BYTES_PER_BIND = 64 * 1024;
+    private static final long MAX_BYTES_PER_RECEIVED = 16 * 1024;
+    // Binding rich text is a lookup; styling and measuring it is the worker's
+    private static final long MAX_NANOS_PER_RICH_BIND = 2_000_000;
+
+    @Test
+    public void scrollingTenThousandMessagesBindsEachRowOnce() {
+        Activity activity = Robolectric.buildActivity(Activity.class).setup().get();
+        RecyclerView list = new RecyclerView(activity);
+        list.setLayoutManager(new LinearLayoutManager(activity));
+        list.setAdapter(new MessageAdapter(syntheticMessages()));
+        activity.setContentView(list);
+        BindCounter counter = BindCounter.install(list);
+        layout(list);
+
+        int firstScreen = counter.getBinds();
+        assertTrue("Binds on open " + firstScreen, firstScreen > 0 && firstScreen <= 50);
+
+        long allocated = BindCounter.allocatedBytes();
+        LinearLayoutManager layoutManager = (LinearLayoutManager) list.getLayoutManager();
+        while (layoutManager.findLastVisibleItemPosition() < MESSAGES - 1) {
+            list.scrollBy(0, HEIGHT / 2);
+        }
+        allocated = BindCounter.allocatedBytes() - allocated;
+
+        int binds = counter.getBinds();
+        assertTrue("Binds " + binds, binds >= MESSAGES && binds <= MESSAGES + 2 * firstScreen);
+        assertTrue("Creates " + counter.getCreates(), counter.getCreates() <= MAX_CREATES);
+        assertTrue("Bytes per bind " + allocated / binds, allocated / binds <= MAX_BYTES_PER_BIND);
+    }
+
+    @Test
+    @Config(qualifiers = "w360dp-h640dp-xxhdpi")
+    public void prewarmedPoolLeavesNothingToInflateOnFirstFling() throws Exception {
+        Activity activity = Robolectric.buildActivity(Activity.class).setup().get();
+        RecyclerView list = new RecyclerView(activity);
+        list.setLayoutManager(new LinearLayoutManager(activity));
+        MessageViewPool pool = new MessageViewPool(activity.getResources().getDisplayMetrics());
+        list.setRecycledViewPool(pool);
+        MessageAdapter adapter = new MessageAdapter(syntheticMessages());
+        list.setAdapter(adapter);
+        activity.setContentView(list);
+        // Setting the counter's adapter empties the pool, so it goes first
+        BindCounter counter = BindCounter.install(list);
+        pool.prewarm(list, adapter);
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (pool.isPrewarming() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+            shadowOf(Looper.getMainLooper()).idle();
+        }
+        assertFalse(pool.isPrewarming());
+
+        // Open, then fling through the first few screens
+        layout(list);
+        for (int i = 0; i < 10; i++) {
+            list.scrollBy(0, HEIGHT / 2);
+        }
+        assertEquals(0, counter.getCreates());
+        assertTrue("Binds " + counter.getBinds(), counter.getBinds() > 0);
+    }
+
+    @Test
+    public void detachedPoolTakesNoLateInflations() throws Exception {
+        Activity activity = Robolectric.buildActivity(Activity.class).setup().get();
+        RecyclerView list = new RecyclerView(activity);
+        list.setLayoutManager(new LinearLayoutManager(activity));
+        MessageViewPool pool = new MessageViewPool(activity.getResources().getDisplayMetrics());
+        list.setRecycledViewPool(pool);
+        MessageAdapter adapter = new MessageAdapter(syntheticMessages());
+        list.setAdapter(adapter);
+        pool.prewarm(list, adapter);
+        pool.detach();
+        assertFalse(pool.isPrewarming());
+
+        // Whatever the inflater finishes after this is dropped
+        Thread.sleep(100);
+        shadowOf(Looper.getMainLooper()).idle();
+        for (int position = 0; position < adapter.getItemCount(); position++) {
+            assertEquals(0, pool.getRecycledViewCount(adapter.getItemViewType(position)));
+        }
+    }
+
+    @Test
+    public void textMeasuredAheadIsBoundFromTheCache() {
+        Activity activity = Robolectric.buildActivity(Activity.class).setup().get();
+        List<ChatMessage> messages = syntheticMessages();
+        long plain = scrollThrough(activity, messages, null);
+
+        // Measured as soon as asked, so every page is ready before it scrolls in
+        BubbleTextCache cache = new BubbleTextCache(Runnable::run, Runnable::run);
+        long cached = scrollThrough(activity, messages, cache);
+        System.out.println("Scrolling " + MESSAGES + " messages: " + plain / 1_000_000 + " ms measuring on bind, "
+                + cached / 1_000_000 + " ms from the text cache (" + cache.hitCount() + " hits, "
+                + cache.missCount() + " misses)");
+
+        // Only the rows on screen before anything was measured
+        assertTrue("Misses " + cache.missCount(), cache.missCount() <= 50);
+        assertTrue("Hits " + cache.hitCount(), cache.hitCount() >= MESSAGES / 2);
+    }
+
+    @Test
+    public void richTextIsStyledOffTheMainThread() throws Exception {
+        Activity activity = Robolectric.buildActivity(Activity.class).setup().get();
+        List<ChatMessage> messages = richMessages();
+        ExecutorService worker = Executors.newSingleThreadExecutor();
+        // Results come back to this thread, standing in for the main looper
+        Queue<Runnable> results = new ConcurrentLinkedQueue<>();
+        BubbleTextCache cache = new BubbleTextCache(worker, results::add);
+        RecyclerView list = new RecyclerView(activity);
+        list.setLayoutManager(new LinearLayoutManager(activity));
+        list.setAdapter(new MessageAdapter(messages, null, null, cache));
+        activity.setContentView(list);
+        BindCounter counter = BindCounter.install(list);
+        layout(list);
+
+        LinearLayoutManager layoutManager = (LinearLayoutManager) list.getLayoutManager();
+        long mainNanos = 0;
+        long allocated = 0;
+        int prefetched = 0;
+        int last;
+        while ((last = layoutManager.findLastVisibleItemPosition()) < MESSAGES - 1) {
+            long start = System.nanoTime();
+            long bytes = BindCounter.allocatedBytes();
+            if (last + 50 > prefetched) {
+                int end = Math.min(MESSAGES, prefetched + 200);
+                cache.prefetch(messages.subList(prefetched, end));
+                prefetched = end;
+            }
+            list.scrollBy(0, HEIGHT / 2);
+            for (Runnable result; (result = results.poll()) != null; ) {
+                result.run();
+            }
+            mainNanos += System.nanoTime() - start;
+            allocated += BindCounter.allocatedBytes() - bytes;
+            // The worker keeps up between frames
+            worker.submit(() -> { }).get();
+        }
+        for (Runnable result; (result = results.poll()) != null; ) {
+            result.run();
+        }
+        worker.shutdown();
+
+        int binds = counter.getBinds();
+        System.out.println("Scrolling " + MESSAGES + " rich messages: " + mainNanos / binds / 1000
+                + " us and " + allocated / binds + " bytes per bind on the main thread, "
+                + cache.missCount() + " binds before their text was styled");
+        assertTrue("Main thread per bind " + mainNanos / binds, mainNanos / binds <= MAX_NANOS_PER_RICH_BIND);
+        assertTrue("Bytes per bind " + allocated / binds, allocated / binds <= MAX_BYTES_PER_BIND);
+        assertTrue("Misses " + cache.missCount(), cache.missCount() <= 50);
+
+        // What is on screen now shows its links and emoji
+        boolean styled = false;
+        for (int i = 0; i < list.getChildCount(); i++) {
+            TextView text = list.getChildAt(i).findViewById(R.id.textMessage);
+            if (text != null && text.getText() instanceof Spanned) {
+                Spanned spanned = (Spanned) text.getText();
+                styled |= spanned.getSpans(0, spanned.length(), URLSpan.class).length > 0
+                        && !spanned.toString().contains(":tada:");
+            }
+        }
+        assertTrue(styled);
+    }
+
+    @Test
+    public void receiveBurstIsSpreadOverShortLooperTasks() {
+        Intent intent = new Intent(ApplicationProvider.getApplicationContext(), ChatActivity.class)
+                .putExtra("device_name", "Peer")
+                .putExtra("device_address", "00:11:22:33:44:55");
+
+        // Without Bluetooth permissions the screen never connects, which keeps the
+        // looper free of connection attempts; the burst is fed in directly
+        try (ActivityScenario<ChatActivity> scenario = ActivityScenario.launch(intent)) {
+            scenario.onActivity(activity -> {
+                ChatViewModel viewModel = new ViewModelProvider(activity).get(ChatViewModel.class);
+                RecyclerView list = activity.findViewById(R.id.recyclerViewMessages);
+                BindCounter counter = BindCounter.install(list);
+                shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(16));
+                counter.reset();
+
+                // The connection thread hands over a window's worth at a time
+                int window = 256;
+                CountingQueue inbound = new CountingQueue(window);
+                List<ChatMessage> burst = syntheticMessages();
+                long allocated = BindCounter.allocatedBytes();
+                for (int sent = 0; sent < MESSAGES; ) {
+                    boolean drain = false;
+                    for (int end = Math.min(MESSAGES, sent + window); sent < end; sent++) {
+                        drain |= put(inbound, burst.get(sent));
+                    }
+                    if (drain) {
+                        viewModel.getHandler()
+                                .obtainMessage(BluetoothService.MESSAGE_READ, inbound).sendToTarget();
+                    }
+                    // Runs the drains, then a frame
+                    shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(16));
+                }
+                allocated = BindCounter.allocatedBytes() - allocated;
+
+                assertEquals(0, inbound.size());
+                assertTrue("Largest batch " + inbound.largest, inbound.largest <= ChatViewModel.READ_BATCH);
+                int chunks = (MESSAGES + window - 1) / window;
+                assertTrue("Looper tasks " + inbound.drains,
+                        inbound.drains <= MESSAGES / ChatViewModel.READ_BATCH + chunks);
+
+                // One frame per chunk; rows already on screen are not bound again
+                // for every arrival
+                assertTrue("Binds " + counter.getBinds(), counter.getBinds() <= chunks * 20);
+                assertTrue("Bytes per message " + allocated / MESSAGES,
+                        allocated / MESSAGES <= MAX_BYTES_PER_RECEIVED);
+            });
+        }
+    }
+
+    // Nanoseconds to scroll from top to bottom, prefetching a page ahead as the
+    // chat screen does when one loads
+    private static long scrollThrough(Activity activity, List<ChatMessage> messages, BubbleTextCache cache) {
+        RecyclerView list = new RecyclerView(activity);
+        list.setLayoutManager(new LinearLayoutManager(activity));
+        list.setAdapter(new MessageAdapter(messages, null, null, cache));
+        activity.setContentView(list);
+        long start = System.nanoTime();
+        layout(list);
+        LinearLayoutManager layoutManager = (LinearLayoutManager) list.getLayoutManager();
+        int prefetched = 0;
+        int last;
+        while ((last = layoutManager.findLastVisibleItemPosition()) < MESSAGES - 1) {
+            if (cache != null && last + 50 > prefetched) {
+                int end = Math.min(MESSAGES, prefetched + 200);
+                cache.prefetch(messages.subList(prefetched, end));
+                prefetched = end;
+            }
+            list.scrollBy(0, HEIGHT / 2);
+        }
+        return System.nanoTime() - start;
+    }
+
+    // Links, mentions and shortcodes in every text message, some of them long
+    private static List<ChatMessage> richMessages() {
+        List<ChatMessage> messages = syntheticMessages();
+        for (int i = 0; i < MESSAGES; i++) {
+            ChatMessage message = messages.get(i);
+            if (message.getSender() == Peer.SYSTEM) {
+                continue;
+            }
+            StringBuilder content = new StringBuilder("@peer have a look at https://example.com/item/")
+                    .append(i).append(" :tada: :+1:");
+            if (i % 10 == 0) {
+                for (int line = 0; line < 20; line++) {
+                    content.append(" and www.example.org/more/").append(line).append(", says @you :eyes:");
+                }
+            }
+            message.setContent(content.toString());
+        }
+        return messages;
+    }
+
+    private static List<ChatMessage> syntheticMessages() {
+        List<ChatMessage> messages = new ArrayList<>(MESSAGES);
+        long start = System.currentTimeMillis() - MESSAGES * 1000L;
+        Peer you = new Peer(null, "You");
+        Peer peer = new Peer("00:11:22:33:44:55", "Peer");
+        for (int i = 0; i < MESSAGES; i++) {
+            boolean sent = i % 3 == 0;
+            ChatMessage message = new ChatMessage(
+                    i % 500 == 0 ? "Connected to Peer" : "Message " + i + " in a synthetic conversation",
+                    i % 500 == 0 ? Peer.SYSTEM : sent ? you : peer,
+                    sent);
+            message.setTimestamp(start + i * 1000L);
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    private static void layout(RecyclerView list) {
+        list.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+        list.layout(0, 0, WIDTH, HEIGHT);
+    }
+
+    private static boolean put(InboundQueue inbound, ChatMessage message) {
+        try {
+            return inbound.put(message);
+        } catch (java.io.IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    // Each drain is one main-looper task of ChatViewModel's
+    private static class CountingQueue extends InboundQueue {
+        int drains;
+        int largest;
+
+        CountingQueue(int capacity) {
+            super(capacity, count -> { });
+        }
+
+        @Override
+        public List<ChatMessage> drain(int max) {
+            List<ChatMessage> batch = super.drain(max);
+            drains++;
+            largest = Math.max(largest, batch.size());
+            return batch;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.bluechatpro;
+
+import android.Manifest;
+import android.app.Activity;
+import android.app.Application;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.Intent;
+import android.os.Looper;
+import android.view.View;
+
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+import androidx.test.core.app.ActivityScenario;
+import androidx.test.core.app.ApplicationProvider;
+
+import com.example.bluechatpro.adapters.DeviceAdapter;
+import com.example.bluechatpro.models.BluetoothDeviceItem;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+// Budgets for the device list under a crowded scan
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class DeviceListPerformanceTest {
+
+    private static final int DEVICES = 500;
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+    private static final long MAX_BYTES_PER_BIND = 64 * 1024;
+    private static final long MAX_BYTES_PER_FOUND = 64 * 1024;
+
+    private static final String[] KINDS = {"Phone", "Tablet", "Laptop", "Headset", "Watch", "Speaker"};
+
+    @Test
+    public void scrollingFiveHundredDevicesBindsEachRowOnce() {
+        Activity activity = Robolectric.buildActivity(Activity.class).setup().get();
+        List<BluetoothDeviceItem> devices = new ArrayList<>();
+        for (int i = 0; i < DEVICES; i++) {
+            BluetoothDeviceItem item = new BluetoothDeviceItem(KINDS[i % KINDS.length] + " " + i, address(i));
+            item.setSignalStrength(i % 2 == 0 ? 40 + i % 50 : -1);
+            devices.add(item);
+        }
+
+        RecyclerView list = new RecyclerView(activity);
+        list.setLayoutManager(new LinearLayoutManager(activity));
+        list.setAdapter(new DeviceAdapter(devices, null));
+        activity.setContentView(list);
+        BindCounter counter = BindCounter.install(list);
+        list.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+        list.layout(0, 0, WIDTH, HEIGHT);
+        int firstScreen = counter.getBinds();
+        assertTrue("Binds on open " + firstScreen, firstScreen > 0 && firstScreen <= 30);
+
+        long allocated = BindCounter.allocatedBytes();
+        LinearLayoutManager layoutManager = (LinearLayoutManager) list.getLayoutManager();
+        while (layoutManager.findLastVisibleItemPosition() < DEVICES - 1) {
+            list.scrollBy(0, HEIGHT / 2);
+        }
+        allocated = BindCounter.allocatedBytes() - allocated;
+
+        int binds = counter.getBinds();
+        assertTrue("Binds " + binds, binds >= DEVICES && binds <= DEVICES + 2 * firstScreen);
+        assertTrue("Creates " + counter.getCreates(), counter.getCreates() <= firstScreen + 10);
+        assertTrue("Bytes per bind " + allocated / binds, allocated / binds <= MAX_BYTES_PER_BIND);
+    }
+
+    @Test
+    public void crowdedScanOnlyBindsRowsThatAppear() {
+        Application app = ApplicationProvider.getApplicationContext();
+        shadowOf(app).grantPermissions(Manifest.permission.BLUETOOTH_CONNECT, Manifest.permission.BLUETOOTH_SCAN);
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        shadowOf(adapter).setEnabled(true);
+
+        List<BluetoothDevice> found = new ArrayList<>();
+        for (int i = 0; i < DEVICES; i++) {
+            BluetoothDevice device = adapter.getRemoteDevice(address(i));
+            shadowOf(device).setName(KINDS[i % KINDS.length] + " " + i);
+            found.add(device);
+        }
+
+        try (ActivityScenario<DeviceListActivity> scenario = ActivityScenario.launch(DeviceListActivity.class)) {
+            scenario.onActivity(activity -> {
+                activity.findViewById(R.id.btnAllDevices).performClick();
+                RecyclerView list = activity.findViewById(R.id.recyclerViewDevices);
+                BindCounter counter = BindCounter.install(list);
+                shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(16));
+                counter.reset();
+
+                long allocated = BindCounter.allocatedBytes();
+                // Every device is reported twice, as a real scan does
+                for (int round = 0; round < 2; round++) {
+                    for (BluetoothDevice device : found) {
+                        activity.sendBroadcast(new Intent(BluetoothDevice.ACTION_FOUND)
+                                .putExtra(BluetoothDevice.EXTRA_DEVICE, device));
+                        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(16));
+                    }
+                }
+                allocated = BindCounter.allocatedBytes() - allocated;
+
+                assertEquals(DEVICES, list.getAdapter().getItemCount());
+                // Rows fill the screen once; later ones land below it unbound
+                assertTrue("Binds " + counter.getBinds(), counter.getBinds() <= 60);
+                assertTrue("Bytes per found device " + allocated / (2 * DEVICES),
+                        allocated / (2 * DEVICES) <= MAX_BYTES_PER_FOUND);
+            });
+        }
+    }
+
+    private static String address(int i) {
+        return String.format(Locale.US, "00:11:22:33:%02X:%02X", i >> 8, i & 0xFF);
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.bluechatpro;
+
+import android.Manifest;
+import android.os.Looper;
+import android.widget.TextView;
+
+import androidx.test.core.app.ActivityScenario;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.time.Duration;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+// Cold start from Application.onCreate to the launcher activity's first frame.
+// Robolectric timings are not device timings, but the breakdown shows which
+// sections sit before the first frame and how long each takes.
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class StartupBenchmarkTest {
+
+    @Test
+    public void coldStartToFirstInteractiveFrame() {
+        BlueChatProApplication app = ApplicationProvider.getApplicationContext();
+        shadowOf(app).grantPermissions(Manifest.permission.BLUETOOTH_CONNECT, Manifest.permission.BLUETOOTH_SCAN,
+                Manifest.permission.BLUETOOTH, Manifest.permission.ACCESS_FINE_LOCATION);
+        StartupOrchestrator startup = app.getStartup();
+
+        try (ActivityScenario<MainActivity> scenario = ActivityScenario.launch(MainActivity.class)) {
+            shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(100));
+
+            assertTrue(startup.isFirstFrameShown());
+            long firstFrame = startup.getFirstFrameNanos();
+            System.out.println("Cold start: " + startup.describe());
+
+            // Deferred work, including the Bluetooth status, came after the frame
+            boolean sawStatus = false;
+            for (StartupOrchestrator.Section section : startup.getSections()) {
+                if (section.name.startsWith("main.") || section.name.equals("notificationChannel")) {
+                    assertTrue(section.name, section.startNanos >= firstFrame);
+                }
+                sawStatus |= section.name.equals("main.bluetoothStatus");
+            }
+            assertTrue(sawStatus);
+
+            scenario.onActivity(activity -> {
+                TextView status = activity.findViewById(R.id.textBluetoothStatus);
+                assertNotEquals("Bluetooth: Checking...", status.getText().toString());
+            });
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.bluechatpro;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+import static org.junit.Assert.*;
+
+public class StartupOrchestratorTest {
+
+    private final Queue<Runnable> main = new ArrayDeque<>();
+    private final Queue<Runnable> background = new ArrayDeque<>();
+    private final List<String> trace = new ArrayList<>();
+    private long now;
+
+    private final StartupOrchestrator startup = new StartupOrchestrator(main::add, background::add,
+            new StartupOrchestrator.Tracer() {
+                @Override
+                public void beginSection(String name) {
+                    trace.add("begin " + name);
+                }
+
+                @Override
+                public void endSection() {
+                    trace.add("end");
+                }
+            }, () -> now);
+
+    @Test
+    public void deferredWorkWaitsForFirstFrame() {
+        List<String> ran = new ArrayList<>();
+        startup.runNow("critical", () -> ran.add("critical"));
+        startup.runInBackground("warm", () -> ran.add("warm"));
+        startup.runAfterFirstFrame("later1", () -> ran.add("later1"));
+        startup.runAfterFirstFrame("later2", () -> ran.add("later2"));
+
+        assertEquals(List.of("critical"), ran);
+        assertTrue(main.isEmpty());
+        runAll(background);
+        assertEquals(List.of("critical", "warm"), ran);
+
+        now = 250_000_000L;
+        startup.onFirstFrame();
+        assertEquals(250_000_000L, startup.getFirstFrameNanos());
+        // One main-thread message per task, so input can be handled between them
+        assertEquals(2, main.size());
+        main.poll().run();
+        assertEquals(List.of("critical", "warm", "later1"), ran);
+        runAll(main);
+        assertEquals(List.of("critical", "warm", "later1", "later2"), ran);
+
+        // Too late to defer: posted straight away
+        startup.onFirstFrame();
+        assertEquals(250_000_000L, startup.getFirstFrameNanos());
+        startup.runAfterFirstFrame("late", () -> ran.add("late"));
+        runAll(main);
+        assertEquals("late", ran.get(ran.size() - 1));
+    }
+
+    @Test
+    public void everyTaskIsATimedTraceSection() {
+        startup.runNow("slow", () -> now += 5_000_000L);
+        startup.runInBackground("fails", () -> {
+            throw new IllegalStateException("boom");
+        });
+        try {
+            background.poll().run();
+            fail();
+        } catch (IllegalStateException expected) {
+            // The section still closes
+        }
+
+        assertEquals(List.of("begin slow", "end", "begin fails", "end"), trace);
+        List<StartupOrchestrator.Section> sections = startup.getSections();
+        assertEquals(2, sections.size());
+        assertEquals("slow", sections.get(0).name);
+        assertFalse(sections.get(0).background);
+        assertEquals(5_000_000L, sections.get(0).durationNanos);
+        assertEquals("fails", sections.get(1).name);
+        assertTrue(sections.get(1).background);
+        assertEquals(5_000_000L, sections.get(1).startNanos);
+        assertTrue(startup.describe().startsWith("first frame pending"));
+    }
+
+    private static void runAll(Queue<Runnable> queue) {
+        while (!queue.isEmpty()) {
+            queue.poll().run();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.bluechatpro.group;
+
+import com.example.bluechatpro.models.ChatMessage;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RoomLogTest {
+
+    @Test
+    public void clockStaysAheadOfEverythingSeen() {
+        long[] wall = {1000};
+        HybridClock clock = new HybridClock(() -> wall[0]);
+
+        long first = clock.now();
+        long second = clock.now();
+        assertTrue(second > first);
+        assertEquals(1000, HybridClock.toMillis(second));
+
+        // A peer whose clock is a minute ahead
+        long remote = HybridClock.fromMillis(61_000) + 3;
+        clock.update(remote);
+        long reply = clock.now();
+        assertTrue(reply > remote);
+
+        // Our wall clock catching up takes over again
+        wall[0] = 70_000;
+        assertEquals(HybridClock.fromMillis(70_000), clock.now());
+
+        // A peer a year ahead only moves us up to the drift bound
+        clock.update(HybridClock.fromMillis(70_000 + 365L * 24 * 60 * 60 * 1000));
+        assertEquals(70_000 + HybridClock.MAX_DRIFT_MS, HybridClock.toMillis(clock.now()));
+    }
+
+    @Test
+    public void mergeIsOrderIndependentAndWaitsForGaps() {
+        List<RoomEntry> all = new ArrayList<>();
+        for (String origin : Arrays.asList("aa", "bb", "cc")) {
+            for (int seq = 1; seq <= 50; seq++) {
+                all.add(entry(seq * 10L + origin.charAt(0) % 7, origin, seq));
+            }
+        }
+
+        RoomLog inOrder = new RoomLog();
+        assertEquals(150, inOrder.merge(all).size());
+
+        List<RoomEntry> shuffled = new ArrayList<>(all);
+        Collections.shuffle(shuffled, new Random(7));
+        RoomLog scrambled = new RoomLog();
+        int added = 0;
+        for (int i = 0; i < shuffled.size(); i += 20) {
+            added += scrambled.merge(shuffled.subList(i, Math.min(shuffled.size(), i + 20))).size();
+        }
+        // Duplicates change nothing
+        added += scrambled.merge(all.subList(0, 40)).size();
+
+        assertEquals(150, added);
+        assertEquals(keys(inOrder.entries()), keys(scrambled.entries()));
+        assertEquals(50, scrambled.highWater("bb"));
+
+        // An entry after a gap is held back until the gap fills
+        RoomLog gappy = new RoomLog();
+        assertTrue(gappy.merge(Collections.singletonList(entry(30, "aa", 3))).isEmpty());
+        assertEquals(0, gappy.highWater("aa"));
+        assertEquals(3, gappy.merge(Arrays.asList(entry(10, "aa", 1), entry(20, "aa", 2))).size());
+        assertEquals(3, gappy.highWater("aa"));
+    }
+
+    @Test
+    public void missingReturnsOnlyTheRangesTheOtherSideLacks() {
+        RoomLog log = new RoomLog();
+        List<RoomEntry> all = new ArrayList<>();
+        for (int seq = 1; seq <= 100; seq++) {
+            all.add(entry(seq * 2L, "aa", seq));
+            all.add(entry(seq * 2L + 1, "bb", seq));
+        }
+        log.merge(all);
+
+        Map<String, Integer> theirs = new HashMap<>();
+        theirs.put("aa", 90);
+        theirs.put("bb", 100);
+        List<RoomEntry> missing = log.missing(theirs, 256);
+        assertEquals(10, missing.size());
+        assertEquals(91, missing.get(0).seq);
+
+        // A stranger gets everything, in log order, a page at a time
+        List<RoomEntry> page = log.missing(new HashMap<>(), 64);
+        assertEquals(64, page.size());
+        assertEquals(keys(log.entries().subList(0, 64)), keys(page));
+    }
+
+    private static RoomEntry entry(long time, String origin, int seq) {
+        return new RoomEntry(time, origin, seq, new ChatMessage(origin + seq, origin, origin, false));
+    }
+
+    private static List<String> keys(List<RoomEntry> entries) {
+        List<String> keys = new ArrayList<>();
+        for (RoomEntry entry : entries) {
+            keys.add(entry.origin + ":" + entry.seq);
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,245 @@
+package com.example.bluechatpro.group;
+
+import com.example.bluechatpro.models.ChatMessage;
+import com.example.bluechatpro.protocol.Frame;
+import com.example.bluechatpro.protocol.FrameChannel;
+import com.example.bluechatpro.protocol.LinkMetrics;
+import com.example.bluechatpro.protocol.LoopbackTransport;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+// Several room members on in-memory links, each with its own skewed clock
+public class RoomSimulationTest {
+
+    private final List<Connection> connections = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void membersConvergeOnOneOrderThroughRelays() throws Exception {
+        int perNode = 2500;
+        Node[] nodes = new Node[4];
+        for (int i = 0; i < nodes.length; i++) {
+            // Clocks up to 30s apart
+            long skew = (i - 2) * 10_000L;
+            nodes[i] = new Node("node" + i, () -> System.currentTimeMillis() + skew);
+        }
+        // A line: the ends only hear each other through the middle
+        connect(nodes[0], nodes[1]);
+        connect(nodes[1], nodes[2]);
+        connect(nodes[2], nodes[3]);
+
+        long start = System.nanoTime();
+        List<Thread> posters = new ArrayList<>();
+        for (Node node : nodes) {
+            Thread poster = new Thread(() -> {
+                for (int i = 0; i < perNode; i++) {
+                    node.room.post(new ChatMessage(node.address + " says " + i, node.address, node.address, true));
+                }
+            });
+            poster.start();
+            posters.add(poster);
+        }
+        for (Thread poster : posters) {
+            poster.join();
+        }
+        int total = perNode * nodes.length;
+        awaitSize(nodes, total);
+        long elapsed = System.nanoTime() - start;
+        System.out.println("Room: " + total + " messages across " + nodes.length + " members in "
+                + elapsed / 1_000_000 + "ms, " + total * 1_000_000_000L / elapsed + " msg/s");
+
+        // A reply from the far end sorts after what it answers, though its
+        // clock is 30s behind the asker's
+        RoomEntry question = nodes[3].room.post(new ChatMessage("question", "node3", "node3", true));
+        awaitSize(nodes, total + 1);
+        RoomEntry answer = nodes[0].room.post(new ChatMessage("answer", "node0", "node0", true));
+        awaitSize(nodes, total + 2);
+        assertTrue(answer.compareTo(question) > 0);
+
+        List<String> order = keys(nodes[0].room.entries());
+        for (Node node : nodes) {
+            assertEquals(order, keys(node.room.entries()));
+        }
+        assertTrue(elapsed < TimeUnit.SECONDS.toNanos(20));
+    }
+
+    @Test
+    public void lateJoinerFetchesOnlyWhatItLacks() throws Exception {
+        Node a = new Node("a", System::currentTimeMillis);
+        Node b = new Node("b", System::currentTimeMillis);
+        connect(a, b);
+        for (int i = 0; i < 2000; i++) {
+            a.room.post(new ChatMessage("from a " + i, "a", "a", true));
+            b.room.post(new ChatMessage("from b " + i, "b", "b", true));
+        }
+        awaitSize(new Node[] {a, b}, 4000);
+
+        // Joins with nothing: catches up in pages
+        Node late = new Node("late", System::currentTimeMillis);
+        Connection link = connect(b, late);
+        awaitSize(new Node[] {late}, 4000);
+        long firstCatchUp = late.bytesReceived.get();
+        assertEquals(keys(a.room.entries()), keys(late.room.entries()));
+
+        // Leaves, misses a little, comes back: only the difference crosses
+        link.close();
+        for (int i = 0; i < 100; i++) {
+            a.room.post(new ChatMessage("while away " + i, "a", "a", true));
+        }
+        awaitSize(new Node[] {b}, 4100);
+        late.bytesReceived.set(0);
+        late.added.set(0);
+        connect(late, b);
+        awaitSize(new Node[] {late}, 4100);
+
+        assertEquals(100, late.added.get());
+        assertTrue("Rejoin took " + late.bytesReceived.get() + " bytes, first join " + firstCatchUp,
+                late.bytesReceived.get() < firstCatchUp / 20);
+        assertEquals(keys(a.room.entries()), keys(late.room.entries()));
+    }
+
+    @Test
+    public void restartedMemberCarriesOnItsNumbering() throws Exception {
+        Node a = new Node("a", System::currentTimeMillis);
+        Node b = new Node("b", System::currentTimeMillis);
+        Connection link = connect(a, b);
+        for (int i = 0; i < 10; i++) {
+            a.room.post(new ChatMessage("before " + i, "a", "a", true));
+        }
+        awaitSize(new Node[] {b}, 10);
+        link.close();
+
+        // Comes back with nothing and gets its own posts back from b
+        Node restarted = new Node("a", System::currentTimeMillis);
+        connect(restarted, b);
+        awaitSize(new Node[] {restarted}, 10);
+        RoomEntry after = restarted.room.post(new ChatMessage("after", "a", "a", true));
+        assertEquals(11, after.seq);
+        awaitSize(new Node[] {b}, 11);
+        assertEquals("after", b.room.entries().get(10).message.getContent());
+    }
+
+    private Connection connect(Node x, Node y) {
+        Connection connection = new Connection(x, y);
+        connections.add(connection);
+        return connection;
+    }
+
+    private static void awaitSize(Node[] nodes, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30_000;
+        for (Node node : nodes) {
+            while (node.room.size() < size) {
+                assertTrue(node.address + " has " + node.room.size(), System.currentTimeMillis() < deadline);
+                Thread.sleep(5);
+            }
+            assertEquals(size, node.room.size());
+        }
+    }
+
+    private static List<String> keys(List<RoomEntry> entries) {
+        List<String> keys = new ArrayList<>(entries.size());
+        for (RoomEntry entry : entries) {
+            keys.add(entry.origin + ":" + entry.seq);
+        }
+        return keys;
+    }
+
+    private static class Node {
+        final String address;
+        final Room room;
+        final AtomicLong added = new AtomicLong();
+        final AtomicLong bytesReceived = new AtomicLong();
+
+        Node(String address, java.util.function.LongSupplier wallClock) {
+            this.address = address;
+            this.room = new Room("room", address, new HybridClock(wallClock),
+                    entries -> added.addAndGet(entries.size()));
+        }
+    }
+
+    // Both ends of one link. Frames go out through a writer thread per end, so a
+    // reader relaying entries never blocks on a full pipe.
+    private static class Connection {
+        private final LoopbackTransport transport = new LoopbackTransport();
+        private final End x;
+        private final End y;
+
+        Connection(Node nodeX, Node nodeY) {
+            x = new End(nodeX, transport.a());
+            y = new End(nodeY, transport.b());
+            x.start();
+            y.start();
+        }
+
+        void close() {
+            transport.close();
+            x.stop();
+            y.stop();
+        }
+    }
+
+    private static class End implements Room.Link {
+        private final Node node;
+        private final FrameChannel channel;
+        private final ExecutorService writer = Executors.newSingleThreadExecutor();
+        private final Thread reader;
+
+        End(Node node, LoopbackTransport.Endpoint endpoint) {
+            this.node = node;
+            this.channel = new FrameChannel(endpoint.getInputStream(), endpoint.getOutputStream(), new LinkMetrics());
+            this.reader = new Thread(() -> {
+                try {
+                    channel.readLoop((type, flags, payload, offset, length) -> {
+                        node.bytesReceived.addAndGet(Frame.HEADER_SIZE + length);
+                        node.room.onFrame(this, type, payload, offset, length);
+                    });
+                } catch (IOException e) {
+                    // Link closed
+                } finally {
+                    node.room.detach(this);
+                }
+            });
+        }
+
+        void start() {
+            reader.start();
+            node.room.attach(this);
+        }
+
+        void stop() {
+            writer.shutdownNow();
+        }
+
+        @Override
+        public void send(byte type, byte[] payload, int length) {
+            try {
+                writer.execute(() -> {
+                    try {
+                        channel.writeFrame(type, (byte) 0, payload, 0, length);
+                    } catch (IOException e) {
+                        // Link closed
+                    }
+                });
+            } catch (java.util.concurrent.RejectedExecutionException e) {
+                // Link closed
+            }
+        }
+    }
+}
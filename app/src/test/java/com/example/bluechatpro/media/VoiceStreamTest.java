@@ -0,0 +1,204 @@
+package com.example.bluechatpro.media;
+
+import com.example.bluechatpro.protocol.Frame;
+import com.example.bluechatpro.protocol.FrameChannel;
+import com.example.bluechatpro.protocol.LinkMetrics;
+import com.example.bluechatpro.protocol.LoopbackTransport;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class VoiceStreamTest {
+
+    private static final int FRAMES = 50;
+
+    @Test
+    public void codecKeepsSpeechBandAudio() throws Exception {
+        short[] pcm = syntheticSpeech(FRAMES * VoiceCodec.FRAME_SAMPLES);
+        VoiceCodec codec = new VoiceCodec();
+        byte[] packet = new byte[VoiceCodec.MAX_PACKET_SIZE];
+        short[] frame = new short[VoiceCodec.FRAME_SAMPLES];
+        short[] decoded = new short[VoiceCodec.FRAME_SAMPLES];
+
+        double signal = 0;
+        double noise = 0;
+        int bytes = 0;
+        for (int f = 0; f < FRAMES; f++) {
+            System.arraycopy(pcm, f * frame.length, frame, 0, frame.length);
+            int length = codec.encode(frame, frame.length, packet);
+            bytes += length;
+            assertEquals(f, VoiceCodec.sequenceOf(packet, 0));
+            assertEquals(frame.length, VoiceCodec.decode(packet, 0, length, decoded));
+
+            // The coder needs a few ms to lock onto the signal
+            if (f > 0) {
+                for (int i = 0; i < frame.length; i++) {
+                    signal += (double) frame[i] * frame[i];
+                    double e = frame[i] - decoded[i];
+                    noise += e * e;
+                }
+            }
+        }
+
+        double snr = 10 * Math.log10(signal / noise);
+        double kbps = bytes * 8.0 / (FRAMES * VoiceCodec.FRAME_MILLIS);
+        assertTrue("SNR " + snr, snr > 20);
+        assertTrue("Bitrate " + kbps, kbps < 36);
+    }
+
+    @Test
+    public void jitterBufferWaitsForDepthAndReorders() {
+        // Fixed depth of 3; adaptation is covered below
+        JitterBuffer buffer = new JitterBuffer(20, 3, 3);
+        buffer.put(1, new short[] {1}, 20);
+        buffer.put(0, new short[] {0}, 20);
+        assertNull(buffer.poll());
+
+        buffer.put(2, new short[] {2}, 40);
+        assertEquals(0, buffer.poll()[0]);
+        assertEquals(1, buffer.poll()[0]);
+        assertEquals(2, buffer.poll()[0]);
+
+        // Underrun pauses playback; a frame whose turn has passed is dropped
+        assertNull(buffer.poll());
+        assertEquals(1, buffer.getUnderruns());
+        buffer.put(1, new short[] {1}, 60);
+        assertEquals(1, buffer.getDropped());
+
+        buffer.put(3, new short[] {3}, 60);
+        buffer.end();
+        assertEquals(3, buffer.poll()[0]);
+        assertNull(buffer.poll());
+        assertTrue(buffer.isFinished());
+    }
+
+    @Test
+    public void jitterBufferDeepensWithJitterAndStaysBounded() {
+        JitterBuffer steady = new JitterBuffer(20, 3, 10);
+        JitterBuffer bursty = new JitterBuffer(20, 3, 10);
+        for (int i = 0; i < 100; i++) {
+            steady.put(i, new short[1], i * 20);
+            // Frames arrive in pairs every 40 ms
+            bursty.put(i, new short[1], (i / 2) * 40 + 40);
+        }
+
+        assertEquals(3, steady.getTargetDepth());
+        assertTrue(bursty.getTargetDepth() > 3);
+        assertTrue(bursty.getTargetDepth() <= 10);
+        // Nobody polled, so all but the newest 10 frames were dropped
+        assertEquals(90, bursty.getDropped());
+    }
+
+    @Test
+    public void streamsVoiceAlongsideChatOverLoopback() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        FrameChannel sender = new FrameChannel(transport.a().getInputStream(),
+                transport.a().getOutputStream(), new LinkMetrics());
+        FrameChannel receiver = new FrameChannel(transport.b().getInputStream(),
+                transport.b().getOutputStream(), new LinkMetrics());
+
+        // Deep enough to hold the whole stream, since it is only played afterwards
+        JitterBuffer jitter = new JitterBuffer(VoiceCodec.FRAME_MILLIS, 3, FRAMES);
+        List<Long> arrivals = new ArrayList<>();
+        AtomicInteger chatFrames = new AtomicInteger();
+        CountDownLatch voiceDone = new CountDownLatch(1);
+
+        Thread reader = new Thread(() -> {
+            try {
+                receiver.readLoop((type, flags, payload, offset, length) -> {
+                    if (type == Frame.TYPE_CHAT) {
+                        chatFrames.incrementAndGet();
+                        return;
+                    }
+                    short[] samples = new short[VoiceCodec.FRAME_SAMPLES];
+                    int n = VoiceCodec.decode(payload, offset, length, samples);
+                    long now = System.nanoTime() / 1_000_000;
+                    if (n > 0) {
+                        arrivals.add(now);
+                        jitter.put(VoiceCodec.sequenceOf(payload, offset), samples, now);
+                    }
+                    if ((flags & Frame.FLAG_MORE) == 0) {
+                        jitter.end();
+                        voiceDone.countDown();
+                    }
+                });
+            } catch (IOException e) {
+                // Transport closed
+            }
+        });
+        reader.start();
+
+        // A long message keeps the link busy the whole time
+        AtomicBoolean talking = new AtomicBoolean(true);
+        Thread chat = new Thread(() -> {
+            byte[] fragment = new byte[Frame.MAX_CHAT_FRAGMENT];
+            try {
+                while (talking.get()) {
+                    sender.writeFrame(Frame.TYPE_CHAT, Frame.FLAG_MORE, fragment, 0, fragment.length);
+                }
+            } catch (IOException e) {
+                // Transport closed
+            }
+        });
+        chat.start();
+
+        // Real-time capture: one packet every 20 ms, then the empty closing packet
+        short[] pcm = syntheticSpeech(FRAMES * VoiceCodec.FRAME_SAMPLES);
+        VoiceCodec codec = new VoiceCodec();
+        byte[] packet = new byte[VoiceCodec.MAX_PACKET_SIZE];
+        short[] frame = new short[VoiceCodec.FRAME_SAMPLES];
+        for (int f = 0; f < FRAMES; f++) {
+            System.arraycopy(pcm, f * frame.length, frame, 0, frame.length);
+            sender.writeFrame(Frame.TYPE_VOICE, Frame.FLAG_MORE, packet, 0, codec.encode(frame, frame.length, packet));
+            Thread.sleep(VoiceCodec.FRAME_MILLIS);
+        }
+        sender.writeFrame(Frame.TYPE_VOICE, (byte) 0, packet, 0, codec.encode(frame, 0, packet));
+
+        assertTrue(voiceDone.await(5, TimeUnit.SECONDS));
+        talking.set(false);
+        transport.close();
+        chat.join();
+        reader.join();
+
+        assertTrue("Chat frames " + chatFrames.get(), chatFrames.get() > FRAMES);
+        assertEquals(FRAMES, arrivals.size());
+        long maxGap = 0;
+        for (int i = 1; i < arrivals.size(); i++) {
+            maxGap = Math.max(maxGap, arrivals.get(i) - arrivals.get(i - 1));
+        }
+        assertTrue("Max voice gap " + maxGap + " ms", maxGap < 8 * VoiceCodec.FRAME_MILLIS);
+
+        // Every frame plays
+        int played = 0;
+        while (!jitter.isFinished()) {
+            short[] samples = jitter.poll();
+            if (samples != null) {
+                played++;
+            }
+        }
+        assertEquals(FRAMES, played);
+        assertEquals(0, jitter.getDropped());
+    }
+
+    // Two tones with a slow amplitude envelope, roughly speech-like in level
+    private static short[] syntheticSpeech(int samples) {
+        short[] pcm = new short[samples];
+        for (int i = 0; i < samples; i++) {
+            double t = (double) i / VoiceCodec.SAMPLE_RATE;
+            double envelope = 0.5 + 0.5 * Math.sin(2 * Math.PI * 3 * t);
+            double value = envelope * (6000 * Math.sin(2 * Math.PI * 220 * t)
+                    + 3000 * Math.sin(2 * Math.PI * 910 * t));
+            pcm[i] = (short) value;
+        }
+        return pcm;
+    }
+}
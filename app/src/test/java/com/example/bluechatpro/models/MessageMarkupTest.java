@@ -0,0 +1,63 @@
+package com.example.bluechatpro.models;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MessageMarkupTest {
+
+    @Test
+    public void linksAndMentionsAreFoundAndShortcodesReplaced() {
+        MessageMarkup markup = MessageMarkup.parse(
+                "@alice see https://example.com/a?b=1, or www.example.org. :tada: :nope: mail me@host");
+
+        assertEquals("@alice see https://example.com/a?b=1, or www.example.org. 🎉 :nope: mail me@host", markup.text);
+        assertEquals(3, markup.spans.size());
+
+        MessageMarkup.Span mention = markup.spans.get(0);
+        assertEquals(MessageMarkup.MENTION, mention.kind);
+        assertEquals("alice", mention.target);
+        assertEquals("@alice", markup.text.substring(mention.start, mention.end));
+
+        // Trailing punctuation is left out of the link
+        MessageMarkup.Span link = markup.spans.get(1);
+        assertEquals(MessageMarkup.LINK, link.kind);
+        assertEquals("https://example.com/a?b=1", markup.text.substring(link.start, link.end));
+
+        MessageMarkup.Span bare = markup.spans.get(2);
+        assertEquals("http://www.example.org", bare.target);
+        assertEquals("www.example.org", markup.text.substring(bare.start, bare.end));
+    }
+
+    @Test
+    public void spansFollowTextShiftedByEmoji() {
+        MessageMarkup markup = MessageMarkup.parse(":wave::fire: hi @bob :+1:");
+
+        assertEquals("👋🔥 hi @bob 👍", markup.text);
+        MessageMarkup.Span mention = markup.spans.get(0);
+        assertEquals("@bob", markup.text.substring(mention.start, mention.end));
+    }
+
+    @Test
+    public void unknownShortcodeLeavesItsColonsToTheNext() {
+        assertEquals("10:30:45", MessageMarkup.parse("10:30:45").text);
+        assertEquals("a:b:", MessageMarkup.parse("a:b:").text);
+        assertEquals("at 10:30🔥", MessageMarkup.parse("at 10:30:fire:").text);
+        assertEquals("a:b🔥 :nope:👋", MessageMarkup.parse("a:b:fire: :nope::wave:").text);
+        // One emoji's closing colon does not open another
+        assertEquals("👋fire:", MessageMarkup.parse(":wave:fire:").text);
+    }
+
+    @Test
+    public void plainTextIsLeftAlone() {
+        String content = "Nothing to see here, just words";
+        MessageMarkup markup = MessageMarkup.parse(content);
+        assertTrue(markup.isPlain());
+        assertSame(content, markup.text);
+
+        // A link inside is one link, shortcode-like parts and all
+        markup = MessageMarkup.parse("http://host/:smile:");
+        assertEquals("http://host/:smile:", markup.text);
+        assertEquals(1, markup.spans.size());
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.bluechatpro.models;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageWindowTest {
+
+    @Test
+    public void keepsTimeOrderAndDropsOldestPastCapacity() {
+        MessageWindow window = new MessageWindow(3);
+        List<MessageWindow.Change> changes = new ArrayList<>();
+        window.setListener(changes::add);
+
+        window.append(message("a", 10));
+        window.append(message("c", 30));
+        assertEquals(1, window.insertByTime(message("b", 20)));
+        assertEquals("abc", contents(window));
+
+        // A fourth message pushes out the oldest
+        assertEquals(2, window.append(message("d", 40)));
+        assertEquals("bcd", contents(window));
+
+        MessageWindow.Change last = changes.get(changes.size() - 1);
+        assertEquals(MessageWindow.Change.REMOVED, last.kind);
+        assertEquals(0, last.position);
+        assertEquals(1, last.count);
+        for (int i = 0; i < changes.size(); i++) {
+            assertEquals(i + 1, changes.get(i).version);
+        }
+        assertEquals(changes.size(), window.getVersion());
+    }
+
+    @Test
+    public void historyOnlyFillsRemainingRoom() {
+        MessageWindow window = new MessageWindow(3);
+        window.append(message("live", 100));
+        window.prepend(Arrays.asList(message("1", 1), message("2", 2), message("3", 3)));
+        assertEquals("23live", contents(window));
+    }
+
+    @Test
+    public void findsSentMessagesByIdentityOrId() {
+        MessageWindow window = new MessageWindow(10);
+        ChatMessage sent = new ChatMessage("hi", "Me", "me", true);
+        sent.setMessageId("M1");
+        window.append(sent);
+        window.append(message("reply", 5));
+
+        ChatMessage copy = new ChatMessage();
+        copy.setMessageId("M1");
+        assertEquals(0, window.findSent(sent));
+        assertEquals(0, window.findSent(copy));
+
+        // Received messages never match
+        ChatMessage other = new ChatMessage();
+        other.setMessageId(window.get(1).getMessageId());
+        assertEquals(-1, window.findSent(other));
+    }
+
+    private static ChatMessage message(String text, long time) {
+        ChatMessage message = new ChatMessage(text, "Peer", "peer", false);
+        message.setTimestamp(time);
+        return message;
+    }
+
+    private static String contents(MessageWindow window) {
+        StringBuilder out = new StringBuilder();
+        for (ChatMessage message : window.getMessages()) {
+            out.append(message.getContent());
+        }
+        return out.toString();
+    }
+}
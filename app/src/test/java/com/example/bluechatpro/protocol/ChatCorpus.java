@@ -0,0 +1,46 @@
+package com.example.bluechatpro.protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Deterministic synthetic chat traffic for tests and benchmarks: short casual
+// messages, longer paragraphs, links, emoji and non-Latin text in realistic proportions.
+public final class ChatCorpus {
+
+    private static final String[] SHORT = {
+            "ok", "lol", "haha yes", "on my way", "thanks!", "see you later", "sounds good",
+            "what time?", "I'm here", "can you call me?", "good morning", "👍", "😂😂",
+            "be there in 5 minutes", "did you see that?", "no worries", "sure thing",
+    };
+
+    private static final String[] LONG = {
+            "I think we should meet at the café near the station tomorrow, around 10 if that works for you. " +
+                    "Let me know if you want to move it later, I'm flexible in the morning.",
+            "Sorry I missed your call earlier, I was in a meeting that ran way over. " +
+                    "Do you still want to go to the concert tonight? I can pick up the tickets on my way.",
+            "Here's the link to the document we talked about: https://example.com/docs/shared/plan-v2 " +
+                    "please add your comments before Friday so we can finalize it.",
+            "Привет! Как дела? Давно не виделись, давай встретимся на выходных.",
+            "今日はありがとうございました。また明日会いましょう。",
+            "¿Quieres venir a cenar con nosotros el sábado? Vamos a probar el restaurante nuevo 🍝",
+    };
+
+    private ChatCorpus() {}
+
+    public static List<String> generate(int count, long seed) {
+        Random random = new Random(seed);
+        List<String> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int kind = random.nextInt(10);
+            if (kind < 6) {
+                messages.add(SHORT[random.nextInt(SHORT.length)]);
+            } else if (kind < 9) {
+                messages.add(LONG[random.nextInt(LONG.length)]);
+            } else {
+                messages.add(SHORT[random.nextInt(SHORT.length)] + " " + LONG[random.nextInt(LONG.length)]);
+            }
+        }
+        return messages;
+    }
+}
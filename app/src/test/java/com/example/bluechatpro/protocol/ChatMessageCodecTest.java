@@ -0,0 +1,246 @@
+package com.example.bluechatpro.protocol;
+
+import com.example.bluechatpro.models.ChatMessage;
+import com.example.bluechatpro.models.Peer;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ChatMessageCodecTest {
+
+    @Test
+    public void roundTripsEveryField() throws Exception {
+        ChatMessageCodec encoder = new ChatMessageCodec(false, new BufferPool(4));
+        ChatMessageCodec decoder = new ChatMessageCodec(false, new BufferPool(4));
+
+        ChatMessage original = new ChatMessage("héllo 👋", "Abebe's phone", "AA:BB:CC:DD:EE:FF", true);
+        original.setType(ChatMessage.MessageType.VOICE);
+        original.setStatus(ChatMessage.MessageStatus.READ);
+        original.setTimestamp(1700000000123L);
+
+        ChatMessage decoded = roundTrip(encoder, decoder, original);
+        assertEquals(original.getMessageId(), decoded.getMessageId());
+        assertEquals(original.getContent(), decoded.getContent());
+        assertEquals(original.getSenderName(), decoded.getSenderName());
+        assertEquals(original.getSenderAddress(), decoded.getSenderAddress());
+        assertEquals(original.isSent(), decoded.isSent());
+        assertEquals(original.getTimestamp(), decoded.getTimestamp());
+        assertEquals(original.getStatus(), decoded.getStatus());
+        assertEquals(original.getType(), decoded.getType());
+    }
+
+    @Test
+    public void streamingInternsSendersAndDeltaEncodesTime() throws Exception {
+        ChatMessageCodec encoder = new ChatMessageCodec(true, new BufferPool(4));
+        ChatMessageCodec decoder = new ChatMessageCodec(true, new BufferPool(4));
+
+        ChatMessage first = new ChatMessage("one", "Alice", "11:22:33:44:55:66", true);
+        ChatMessage second = new ChatMessage("two", "Alice", "11:22:33:44:55:66", true);
+        second.setTimestamp(first.getTimestamp() + 1500);
+        ChatMessage renamed = new ChatMessage("three", "Alice (work)", "11:22:33:44:55:66", true);
+        renamed.setTimestamp(first.getTimestamp() - 20);
+
+        ChatMessage a = roundTrip(encoder, decoder, first);
+        int firstSize = encoder.getEncodedHeaderLength();
+        ChatMessage b = roundTrip(encoder, decoder, second);
+        int secondSize = encoder.getEncodedHeaderLength();
+        ChatMessage c = roundTrip(encoder, decoder, renamed);
+
+        // The repeat costs only a sender id and a small time delta
+        assertTrue(secondSize < firstSize - "Alice".length() - "11:22:33:44:55:66".length());
+        assertSame(a.getSenderAddress(), b.getSenderAddress());
+        assertEquals(second.getTimestamp(), b.getTimestamp());
+        assertEquals("Alice (work)", c.getSenderName());
+        assertEquals(renamed.getTimestamp(), c.getTimestamp());
+    }
+
+    @Test
+    public void olderReaderSkipsHeaderFieldsItDoesNotKnow() throws Exception {
+        ChatMessageCodec encoder = new ChatMessageCodec(false, new BufferPool(4));
+        ChatMessage original = new ChatMessage("still readable", "Bob", null, false);
+        byte[] encoded = encoder.encode(original);
+        int length = encoder.getEncodedLength();
+
+        // Rewrite the record as a newer schema with two extra header bytes
+        int headerLength = encoded[1];
+        byte[] newer = new byte[length + 2];
+        newer[0] = 2;
+        newer[1] = (byte) (headerLength + 2);
+        System.arraycopy(encoded, 2, newer, 2, headerLength);
+        newer[2 + headerLength] = 0x7F;
+        newer[3 + headerLength] = 0x01;
+        System.arraycopy(encoded, 2 + headerLength, newer, 4 + headerLength, length - 2 - headerLength);
+        encoder.releaseEncoded();
+
+        ChatMessage decoded = new ChatMessage();
+        new ChatMessageCodec(false, new BufferPool(4)).decode(newer, 0, newer.length, decoded);
+        assertEquals("still readable", decoded.getContent());
+        assertEquals("Bob", decoded.getSenderName());
+    }
+
+    @Test
+    public void rejectsTruncatedRecords() {
+        ChatMessageCodec encoder = new ChatMessageCodec(false, new BufferPool(4));
+        byte[] encoded = encoder.encode(new ChatMessage("x", "Carol", "AA:BB", true));
+        int headerEnd = encoder.getEncodedHeaderLength();
+        for (int cut = 0; cut < headerEnd; cut++) {
+            try {
+                new ChatMessageCodec(false, new BufferPool(4)).decode(encoded, 0, cut, new ChatMessage());
+                fail("Accepted a record cut at " + cut);
+            } catch (IOException expected) {
+                // ok
+            }
+        }
+    }
+
+    @Test
+    public void hugeMessageBufferIsNotKept() throws Exception {
+        BufferPool pool = new BufferPool(4);
+        ChatMessageCodec encoder = new ChatMessageCodec(false, pool);
+        char[] text = new char[BufferPool.MAX_POOLED_SIZE];
+        Arrays.fill(text, 'x');
+        encoder.encode(new ChatMessage(new String(text), "Bob", null, false));
+        encoder.releaseEncoded();
+        assertEquals(0, pool.size());
+
+        encoder.encode(new ChatMessage("small", "Bob", null, false));
+        encoder.releaseEncoded();
+        assertEquals(1, pool.size());
+    }
+
+    @Test
+    public void benchmarkSizeAndSpeedAgainstJson() throws Exception {
+        List<ChatMessage> messages = conversation(20000);
+        BufferPool pool = new BufferPool(4);
+
+        // Warm up
+        for (int i = 0; i < 3; i++) {
+            encodeBinary(messages, pool);
+            encodeJson(messages);
+            decodeBinary(messages, pool);
+            decodeJson(messages);
+        }
+
+        long start = System.nanoTime();
+        long binaryBytes = encodeBinary(messages, pool);
+        long binaryNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        long jsonBytes = encodeJson(messages);
+        long jsonNanos = System.nanoTime() - start;
+
+        long decodeBinaryNanos = decodeBinary(messages, pool);
+        long decodeJsonNanos = decodeJson(messages);
+
+        System.out.printf("Binary: %.1f bytes/msg, encode %.0f ns/msg, decode %.0f ns/msg%n",
+                (double) binaryBytes / messages.size(), (double) binaryNanos / messages.size(),
+                (double) decodeBinaryNanos / messages.size());
+        System.out.printf("JSON:   %.1f bytes/msg, encode %.0f ns/msg, decode %.0f ns/msg%n",
+                (double) jsonBytes / messages.size(), (double) jsonNanos / messages.size(),
+                (double) decodeJsonNanos / messages.size());
+
+        assertTrue(binaryBytes * 2 < jsonBytes);
+    }
+
+    private static ChatMessage roundTrip(ChatMessageCodec encoder, ChatMessageCodec decoder, ChatMessage message)
+            throws IOException {
+        byte[] encoded = encoder.encode(message);
+        ChatMessage decoded = new ChatMessage();
+        decoder.decode(Arrays.copyOf(encoded, encoder.getEncodedLength()), 0, encoder.getEncodedLength(), decoded);
+        encoder.releaseEncoded();
+        return decoded;
+    }
+
+    private static List<ChatMessage> conversation(int count) {
+        List<ChatMessage> messages = new ArrayList<>();
+        long time = 1700000000000L;
+        int i = 0;
+        for (String text : ChatCorpus.generate(count, 5)) {
+            boolean mine = (i++ % 3) != 0;
+            ChatMessage message = mine
+                    ? new ChatMessage(text, "Pixel 7", "11:22:33:44:55:66", true)
+                    : new ChatMessage(text, "Galaxy S21", "AA:BB:CC:DD:EE:FF", false);
+            time += 500 + (i * 7919L) % 60000;
+            message.setTimestamp(time);
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    private static long encodeBinary(List<ChatMessage> messages, BufferPool pool) {
+        ChatMessageCodec codec = new ChatMessageCodec(true, pool);
+        long total = 0;
+        for (ChatMessage message : messages) {
+            codec.encode(message);
+            total += codec.getEncodedLength();
+            codec.releaseEncoded();
+        }
+        return total;
+    }
+
+    private static long decodeBinary(List<ChatMessage> messages, BufferPool pool) throws IOException {
+        ChatMessageCodec encoder = new ChatMessageCodec(true, pool);
+        List<byte[]> records = new ArrayList<>();
+        for (ChatMessage message : messages) {
+            records.add(Arrays.copyOf(encoder.encode(message), encoder.getEncodedLength()));
+            encoder.releaseEncoded();
+        }
+
+        ChatMessageCodec decoder = new ChatMessageCodec(true, pool);
+        long start = System.nanoTime();
+        for (byte[] record : records) {
+            decoder.decode(record, 0, record.length, new ChatMessage());
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long encodeJson(List<ChatMessage> messages) throws Exception {
+        long total = 0;
+        for (ChatMessage message : messages) {
+            total += toJson(message).toString().getBytes(StandardCharsets.UTF_8).length;
+        }
+        return total;
+    }
+
+    private static long decodeJson(List<ChatMessage> messages) throws Exception {
+        List<byte[]> records = new ArrayList<>();
+        for (ChatMessage message : messages) {
+            records.add(toJson(message).toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        long start = System.nanoTime();
+        for (byte[] record : records) {
+            JSONObject json = new JSONObject(new String(record, StandardCharsets.UTF_8));
+            ChatMessage message = new ChatMessage();
+            message.setMessageId(json.getString("messageId"));
+            message.setContent(json.getString("content"));
+            message.setSender(new Peer(json.getString("senderAddress"), json.getString("senderName")));
+            message.setSent(json.getBoolean("isSent"));
+            message.setTimestamp(json.getLong("timestamp"));
+            message.setStatus(ChatMessage.MessageStatus.valueOf(json.getString("status")));
+            message.setType(ChatMessage.MessageType.valueOf(json.getString("type")));
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static JSONObject toJson(ChatMessage message) throws Exception {
+        JSONObject json = new JSONObject();
+        json.put("messageId", message.getMessageId());
+        json.put("content", message.getContent());
+        json.put("senderName", message.getSenderName());
+        json.put("senderAddress", message.getSenderAddress());
+        json.put("isSent", message.isSent());
+        json.put("timestamp", message.getTimestamp());
+        json.put("status", message.getStatus().name());
+        json.put("type", message.getType().name());
+        return json;
+    }
+}
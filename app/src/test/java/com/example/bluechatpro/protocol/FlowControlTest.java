@@ -0,0 +1,214 @@
+package com.example.bluechatpro.protocol;
+
+import com.example.bluechatpro.models.ChatMessage;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class FlowControlTest {
+
+    private static final int WINDOW = 16;
+    private static final int MESSAGES = 2000;
+
+    @Test
+    public void senderStaysWithinGrantedWindow() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        FrameChannel sender = new FrameChannel(transport.a().getInputStream(),
+                transport.a().getOutputStream(), new LinkMetrics());
+        FrameChannel receiver = new FrameChannel(transport.b().getInputStream(),
+                transport.b().getOutputStream(), new LinkMetrics());
+
+        CreditGate gate = new CreditGate();
+        gate.enable();
+        Thread creditReader = startReader(sender, (type, flags, payload, offset, length) -> {
+            if (type == Frame.TYPE_CREDIT) {
+                gate.grant(Frame.readInt(payload, offset));
+            }
+        });
+
+        // Sent but not yet handed back as credit by the UI
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        InboundQueue inbound = new InboundQueue(WINDOW, count -> {
+            inFlight.addAndGet(-count);
+            sendCredit(receiver, count);
+        });
+        Thread chatReader = startReader(receiver, (type, flags, payload, offset, length) ->
+                inbound.put(message(new String(payload, offset, length, StandardCharsets.UTF_8))));
+        sendCredit(receiver, WINDOW);
+
+        Thread flood = new Thread(() -> {
+            try {
+                for (int i = 0; i < MESSAGES; ) {
+                    int n = gate.acquire(MESSAGES - i);
+                    for (int end = i + n; i < end; i++) {
+                        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                        byte[] text = ("message " + i).getBytes(StandardCharsets.UTF_8);
+                        sender.writeFrame(Frame.TYPE_CHAT, (byte) 0, text, 0, text.length);
+                    }
+                }
+            } catch (IOException e) {
+                // Transport closed
+            }
+        });
+        flood.start();
+
+        // A UI slower than the link, taking small batches
+        List<String> received = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + 20_000;
+        while (received.size() < MESSAGES && System.currentTimeMillis() < deadline) {
+            List<ChatMessage> batch = inbound.drain(4);
+            for (ChatMessage message : batch) {
+                received.add(message.getContent());
+            }
+            Thread.sleep(1);
+        }
+
+        flood.join();
+        transport.close();
+        creditReader.join();
+        chatReader.join();
+
+        assertEquals(MESSAGES, received.size());
+        assertEquals("message 0", received.get(0));
+        assertEquals("message " + (MESSAGES - 1), received.get(MESSAGES - 1));
+        assertTrue("In flight " + maxInFlight.get(), maxInFlight.get() <= WINDOW);
+        assertFalse(inbound.needsDrain());
+    }
+
+    @Test
+    public void peerThatIgnoresCreditIsCutOffWithoutStallingTheReader() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport(4096);
+        FrameChannel sender = new FrameChannel(transport.a().getInputStream(),
+                transport.a().getOutputStream(), new LinkMetrics());
+        FrameChannel receiver = new FrameChannel(transport.b().getInputStream(),
+                transport.b().getOutputStream(), new LinkMetrics());
+
+        InboundQueue inbound = new InboundQueue(WINDOW, count -> { });
+        inbound.enforceCredits();
+        AtomicInteger drainRequests = new AtomicInteger();
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            try {
+                receiver.readLoop((type, flags, payload, offset, length) -> {
+                    if (inbound.put(message(new String(payload, offset, length, StandardCharsets.UTF_8)))) {
+                        drainRequests.incrementAndGet();
+                    }
+                });
+            } catch (IOException e) {
+                failure.set(e);
+            }
+        });
+        reader.start();
+
+        Thread flood = new Thread(() -> {
+            try {
+                for (int i = 0; i < MESSAGES; i++) {
+                    byte[] text = ("message " + i).getBytes(StandardCharsets.UTF_8);
+                    sender.writeFrame(Frame.TYPE_CHAT, (byte) 0, text, 0, text.length);
+                }
+            } catch (IOException e) {
+                // Transport closed
+            }
+        });
+        flood.start();
+
+        // Nobody drains: the window fills, and the next message ends the link
+        // rather than parking the reader
+        reader.join(5000);
+        assertFalse(reader.isAlive());
+        assertNotNull(failure.get());
+        assertTrue(failure.get().getMessage().contains("credit"));
+        assertEquals(WINDOW, inbound.size());
+        assertEquals(1, drainRequests.get());
+
+        transport.close();
+        flood.join();
+    }
+
+    @Test
+    public void senderWaitsForCreditInsteadOfGoingIntoDebt() throws Exception {
+        CreditGate gate = new CreditGate();
+        gate.enable();
+        gate.grant(1);
+        assertEquals(1, gate.acquire(5));
+
+        AtomicInteger taken = new AtomicInteger(-1);
+        Thread sender = new Thread(() -> {
+            try {
+                taken.set(gate.acquire(5));
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+        sender.start();
+        sender.join(300);
+        assertTrue("Sent without credit", sender.isAlive());
+
+        gate.grant(2);
+        sender.join(1000);
+        assertEquals(2, taken.get());
+        assertEquals(0, gate.getCredits());
+
+        // Closing the connection releases a waiting sender
+        Thread waiting = new Thread(() -> {
+            try {
+                gate.acquire(1);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+        waiting.start();
+        gate.close();
+        waiting.join(1000);
+        assertFalse(waiting.isAlive());
+    }
+
+    @Test
+    public void peerWithoutFlowControlGetsSlackBeyondTheWindow() throws Exception {
+        InboundQueue inbound = new InboundQueue(WINDOW, count -> { });
+        for (int i = 0; i < WINDOW * InboundQueue.UNCREDITED_WINDOWS; i++) {
+            inbound.put(message("message " + i));
+        }
+        try {
+            inbound.put(message("one too many"));
+            fail("Queue grew without bound");
+        } catch (IOException expected) {
+            // Cut off
+        }
+    }
+
+    private static Thread startReader(FrameChannel channel, FrameChannel.Listener listener) {
+        Thread thread = new Thread(() -> {
+            try {
+                channel.readLoop(listener);
+            } catch (IOException e) {
+                // Transport closed
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void sendCredit(FrameChannel channel, int count) {
+        byte[] payload = new byte[4];
+        Frame.writeInt(payload, 0, count);
+        try {
+            channel.writeFrame(Frame.TYPE_CREDIT, payload);
+        } catch (IOException e) {
+            // Transport closed
+        }
+    }
+
+    private static ChatMessage message(String text) {
+        return new ChatMessage(text, "Peer", "peer", false);
+    }
+}
@@ -0,0 +1,150 @@
+package com.example.bluechatpro.protocol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FrameChannelTest {
+
+    // Counts write calls, a proxy for socket syscalls
+    private static class CountingStream extends ByteArrayOutputStream {
+        int writes;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writes++;
+            super.write(b, off, len);
+        }
+    }
+
+    @Test
+    public void batchedFramesShareSocketWrites() throws Exception {
+        CountingStream out = new CountingStream();
+        FrameChannel channel = new FrameChannel(emptyInput(), out, new LinkMetrics());
+
+        channel.beginBatch();
+        for (int i = 0; i < 100; i++) {
+            byte[] payload = ("queued message " + i).getBytes("UTF-8");
+            channel.writeFrame(Frame.TYPE_CHAT, (byte) 0, payload, 0, payload.length);
+        }
+        assertEquals(0, out.writes);
+        channel.endBatch();
+        assertEquals(1, out.writes);
+
+        // Outside a batch every frame is its own write
+        channel.writeFrame(Frame.TYPE_PING, new byte[8]);
+        assertEquals(2, out.writes);
+
+        List<String> received = new ArrayList<>();
+        FrameChannel reader = new FrameChannel(new ByteArrayInputStream(out.toByteArray()), null,
+                new LinkMetrics());
+        try {
+            reader.readLoop((type, flags, payload, offset, length) -> {
+                if (type == Frame.TYPE_CHAT) {
+                    received.add(new String(payload, offset, length, "UTF-8"));
+                }
+            });
+        } catch (EOFException e) {
+            // End of the recorded stream
+        }
+        assertEquals(100, received.size());
+        assertEquals("queued message 99", received.get(99));
+    }
+
+    @Test
+    public void largeBatchesAreFlushedInPieces() throws Exception {
+        CountingStream out = new CountingStream();
+        FrameChannel channel = new FrameChannel(emptyInput(), out, new LinkMetrics());
+
+        channel.beginBatch();
+        byte[] payload = new byte[Frame.MAX_CHAT_FRAGMENT];
+        for (int i = 0; i < 64; i++) {
+            channel.writeFrame(Frame.TYPE_CHAT, (byte) 0, payload, 0, payload.length);
+        }
+        channel.endBatch();
+
+        assertTrue(out.writes > 1);
+        assertTrue(out.writes < 64);
+    }
+
+    @Test
+    public void readsManyFramesPerSyscall() throws Exception {
+        for (int size : new int[] {64, Frame.MAX_CHAT_FRAGMENT, Frame.MAX_FILE_CHUNK}) {
+            int frames = (1024 * 1024) / size;
+            LoopbackTransport transport = new LoopbackTransport(2 * 1024 * 1024);
+            FrameChannel sender = new FrameChannel(emptyInput(), transport.a().getOutputStream(),
+                    new LinkMetrics());
+            byte[] payload = new byte[size];
+            for (int i = 0; i < frames; i++) {
+                payload[0] = (byte) i;
+                sender.writeFrame(Frame.TYPE_FILE_CHUNK, Frame.FLAG_MORE, payload, 0, size);
+            }
+            transport.close();
+
+            FrameChannel receiver = new FrameChannel(transport.b().getInputStream(), null, new LinkMetrics());
+            int[] received = {0};
+            try {
+                receiver.readLoop((type, flags, data, offset, length) -> {
+                    assertEquals(size, length);
+                    assertEquals((byte) received[0], data[offset]);
+                    received[0]++;
+                });
+            } catch (EOFException e) {
+                // End of the recorded stream
+            }
+
+            int reads = transport.b().getReadCalls();
+            System.out.println(String.format("  %5d byte frames: %4d reads per MB (header + payload reads: %d), buffer %d KB",
+                    size, reads, 2 * frames, receiver.getReadBufferSize() / 1024));
+            assertEquals(frames, received[0]);
+            assertTrue(reads * 5 < 2 * frames);
+        }
+    }
+
+    @Test
+    public void readBufferShrinksOnceLargeFramesStop() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        FrameChannel sender = new FrameChannel(emptyInput(), transport.a().getOutputStream(), new LinkMetrics());
+        FrameChannel receiver = new FrameChannel(transport.b().getInputStream(), null, new LinkMetrics());
+
+        Semaphore delivered = new Semaphore(0);
+        int[] largest = {0};
+        Thread reader = LatencyProbeTest.readInBackground(receiver, (type, flags, payload, offset, length) -> {
+            largest[0] = Math.max(largest[0], receiver.getReadBufferSize());
+            delivered.release();
+        });
+
+        sender.writeFrame(Frame.TYPE_FILE_CHUNK, new byte[100 * 1024]);
+        assertTrue(delivered.tryAcquire(5, TimeUnit.SECONDS));
+
+        // One small frame per read from here on
+        for (int i = 0; i < 200; i++) {
+            sender.writeFrame(Frame.TYPE_PING, new byte[12]);
+            assertTrue(delivered.tryAcquire(5, TimeUnit.SECONDS));
+        }
+        transport.close();
+        reader.join();
+
+        assertTrue(largest[0] > 100 * 1024);
+        assertEquals(2 * 1024, receiver.getReadBufferSize());
+    }
+
+    private static InputStream emptyInput() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                return -1;
+            }
+        };
+    }
+}
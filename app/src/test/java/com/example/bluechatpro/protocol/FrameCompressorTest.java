@@ -0,0 +1,139 @@
+package com.example.bluechatpro.protocol;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FrameCompressorTest {
+
+    // Typical sustained RFCOMM throughput on phones
+    private static final double LINK_BYTES_PER_SEC = 300 * 1024;
+
+    @Test
+    public void chatStreamRoundTripsOverLoopback() throws Exception {
+        List<String> corpus = ChatCorpus.generate(2000, 42);
+        List<String> received = transfer(corpus, true, new LinkMetrics());
+
+        assertEquals(corpus, received);
+    }
+
+    @Test
+    public void smallFramesAreSentRaw() {
+        FrameCompressor compressor = new FrameCompressor();
+        byte[] tiny = "ok".getBytes(StandardCharsets.UTF_8);
+
+        assertFalse(compressor.compress(Frame.TYPE_CHAT, tiny, 0, tiny.length));
+    }
+
+    @Test
+    public void controlFramesAreNeverCompressed() {
+        FrameCompressor compressor = new FrameCompressor();
+        byte[] pong = new byte[256];
+
+        assertFalse(compressor.compress(Frame.TYPE_PONG, pong, 0, pong.length));
+    }
+
+    @Test
+    public void alreadyCompressedMediaIsSkipped() {
+        FrameCompressor compressor = new FrameCompressor();
+        byte[] jpeg = new byte[4096];
+        jpeg[0] = (byte) 0xFF;
+        jpeg[1] = (byte) 0xD8;
+        jpeg[2] = (byte) 0xFF;
+
+        assertFalse(compressor.compress(Frame.TYPE_FILE_CHUNK, jpeg, 0, jpeg.length));
+
+        byte[] random = new byte[4096];
+        new Random(1).nextBytes(random);
+        assertFalse(compressor.compress(Frame.TYPE_FILE_CHUNK, random, 0, random.length));
+    }
+
+    @Test
+    public void fileChunksRoundTrip() throws Exception {
+        FrameCompressor sender = new FrameCompressor();
+        FrameCompressor receiver = new FrameCompressor();
+        byte[] chunk = String.join("\n", ChatCorpus.generate(200, 7)).getBytes(StandardCharsets.UTF_8);
+
+        assertTrue(sender.compress(Frame.TYPE_FILE_CHUNK, chunk, 0, chunk.length));
+        byte[] wire = new byte[sender.getDeflatedLength()];
+        System.arraycopy(sender.getDeflated(), 0, wire, 0, wire.length);
+
+        byte[] inflated = receiver.decompress(Frame.TYPE_FILE_CHUNK, wire, wire.length);
+        assertEquals(chunk.length, receiver.getInflatedLength());
+        for (int i = 0; i < chunk.length; i++) {
+            assertEquals(chunk[i], inflated[i]);
+        }
+    }
+
+    @Test
+    public void benchmarkChatCorpusThroughput() throws Exception {
+        List<String> corpus = ChatCorpus.generate(20000, 99);
+        long rawBytes = 0;
+        for (String message : corpus) {
+            rawBytes += message.getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        // Warm up both paths before measuring
+        transfer(corpus, false, new LinkMetrics());
+        transfer(corpus, true, new LinkMetrics());
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        LinkMetrics plainMetrics = new LinkMetrics();
+        long plainCpu = threads.getCurrentThreadCpuTime();
+        transfer(corpus, false, plainMetrics);
+        plainCpu = threads.getCurrentThreadCpuTime() - plainCpu;
+
+        LinkMetrics deflateMetrics = new LinkMetrics();
+        long deflateCpu = threads.getCurrentThreadCpuTime();
+        transfer(corpus, true, deflateMetrics);
+        deflateCpu = threads.getCurrentThreadCpuTime() - deflateCpu;
+
+        double plainSeconds = plainMetrics.getBytesSent() / LINK_BYTES_PER_SEC;
+        double deflateSeconds = Math.max(deflateMetrics.getBytesSent() / LINK_BYTES_PER_SEC, deflateCpu / 1e9);
+
+        System.out.printf("Chat corpus: %d messages, %d payload bytes%n", corpus.size(), rawBytes);
+        System.out.printf("  plain:   %d wire bytes, sender CPU %.1f ms, effective %.0f KB/s at 300 KB/s link%n",
+                plainMetrics.getBytesSent(), plainCpu / 1e6, rawBytes / plainSeconds / 1024);
+        System.out.printf("  deflate: %d wire bytes (ratio %.2f), sender CPU %.1f ms, effective %.0f KB/s%n",
+                deflateMetrics.getBytesSent(), deflateMetrics.getCompressionRatio(),
+                deflateCpu / 1e6, rawBytes / deflateSeconds / 1024);
+
+        assertTrue(deflateMetrics.getBytesSent() < plainMetrics.getBytesSent());
+    }
+
+    // Send every message as a chat frame and collect what the peer decodes
+    private static List<String> transfer(List<String> corpus, boolean compress, LinkMetrics metrics)
+            throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        FrameChannel sender = new FrameChannel(transport.a().getInputStream(),
+                transport.a().getOutputStream(), metrics);
+        FrameChannel receiver = new FrameChannel(transport.b().getInputStream(),
+                transport.b().getOutputStream(), new LinkMetrics());
+        sender.setCompressionEnabled(compress);
+
+        List<String> received = new ArrayList<>(corpus.size());
+        CountDownLatch done = new CountDownLatch(corpus.size());
+        Thread reader = LatencyProbeTest.readInBackground(receiver, (type, flags, payload, offset, length) -> {
+            received.add(new String(payload, offset, length, StandardCharsets.UTF_8));
+            done.countDown();
+        });
+
+        for (String message : corpus) {
+            sender.writeFrame(Frame.TYPE_CHAT, message.getBytes(StandardCharsets.UTF_8));
+        }
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        transport.close();
+        reader.join(1000);
+        return received;
+    }
+}
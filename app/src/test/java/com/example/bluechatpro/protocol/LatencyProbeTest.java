@@ -0,0 +1,141 @@
+package com.example.bluechatpro.protocol;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LatencyProbeTest {
+
+    private long localNow;
+    private long peerNow;
+
+    @Test
+    public void computesRttAndOffsetFromTimestamps() {
+        LatencyProbe local = new LatencyProbe(new LinkMetrics(), () -> localNow);
+        LatencyProbe peer = new LatencyProbe(new LinkMetrics(), () -> peerNow);
+
+        // Peer clock runs 1000 ms ahead, 20 ms each way, 5 ms processing on the peer
+        localNow = 10_000;
+        peerNow = 11_000;
+        byte[] ping = local.createPing();
+
+        peerNow += 20;
+        long peerReceived = peerNow;
+        peerNow += 5;
+        byte[] pong = peer.createPong(ping, ping.length, peerReceived);
+
+        localNow += 45;
+        local.onPong(pong, pong.length, localNow);
+
+        assertEquals(40, local.getSmoothedRtt());
+        assertEquals(1000, local.getClockOffset());
+        assertEquals(5_000, local.toLocalTime(6_000));
+    }
+
+    @Test
+    public void offsetFollowsLowestRttSample() {
+        LatencyProbe local = new LatencyProbe(new LinkMetrics(), () -> localNow);
+
+        // Symmetric 10 ms sample: offset 500
+        roundTrip(local, 500, 10, 10);
+        // Asymmetric, congested sample: would suggest a different offset
+        roundTrip(local, 500, 200, 10);
+
+        assertEquals(500, local.getClockOffset());
+    }
+
+    @Test
+    public void resetForgetsThePreviousConnection() {
+        LatencyProbe local = new LatencyProbe(new LinkMetrics(), () -> localNow);
+        long initial = local.getTimeoutMillis();
+        roundTrip(local, 500, 10, 10);
+
+        // The next peer's clock is 200 ms behind, over a slower link
+        local.reset();
+        assertEquals(0, local.getClockOffset());
+        assertEquals(-1, local.getSmoothedRtt());
+        assertEquals(initial, local.getTimeoutMillis());
+        roundTrip(local, -200, 50, 50);
+
+        assertEquals(-200, local.getClockOffset());
+        assertEquals(100, local.getSmoothedRtt());
+    }
+
+    @Test
+    public void timeoutAdaptsToRtt() {
+        LatencyProbe local = new LatencyProbe(new LinkMetrics(), () -> localNow);
+        long initial = local.getTimeoutMillis();
+
+        for (int i = 0; i < 20; i++) {
+            roundTrip(local, 0, 100, 100);
+        }
+
+        assertTrue(local.getTimeoutMillis() < initial);
+        assertTrue(local.getTimeoutMillis() >= 200);
+    }
+
+    @Test
+    public void pingPongOverLoopback() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        LinkMetrics metrics = new LinkMetrics();
+        LatencyProbe probe = new LatencyProbe(metrics);
+        LatencyProbe peerProbe = new LatencyProbe(new LinkMetrics());
+
+        FrameChannel client = new FrameChannel(transport.a().getInputStream(),
+                transport.a().getOutputStream(), metrics);
+        FrameChannel server = new FrameChannel(transport.b().getInputStream(),
+                transport.b().getOutputStream(), new LinkMetrics());
+
+        CountDownLatch pongs = new CountDownLatch(3);
+        Thread serverThread = readInBackground(server, (type, flags, payload, offset, length) -> {
+            if (type == Frame.TYPE_PING) {
+                server.writeFrame(Frame.TYPE_PONG,
+                        peerProbe.createPong(payload, offset, length, System.currentTimeMillis()));
+            }
+        });
+        Thread clientThread = readInBackground(client, (type, flags, payload, offset, length) -> {
+            if (type == Frame.TYPE_PONG) {
+                probe.onPong(payload, offset, length, System.currentTimeMillis());
+                pongs.countDown();
+            }
+        });
+
+        for (int i = 0; i < 3; i++) {
+            client.writeFrame(Frame.TYPE_PING, probe.createPing());
+        }
+
+        assertTrue(pongs.await(5, TimeUnit.SECONDS));
+        assertTrue(metrics.getSmoothedRttMillis() >= 0);
+        assertTrue(Math.abs(metrics.getClockOffsetMillis()) <= metrics.getSmoothedRttMillis() + 1);
+        assertEquals(3, metrics.getFramesReceived());
+
+        transport.close();
+        serverThread.join(1000);
+        clientThread.join(1000);
+    }
+
+    private void roundTrip(LatencyProbe local, long offset, long outbound, long inbound) {
+        byte[] ping = local.createPing();
+        long peerTime = localNow + offset + outbound;
+        byte[] pong = new LatencyProbe(new LinkMetrics(), () -> peerTime)
+                .createPong(ping, ping.length, peerTime);
+        localNow += outbound + inbound;
+        local.onPong(pong, pong.length, localNow);
+    }
+
+    static Thread readInBackground(FrameChannel channel, FrameChannel.Listener listener) {
+        Thread thread = new Thread(() -> {
+            try {
+                channel.readLoop(listener);
+            } catch (IOException expected) {
+                // Transport closed
+            }
+        });
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,160 @@
+package com.example.bluechatpro.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// In-memory stand-in for an RFCOMM socket pair, so protocol code can run on the JVM.
+// Each direction is a bounded byte pipe; closing either end ends both streams.
+public class LoopbackTransport {
+
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private final Pipe aToB;
+    private final Pipe bToA;
+    private final Endpoint a;
+    private final Endpoint b;
+
+    public LoopbackTransport() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public LoopbackTransport(int capacity) {
+        aToB = new Pipe(capacity);
+        bToA = new Pipe(capacity);
+        a = new Endpoint(bToA, aToB);
+        b = new Endpoint(aToB, bToA);
+    }
+
+    public Endpoint a() { return a; }
+    public Endpoint b() { return b; }
+
+    public void close() {
+        aToB.close();
+        bToA.close();
+    }
+
+    public class Endpoint {
+        private final Pipe in;
+        private final Pipe out;
+        private int readCalls;
+
+        Endpoint(Pipe in, Pipe out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        public InputStream getInputStream() {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    readCalls++;
+                    return in.read(b, off, len);
+                }
+
+                @Override
+                public int available() {
+                    return in.available();
+                }
+            };
+        }
+
+        public OutputStream getOutputStream() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+            };
+        }
+
+        // Number of read() calls made on this endpoint, a proxy for socket syscalls
+        public int getReadCalls() {
+            return readCalls;
+        }
+
+        public void close() {
+            LoopbackTransport.this.close();
+        }
+    }
+
+    static class Pipe {
+        private final byte[] buffer;
+        private int head;
+        private int size;
+        private boolean closed;
+
+        Pipe(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (size == 0) {
+                if (closed) {
+                    return -1;
+                }
+                waitUninterruptibly();
+            }
+            int n = Math.min(len, size);
+            for (int i = 0; i < n; i++) {
+                b[off + i] = buffer[(head + i) % buffer.length];
+            }
+            head = (head + n) % buffer.length;
+            size -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                while (size == buffer.length && !closed) {
+                    waitUninterruptibly();
+                }
+                if (closed) {
+                    throw new IOException("Pipe closed");
+                }
+                int n = Math.min(len, buffer.length - size);
+                int tail = (head + size) % buffer.length;
+                for (int i = 0; i < n; i++) {
+                    buffer[(tail + i) % buffer.length] = b[off + i];
+                }
+                size += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        synchronized int available() {
+            return size;
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        private void waitUninterruptibly() throws IOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.bluechatpro.protocol;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import static org.junit.Assert.*;
+
+public class PresenceSenderTest {
+
+    private final VirtualTime time = new VirtualTime();
+    private final List<long[]> sent = new ArrayList<>();
+    private final PresenceSender presence = new PresenceSender(time,
+            state -> sent.add(new long[] {time.now, state}), () -> time.now);
+
+    @Test
+    public void firstKeystrokeGoesOutAtOnce() {
+        time.advance(10_000);
+        presence.keystroke();
+        time.advance(0);
+        assertEquals(1, sent.size());
+        assertEquals(10_000, sent.get(0)[0]);
+        assertEquals(PresenceSender.STATE_TYPING, sent.get(0)[1]);
+    }
+
+    @Test
+    public void steadyTypingSendsOnlyStartAndStop() {
+        // A fast typist for a minute, a keystroke every 120 ms
+        presence.setActive(true);
+        for (int i = 0; i < 500; i++) {
+            presence.keystroke();
+            time.advance(120);
+        }
+        time.advance(PresenceSender.TYPING_IDLE_MS);
+
+        // Active and typing merge into the first frame; active alone after the pause
+        assertEquals(2, sent.size());
+        assertEquals(PresenceSender.STATE_ACTIVE | PresenceSender.STATE_TYPING, sent.get(0)[1]);
+        assertEquals(PresenceSender.STATE_ACTIVE, sent.get(1)[1]);
+        long stoppedAt = sent.get(1)[0] - 499 * 120;
+        assertTrue("Stopped after " + stoppedAt, stoppedAt >= PresenceSender.TYPING_IDLE_MS
+                && stoppedAt < PresenceSender.TYPING_IDLE_MS + 200);
+    }
+
+    @Test
+    public void rapidChangesAreThrottledAndEndOnTheLatest() {
+        // Type a word, send it, over and over, every 30 ms
+        for (int i = 0; i < 1000; i++) {
+            presence.keystroke();
+            time.advance(15);
+            presence.stopTyping();
+            time.advance(15);
+        }
+        time.advance(1000);
+
+        long elapsed = 1000 * 30 + 1000;
+        assertTrue("Frames " + sent.size(), sent.size() <= elapsed / PresenceSender.MIN_INTERVAL_MS + 1);
+        for (int i = 1; i < sent.size(); i++) {
+            assertTrue(sent.get(i)[0] - sent.get(i - 1)[0] >= PresenceSender.MIN_INTERVAL_MS);
+        }
+        assertEquals(0, sent.get(sent.size() - 1)[1]);
+        assertEquals(0, presence.getState());
+    }
+
+    @Test
+    public void changeWithinTheIntervalLandsByItsEnd() {
+        presence.setActive(true);
+        time.advance(10);
+        presence.keystroke();
+        time.advance(PresenceSender.MIN_INTERVAL_MS);
+
+        assertEquals(2, sent.size());
+        assertEquals(PresenceSender.MIN_INTERVAL_MS, sent.get(1)[0] - sent.get(0)[0]);
+        assertEquals(PresenceSender.STATE_ACTIVE | PresenceSender.STATE_TYPING, sent.get(1)[1]);
+    }
+
+    // Runs scheduled tasks in order as the test moves time along
+    private static class VirtualTime implements PresenceSender.Scheduler {
+        long now;
+        private long sequence;
+        private final PriorityQueue<long[]> order = new PriorityQueue<>((a, b) ->
+                a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        private final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            tasks.add(task);
+            order.add(new long[] {now + delayMillis, sequence++, tasks.size() - 1});
+        }
+
+        void advance(long millis) {
+            long until = now + millis;
+            while (!order.isEmpty() && order.peek()[0] <= until) {
+                long[] next = order.poll();
+                now = next[0];
+                tasks.get((int) next[2]).run();
+            }
+            now = until;
+        }
+    }
+}
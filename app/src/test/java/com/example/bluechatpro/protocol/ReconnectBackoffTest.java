@@ -0,0 +1,40 @@
+package com.example.bluechatpro.protocol;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ReconnectBackoffTest {
+
+    @Test
+    public void delaysDoubleUpToTheCapAndStartOverOnReset() {
+        ReconnectBackoff backoff = new ReconnectBackoff(new Random(1));
+
+        long ceiling = 1000;
+        for (int attempt = 0; attempt < 12; attempt++) {
+            long delay = backoff.nextDelayMillis(1000);
+            assertTrue(delay >= ceiling / 2);
+            assertTrue(delay <= ceiling);
+            ceiling = Math.min(ReconnectBackoff.MAX_DELAY_MS, ceiling * 2);
+        }
+        assertEquals(ReconnectBackoff.MAX_DELAY_MS, ceiling);
+
+        backoff.reset();
+        assertTrue(backoff.nextDelayMillis(1000) <= 1000);
+    }
+
+    @Test
+    public void jitterSpreadsPeersApart() {
+        ReconnectBackoff a = new ReconnectBackoff(new Random(1));
+        ReconnectBackoff b = new ReconnectBackoff(new Random(2));
+        int same = 0;
+        for (int attempt = 0; attempt < 8; attempt++) {
+            if (a.nextDelayMillis(1000) == b.nextDelayMillis(1000)) {
+                same++;
+            }
+        }
+        assertTrue(same < 2);
+    }
+}
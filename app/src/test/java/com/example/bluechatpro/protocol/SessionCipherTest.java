@@ -0,0 +1,245 @@
+package com.example.bluechatpro.protocol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SessionCipherTest {
+
+    private static final double LINK_BYTES_PER_SEC = 300 * 1024;
+
+    @Test
+    public void handshakeOverLoopbackEncryptsBothDirections() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        Peer alice = new Peer(transport.a());
+        Peer bob = new Peer(transport.b());
+        alice.start();
+        bob.start();
+
+        assertTrue(alice.handshakeDone.await(5, TimeUnit.SECONDS));
+        assertTrue(bob.handshakeDone.await(5, TimeUnit.SECONDS));
+        assertNotNull(alice.handshake.getSessionCipher());
+        assertEquals(alice.handshake.getSessionCipher().getVerificationCode(),
+                bob.handshake.getSessionCipher().getVerificationCode());
+
+        List<String> corpus = ChatCorpus.generate(500, 3);
+        bob.expect(corpus.size());
+        alice.expect(corpus.size());
+        for (String message : corpus) {
+            alice.channel.writeFrame(Frame.TYPE_CHAT, message.getBytes(StandardCharsets.UTF_8));
+            bob.channel.writeFrame(Frame.TYPE_CHAT, message.getBytes(StandardCharsets.UTF_8));
+        }
+
+        assertTrue(bob.received.await(5, TimeUnit.SECONDS));
+        assertTrue(alice.received.await(5, TimeUnit.SECONDS));
+        assertEquals(corpus, bob.messages);
+        assertEquals(corpus, alice.messages);
+
+        transport.close();
+    }
+
+    @Test
+    public void tamperedFrameIsRejected() throws Exception {
+        SessionCipher[] pair = establishPair();
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        FrameChannel sender = new FrameChannel(new ByteArrayInputStream(new byte[0]), wire, new LinkMetrics());
+        sender.setSessionCipher(pair[0]);
+        sender.writeFrame(Frame.TYPE_CHAT, "transfer 10 coins".getBytes(StandardCharsets.UTF_8));
+
+        byte[] bytes = wire.toByteArray();
+        bytes[Frame.HEADER_SIZE + 2] ^= 1;
+
+        FrameChannel receiver = new FrameChannel(new ByteArrayInputStream(bytes), new ByteArrayOutputStream(),
+                new LinkMetrics());
+        receiver.setSessionCipher(pair[1]);
+        try {
+            receiver.readLoop((type, flags, payload, offset, length) -> fail("Tampered frame delivered"));
+            fail("Expected an exception");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("authentication"));
+        }
+    }
+
+    @Test
+    public void alteredHelloBreaksTheSession() throws Exception {
+        Handshake alice = new Handshake();
+        Handshake bob = new Handshake();
+        Hello sent = alice.createHello();
+        FrameChannel channel = new FrameChannel(new ByteArrayInputStream(new byte[0]),
+                new ByteArrayOutputStream(), new LinkMetrics());
+
+        // Stripping the encryption offer is refused outright
+        Hello stripped = new Hello(sent.getVersion(), sent.getCapabilities() & ~Hello.CAP_ENCRYPTION,
+                sent.getPublicKey());
+        try {
+            new Handshake().complete(Hello.decode(stripped.encode(), stripped.encode().length), channel);
+            fail("Accepted a hello without encryption");
+        } catch (GeneralSecurityException expected) {
+            assertTrue(expected.getMessage().contains("encryption"));
+        }
+
+        // Any other change leaves the two sides with different keys
+        Hello altered = new Hello(sent.getVersion(), sent.getCapabilities() & ~Hello.CAP_DEFLATE,
+                sent.getPublicKey());
+        bob.complete(Hello.decode(altered.encode(), altered.encode().length), channel);
+        byte[] bobHello = bob.createHello().encode();
+        alice.complete(Hello.decode(bobHello, bobHello.length), channel);
+        assertNotEquals(alice.getSessionCipher().getVerificationCode(),
+                bob.getSessionCipher().getVerificationCode());
+    }
+
+    @Test
+    public void plaintextFrameAfterKeyExchangeIsRejected() throws Exception {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        FrameChannel injector = new FrameChannel(new ByteArrayInputStream(new byte[0]), wire, new LinkMetrics());
+        injector.writeFrame(Frame.TYPE_HELLO, new byte[] {1});
+        injector.writeFrame(Frame.TYPE_CHAT, "transfer 10 coins".getBytes(StandardCharsets.UTF_8));
+
+        FrameChannel receiver = new FrameChannel(new ByteArrayInputStream(wire.toByteArray()),
+                new ByteArrayOutputStream(), new LinkMetrics());
+        receiver.setSessionCipher(establishPair()[1]);
+        List<Byte> delivered = new ArrayList<>();
+        try {
+            receiver.readLoop((type, flags, payload, offset, length) -> delivered.add(type));
+            fail("Expected an exception");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("Unencrypted"));
+        }
+        // The hello is the one frame that is never encrypted
+        assertEquals(Collections.singletonList(Frame.TYPE_HELLO), delivered);
+    }
+
+    @Test
+    public void benchmarkEncryptedVersusPlaintext() throws Exception {
+        List<byte[]> corpus = new ArrayList<>();
+        long totalBytes = 0;
+        for (String message : ChatCorpus.generate(20000, 11)) {
+            byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+            corpus.add(bytes);
+            totalBytes += bytes.length;
+        }
+        // Warm up both paths until the JIT has compiled them
+        for (int i = 0; i < 5; i++) {
+            SessionCipher[] warmup = establishPair();
+            send(corpus, null, null);
+            send(corpus, warmup[0], warmup[1]);
+        }
+        SessionCipher[] pair = establishPair();
+
+        long[] plain = send(corpus, null, null);
+        long[] encrypted = send(corpus, pair[0], pair[1]);
+
+        double plainRate = corpus.size() * 1e9 / plain[0];
+        double encryptedRate = corpus.size() * 1e9 / encrypted[0];
+        double linkRate = LINK_BYTES_PER_SEC / ((double) totalBytes / corpus.size() + Frame.HEADER_SIZE
+                + SessionCipher.TAG_SIZE);
+
+        System.out.printf("Plaintext: %.0f msgs/s, %d bytes allocated/msg%n", plainRate, plain[1] / corpus.size());
+        System.out.printf("Encrypted: %.0f msgs/s, %d bytes allocated/msg%n", encryptedRate,
+                encrypted[1] / corpus.size());
+        System.out.printf("Link limit at 300 KB/s: %.0f msgs/s%n", linkRate);
+
+        // In memory, with no link in the way, the platform's GCM costs several
+        // times the plaintext path, so the bar is not the plaintext rate but what
+        // an RFCOMM link can carry: encryption must keep twice ahead of it, which
+        // leaves the link's throughput whole
+        assertTrue(encryptedRate > linkRate * 2);
+        // Each frame's cipher init allocates its parameters; nothing grows with
+        // the payload
+        assertTrue(encrypted[1] / corpus.size() < 4096);
+    }
+
+    static SessionCipher[] establishPair() throws Exception {
+        KeyPair a = SessionCipher.generateKeyPair();
+        KeyPair b = SessionCipher.generateKeyPair();
+        return new SessionCipher[] {
+                SessionCipher.establish(a, b.getPublic().getEncoded(), new byte[] {1}, new byte[] {2}),
+                SessionCipher.establish(b, a.getPublic().getEncoded(), new byte[] {2}, new byte[] {1}),
+        };
+    }
+
+    // Returns {elapsed nanos, bytes allocated by the sending thread}
+    private static long[] send(List<byte[]> corpus, SessionCipher seal, SessionCipher open) throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        FrameChannel sender = new FrameChannel(transport.a().getInputStream(),
+                transport.a().getOutputStream(), new LinkMetrics());
+        FrameChannel receiver = new FrameChannel(transport.b().getInputStream(),
+                transport.b().getOutputStream(), new LinkMetrics());
+        if (seal != null) {
+            sender.setSessionCipher(seal);
+            receiver.setSessionCipher(open);
+        }
+
+        CountDownLatch done = new CountDownLatch(corpus.size());
+        Thread reader = LatencyProbeTest.readInBackground(receiver, (type, flags, payload, offset, length) -> done.countDown());
+
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (byte[] message : corpus) {
+            sender.writeFrame(Frame.TYPE_CHAT, message);
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        transport.close();
+        reader.join(1000);
+        return new long[] {elapsed, allocated};
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    // One end of a connection running the real handshake
+    private static class Peer {
+        final Handshake handshake = new Handshake();
+        final FrameChannel channel;
+        final CountDownLatch handshakeDone = new CountDownLatch(1);
+        final List<String> messages = Collections.synchronizedList(new ArrayList<>());
+        volatile CountDownLatch received = new CountDownLatch(0);
+
+        Peer(LoopbackTransport.Endpoint endpoint) {
+            channel = new FrameChannel(endpoint.getInputStream(), endpoint.getOutputStream(), new LinkMetrics());
+        }
+
+        void start() throws IOException {
+            channel.writeFrame(Frame.TYPE_HELLO, handshake.createHello().encode());
+            LatencyProbeTest.readInBackground(channel, (type, flags, payload, offset, length) -> {
+                if (type == Frame.TYPE_HELLO) {
+                    try {
+                        handshake.complete(Hello.decode(payload, offset, length), channel);
+                    } catch (GeneralSecurityException e) {
+                        throw new IOException(e);
+                    }
+                    handshakeDone.countDown();
+                } else if (type == Frame.TYPE_CHAT) {
+                    messages.add(new String(payload, offset, length, StandardCharsets.UTF_8));
+                    received.countDown();
+                }
+            });
+        }
+
+        void expect(int count) {
+            received = new CountDownLatch(count);
+        }
+    }
+}
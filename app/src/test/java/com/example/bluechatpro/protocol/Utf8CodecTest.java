@@ -0,0 +1,100 @@
+package com.example.bluechatpro.protocol;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Utf8CodecTest {
+
+    private static final String[] SAMPLES = {
+            "hello", "héllo wörld", "Привет", "你好世界", "👋🏽 hi 😂😂", "🇪🇹 ሰላም", "a\u0000b", "",
+    };
+
+    @Test
+    public void encodesAsUtf8RegardlessOfPlatformCharset() {
+        Utf8Codec codec = new Utf8Codec();
+        for (String sample : SAMPLES) {
+            ByteBuffer encoded = codec.encode(sample);
+            byte[] bytes = new byte[encoded.remaining()];
+            encoded.get(bytes);
+            assertArrayEquals(sample.getBytes(StandardCharsets.UTF_8), bytes);
+        }
+    }
+
+    @Test
+    public void decodesAcrossEveryTwoWaySplit() {
+        Utf8Codec codec = new Utf8Codec();
+        for (String sample : SAMPLES) {
+            byte[] bytes = sample.getBytes(StandardCharsets.UTF_8);
+            for (int split = 0; split <= bytes.length; split++) {
+                StringBuilder out = new StringBuilder();
+                codec.decode(bytes, 0, split, out);
+                codec.decode(bytes, split, bytes.length - split, out);
+                codec.finish(out);
+                assertEquals("split at " + split, sample, out.toString());
+            }
+        }
+    }
+
+    @Test
+    public void fuzzRandomTextAndRandomChunking() {
+        Random random = new Random(2024);
+        Utf8Codec encoder = new Utf8Codec();
+        Utf8Codec decoder = new Utf8Codec();
+
+        for (int round = 0; round < 2000; round++) {
+            String text = randomText(random, random.nextInt(200));
+            ByteBuffer encoded = encoder.encode(text);
+            byte[] bytes = new byte[encoded.remaining()];
+            encoded.get(bytes);
+
+            StringBuilder out = new StringBuilder();
+            int position = 0;
+            while (position < bytes.length) {
+                int chunk = Math.min(bytes.length - position, 1 + random.nextInt(7));
+                decoder.decode(bytes, position, chunk, out);
+                position += chunk;
+            }
+            decoder.finish(out);
+
+            assertEquals(text, out.toString());
+        }
+    }
+
+    @Test
+    public void truncatedSequenceBecomesReplacementCharacter() {
+        Utf8Codec codec = new Utf8Codec();
+        byte[] emoji = "😂".getBytes(StandardCharsets.UTF_8);
+
+        StringBuilder out = new StringBuilder();
+        codec.decode(emoji, 0, 2, out);
+        codec.finish(out);
+        assertEquals("�", out.toString());
+
+        // State does not leak into the next message
+        assertEquals("ok", codec.decode("ok".getBytes(StandardCharsets.UTF_8), 0, 2));
+    }
+
+    private static String randomText(Random random, int codePoints) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < codePoints; i++) {
+            int kind = random.nextInt(4);
+            int codePoint;
+            if (kind == 0) {
+                codePoint = 0x20 + random.nextInt(0x5F);            // ASCII
+            } else if (kind == 1) {
+                codePoint = 0x80 + random.nextInt(0x780);           // 2-byte
+            } else if (kind == 2) {
+                codePoint = 0x800 + random.nextInt(0xD000 - 0x800); // 3-byte, below surrogates
+            } else {
+                codePoint = 0x1F300 + random.nextInt(0x300);        // 4-byte emoji
+            }
+            builder.appendCodePoint(codePoint);
+        }
+        return builder.toString();
+    }
+}
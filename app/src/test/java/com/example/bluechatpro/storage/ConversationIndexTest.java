@@ -0,0 +1,106 @@
+package com.example.bluechatpro.storage;
+
+import com.example.bluechatpro.models.ChatMessage;
+import com.example.bluechatpro.models.Conversation;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ConversationIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void tracksLastMessageAndUnreadPerPeer() {
+        ConversationIndex index = new ConversationIndex();
+        index.onAppend(0, "AA", received("hi", "Alice", 1000));
+        index.onAppend(1, "BB", received("yo", "Bob", 2000));
+        index.onAppend(2, "AA", received("are you there?", "Alice", 3000));
+        index.onAppend(3, "BB", sent("later", 4000));
+
+        List<Conversation> list = index.snapshot();
+        assertEquals("BB", list.get(0).getPeerAddress());
+        assertEquals("later", list.get(0).getLastMessage());
+        assertTrue(list.get(0).isLastSent());
+        assertEquals(1, list.get(0).getUnreadCount());
+
+        Conversation alice = list.get(1);
+        assertEquals("Alice", alice.getDisplayName());
+        assertEquals("are you there?", alice.getLastMessage());
+        assertEquals(2, alice.getUnreadCount());
+        assertEquals(3000, alice.getLastTimestamp());
+
+        index.markRead("AA");
+        assertEquals(0, index.snapshot().get(1).getUnreadCount());
+    }
+
+    @Test
+    public void ignoresIdsAlreadyCovered() {
+        ConversationIndex index = new ConversationIndex();
+        index.onAppend(5, "AA", received("new", "Alice", 1000));
+        index.onAppend(5, "AA", received("replayed", "Alice", 1000));
+        index.onAppend(4, "AA", received("older", "Alice", 1000));
+
+        assertEquals(5, index.getLastId());
+        assertEquals("new", index.snapshot().get(0).getLastMessage());
+        assertEquals(1, index.snapshot().get(0).getMessageCount());
+    }
+
+    @Test
+    public void olderMessageFromSyncLeavesThePreview() {
+        ConversationIndex index = new ConversationIndex();
+        index.onAppend(0, "AA", sent("see you at 8", 5000));
+        index.onAppend(1, "AA", received("what time?", "Alice", 4000));
+
+        Conversation alice = index.snapshot().get(0);
+        assertEquals("see you at 8", alice.getLastMessage());
+        assertTrue(alice.isLastSent());
+        assertEquals(5000, alice.getLastTimestamp());
+        assertEquals(2, alice.getMessageCount());
+        assertEquals(1, alice.getUnreadCount());
+    }
+
+    @Test
+    public void savesAndLoadsWithoutTheLog() throws Exception {
+        File file = new File(folder.getRoot(), "conversations.idx");
+        ConversationIndex index = new ConversationIndex();
+        StringBuilder longText = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            longText.append("😂 ");
+        }
+        index.onAppend(0, "AA", received(longText.toString(), "Alice", 1000));
+        index.onAppend(1, "BB", sent("hello", 2000));
+        index.save(file);
+        assertFalse(index.isDirty());
+
+        ConversationIndex loaded = new ConversationIndex();
+        loaded.load(file);
+        assertEquals(1, loaded.getLastId());
+
+        List<Conversation> list = loaded.snapshot();
+        assertEquals(2, list.size());
+        assertNull(list.get(0).getPeerName());
+        assertEquals("BB", list.get(0).getDisplayName());
+        assertEquals(ConversationIndex.PREVIEW_LENGTH - 1, list.get(1).getLastMessage().length());
+        assertEquals(1, list.get(1).getUnreadCount());
+    }
+
+    private static ChatMessage received(String text, String sender, long time) {
+        ChatMessage message = new ChatMessage(text, sender, "peer", false);
+        message.setTimestamp(time);
+        return message;
+    }
+
+    private static ChatMessage sent(String text, long time) {
+        ChatMessage message = new ChatMessage(text, "Me", "me", true);
+        message.setTimestamp(time);
+        return message;
+    }
+}
@@ -0,0 +1,213 @@
+package com.example.bluechatpro.storage;
+
+import com.example.bluechatpro.models.ChatMessage;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class HistorySyncTest {
+
+    @Test
+    public void identicalHistoriesExchangeOnlyTheOpening() throws Exception {
+        Side a = new Side();
+        Side b = new Side();
+        fill(a, b, 100_000, 0);
+
+        Exchange exchange = sync(a, b);
+        assertEquals(2, exchange.frames);
+        assertTrue("Bytes " + exchange.bytes, exchange.bytes < 64);
+    }
+
+    @Test
+    public void bothSidesEndWithTheUnion() throws Exception {
+        Side a = new Side();
+        Side b = new Side();
+        fill(a, b, 5000, 300);
+        // Sent from here, but only the peer still has it
+        b.add(message("LOST", "lost here", 1_700_000_000_000L, false));
+
+        sync(a, b);
+        assertEquals(151, a.sync.getMessagesReceived());
+        assertEquals(150, b.sync.getMessagesReceived());
+        assertEquals(ids(a), ids(b));
+        assertEquals(5301, a.messages.size());
+
+        // A message only the peer sent arrives here as received, and one we
+        // sent that only the peer kept comes back as ours
+        assertFalse(a.byId("ONLY_B_0").isSent());
+        ChatMessage lost = a.byId("LOST");
+        assertTrue(lost.isSent());
+        assertEquals(ChatMessage.MessageStatus.DELIVERED, lost.getStatus());
+        assertEquals("lost here", lost.getContent());
+
+        // A second pass has nothing left to do
+        assertEquals(2, sync(a, b).frames);
+    }
+
+    @Test
+    public void trafficFollowsTheDifferenceNotTheHistory() throws Exception {
+        long[][] bytes = new long[2][];
+        int[] sizes = {1000, 100_000};
+        int[] differences = {10, 100, 1000};
+        for (int s = 0; s < sizes.length; s++) {
+            bytes[s] = new long[differences.length];
+            for (int d = 0; d < differences.length; d++) {
+                Side a = new Side();
+                Side b = new Side();
+                fill(a, b, sizes[s], differences[d]);
+                Exchange exchange = sync(a, b);
+                assertEquals(ids(a), ids(b));
+                bytes[s][d] = exchange.bytes;
+                System.out.println("History sync: " + sizes[s] + " shared, " + differences[d] + " different: "
+                        + exchange.bytes + " bytes in " + exchange.frames + " frames, "
+                        + exchange.rounds + " round trips");
+            }
+        }
+
+        for (int d = 0; d < differences.length; d++) {
+            // A hundred times the history costs a few more levels of ranges per
+            // difference, not a hundred times the bytes
+            assertTrue(bytes[1][d] + " vs " + bytes[0][d], bytes[1][d] < 5 * bytes[0][d]);
+            assertTrue("Bytes per difference " + bytes[1][d] / differences[d],
+                    bytes[1][d] / differences[d] < 1024);
+        }
+        // Sending the whole 100k history would take megabytes
+        assertTrue("Bytes " + bytes[1][0], bytes[1][0] < 16 * 1024);
+    }
+
+    @Test
+    public void setAnswersRangesOverTheWholeHashSpace() {
+        SyncSet set = new SyncSet();
+        long expected = 0;
+        for (int i = 0; i < 1000; i++) {
+            long hash = SyncSet.hash("MSG_" + i);
+            assertTrue(set.add(hash, i));
+            expected ^= hash;
+            if (i % 100 == 0) {
+                // Queries between additions merge what came in since
+                assertEquals(i + 1, set.count(SyncSet.MIN, SyncSet.MAX));
+            }
+        }
+        assertFalse(set.add(SyncSet.hash("MSG_7"), 7));
+        assertEquals(1000, set.size());
+        assertEquals(expected, set.fingerprint(SyncSet.MIN, SyncSet.MAX));
+        assertEquals(7, set.id(SyncSet.hash("MSG_7")));
+        assertEquals(-1, set.id(SyncSet.hash("MSG_1000")));
+
+        int negative = set.count(SyncSet.MIN, -1);
+        int positive = set.count(0, SyncSet.MAX);
+        assertEquals(1000, negative + positive);
+        assertEquals(negative, set.hashes(SyncSet.MIN, -1).length);
+        assertEquals(set.fingerprint(SyncSet.MIN, SyncSet.MAX),
+                set.fingerprint(SyncSet.MIN, -1) ^ set.fingerprint(0, SyncSet.MAX));
+    }
+
+    // Both hold shared messages, and each holds half the difference alone
+    private static void fill(Side a, Side b, int shared, int different) throws IOException {
+        long start = 1_700_000_000_000L;
+        for (int i = 0; i < shared; i++) {
+            boolean fromA = i % 2 == 0;
+            a.add(message("MSG_" + i, "message " + i, start + i, fromA));
+            b.add(message("MSG_" + i, "message " + i, start + i, !fromA));
+        }
+        for (int i = 0; i < different / 2; i++) {
+            a.add(message("ONLY_A_" + i, "only a " + i, start + shared + i, true));
+            b.add(message("ONLY_B_" + i, "only b " + i, start + shared + i, true));
+        }
+    }
+
+    private static ChatMessage message(String id, String content, long time, boolean sent) {
+        ChatMessage message = new ChatMessage(content, sent ? "You" : "Peer", sent ? null : "AA:BB", sent);
+        message.setMessageId(id);
+        message.setTimestamp(time);
+        return message;
+    }
+
+    private static Set<String> ids(Side side) {
+        Set<String> ids = new HashSet<>();
+        for (ChatMessage message : side.messages) {
+            ids.add(message.getMessageId());
+        }
+        return ids;
+    }
+
+    // Runs both sides until neither has anything to send. A round is one pass
+    // over everything in flight.
+    private static Exchange sync(Side a, Side b) throws IOException {
+        Exchange exchange = new Exchange();
+        a.outbox.clear();
+        b.outbox.clear();
+        a.start(1);
+        b.start(2);
+        while (!a.outbox.isEmpty() || !b.outbox.isEmpty()) {
+            exchange.rounds++;
+            List<byte[]> toB = new ArrayList<>(a.outbox);
+            List<byte[]> toA = new ArrayList<>(b.outbox);
+            a.outbox.clear();
+            b.outbox.clear();
+            for (byte[] frame : toB) {
+                exchange.count(frame);
+                b.sync.onFrame(frame, 0, frame.length);
+            }
+            for (byte[] frame : toA) {
+                exchange.count(frame);
+                a.sync.onFrame(frame, 0, frame.length);
+            }
+        }
+        // Both openings cross in the first round, so a round trip is two rounds
+        exchange.rounds = (exchange.rounds + 1) / 2;
+        return exchange;
+    }
+
+    private static class Exchange {
+        int frames;
+        long bytes;
+        int rounds;
+
+        void count(byte[] frame) {
+            frames++;
+            bytes += frame.length;
+        }
+    }
+
+    private static class Side implements HistorySync.Store {
+        final List<ChatMessage> messages = new ArrayList<>();
+        final SyncSet set = new SyncSet();
+        final ArrayDeque<byte[]> outbox = new ArrayDeque<>();
+        HistorySync sync;
+
+        void start(long token) throws IOException {
+            sync = new HistorySync(this, outbox::add, token);
+            sync.start();
+        }
+
+        ChatMessage byId(String id) {
+            return messages.get(set.id(SyncSet.hash(id)));
+        }
+
+        @Override
+        public SyncSet getSet() {
+            return set;
+        }
+
+        @Override
+        public ChatMessage read(int id) {
+            return messages.get(id);
+        }
+
+        @Override
+        public boolean add(ChatMessage message) {
+            set.add(SyncSet.hash(message.getMessageId()), messages.size());
+            messages.add(message);
+            return true;
+        }
+    }
+}
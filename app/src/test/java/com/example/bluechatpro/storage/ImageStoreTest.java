@@ -0,0 +1,84 @@
+package com.example.bluechatpro.storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class ImageStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void rejectsNamesOutsideTheDirectory() {
+        assertTrue(ImageStore.isValidName("MSG_1700000000000_42.jpg"));
+        assertFalse(ImageStore.isValidName("../secret"));
+        assertFalse(ImageStore.isValidName("a/b.jpg"));
+        assertFalse(ImageStore.isValidName(".hidden"));
+        assertFalse(ImageStore.isValidName("name."));
+        assertFalse(ImageStore.isValidName(""));
+        assertFalse(ImageStore.isValidName(null));
+
+        String name = ImageStore.nameFor("MSG/../1", "jpg");
+        assertTrue(ImageStore.isValidName(name));
+    }
+
+    @Test
+    public void receivedImageAppearsOnlyWhenFinished() throws Exception {
+        ImageStore store = new ImageStore(new File(folder.getRoot(), "images"));
+        ImageStore.Receiver receiver = store.beginReceive("a.jpg");
+        byte[] data = {1, 2, 3, 4, 5};
+        receiver.write(data, 0, 3);
+        receiver.write(data, 3, 2);
+        assertFalse(store.fileFor("a.jpg").exists());
+
+        File file = receiver.finish();
+        assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void receivedImageNeverReplacesAStoredOne() throws Exception {
+        ImageStore store = new ImageStore(new File(folder.getRoot(), "images"));
+        ImageStore.Receiver first = store.beginReceive("a.jpg");
+        try {
+            store.beginReceive("a.jpg");
+            fail("Two receives of one name");
+        } catch (FileAlreadyExistsException expected) {
+            // ok
+        }
+        first.write(new byte[] {1, 2}, 0, 2);
+        File file = first.finish();
+
+        try {
+            store.beginReceive("a.jpg");
+            fail("Replaced a stored image");
+        } catch (FileAlreadyExistsException expected) {
+            // ok
+        }
+        assertArrayEquals(new byte[] {1, 2}, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void oversizedImageIsDropped() throws Exception {
+        File directory = new File(folder.getRoot(), "images");
+        ImageStore store = new ImageStore(directory);
+        ImageStore.Receiver receiver = store.beginReceive("big.jpg");
+        byte[] chunk = new byte[1024 * 1024];
+        try {
+            for (int i = 0; i <= ImageStore.MAX_IMAGE_SIZE / chunk.length; i++) {
+                receiver.write(chunk, 0, chunk.length);
+            }
+            fail("Expected the size limit to trip");
+        } catch (IOException e) {
+            receiver.abort();
+        }
+        assertEquals(0, directory.list().length);
+    }
+}
@@ -0,0 +1,281 @@
+package com.example.bluechatpro.storage;
+
+import com.example.bluechatpro.models.ChatMessage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class LogCompactionTest {
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+    private static final long NOW = 1_700_000_000_000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void eachConversationKeepsWhatItsPolicyAllows() throws Exception {
+        File file = folder.newFile("messages.log");
+        try (MessageLog log = new MessageLog(file)) {
+            // Interleaved, a message an hour over ten days, oldest first
+            for (int i = 0; i < 240; i++) {
+                long time = NOW - (240 - i) * DAY / 24;
+                log.append("AA", message("aa " + i, time));
+                log.append("BB", message("bb " + i, time));
+                log.append("CC", message("cc " + i, time));
+                log.append("DD", message("dd " + i, time));
+            }
+
+            Map<String, RetentionPolicy> policies = new HashMap<>();
+            policies.put("AA", new RetentionPolicy(0, 100, 0));
+            policies.put("BB", new RetentionPolicy(2 * DAY, 0, 0));
+            policies.put("CC", new RetentionPolicy(0, 0, 4096));
+            MessageLog.Compaction compaction = log.compact(new RetentionPlanner(policies, RetentionPolicy.KEEP_ALL, NOW));
+            int[] map = log.commit(compaction);
+
+            Map<String, List<String>> kept = contents(log);
+            assertEquals(100, kept.get("AA").size());
+            assertEquals("aa 140", kept.get("AA").get(0));
+            assertEquals(48, kept.get("BB").size());
+            assertEquals("bb 192", kept.get("BB").get(0));
+            assertTrue(kept.get("CC").size() > 20 && kept.get("CC").size() < 240);
+            assertEquals("cc 239", kept.get("CC").get(kept.get("CC").size() - 1));
+            assertEquals(240, kept.get("DD").size());
+
+            // The map sends each kept message to where it now is, in order
+            assertEquals(960, map.length);
+            int last = -1;
+            for (int id = 0; id < map.length; id++) {
+                if (map[id] >= 0) {
+                    assertEquals(last + 1, map[id]);
+                    last = map[id];
+                }
+            }
+            assertEquals(log.size() - 1, last);
+            assertEquals(log.size(), 960 - compaction.dropped);
+        }
+
+        // The rewritten file is a valid log
+        try (MessageLog log = new MessageLog(file)) {
+            assertEquals(240, contents(log).get("DD").size());
+            assertEquals(log.size(), log.append("AA", message("after", NOW)));
+        }
+    }
+
+    @Test
+    public void appendsAndReadsCarryOnWhileCompacting() throws Exception {
+        File file = folder.newFile("messages.log");
+        try (MessageLog log = new MessageLog(file)) {
+            int initial = 100_000;
+            for (int i = 0; i < initial; i++) {
+                log.append(i % 2 == 0 ? "AA" : "BB", message("message " + i + " with some text to it", NOW + i));
+            }
+            long size = file.length();
+
+            AtomicBoolean compacting = new AtomicBoolean(true);
+            AtomicLong slowest = new AtomicLong();
+            List<Integer> appended = new ArrayList<>();
+            // Another conversation, so an append that lands before compaction
+            // takes its snapshot does not change what AA's retention drops
+            Thread writer = new Thread(() -> {
+                try {
+                    int i = 0;
+                    while (compacting.get()) {
+                        long start = System.nanoTime();
+                        appended.add(log.append("CC", message("during " + i++, NOW + initial + i)));
+                        log.read(i % initial);
+                        slowest.accumulateAndGet(System.nanoTime() - start, Math::max);
+                        Thread.sleep(0, 200_000);
+                    }
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+            });
+            writer.start();
+
+            // AA keeps its newest 10k; BB keeps everything
+            Map<String, RetentionPolicy> policies = new HashMap<>();
+            policies.put("AA", new RetentionPolicy(0, 10_000, 0));
+            long start = System.nanoTime();
+            MessageLog.Compaction compaction = log.compact(new RetentionPlanner(policies, RetentionPolicy.KEEP_ALL, NOW));
+            long copied = System.nanoTime() - start;
+            compacting.set(false);
+            writer.join();
+
+            start = System.nanoTime();
+            int[] map = log.commit(compaction);
+            long committed = System.nanoTime() - start;
+
+            System.out.println("Compaction of " + size / 1024 + " KB: read " + compaction.bytesRead / 1024
+                    + " KB, wrote " + compaction.bytesWritten / 1024 + " KB, dropped " + compaction.dropped
+                    + " in " + copied / 1_000_000 + " ms; commit " + committed / 1_000_000 + " ms with "
+                    + appended.size() + " appends meanwhile, slowest append+read "
+                    + slowest.get() / 1000 + " us");
+
+            assertEquals(initial / 2 - 10_000, compaction.dropped);
+            // Kept 60% of the records, so about that much written; one pass for
+            // headers and one for the copy read
+            assertTrue(compaction.bytesWritten < size * 65 / 100);
+            assertTrue(compaction.bytesRead < 2 * size);
+            assertEquals(initial - compaction.dropped + appended.size(), log.size());
+            // Everything appended meanwhile survived, under its new id
+            for (int i = 0; i < appended.size(); i++) {
+                assertEquals("during " + i, log.read(map[appended.get(i)]).getContent());
+            }
+            assertFalse(appended.isEmpty());
+        }
+    }
+
+    @Test
+    public void indexesFollowTheNewIds() {
+        SearchIndex search = new SearchIndex();
+        SyncSet set = new SyncSet();
+        for (int id = 0; id < 10; id++) {
+            search.add(id, id % 2 == 0 ? "even number " + id : "odd number " + id);
+            set.add(SyncSet.hash("MSG_" + id), id);
+        }
+        // Drop 0..4
+        int[] map = {-1, -1, -1, -1, -1, 0, 1, 2, 3, 4};
+        search.remap(map);
+        long[] dropped = set.remap(map);
+
+        assertEquals(2, search.search("even").size());
+        assertArrayEquals(new int[] {3, 1}, search.search("even").page(0, 10));
+        assertEquals(0, search.search("4").size());
+        assertEquals(5, dropped.length);
+
+        // Dropped messages are still known, without an id
+        assertTrue(set.contains(SyncSet.hash("MSG_2")));
+        assertEquals(-1, set.id(SyncSet.hash("MSG_2")));
+        assertEquals(4, set.id(SyncSet.hash("MSG_9")));
+        assertEquals(10, set.count(SyncSet.MIN, SyncSet.MAX));
+    }
+
+    @Test
+    public void clearedMessagesAreDroppedWhateverThePolicy() throws Exception {
+        File file = folder.newFile("messages.log");
+        try (MessageLog log = new MessageLog(file)) {
+            SyncSet set = new SyncSet();
+            BitSet cleared = new BitSet();
+            for (int i = 0; i < 20; i++) {
+                ChatMessage message = message("message " + i, NOW + i);
+                int id = log.append(i % 2 == 0 ? "AA" : "BB", message);
+                set.add(SyncSet.hash(message.getMessageId()), id);
+                if (i % 2 == 0) {
+                    assertEquals(id, set.drop(SyncSet.hash(message.getMessageId())));
+                    cleared.set(id);
+                }
+            }
+
+            MessageLog.Compaction compaction = log.compact(
+                    new RetentionPlanner(new HashMap<>(), RetentionPolicy.KEEP_ALL, NOW, cleared));
+            int[] map = log.commit(compaction);
+
+            assertEquals(10, compaction.dropped);
+            assertNull(contents(log).get("AA"));
+            assertEquals(10, contents(log).get("BB").size());
+            // Already recorded as dropped, so the remap does not report them again
+            assertEquals(0, set.remap(map).length);
+            assertEquals(20, set.count(SyncSet.MIN, SyncSet.MAX));
+        }
+    }
+
+    @Test
+    public void tornExpiredBatchIsCutOffBeforeTheNextAppend() throws Exception {
+        File file = new File(folder.getRoot(), "expired.ids");
+        ExpiredIds ids = new ExpiredIds(file);
+        ids.append("AA", new long[] {1, 2, 3});
+        long good = file.length();
+        ids.append("BB", new long[] {4, 5});
+        // A crash halfway through the second batch
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            raw.setLength(file.length() - 5);
+        }
+
+        Map<String, List<Long>> loaded = loadExpired(ids);
+        assertEquals(Arrays.asList(1L, 2L, 3L), loaded.get("AA"));
+        assertNull(loaded.get("BB"));
+        assertEquals(good, file.length());
+
+        // The next batch reads back whole
+        ids.append("BB", new long[] {6});
+        assertEquals(Collections.singletonList(6L), loadExpired(ids).get("BB"));
+
+        // Compaction replaces the batches with one per peer
+        Map<String, long[]> all = new HashMap<>();
+        all.put("AA", new long[] {1, 2, 3, 7});
+        all.put("BB", new long[] {6});
+        ids.rewrite(all);
+        loaded = loadExpired(ids);
+        assertEquals(Arrays.asList(1L, 2L, 3L, 7L), loaded.get("AA"));
+        assertEquals(Collections.singletonList(6L), loaded.get("BB"));
+        assertEquals(2 * (2 + 2 + 4) + 5 * 8, file.length());
+    }
+
+    @Test
+    public void statusChangesAreStoredAndSurviveCompaction() throws Exception {
+        File file = folder.newFile("messages.log");
+        try (MessageLog log = new MessageLog(file)) {
+            for (int i = 0; i < 100; i++) {
+                ChatMessage message = message("message " + i, NOW + i);
+                message.setSent(true);
+                message.setStatus(ChatMessage.MessageStatus.SENT);
+                log.append(i < 50 ? "AA" : "BB", message);
+            }
+            log.setStatus(60, ChatMessage.MessageStatus.DELIVERED);
+
+            // Acknowledged while the compaction copies
+            Map<String, RetentionPolicy> policies = new HashMap<>();
+            policies.put("AA", new RetentionPolicy(0, 10, 0));
+            MessageLog.Compaction compaction = log.compact(new RetentionPlanner(policies, RetentionPolicy.KEEP_ALL, NOW));
+            log.setStatus(70, ChatMessage.MessageStatus.DELIVERED);
+            int[] map = log.commit(compaction);
+
+            assertEquals(ChatMessage.MessageStatus.DELIVERED, log.read(map[60]).getStatus());
+            assertEquals(ChatMessage.MessageStatus.DELIVERED, log.read(map[70]).getStatus());
+            assertEquals(ChatMessage.MessageStatus.SENT, log.read(map[71]).getStatus());
+            assertEquals("message 70", log.read(map[70]).getContent());
+        }
+
+        // And on disk
+        try (MessageLog log = new MessageLog(file)) {
+            List<ChatMessage.MessageStatus> statuses = new ArrayList<>();
+            log.scan((id, peer, message) -> statuses.add(message.getStatus()));
+            assertEquals(60, statuses.size());
+            assertEquals(2, statuses.stream().filter(s -> s == ChatMessage.MessageStatus.DELIVERED).count());
+        }
+    }
+
+    private static Map<String, List<Long>> loadExpired(ExpiredIds ids) throws Exception {
+        Map<String, List<Long>> loaded = new HashMap<>();
+        ids.load((peer, hash) -> loaded.computeIfAbsent(peer, p -> new ArrayList<>()).add(hash));
+        return loaded;
+    }
+
+    private static ChatMessage message(String content, long time) {
+        ChatMessage message = new ChatMessage(content, "Peer", "AA", false);
+        message.setTimestamp(time);
+        return message;
+    }
+
+    private static Map<String, List<String>> contents(MessageLog log) throws Exception {
+        Map<String, List<String>> contents = new HashMap<>();
+        log.scan((id, peer, message) -> contents.computeIfAbsent(peer, p -> new ArrayList<>()).add(message.getContent()));
+        return contents;
+    }
+}
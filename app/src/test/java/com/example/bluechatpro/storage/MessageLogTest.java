@@ -0,0 +1,338 @@
+package com.example.bluechatpro.storage;
+
+import com.example.bluechatpro.models.ChatMessage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class MessageLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void messagesSurviveReopen() throws Exception {
+        File file = folder.newFile("messages.log");
+        try (MessageLog log = new MessageLog(file)) {
+            assertEquals(0, log.append("AA:BB", new ChatMessage("hi there", "Alice", "AA:BB", false)));
+            assertEquals(1, log.append("CC:DD", new ChatMessage("hello 👋", "Me", null, true)));
+        }
+
+        try (MessageLog log = new MessageLog(file)) {
+            assertEquals(2, log.size());
+            ChatMessage second = log.read(1);
+            assertEquals("hello 👋", second.getContent());
+            assertTrue(second.isSent());
+
+            List<String> peers = new ArrayList<>();
+            log.scan((id, peer, message) -> peers.add(peer + "/" + message.getContent()));
+            assertEquals("AA:BB/hi there", peers.get(0));
+            assertEquals("CC:DD/hello 👋", peers.get(1));
+        }
+    }
+
+    @Test
+    public void tornTailIsDroppedOnOpen() throws Exception {
+        File file = folder.newFile("messages.log");
+        try (MessageLog log = new MessageLog(file)) {
+            log.append("AA:BB", new ChatMessage("kept", "Alice", "AA:BB", false));
+            log.append("AA:BB", new ChatMessage("cut short", "Alice", "AA:BB", false));
+        }
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            raw.setLength(raw.length() - 3);
+        }
+
+        try (MessageLog log = new MessageLog(file)) {
+            assertEquals(1, log.size());
+            assertEquals(2, log.append("AA:BB", new ChatMessage("next", "Alice", "AA:BB", false)) + 1);
+            assertEquals("next", log.read(1).getContent());
+        }
+    }
+
+    @Test
+    public void sendersAreStoredOnceAndRenamedInPlace() throws Exception {
+        File file = folder.newFile("messages.log");
+        File table = new File(folder.getRoot(), "peers.tbl");
+        PeerTable peers = new PeerTable(table);
+        try (MessageLog log = new MessageLog(file, peers)) {
+            for (int i = 0; i < 100; i++) {
+                log.append("AA:BB", new ChatMessage("hi " + i, "Alice", "AA:BB", false));
+            }
+            log.append("CC:DD", new ChatMessage("from me", "Me", null, true));
+        }
+        // Alice, and the conversation with CC:DD; "Me" has no address to store
+        assertEquals(2, peers.size());
+        // [id][address][has name] for each conversation, then Alice's name once
+        // her first message is stored; nothing for the other ninety-nine
+        assertEquals(2 * (4 + 7 + 1) + (4 + 7 + 1 + 7), table.length());
+
+        // A rename is one record in the table, and old messages show it
+        long tableSize = table.length();
+        peers.rename("AA:BB", "Alice B");
+        peers.rename("AA:BB", "Alice B");
+        assertTrue(table.length() > tableSize);
+        assertTrue(table.length() < 2 * tableSize);
+
+        PeerTable reloaded = new PeerTable(table);
+        reloaded.load();
+        try (MessageLog log = new MessageLog(file, reloaded)) {
+            ChatMessage first = log.read(0);
+            ChatMessage last = log.read(99);
+            assertEquals("Alice B", first.getSenderName());
+            assertEquals("AA:BB", first.getSenderAddress());
+            assertSame(first.getSender(), last.getSender());
+            assertSame(reloaded.get("AA:BB"), first.getSender());
+            assertEquals("Me", log.read(100).getSenderName());
+
+            reloaded.rename("AA:BB", "Alice C");
+            assertEquals("Alice C", last.getSenderName());
+        }
+    }
+
+    @Test
+    public void corruptPeerRecordIsCutOffWithWhatFollows() throws Exception {
+        File table = new File(folder.getRoot(), "peers.tbl");
+        PeerTable peers = new PeerTable(table);
+        assertEquals(0, peers.idOf(peers.intern("AA:BB", "Alice")));
+        assertEquals(1, peers.idOf(peers.intern("CC:DD", "Bob")));
+        long good = table.length();
+        try (RandomAccessFile raw = new RandomAccessFile(table, "rw")) {
+            // Then a record claiming an id far past the end, and a valid-looking one
+            raw.seek(good);
+            raw.writeInt(1000);
+            raw.writeUTF("EE:FF");
+            raw.writeBoolean(false);
+            raw.writeInt(2);
+            raw.writeUTF("GG:HH");
+            raw.writeBoolean(false);
+        }
+
+        PeerTable reloaded = new PeerTable(table);
+        reloaded.load();
+        assertEquals(2, reloaded.size());
+        assertEquals("Bob", reloaded.byId(1).getName());
+        assertNull(reloaded.byId(2));
+        assertEquals(good, table.length());
+        assertEquals(2, reloaded.idOf(reloaded.intern("EE:FF", null)));
+    }
+
+    @Test
+    public void mappedReadsMatchPlainReadsAcrossSegments() throws Exception {
+        File file = folder.newFile("messages.log");
+        try (MessageLog log = new MessageLog(file)) {
+            // Three full segments and part of a fourth, records straddling each boundary
+            Random random = new Random(7);
+            while (file.length() < 3 * MessageLog.SEGMENT_SIZE + 100_000) {
+                log.append("AA:BB", message(random, log.size()));
+            }
+            try (MessageLog plain = new MessageLog(file, false)) {
+                for (int id = 0; id < log.size(); id++) {
+                    ChatMessage expected = plain.read(id);
+                    ChatMessage actual = log.read(id);
+                    assertEquals(expected.getMessageId(), actual.getMessageId());
+                    assertEquals(expected.getTimestamp(), actual.getTimestamp());
+                    assertEquals(expected.getContent(), actual.getContent());
+                }
+            }
+
+            // Messages read before a compaction still decode afterwards
+            ChatMessage early = log.read(3);
+            int[] map = log.commit(log.compact(new MessageLog.Planner() {
+                @Override
+                public void onRecord(int id, String peer, ChatMessage header, int recordBytes) {
+                }
+
+                @Override
+                public BitSet dropped() {
+                    BitSet dropped = new BitSet();
+                    dropped.set(0, 10);
+                    return dropped;
+                }
+            }));
+            assertEquals("message 3", early.getContent().substring(0, 9));
+            assertEquals("message 20", log.read(map[20]).getContent().substring(0, 10));
+        }
+    }
+
+    @Test
+    public void mappedPagesAllocateLessThanSeekAndRead() throws Exception {
+        File file = folder.newFile("messages.log");
+        writeHistory(file, 4 * MessageLog.SEGMENT_SIZE);
+
+        try (MessageLog plain = new MessageLog(file, false);
+             MessageLog mapped = new MessageLog(file)) {
+            // Content that is never shown is never copied out of the file
+            assertTrue(pages(mapped, false)[1] < pages(plain, false)[1]);
+        }
+    }
+
+    // Writes 1 GB and compares timings, so it only runs with -Dbenchmarks=true
+    @Test
+    public void benchmarkMappedPagesAgainstSeekAndRead() throws Exception {
+        assumeTrue(Boolean.getBoolean("benchmarks"));
+        // 1 GB of history; pages of 50 messages anywhere in it, as when scrolling back
+        File file = folder.newFile("messages.log");
+        writeHistory(file, 1024L * 1024 * 1024);
+
+        try (MessageLog plain = new MessageLog(file, false);
+             MessageLog mapped = new MessageLog(file)) {
+            long[] plainPage = pages(plain, false);
+            long[] mappedPage = pages(mapped, false);
+            long[] mappedBound = pages(mapped, true);
+            System.out.println("Page of 50 from " + mapped.size() + " messages:"
+                    + " seek and read " + plainPage[0] / 1000 + " us, " + plainPage[1] / 1024 + " KB allocated;"
+                    + " mapped " + mappedPage[0] / 1000 + " us, " + mappedPage[1] / 1024 + " KB;"
+                    + " mapped and every message bound " + mappedBound[0] / 1000 + " us, "
+                    + mappedBound[1] / 1024 + " KB");
+
+            assertTrue(mappedPage[1] < plainPage[1]);
+            assertTrue(mappedPage[0] < plainPage[0]);
+        }
+    }
+
+    @Test
+    public void messagesLeftEncodedCostAboutTheirBytes() throws Exception {
+        File file = folder.newFile("messages.log");
+        int count = 100_000;
+        try (MessageLog log = new MessageLog(file)) {
+            Random random = new Random(5);
+            for (int i = 0; i < count; i++) {
+                log.append("AA:BB", message(random, i));
+            }
+            // Fill up the last segment so every message above is mapped
+            long sealed = (file.length() / MessageLog.SEGMENT_SIZE + 1) * MessageLog.SEGMENT_SIZE;
+            while (file.length() < sealed) {
+                log.append("AA:BB", message(random, count));
+            }
+        }
+        long encoded = file.length();
+
+        try (MessageLog mapped = new MessageLog(file);
+             MessageLog plain = new MessageLog(file, false)) {
+            long decoded = retainedHeap(mapped, 2);
+            long headers = retainedHeap(mapped, 1);
+            long views = retainedHeap(mapped, 0);
+            long copies = retainedHeap(plain, 0);
+            System.out.println("Heap per 100k messages (" + encoded / 1024 + " KB encoded):"
+                    + " decoded " + decoded / 1024 + " KB, header decoded " + headers / 1024 + " KB,"
+                    + " encoded in the mapping " + views / 1024 + " KB, encoded in a copy "
+                    + copies / 1024 + " KB");
+
+            assertTrue(views * 4 < decoded);
+            assertTrue(headers < decoded);
+        }
+    }
+
+    // Heap held by 100k messages read from log, with nothing decoded (0), the
+    // header (1) or everything (2)
+    private static long retainedHeap(MessageLog log, int decode) throws Exception {
+        ChatMessage[] messages = new ChatMessage[100_000];
+        long before = usedHeap();
+        for (int id = 0; id < messages.length; id++) {
+            messages[id] = log.read(id);
+            if (decode >= 1) {
+                messages[id].getTimestamp();
+            }
+            if (decode >= 2) {
+                messages[id].getContent();
+            }
+        }
+        long used = usedHeap() - before;
+        assertEquals("message 0", messages[0].getContent().substring(0, 9));
+        return used;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Median time and allocation of reading a page of 50 messages at random places
+    // Up to 64 MB of generated messages, then whole copies of them up to size
+    private static void writeHistory(File file, long size) throws Exception {
+        try (MessageLog log = new MessageLog(file)) {
+            Random random = new Random(11);
+            while (file.length() < Math.min(size, 64L * 1024 * 1024)) {
+                log.append("AA:BB", message(random, log.size()));
+            }
+        }
+        // Whole records repeated are still a valid log
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = raw.getChannel();
+            long chunk = channel.size();
+            while (channel.size() < size) {
+                long at = channel.size();
+                for (long done = 0; done < chunk; ) {
+                    done += channel.transferTo(done, chunk - done, channel.position(at + done));
+                }
+            }
+        }
+    }
+
+    private static long[] pages(MessageLog log, boolean bind) throws Exception {
+        Random random = new Random(3);
+        long[] times = new long[2000];
+        long[] allocated = new long[times.length];
+        long sink = 0;
+        for (int i = 0; i < times.length; i++) {
+            int first = random.nextInt(log.size() - 50);
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            for (int id = first; id < first + 50; id++) {
+                ChatMessage message = log.read(id);
+                sink += message.getTimestamp();
+                if (bind) {
+                    sink += message.getContent().length();
+                }
+            }
+            times[i] = System.nanoTime() - start;
+            allocated[i] = allocatedBytes() - bytes;
+        }
+        assertTrue(sink != 0);
+        Arrays.sort(times);
+        Arrays.sort(allocated);
+        return new long[] {times[times.length / 2], allocated[allocated.length / 2]};
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    // Mostly short lines, now and then a long one pasted in
+    private static ChatMessage message(Random random, int n) {
+        int length = random.nextInt(10) == 0 ? 500 + random.nextInt(3000) : 10 + random.nextInt(150);
+        StringBuilder content = new StringBuilder("message ").append(n).append(' ');
+        while (content.length() < length) {
+            content.append((char) ('a' + random.nextInt(26)));
+            if (random.nextInt(6) == 0) {
+                content.append(' ');
+            }
+        }
+        ChatMessage message = new ChatMessage(content.toString(), "Alice", "AA:BB", random.nextBoolean());
+        message.setTimestamp(1_700_000_000_000L + n * 1000L);
+        return message;
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.bluechatpro.storage;
+
+import com.example.bluechatpro.models.ChatMessage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OutboxTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void keepsUnacknowledgedMessagesAcrossRestarts() throws Exception {
+        File file = new File(folder.getRoot(), "outbox.log");
+        Outbox outbox = new Outbox(file);
+        ChatMessage first = message("first", "M1");
+        outbox.add("AA", first);
+        outbox.add("BB", message("other peer", "M2"));
+        outbox.add("AA", message("second", "M3"));
+        outbox.add("AA", first);
+        assertTrue(outbox.remove("M2"));
+        assertFalse(outbox.remove("M2"));
+        outbox.close();
+
+        Outbox reopened = new Outbox(file);
+        List<ChatMessage> pending = reopened.pending("AA");
+        assertEquals(2, pending.size());
+        assertEquals("first", pending.get(0).getContent());
+        assertEquals("M3", pending.get(1).getMessageId());
+        assertEquals(ChatMessage.MessageStatus.SENDING, pending.get(1).getStatus());
+        assertTrue(reopened.pending("BB").isEmpty());
+
+        // Nothing pending leaves nothing on disk
+        reopened.remove("M1");
+        reopened.remove("M3");
+        assertEquals(0, file.length());
+        reopened.close();
+    }
+
+    @Test
+    public void dropsRecordTornByCrash() throws Exception {
+        File file = new File(folder.getRoot(), "outbox.log");
+        Outbox outbox = new Outbox(file);
+        outbox.add("AA", message("kept", "M1"));
+        outbox.add("AA", message("torn", "M2"));
+        outbox.close();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        Outbox reopened = new Outbox(file);
+        assertEquals(1, reopened.size());
+        reopened.add("AA", message("after", "M3"));
+        reopened.close();
+
+        assertEquals(2, new Outbox(file).pending("AA").size());
+    }
+
+    @Test
+    public void compactsWhenAcksPileUp() throws Exception {
+        File file = new File(folder.getRoot(), "outbox.log");
+        Outbox outbox = new Outbox(file);
+        outbox.add("AA", message("stuck", "STUCK"));
+        for (int i = 0; i < 1000; i++) {
+            outbox.add("AA", message("message " + i, "M" + i));
+            outbox.remove("M" + i);
+        }
+        long compacted = file.length();
+        outbox.close();
+
+        assertTrue("Log is " + compacted + " bytes", compacted < 300 * 80);
+        Outbox reopened = new Outbox(file);
+        assertEquals(1, reopened.size());
+        assertEquals("stuck", reopened.pending("AA").get(0).getContent());
+    }
+
+    private static ChatMessage message(String text, String id) {
+        ChatMessage message = new ChatMessage(text, "Me", "me", true);
+        message.setMessageId(id);
+        message.setStatus(ChatMessage.MessageStatus.SENDING);
+        return message;
+    }
+}
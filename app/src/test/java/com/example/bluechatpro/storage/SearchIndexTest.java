@@ -0,0 +1,182 @@
+package com.example.bluechatpro.storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SearchIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void matchesAllWordsWithTheLastAsPrefix() {
+        SearchIndex index = new SearchIndex();
+        index.add(0, "Meet me at the café at 10");
+        index.add(1, "The meeting moved to Friday");
+        index.add(2, "Café closed, meet at the station");
+        index.add(3, "Привет, как дела?");
+
+        assertArrayEquals(new int[] {2, 1, 0}, all(index.search("mee")));
+        assertArrayEquals(new int[] {2, 0}, all(index.search("meet ")));
+        assertArrayEquals(new int[] {2, 0}, all(index.search("CAFÉ meet")));
+        assertArrayEquals(new int[] {1}, all(index.search("friday mee")));
+        assertArrayEquals(new int[] {3}, all(index.search("прив")));
+        assertEquals(0, index.search("nothing").size());
+        assertEquals(0, index.search("  ,, ").size());
+    }
+
+    @Test
+    public void pagesNewestFirst() {
+        SearchIndex index = new SearchIndex();
+        for (int id = 0; id < 100; id++) {
+            index.add(id, id % 2 == 0 ? "even message" : "odd message");
+        }
+
+        SearchIndex.Hits hits = index.search("even");
+        assertEquals(50, hits.size());
+        assertArrayEquals(new int[] {98, 96, 94}, hits.page(0, 3));
+        assertArrayEquals(new int[] {92, 90}, hits.page(3, 2));
+        assertArrayEquals(new int[] {0}, hits.page(49, 10));
+        assertEquals(0, hits.page(50, 10).length);
+    }
+
+    @Test
+    public void postingListsDeltaEncodeIds() {
+        PostingList postings = new PostingList();
+        for (int id = 0; id < 1000; id++) {
+            postings.add(id * 3);
+        }
+        assertFalse(postings.add(2997));
+        assertEquals(1000, postings.count());
+        assertEquals(1000, postings.sizeInBytes());
+        assertEquals(2997, postings.toArray()[999]);
+    }
+
+    @Test
+    public void savedIndexOnlyTakesMessagesItDoesNotCover() throws Exception {
+        File file = new File(folder.getRoot(), "search.idx");
+        SearchIndex index = new SearchIndex();
+        for (int id = 0; id < 1000; id++) {
+            index.add(id, id % 2 == 0 ? "even message " + id : "odd message " + id);
+        }
+        index.save(file);
+
+        SearchIndex loaded = new SearchIndex();
+        loaded.load(file);
+        assertEquals(999, loaded.getMaxId());
+        assertArrayEquals(index.search("even").page(0, 500), loaded.search("even").page(0, 500));
+        assertArrayEquals(new int[] {777}, all(loaded.search("777")));
+
+        // Replaying the log from the start adds only the tail
+        loaded.add(10, "even again");
+        loaded.add(1000, "even newer");
+        assertEquals(501, loaded.search("even").size());
+        assertEquals(0, loaded.search("again").size());
+        assertArrayEquals(new int[] {1000}, all(loaded.search("newer")));
+    }
+
+    @Test
+    public void unreadableIndexLoadsEmpty() throws Exception {
+        File file = new File(folder.getRoot(), "search.idx");
+        SearchIndex index = new SearchIndex();
+        index.add(0, "something");
+        assertEquals(0, index.getMaxId());
+        index.load(file);
+        assertEquals(-1, index.getMaxId());
+
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[] {1, 0, 0, 0, 5, 0, 0, 0, 1, 0});
+        }
+        try {
+            index.load(file);
+            fail("Loaded a truncated index");
+        } catch (IOException expected) {
+            // ok
+        }
+        assertEquals(-1, index.getMaxId());
+        assertEquals(0, index.search("something").size());
+    }
+
+    @Test
+    public void benchmarkQueriesOverAMillionMessages() {
+        int messages = 1_000_000;
+        String[] vocabulary = vocabulary(50_000, 7);
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder();
+
+        SearchIndex index = new SearchIndex();
+        long start = System.nanoTime();
+        for (int id = 0; id < messages; id++) {
+            text.setLength(0);
+            int words = 2 + random.nextInt(14);
+            for (int w = 0; w < words; w++) {
+                text.append(vocabulary[zipf(random, vocabulary.length)]).append(' ');
+            }
+            index.add(id, text);
+        }
+        long buildMillis = (System.nanoTime() - start) / 1_000_000;
+
+        System.out.printf("Indexed %d messages in %d ms: %d terms, %.1f MB of postings%n",
+                messages, buildMillis, index.termCount(), index.sizeInBytes() / 1e6);
+
+        String[] queries = {
+                vocabulary[0] + " ",                      // most common word
+                vocabulary[500] + " ",                    // mid-frequency word
+                vocabulary[30_000] + " ",                 // rare word
+                vocabulary[3].substring(0, 2),            // short prefix
+                vocabulary[1] + " " + vocabulary[2] + " ",
+                vocabulary[10] + " " + vocabulary[200].substring(0, 3),
+        };
+
+        long worst = 0;
+        for (String query : queries) {
+            long[] times = new long[15];
+            int size = 0;
+            for (int run = 0; run < times.length; run++) {
+                long t0 = System.nanoTime();
+                SearchIndex.Hits hits = index.search(query);
+                hits.page(0, 50);
+                times[run] = System.nanoTime() - t0;
+                size = hits.size();
+            }
+            Arrays.sort(times);
+            long median = times[times.length / 2] / 1_000;
+            worst = Math.max(worst, median);
+            System.out.printf("  %-24s %7d hits, median %6d us%n", "\"" + query + "\"", size, median);
+        }
+
+        assertTrue("Slowest query took " + worst + " us", worst < 50_000);
+    }
+
+    private static int[] all(SearchIndex.Hits hits) {
+        return hits.page(0, hits.size());
+    }
+
+    private static String[] vocabulary(int size, long seed) {
+        Random random = new Random(seed);
+        String[] words = new String[size];
+        for (int i = 0; i < size; i++) {
+            int length = 3 + random.nextInt(7);
+            StringBuilder word = new StringBuilder();
+            for (int c = 0; c < length; c++) {
+                word.append((char) ('a' + random.nextInt(26)));
+            }
+            words[i] = word.toString();
+        }
+        return words;
+    }
+
+    // Roughly Zipf-distributed rank, like word frequencies in real text
+    private static int zipf(Random random, int n) {
+        return (int) Math.min(n - 1, Math.floor(Math.pow(n + 1, random.nextDouble())) - 1);
+    }
+}